@@ -0,0 +1,115 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hippo.xiazai.benchmark;
+
+/*
+ * Created by Hippo on 3/4/2017.
+ */
+
+import com.hippo.xiazai.XiaZai;
+import com.hippo.xiazai.XiaZaiCallback;
+import com.hippo.xiazai.XiaZaiDestination;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import okhttp3.Request;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Downloads 4 MB in 4 KB chunks, so there are about a thousand progress events,
+ * and compares the ways to deliver them:
+ * <ul>
+ * <li>{@code none}: no callback</li>
+ * <li>{@code direct}: every chunk, in the download thread</li>
+ * <li>{@code interval}: at most every 100 ms, in the download thread</li>
+ * <li>{@code executor}: every chunk, in another thread, pending progress merged</li>
+ * </ul>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class CallbackBenchmark {
+
+  private static final long LENGTH = 4 * 1024 * 1024;
+
+  @Param({"none", "direct", "interval", "executor"})
+  public String callback;
+
+  private XiaZai xiazai;
+  private Request request;
+  private XiaZaiDestination dest;
+  private ExecutorService executor;
+  private CountingCallback counting;
+
+  @Setup
+  public void setup() {
+    XiaZai.Builder builder = new XiaZai.Builder(MemoryInterceptor.client(LENGTH))
+        .chunkSize(4096, 4096);
+    if ("interval".equals(callback)) {
+      builder.progressInterval(100, TimeUnit.MILLISECONDS);
+    } else if ("executor".equals(callback)) {
+      executor = Executors.newSingleThreadExecutor();
+      builder.callbackExecutor(executor);
+    }
+    xiazai = builder.build();
+    request = new Request.Builder().url(MemoryInterceptor.URL).build();
+    dest = new NullDestination();
+    counting = "none".equals(callback) ? null : new CountingCallback();
+  }
+
+  @TearDown
+  public void tearDown() {
+    if (executor != null) {
+      executor.shutdown();
+    }
+  }
+
+  @Benchmark
+  public int xiazai() {
+    return xiazai.xiazai(request, dest, null, counting);
+  }
+
+  private static final class CountingCallback implements XiaZaiCallback {
+
+    private final AtomicLong read = new AtomicLong();
+
+    @Override
+    public void onStart() {}
+
+    @Override
+    public void onProgress(int n, long read, long content) {
+      this.read.addAndGet(n);
+    }
+
+    @Override
+    public void onCancelled() {}
+
+    @Override
+    public void onCompleted() {}
+
+    @Override
+    public void onError(Throwable e) {}
+  }
+}
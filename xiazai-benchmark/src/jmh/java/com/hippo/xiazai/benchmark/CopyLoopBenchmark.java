@@ -0,0 +1,85 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hippo.xiazai.benchmark;
+
+/*
+ * Created by Hippo on 3/4/2017.
+ */
+
+import com.hippo.xiazai.XiaZai;
+import com.hippo.xiazai.XiaZaiBufferPool;
+import com.hippo.xiazai.XiaZaiDestination;
+import com.hippo.xiazai.destination.SinkDestination;
+import java.util.concurrent.TimeUnit;
+import okhttp3.Request;
+import okio.BufferedSink;
+import okio.Okio;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Copies a 16 MB in-memory response body to a destination which drops the data,
+ * through the {@code OutputStream} path and the Okio {@code Sink} path.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class CopyLoopBenchmark {
+
+  private static final long LENGTH = 16 * 1024 * 1024;
+
+  @Param({"4096", "65536"})
+  public int minChunkSize;
+
+  @Param({"65536", "262144"})
+  public int maxChunkSize;
+
+  @Param({"true", "false"})
+  public boolean pooled;
+
+  private XiaZai xiazai;
+  private Request request;
+  private XiaZaiDestination streamDest;
+  private XiaZaiDestination sinkDest;
+
+  @Setup
+  public void setup() {
+    xiazai = new XiaZai.Builder(MemoryInterceptor.client(LENGTH))
+        .chunkSize(minChunkSize, maxChunkSize)
+        .bufferPool(pooled ? new XiaZaiBufferPool(4 * 1024 * 1024) : null)
+        .build();
+    request = new Request.Builder().url(MemoryInterceptor.URL).build();
+    streamDest = new NullDestination();
+    BufferedSink sink = Okio.buffer(NullDestination.sink());
+    sinkDest = new SinkDestination(sink);
+  }
+
+  @Benchmark
+  public int stream() {
+    return xiazai.xiazai(request, streamDest, null, null);
+  }
+
+  @Benchmark
+  public int sink() {
+    return xiazai.xiazai(request, sinkDest, null, null);
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hippo.xiazai.benchmark;
+
+/*
+ * Created by Hippo on 3/4/2017.
+ */
+
+import com.hippo.xiazai.XiaZai;
+import com.hippo.xiazai.XiaZaiDestination;
+import com.hippo.xiazai.XiaZaiSegmentDestination;
+import com.hippo.xiazai.destination.FileDestination;
+import com.hippo.xiazai.destination.MappedFileDestination;
+import com.hippo.xiazai.destination.OkioFileDestination;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import okhttp3.Request;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Writes a 16 MB in-memory response body to a temporary file
+ * with each destination, in one connection or in segments.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class DestinationBenchmark {
+
+  private static final long LENGTH = 16 * 1024 * 1024;
+
+  @Param({"file", "okio", "mapped"})
+  public String destination;
+
+  @Param({"65536", "262144"})
+  public int chunkSize;
+
+  private XiaZai xiazai;
+  private Request request;
+  private File file;
+  private XiaZaiDestination dest;
+
+  @Setup
+  public void setup() throws IOException {
+    xiazai = new XiaZai.Builder(MemoryInterceptor.client(LENGTH))
+        .chunkSize(chunkSize, chunkSize)
+        .build();
+    request = new Request.Builder().url(MemoryInterceptor.URL).build();
+    file = File.createTempFile("xiazai", ".bin");
+    if ("file".equals(destination)) {
+      dest = new FileDestination(file);
+    } else if ("okio".equals(destination)) {
+      dest = new OkioFileDestination(file);
+    } else if ("mapped".equals(destination)) {
+      dest = new MappedFileDestination(file);
+    } else {
+      throw new IllegalStateException("Unknown destination: " + destination);
+    }
+  }
+
+  // Every download starts from an empty file
+  @Setup(Level.Invocation)
+  public void deleteFile() {
+    file.delete();
+  }
+
+  @TearDown
+  public void tearDown() {
+    file.delete();
+  }
+
+  @Benchmark
+  public int single() {
+    return xiazai.xiazai(request, dest, null, null);
+  }
+
+  /**
+   * Four connections, only for {@link XiaZaiSegmentDestination}.
+   * Others fall back to {@link #single()}.
+   */
+  @Benchmark
+  public int segmented() {
+    if (dest instanceof XiaZaiSegmentDestination) {
+      return xiazai.xiazai(request, (XiaZaiSegmentDestination) dest, 4, null, null);
+    } else {
+      return xiazai.xiazai(request, dest, null, null);
+    }
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hippo.xiazai.benchmark;
+
+/*
+ * Created by Hippo on 3/4/2017.
+ */
+
+import java.io.IOException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.Okio;
+import okio.Source;
+import okio.Timeout;
+
+/**
+ * Answers every request with generated data, without touching the network.
+ * Supports {@code Range}, so segmented downloads work too.
+ */
+final class MemoryInterceptor implements Interceptor {
+
+  static final String URL = "http://xiazai.benchmark/data";
+
+  private static final Pattern PATTERN_RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+  private static final MediaType OCTET_STREAM = MediaType.parse("application/octet-stream");
+
+  private final long length;
+  private final byte[] block;
+
+  MemoryInterceptor(long length) {
+    this.length = length;
+    this.block = new byte[64 * 1024];
+    for (int i = 0; i < block.length; i++) {
+      block[i] = (byte) i;
+    }
+  }
+
+  /**
+   * Return a OkHttpClient whose responses are {@code length} bytes.
+   */
+  static OkHttpClient client(long length) {
+    return new OkHttpClient.Builder()
+        .addInterceptor(new MemoryInterceptor(length))
+        .build();
+  }
+
+  @Override
+  public Response intercept(Chain chain) throws IOException {
+    Request request = chain.request();
+    Response.Builder builder = new Response.Builder()
+        .request(request)
+        .protocol(Protocol.HTTP_1_1)
+        .header("Accept-Ranges", "bytes")
+        .header("ETag", "\"benchmark\"");
+
+    long start = 0;
+    long end = length - 1;
+    String range = request.header("Range");
+    Matcher matcher = range != null ? PATTERN_RANGE.matcher(range) : null;
+    if (matcher != null && matcher.matches()) {
+      start = Long.parseLong(matcher.group(1));
+      if (!matcher.group(2).isEmpty()) {
+        end = Math.min(end, Long.parseLong(matcher.group(2)));
+      }
+      if (start > end) {
+        return builder.code(416).message("Range Not Satisfiable")
+            .header("Content-Range", "bytes */" + length)
+            .body(ResponseBody.create(OCTET_STREAM, new byte[0]))
+            .build();
+      }
+      builder.code(206).message("Partial Content")
+          .header("Content-Range", "bytes " + start + "-" + end + "/" + length);
+    } else {
+      builder.code(200).message("OK");
+    }
+
+    long count = end - start + 1;
+    return builder
+        .header("Content-Length", Long.toString(count))
+        .body(ResponseBody.create(OCTET_STREAM, count, Okio.buffer(new BlockSource(count))))
+        .build();
+  }
+
+  // Repeats the block until count bytes are read
+  private final class BlockSource implements Source {
+
+    private long remaining;
+
+    BlockSource(long count) {
+      this.remaining = count;
+    }
+
+    @Override
+    public long read(Buffer sink, long byteCount) throws IOException {
+      if (remaining == 0) return -1;
+      int n = (int) Math.min(Math.min(byteCount, remaining), block.length);
+      sink.write(block, 0, n);
+      remaining -= n;
+      return n;
+    }
+
+    @Override
+    public Timeout timeout() {
+      return Timeout.NONE;
+    }
+
+    @Override
+    public void close() {}
+  }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hippo.xiazai.benchmark;
+
+/*
+ * Created by Hippo on 3/4/2017.
+ */
+
+import com.hippo.xiazai.XiaZaiDestination;
+import java.io.IOException;
+import java.io.OutputStream;
+import okhttp3.Headers;
+import okhttp3.HttpUrl;
+import okio.Buffer;
+import okio.Sink;
+import okio.Timeout;
+
+/**
+ * Drops all data, so only the copy loop is measured.
+ */
+final class NullDestination implements XiaZaiDestination {
+
+  @Override
+  public OutputStream open(HttpUrl url, int code, Headers headers) throws IOException {
+    return new OutputStream() {
+      @Override
+      public void write(int b) {}
+
+      @Override
+      public void write(byte[] b, int off, int len) {}
+    };
+  }
+
+  static Sink sink() {
+    return new Sink() {
+      @Override
+      public void write(Buffer source, long byteCount) throws IOException {
+        source.skip(byteCount);
+      }
+
+      @Override
+      public void flush() {}
+
+      @Override
+      public Timeout timeout() {
+        return Timeout.NONE;
+      }
+
+      @Override
+      public void close() {}
+    };
+  }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hippo.xiazai.benchmark;
+
+/*
+ * Created by Hippo on 3/4/2017.
+ */
+
+import com.hippo.xiazai.XiaZai;
+import com.hippo.xiazai.XiaZaiIntervalOperator;
+import com.hippo.xiazai.XiaZaiProgress;
+import com.hippo.xiazai.XiaZaiTask;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import okhttp3.Request;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import rx.Subscriber;
+import rx.Subscription;
+import rx.schedulers.Schedulers;
+import rx.subjects.PublishSubject;
+
+/**
+ * Per-event cost of xiazai-rx, with many subscribers at the same time.
+ * <p>
+ * {@code onSubscribe} runs a download of 256 chunks through
+ * {@code XiaZaiTask.xiazai()} in each of 8 threads, the score is per event.
+ * {@code onSubscribeInterval} does the same with {@code interval()}, progress goes
+ * into the operator without allocating {@link XiaZaiProgress}.
+ * <p>
+ * {@code intervalOperator} pushes progress into {@link XiaZaiIntervalOperator}s
+ * from 4 threads, while the operators emit every 10 ms in the computation scheduler.
+ * Each thread has its own subscribers, the score is per progress pushed to all of them.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RxBenchmark {
+
+  private static final int CHUNK_SIZE = 4096;
+  private static final int CHUNKS = 256;
+  // onStart and every chunk
+  private static final int EVENTS = CHUNKS + 1;
+
+  @State(Scope.Benchmark)
+  public static class Download {
+
+    XiaZai xiazai;
+    Request request;
+
+    @Setup
+    public void setup() {
+      xiazai = new XiaZai.Builder(MemoryInterceptor.client(CHUNKS * CHUNK_SIZE))
+          .chunkSize(CHUNK_SIZE, CHUNK_SIZE)
+          .build();
+      request = new Request.Builder().url(MemoryInterceptor.URL).build();
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Interval {
+
+    @Param({"1", "100", "1000"})
+    public int subscribers;
+
+    PublishSubject<XiaZaiProgress> subject;
+    List<Subscription> subscriptions;
+    XiaZaiProgress progress;
+
+    @Setup
+    public void setup() {
+      subject = PublishSubject.create();
+      subscriptions = new ArrayList<>(subscribers);
+      XiaZaiIntervalOperator operator =
+          new XiaZaiIntervalOperator(10, TimeUnit.MILLISECONDS, Schedulers.computation());
+      for (int i = 0; i < subscribers; i++) {
+        subscriptions.add(subject.lift(operator).subscribe(new CountingSubscriber()));
+      }
+      progress = new XiaZaiProgress(CHUNK_SIZE, CHUNK_SIZE, -1);
+    }
+
+    @TearDown
+    public void tearDown() {
+      for (Subscription subscription : subscriptions) {
+        subscription.unsubscribe();
+      }
+    }
+  }
+
+  @Benchmark
+  @Threads(8)
+  @OperationsPerInvocation(EVENTS)
+  public long onSubscribe(Download download) {
+    XiaZaiTask task = new XiaZaiTask.Builder(download.xiazai)
+        .request(download.request)
+        .destination(new NullDestination())
+        .build();
+    CountingSubscriber subscriber = new CountingSubscriber();
+    task.xiazai().subscribe(subscriber);
+    return subscriber.count;
+  }
+
+  @Benchmark
+  @Threads(8)
+  @OperationsPerInvocation(EVENTS)
+  public long onSubscribeInterval(Download download) {
+    XiaZaiTask task = new XiaZaiTask.Builder(download.xiazai)
+        .request(download.request)
+        .destination(new NullDestination())
+        .interval(10, TimeUnit.MILLISECONDS)
+        .build();
+    CountingSubscriber subscriber = new CountingSubscriber();
+    task.xiazai().subscribe(subscriber);
+    return subscriber.count;
+  }
+
+  @Benchmark
+  @Threads(4)
+  public void intervalOperator(Interval interval) {
+    interval.subject.onNext(interval.progress);
+  }
+
+  private static final class CountingSubscriber extends Subscriber<XiaZaiProgress> {
+
+    long count;
+
+    @Override
+    public void onCompleted() {}
+
+    @Override
+    public void onError(Throwable e) {}
+
+    @Override
+    public void onNext(XiaZaiProgress progress) {
+      count++;
+    }
+  }
+}
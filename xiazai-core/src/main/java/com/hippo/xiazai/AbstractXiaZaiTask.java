@@ -0,0 +1,262 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.hippo.xiazai;
+
+/*
+ * Created by Hippo on 3/15/2017.
+ */
+
+import android.support.annotation.Nullable;
+import com.hippo.xiazai.destination.FileDestination;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import okhttp3.HttpUrl;
+import okhttp3.Request;
+
+/**
+ * The configuration of a download shared by {@code XiaZaiTask}s of xiazai-rx and xiazai-rx2.
+ * They only differ in how the progress is emitted.
+ */
+public abstract class AbstractXiaZaiTask {
+
+  // Guarded by this
+  private boolean occupied;
+
+  private final XiaZai xiazai;
+
+  private final Request request;
+  private final List<Request> mirrors;
+  private final XiaZaiDestination dest;
+  private final int segments;
+  @Nullable
+  private final XiaZaiChecksum checksum;
+  @Nullable
+  private final XiaZaiGroup group;
+
+  private final XiaZaiController controller;
+
+  protected AbstractXiaZaiTask(Builder<?> builder) {
+    this.xiazai = builder.xiazai;
+    this.request = builder.request;
+    this.mirrors = new ArrayList<>(builder.mirrors);
+    this.mirrors.add(0, builder.request);
+    this.dest = builder.dest;
+    // One connection for each mirror as default
+    this.segments = builder.segments != 0 ? builder.segments : this.mirrors.size();
+    this.checksum = builder.checksum;
+    this.group = builder.group;
+    controller = new XiaZaiController();
+    controller.setWeight(builder.weight);
+  }
+
+  /**
+   * Occupy this task. Throw IllegalStateException if occupy it twice.
+   */
+  protected final synchronized void occupy() throws IllegalStateException {
+    if (!occupied) {
+      occupied = true;
+    } else {
+      throw new IllegalStateException("The XiaZaiTask is already occupied.");
+    }
+  }
+
+  /**
+   * Download in current thread, events go to the callback,
+   * and to the group if it's set. Return the state of the download.
+   */
+  @XiaZai.State
+  protected final int download(XiaZaiCallback callback) {
+    if (group != null) {
+      callback = group.join(callback);
+    }
+    if (checksum != null) {
+      return xiazai.xiazai(request, dest, checksum, controller, callback);
+    } else if (mirrors.size() > 1) {
+      return xiazai.xiazai(mirrors, (XiaZaiSegmentDestination) dest, segments,
+          controller, callback);
+    } else if (segments > 1 && dest instanceof XiaZaiSegmentDestination) {
+      return xiazai.xiazai(request, (XiaZaiSegmentDestination) dest, segments,
+          controller, callback);
+    } else {
+      return xiazai.xiazai(request, dest, controller, callback);
+    }
+  }
+
+  /**
+   * Change the weight in {@link XiaZaiRateLimiter}, even while downloading.
+   *
+   * @see XiaZaiController#setWeight(int)
+   */
+  public void setWeight(int weight) {
+    controller.setWeight(weight);
+  }
+
+  /**
+   * Cancel this task.
+   */
+  public void cancel() {
+    controller.cancel();
+  }
+
+  /**
+   * @param <B> the type of the builder itself, returned by the setters
+   */
+  public abstract static class Builder<B extends Builder<B>> {
+
+    private XiaZai xiazai;
+
+    private Request request;
+    private final List<Request> mirrors = new ArrayList<>();
+    private XiaZaiDestination dest;
+    // 0 for default
+    private int segments;
+    private XiaZaiChecksum checksum;
+    private XiaZaiGroup group;
+    private int weight = 1;
+
+    protected Builder(XiaZai xiazai) {
+      this.xiazai = xiazai;
+    }
+
+    @SuppressWarnings("unchecked")
+    private B self() {
+      return (B) this;
+    }
+
+    public B url(String url) {
+      return request(new Request.Builder().get().url(url).build());
+    }
+
+    public B url(HttpUrl url) {
+      return request(new Request.Builder().get().url(url).build());
+    }
+
+    public B request(Request request) {
+      this.request = request;
+      return self();
+    }
+
+    /**
+     * Add a mirror of the data.
+     *
+     * @see #mirror(Request)
+     */
+    public B mirror(String url) {
+      return mirror(new Request.Builder().get().url(url).build());
+    }
+
+    /**
+     * Add a mirror of the data.
+     *
+     * @see #mirror(Request)
+     */
+    public B mirror(HttpUrl url) {
+      return mirror(new Request.Builder().get().url(url).build());
+    }
+
+    /**
+     * Add a mirror of the data, download byte ranges from the request and
+     * its mirrors at the same time. Mirrors are tried in the order they are added,
+     * after the request. The destination must be a {@link XiaZaiSegmentDestination}.
+     *
+     * @see XiaZai#xiazai(List, XiaZaiSegmentDestination, int, XiaZaiController, XiaZaiCallback)
+     */
+    public B mirror(Request request) {
+      mirrors.add(request);
+      return self();
+    }
+
+    public B file(File file) {
+      return destination(new FileDestination(file));
+    }
+
+    public B destination(XiaZaiDestination dest) {
+      this.dest = dest;
+      return self();
+    }
+
+    /**
+     * Download in at most {@code segments} connections if the server supports byte ranges.
+     * The destination must be a {@link XiaZaiSegmentDestination}. 1 as default,
+     * or one for each mirror and the request if mirrors are added.
+     *
+     * @see XiaZai#xiazai(Request, XiaZaiSegmentDestination, int, XiaZaiController, XiaZaiCallback)
+     */
+    public B segments(int segments) {
+      this.segments = segments;
+      return self();
+    }
+
+    /**
+     * Verify the checksum of downloaded data. A mismatch is emitted as
+     * {@link com.hippo.xiazai.exception.ChecksumException} in {@code onError()}.
+     * It downloads in one connection, {@link #segments(int)} is ignored. Null as default.
+     *
+     * @see XiaZai#xiazai(Request, XiaZaiDestination, XiaZaiChecksum, XiaZaiController, XiaZaiCallback)
+     */
+    public B checksum(XiaZaiChecksum checksum) {
+      this.checksum = checksum;
+      return self();
+    }
+
+    /**
+     * Add the progress of this task to the group. Null as default.
+     *
+     * @see XiaZaiGroup#join(XiaZaiCallback)
+     */
+    public B group(XiaZaiGroup group) {
+      this.group = group;
+      return self();
+    }
+
+    /**
+     * Set the weight in {@link XiaZaiRateLimiter}. 1 as default.
+     *
+     * @see XiaZaiController#setWeight(int)
+     */
+    public B weight(int weight) {
+      this.weight = weight;
+      return self();
+    }
+
+    /**
+     * Check the configuration. Subclasses call it in {@code build()}.
+     */
+    protected void check() throws IllegalStateException {
+      if (request == null || dest == null) {
+        throw new IllegalStateException("request == null || dest == null");
+      }
+      if (weight < 1) {
+        throw new IllegalStateException("weight < 1");
+      }
+      if (segments < 0) {
+        throw new IllegalStateException("segments < 0");
+      }
+      if (segments > 1 && !(dest instanceof XiaZaiSegmentDestination)) {
+        throw new IllegalStateException("segments > 1 && !(dest instanceof XiaZaiSegmentDestination)");
+      }
+      if (!mirrors.isEmpty() && !(dest instanceof XiaZaiSegmentDestination)) {
+        throw new IllegalStateException("!mirrors.isEmpty() && !(dest instanceof XiaZaiSegmentDestination)");
+      }
+      if (!mirrors.isEmpty() && checksum != null) {
+        throw new IllegalStateException("!mirrors.isEmpty() && checksum != null");
+      }
+    }
+  }
+}
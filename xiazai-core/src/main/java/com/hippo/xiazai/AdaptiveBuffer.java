@@ -0,0 +1,196 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.xiazai;
+
+/*
+ * Created by Hippo on 2/16/2017.
+ */
+
+import android.support.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+import okio.Buffer;
+import okio.BufferedSource;
+
+/**
+ * The transfer buffer of one download.
+ * <p>
+ * Each chunk is filled with several reads before it's written.
+ * Chunk size starts at the min size, doubles while chunks keep filling quickly,
+ * halves while they fill slowly, like a TCP window.
+ * It trades write syscalls and progress calls for latency only on fast links.
+ * A fill returns early once it has taken longer than the slow threshold,
+ * so a large chunk on a slow link doesn't delay cancellation and progress.
+ * <p>
+ * Not thread-safe.
+ */
+final class AdaptiveBuffer {
+
+  // Grow if a chunk is filled in it
+  private static final long FAST_FILL_NANOS = 5 * 1000 * 1000;
+  // Shrink if a chunk takes more than it to fill
+  private static final long SLOW_FILL_NANOS = 20 * 1000 * 1000;
+
+  @Nullable
+  private final XiaZaiBufferPool pool;
+  private final int minSize;
+  private final int maxSize;
+
+  private int size;
+  @Nullable
+  private byte[] buffer;
+  // Thrown by the next fill, so that the bytes filled before it aren't lost
+  @Nullable
+  private IOException deferred;
+  // The longest time a read of the last fill waited for bytes
+  private long wait;
+
+  AdaptiveBuffer(@Nullable XiaZaiBufferPool pool, int minSize, int maxSize) {
+    this.pool = pool;
+    this.minSize = minSize;
+    this.maxSize = maxSize;
+    this.size = minSize;
+  }
+
+  /**
+   * Return the buffer filled by {@link #fill(InputStream, long)}.
+   */
+  byte[] array() {
+    if (buffer == null) {
+      buffer = pool != null ? pool.obtain(size) : new byte[size];
+    }
+    return buffer;
+  }
+
+  // Swap the buffer for a bigger one if the chunk size has grown
+  private byte[] prepare() {
+    if (buffer != null && buffer.length < size) {
+      release();
+    }
+    return array();
+  }
+
+  /**
+   * Fill the buffer from the start with at most {@code limit} bytes.
+   * Return the byte count, -1 for the end of the stream.
+   * If it fails after filling some bytes, they are returned,
+   * and the exception is thrown by the next fill.
+   */
+  int fill(InputStream is, long limit) throws IOException {
+    throwDeferred();
+    byte[] buffer = prepare();
+    int chunk = (int) Math.min(size, limit);
+    long start = System.nanoTime();
+    long last = start;
+    wait = 0;
+    int filled = 0;
+    try {
+      while (filled < chunk) {
+        int n = is.read(buffer, filled, chunk - filled);
+        // A read returns as soon as any byte arrives
+        long now = System.nanoTime();
+        wait = Math.max(wait, now - last);
+        last = now;
+        if (n == -1) break;
+        filled += n;
+        if (filled < chunk && now - start > SLOW_FILL_NANOS) break;
+      }
+    } catch (IOException e) {
+      if (filled == 0) throw e;
+      deferred = e;
+      return filled;
+    }
+    if (filled == 0 && chunk > 0) return -1;
+    // A short fill because of the time is slow too
+    if (filled == size || filled < chunk) {
+      resize(System.nanoTime() - start);
+    }
+    return filled;
+  }
+
+  /**
+   * Fill the Okio buffer with at most {@code limit} bytes.
+   * Return the byte count, -1 for the end of the source.
+   * Failures are deferred like {@link #fill(InputStream, long)}.
+   */
+  long fill(BufferedSource source, Buffer sink, long limit) throws IOException {
+    throwDeferred();
+    long chunk = Math.min(size, limit);
+    long start = System.nanoTime();
+    long last = start;
+    wait = 0;
+    long filled = 0;
+    try {
+      while (filled < chunk) {
+        long n = source.read(sink, chunk - filled);
+        long now = System.nanoTime();
+        wait = Math.max(wait, now - last);
+        last = now;
+        if (n == -1) break;
+        filled += n;
+        if (filled < chunk && now - start > SLOW_FILL_NANOS) break;
+      }
+    } catch (IOException e) {
+      if (filled == 0) throw e;
+      deferred = e;
+      return filled;
+    }
+    if (filled == 0 && chunk > 0) return -1;
+    // A short fill because of the time is slow too
+    if (filled == size || filled < chunk) {
+      resize(System.nanoTime() - start);
+    }
+    return filled;
+  }
+
+  /**
+   * Return the longest time a read of the last fill waited for bytes.
+   */
+  long waitNanos() {
+    return wait;
+  }
+
+  private void throwDeferred() throws IOException {
+    IOException e = deferred;
+    if (e != null) {
+      deferred = null;
+      throw e;
+    }
+  }
+
+  private void resize(long nanos) {
+    int newSize = size;
+    if (nanos < FAST_FILL_NANOS && size < maxSize) {
+      newSize = Math.min(size * 2, maxSize);
+    } else if (nanos > SLOW_FILL_NANOS && size > minSize) {
+      newSize = Math.max(size / 2, minSize);
+    }
+    size = newSize;
+  }
+
+  /**
+   * Give the buffer back to the pool.
+   */
+  void release() {
+    if (buffer != null) {
+      if (pool != null) {
+        pool.recycle(buffer);
+      }
+      buffer = null;
+    }
+  }
+}
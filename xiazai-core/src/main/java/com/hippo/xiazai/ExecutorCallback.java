@@ -0,0 +1,206 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.xiazai;
+
+/*
+ * Created by Hippo on 2/18/2017.
+ */
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+/**
+ * A {@link XiaZaiCallback} which delivers events to another callback in the executor.
+ * Stall and retry events are delivered if the callback is a {@link XiaZaiRetryCallback}.
+ * <p>
+ * Events are delivered one by one in order. Progress events which are still
+ * waiting for the executor are merged into one, so the download thread never
+ * waits for the callback, and a slow callback receives fewer events.
+ * If the executor rejects it, events are delivered in the calling thread instead.
+ */
+final class ExecutorCallback implements XiaZaiRetryCallback, Runnable {
+
+  private static final int TYPE_START = 0;
+  private static final int TYPE_PROGRESS = 1;
+  private static final int TYPE_CANCELLED = 2;
+  private static final int TYPE_COMPLETED = 3;
+  private static final int TYPE_ERROR = 4;
+  private static final int TYPE_STALL = 5;
+  private static final int TYPE_RETRY = 6;
+
+  private final XiaZaiCallback callback;
+  private final Executor executor;
+
+  // Guarded by this
+  private final ArrayDeque<Event> events = new ArrayDeque<>();
+  // Guarded by this
+  private boolean scheduled;
+
+  ExecutorCallback(XiaZaiCallback callback, Executor executor) {
+    this.callback = callback;
+    this.executor = executor;
+  }
+
+  @Override
+  public void onStart() {
+    post(new Event(TYPE_START));
+  }
+
+  @Override
+  public void onProgress(int n, long read, long content) {
+    synchronized (this) {
+      Event last = events.peekLast();
+      if (last != null && last.type == TYPE_PROGRESS && last.n + n <= Integer.MAX_VALUE) {
+        last.n += n;
+        last.read = read;
+        last.content = content;
+        return;
+      }
+    }
+    Event event = new Event(TYPE_PROGRESS);
+    event.n = n;
+    event.read = read;
+    event.content = content;
+    post(event);
+  }
+
+  @Override
+  public void onCancelled() {
+    post(new Event(TYPE_CANCELLED));
+  }
+
+  @Override
+  public void onCompleted() {
+    post(new Event(TYPE_COMPLETED));
+  }
+
+  @Override
+  public void onError(Throwable e) {
+    Event event = new Event(TYPE_ERROR);
+    event.e = e;
+    post(event);
+  }
+
+  @Override
+  public void onStall(long read, long content) {
+    if (!(callback instanceof XiaZaiRetryCallback)) return;
+    Event event = new Event(TYPE_STALL);
+    event.read = read;
+    event.content = content;
+    post(event);
+  }
+
+  @Override
+  public void onRetry(int retry, long delay, long read, Throwable e) {
+    if (!(callback instanceof XiaZaiRetryCallback)) return;
+    Event event = new Event(TYPE_RETRY);
+    event.n = retry;
+    event.delay = delay;
+    event.read = read;
+    event.e = e;
+    post(event);
+  }
+
+  private void post(Event event) {
+    boolean schedule;
+    synchronized (this) {
+      events.add(event);
+      schedule = !scheduled;
+      scheduled = true;
+    }
+    if (schedule) {
+      schedule();
+    }
+  }
+
+  // Run in the executor, or in current thread if the executor fails to take it,
+  // so that no event, the terminal one above all, is lost
+  private void schedule() {
+    try {
+      executor.execute(this);
+    } catch (RuntimeException e) {
+      run();
+    }
+  }
+
+  @Override
+  public void run() {
+    for (;;) {
+      Event event;
+      synchronized (this) {
+        event = events.poll();
+        if (event == null) {
+          scheduled = false;
+          return;
+        }
+      }
+      try {
+        deliver(event);
+      } catch (RuntimeException | Error t) {
+        // Keep delivering the rest of events
+        boolean schedule;
+        synchronized (this) {
+          scheduled = !events.isEmpty();
+          schedule = scheduled;
+        }
+        if (schedule) {
+          schedule();
+        }
+        throw t;
+      }
+    }
+  }
+
+  private void deliver(Event event) {
+    switch (event.type) {
+      case TYPE_START:
+        callback.onStart();
+        break;
+      case TYPE_PROGRESS:
+        callback.onProgress((int) event.n, event.read, event.content);
+        break;
+      case TYPE_CANCELLED:
+        callback.onCancelled();
+        break;
+      case TYPE_COMPLETED:
+        callback.onCompleted();
+        break;
+      case TYPE_ERROR:
+        callback.onError(event.e);
+        break;
+      case TYPE_STALL:
+        ((XiaZaiRetryCallback) callback).onStall(event.read, event.content);
+        break;
+      case TYPE_RETRY:
+        ((XiaZaiRetryCallback) callback).onRetry((int) event.n, event.delay, event.read, event.e);
+        break;
+    }
+  }
+
+  private static class Event {
+    final int type;
+    long n;
+    long read;
+    long content;
+    long delay;
+    Throwable e;
+
+    Event(int type) {
+      this.type = type;
+    }
+  }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.xiazai;
+
+/*
+ * Created by Hippo on 3/8/2017.
+ */
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Sends a request, and sends a hedged one if the first byte of the response
+ * doesn't come in the delay of {@link XiaZaiHedgePolicy}.
+ * <p>
+ * Both calls are enqueued to the {@link okhttp3.Dispatcher}. The first call which
+ * gets the first byte, or fails after the other one has failed, decides the result.
+ * The other call is cancelled.
+ */
+final class HedgedCall {
+
+  // Check cancellation at least in this interval while waiting
+  private static final long MAX_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+  private final XiaZai xiazai;
+  private final XiaZaiHedgePolicy policy;
+  private final Retrier.Host host;
+  private final MetricsRecorder metrics;
+
+  // Guarded by this
+  private final List<Attempt> attempts = new ArrayList<>();
+  // Guarded by this
+  @Nullable
+  private Attempt winner;
+  // Guarded by this, responses come after it are closed
+  private boolean finished;
+
+  HedgedCall(XiaZai xiazai, XiaZaiHedgePolicy policy, Retrier.Host host,
+      MetricsRecorder metrics) {
+    this.xiazai = xiazai;
+    this.policy = policy;
+    this.host = host;
+    this.metrics = metrics;
+  }
+
+  /**
+   * Execute the request, send the alternate request if it's slow.
+   * Return the response whose first byte is received, or throw the failure
+   * of the first request if all fail.
+   * <p>
+   * The time to the first byte of the first request is recorded. If the alternate
+   * one wins, the time the first request has waited is recorded instead. It's
+   * only a lower bound, but recording the time of the winner would let the
+   * percentile drift low.
+   */
+  Response execute(Request request, Request alternate) throws IOException {
+    long deadline = System.nanoTime() + policy.delay();
+    boolean hedged = false;
+    try {
+      synchronized (this) {
+        start(request, false);
+        for (;;) {
+          if (host.isCancelled()) {
+            throw new IOException("Canceled");
+          }
+          IOException failure = null;
+          boolean running = false;
+          for (Attempt attempt : attempts) {
+            if (attempt.response != null) {
+              winner = attempt;
+              break;
+            } else if (attempt.failure == null) {
+              running = true;
+            } else if (failure == null) {
+              failure = attempt.failure;
+            }
+          }
+          if (winner != null) break;
+          if (!running) throw failure;
+
+          long now = System.nanoTime();
+          if (!hedged && now >= deadline) {
+            hedged = true;
+            if (policy.acquire()) {
+              metrics.onHedge();
+              start(alternate, true);
+            }
+          }
+          long wait = hedged ? MAX_WAIT_NANOS : Math.min(deadline - now, MAX_WAIT_NANOS);
+          TimeUnit.NANOSECONDS.timedWait(this, Math.max(1, wait));
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    } finally {
+      finish();
+    }
+
+    Response response;
+    long nanos;
+    synchronized (this) {
+      response = winner.response;
+      nanos = winner.alternate ? winner.received - attempts.get(0).start : winner.nanos;
+    }
+    policy.record(nanos);
+    metrics.onHeaders();
+    return response;
+  }
+
+  /**
+   * Return true if the response is from the alternate request.
+   */
+  synchronized boolean isAlternate() {
+    return winner != null && winner.alternate;
+  }
+
+  // Guarded by this
+  private void start(Request request, boolean alternate) throws IOException {
+    Call call = xiazai.client().newCall(request);
+    Attempt attempt = new Attempt(call, alternate);
+    attempts.add(attempt);
+    if (host.addCall(call)) {
+      throw new IOException("Canceled");
+    }
+    call.enqueue(attempt);
+  }
+
+  // Cancel the losers
+  private void finish() {
+    List<Attempt> losers = new ArrayList<>();
+    synchronized (this) {
+      finished = true;
+      for (Attempt attempt : attempts) {
+        host.removeCall(attempt.call);
+        if (attempt != winner) {
+          losers.add(attempt);
+        }
+      }
+    }
+    for (Attempt attempt : losers) {
+      attempt.call.cancel();
+      if (attempt.response != null) {
+        attempt.response.close();
+      }
+    }
+  }
+
+  private class Attempt implements Callback {
+
+    private final Call call;
+    private final boolean alternate;
+    private final long start = System.nanoTime();
+
+    // Guarded by HedgedCall.this
+    @Nullable
+    private Response response;
+    // Guarded by HedgedCall.this
+    @Nullable
+    private IOException failure;
+    // Guarded by HedgedCall.this, the time to the first byte
+    private long nanos;
+    // Guarded by HedgedCall.this, when the first byte is received
+    private long received;
+
+    Attempt(Call call, boolean alternate) {
+      this.call = call;
+      this.alternate = alternate;
+    }
+
+    @Override
+    public void onFailure(Call call, IOException e) {
+      synchronized (HedgedCall.this) {
+        failure = e;
+        HedgedCall.this.notifyAll();
+      }
+    }
+
+    @Override
+    public void onResponse(Call call, @NonNull Response response) {
+      // Wait for the first byte
+      try {
+        response.body().source().request(1);
+      } catch (IOException e) {
+        response.close();
+        onFailure(call, e);
+        return;
+      }
+      boolean lost;
+      synchronized (HedgedCall.this) {
+        lost = finished;
+        if (!lost) {
+          this.response = response;
+          this.received = System.nanoTime();
+          this.nanos = received - start;
+          HedgedCall.this.notifyAll();
+        }
+      }
+      if (lost) {
+        response.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hippo.xiazai;
+
+/*
+ * Created by Hippo on 3/3/2017.
+ */
+
+import android.support.annotation.Nullable;
+import java.util.concurrent.TimeUnit;
+import okhttp3.HttpUrl;
+
+/**
+ * Collects {@link XiaZaiMetrics} of one download.
+ * <p>
+ * It only takes a few {@code System.nanoTime()} calls a chunk.
+ * Chunks may come from segment threads, so it's synchronized.
+ */
+final class MetricsRecorder {
+
+  // Receiving no byte for more than it is a stall
+  static final long STALL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private final long start = System.nanoTime();
+
+  // Guarded by this
+  boolean fromCache;
+  // Guarded by this
+  int connections;
+  // Guarded by this
+  long headersNanos = -1;
+  // Guarded by this
+  long firstByteNanos = -1;
+  // Guarded by this
+  long bytesWritten;
+  // Guarded by this
+  long writeNanos;
+  // Guarded by this
+  long throttleNanos;
+  // Guarded by this
+  int stallCount;
+  // Guarded by this
+  long stallNanos;
+  // Guarded by this
+  long longestStallNanos;
+  // Guarded by this
+  int retries;
+  // Guarded by this
+  int hedges;
+
+  long now() {
+    return System.nanoTime();
+  }
+
+  synchronized void onHeaders() {
+    if (headersNanos == -1) {
+      headersNanos = System.nanoTime() - start;
+    }
+    connections = Math.max(connections, 1);
+  }
+
+  synchronized void onFromCache() {
+    fromCache = true;
+  }
+
+  synchronized void onRetry() {
+    retries++;
+  }
+
+  synchronized void onHedge() {
+    hedges++;
+  }
+
+  synchronized void onConnections(int connections) {
+    this.connections = connections;
+  }
+
+  /**
+   * Record a chunk. Times are from {@link #now()}.
+   *
+   * @param wait the longest time receiving no byte while receiving the chunk,
+   *     a large chunk which takes long to fill isn't a stall
+   * @param fillEnd the time the chunk is received
+   * @param writeStart the time to start writing the chunk, after throttling
+   * @param writeEnd the time the chunk is written
+   */
+  synchronized void onChunk(int n, long wait, long fillEnd, long writeStart, long writeEnd) {
+    // Taken from the first chunk in the copy loop, so that waiting for
+    // the first byte is covered by retrying and stall detection
+    if (firstByteNanos == -1) {
+      firstByteNanos = fillEnd - start;
+    }
+    if (wait > STALL_NANOS) {
+      stallCount++;
+      stallNanos += wait;
+      longestStallNanos = Math.max(longestStallNanos, wait);
+    }
+    throttleNanos += writeStart - fillEnd;
+    writeNanos += writeEnd - writeStart;
+    bytesWritten += n;
+  }
+
+  synchronized XiaZaiMetrics build(HttpUrl url, int state, @Nullable Throwable exception) {
+    return new XiaZaiMetrics(this, url, state, exception, System.nanoTime() - start);
+  }
+}
@@ -0,0 +1,628 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.xiazai;
+
+/*
+ * Created by Hippo on 3/7/2017.
+ */
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import com.hippo.xiazai.exception.BadCodeException;
+import com.hippo.xiazai.exception.ContentLengthException;
+import com.hippo.xiazai.exception.StallException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import okhttp3.Call;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Downloads byte ranges of one file from several mirrors at the same time.
+ * <p>
+ * The file is split into parts, one for each connection. A connection which
+ * finishes its part takes a waiting part, or takes over the end of the part
+ * which would take the longest, then downloads it from the mirror measured fastest.
+ * So faster mirrors download more, and slow mirrors don't hold the end of the file.
+ * <p>
+ * A mirror is dropped if it serves a different entity, or it fails more than
+ * {@link XiaZaiRetryPolicy#maxRetries()} times. Its parts are left to other mirrors.
+ * <p>
+ * The first part is read from the probe response in the calling thread, the others
+ * run in the executor service of the {@link okhttp3.Dispatcher}.
+ * Progress, stall and retry events are reported in the calling thread.
+ */
+final class MirroredDownload implements Executor, Retrier.Host {
+
+  // Don't take over the end of a part if less than it is left to each
+  static final long MIN_PART_SIZE = 256 * 1024;
+  // Older speed samples count half after it
+  private static final long SPEED_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+  private final XiaZai xiazai;
+  private final XiaZaiSegmentDestination dest;
+  @Nullable
+  private final XiaZaiController controller;
+  private final XiaZaiRateLimiter.Share share;
+  private final MetricsRecorder metrics;
+  @Nullable
+  private final XiaZaiRetryPolicy policy;
+  @Nullable
+  private final XiaZaiCallback callback;
+  // Delivers stall and retry events of other connections in the calling thread
+  @Nullable
+  private final XiaZaiCallback events;
+  private final long length;
+
+  private volatile boolean aborted;
+
+  // The entity to download
+  @Nullable
+  private String validator;
+
+  // Guarded by this
+  private final List<Mirror> mirrors = new ArrayList<>();
+  // Guarded by this, parts being downloaded
+  private final List<Part> parts = new ArrayList<>();
+  // Guarded by this, parts waiting for a connection
+  private final ArrayDeque<Part> pending = new ArrayDeque<>();
+  // Guarded by this
+  private final List<Call> calls = new ArrayList<>();
+  // Guarded by this
+  private long read;
+  // Guarded by this
+  private int running;
+  // Guarded by this
+  private int retries;
+  // Guarded by this
+  private Throwable error;
+  // Guarded by this
+  private final ArrayDeque<Runnable> runnables = new ArrayDeque<>();
+
+  // Only touched in the calling thread
+  private long reported;
+
+  MirroredDownload(XiaZai xiazai, XiaZaiSegmentDestination dest,
+      @Nullable XiaZaiController controller, XiaZaiRateLimiter.Share share,
+      MetricsRecorder metrics, @Nullable XiaZaiCallback callback, long length) {
+    this.xiazai = xiazai;
+    this.dest = dest;
+    this.controller = controller;
+    this.share = share;
+    this.metrics = metrics;
+    this.policy = xiazai.retryPolicy();
+    this.callback = callback;
+    this.events = callback != null ? new ExecutorCallback(callback, this) : null;
+    this.length = length;
+  }
+
+  /**
+   * Download the file from the mirrors. The response must be the response of
+   * {@link Ranges#probe(Request)} of the first mirror. The entity of the response is
+   * the one to download, mirrors serving a different ETag or length are dropped.
+   */
+  void download(List<Request> requests, Response response, int segments,
+      ProgressReporter progress) throws IOException {
+    validator = Ranges.validator(response);
+
+    int count = (int) Math.max(1, Math.min(segments, length / SegmentedDownload.MIN_SEGMENT_SIZE));
+    long size = length / count;
+
+    Mirror first;
+    Part part;
+    synchronized (this) {
+      for (Request request : requests) {
+        mirrors.add(new Mirror(request.newBuilder()
+            .removeHeader("Range")
+            .removeHeader("If-Range")
+            .build()));
+      }
+      first = mirrors.get(0);
+      for (int i = 0; i < count; i++) {
+        long start = i * size;
+        long end = i == count - 1 ? length - 1 : start + size - 1;
+        pending.add(new Part(start, end));
+      }
+      // The first part is in the probe response
+      part = pending.poll();
+      take(part, first);
+      running = count;
+    }
+    metrics.onConnections(count);
+    for (int i = 1; i < count; i++) {
+      try {
+        xiazai.client().dispatcher().executorService().execute(new Worker());
+      } catch (Throwable t) {
+        finish(t);
+      }
+    }
+
+    try {
+      work(part, first, response, progress);
+      finish(null);
+    } catch (Throwable t) {
+      finish(t);
+    }
+
+    await(progress);
+  }
+
+  @Override
+  public synchronized void execute(@NonNull Runnable runnable) {
+    runnables.add(runnable);
+    notifyAll();
+  }
+
+  @Override
+  public boolean addCall(Call call) {
+    synchronized (this) {
+      calls.add(call);
+    }
+    return aborted || (controller != null && controller.addCall(call));
+  }
+
+  @Override
+  public void removeCall(Call call) {
+    synchronized (this) {
+      calls.remove(call);
+    }
+    if (controller != null) {
+      controller.removeCall(call);
+    }
+  }
+
+  @Override
+  public boolean isCancelled() {
+    return aborted || (controller != null && controller.isCancelled());
+  }
+
+  /**
+   * Download parts until no part is left.
+   * Only the calling thread has the progress reporter.
+   */
+  private void work(@Nullable Part part, @Nullable Mirror mirror, @Nullable Response response,
+      @Nullable ProgressReporter progress) throws IOException {
+    for (;;) {
+      if (part == null) {
+        synchronized (this) {
+          mirror = choose();
+          part = mirror != null ? next(mirror) : null;
+          if (part == null) return;
+          take(part, mirror);
+        }
+      }
+
+      IOException failure = null;
+      try {
+        if (response == null) {
+          try {
+            response = open(part, mirror);
+          } catch (IOException e) {
+            failure = e;
+          }
+        }
+        if (failure == null) {
+          failure = copy(response, part, mirror, progress);
+        }
+      } finally {
+        if (response != null) {
+          response.close();
+        }
+        if (part.call != null) {
+          removeCall(part.call);
+          part.call = null;
+        }
+      }
+
+      if (failure == null) {
+        synchronized (this) {
+          parts.remove(part);
+          mirror.connections--;
+        }
+      } else {
+        fail(part, mirror, failure, progress);
+      }
+      part = null;
+      response = null;
+    }
+  }
+
+  // Send the range request of the part to the mirror
+  private Response open(Part part, Mirror mirror) throws IOException {
+    long start;
+    long end;
+    synchronized (this) {
+      start = part.position;
+      end = part.end;
+    }
+    Request.Builder builder = mirror.request.newBuilder()
+        .header("Range", "bytes=" + start + "-" + end);
+    if (validator != null) {
+      builder.header("If-Range", validator);
+    }
+    Call call = xiazai.client().newCall(builder.build());
+    // Keep the call until the body is read, so that it could be cancelled
+    part.call = call;
+    if (addCall(call)) {
+      throw new IOException("Canceled");
+    }
+    Response response = call.execute();
+    metrics.onHeaders();
+
+    try {
+      int code = response.code();
+      if (code != 206) {
+        // 200 means the mirror serves another entity or doesn't support byte ranges
+        if (!Retrier.isRetryable(code)) {
+          drop(mirror);
+        }
+        throw new BadCodeException(code);
+      }
+      long[] range = Ranges.parseContentRange(response.header("Content-Range"));
+      String validator = Ranges.validator(response);
+      if (range == null || range[0] != start || (range[2] != -1 && range[2] != length)
+          || (this.validator != null && validator != null && !this.validator.equals(validator))) {
+        drop(mirror);
+        throw new IOException("The mirror serves another entity: " + mirror.request.url());
+      }
+    } catch (IOException e) {
+      response.close();
+      throw e;
+    }
+
+    if (policy != null && policy.stallTimeout() > 0) {
+      response.body().source().timeout().timeout(policy.stallTimeout(), TimeUnit.NANOSECONDS);
+    }
+    return response;
+  }
+
+  // Return the failure of the mirror, or null if the part is done.
+  // Failures of the destination are thrown.
+  @Nullable
+  private IOException copy(Response response, Part part, Mirror mirror,
+      @Nullable ProgressReporter progress) throws IOException {
+    OutputStream os = null;
+    AdaptiveBuffer buffer = xiazai.newBuffer();
+    try {
+      long position;
+      synchronized (this) {
+        position = part.position;
+      }
+      os = dest.open(position);
+      InputStream is = response.body().byteStream();
+      for (;;) {
+        if (isCancelled()) {
+          throw new IOException("Canceled");
+        }
+
+        long remaining;
+        synchronized (this) {
+          remaining = part.end - part.position + 1;
+        }
+        if (remaining <= 0) break;
+
+        long fillStart = metrics.now();
+        int n;
+        try {
+          n = buffer.fill(is, xiazai.chunkLimit(remaining));
+          if (n == -1) {
+            // The body is shorter than the part
+            long end;
+            long received;
+            synchronized (this) {
+              end = part.end;
+              received = part.position - position;
+            }
+            throw new ContentLengthException(end - position + 1, received);
+          }
+        } catch (IOException e) {
+          return e;
+        }
+        long fillEnd = metrics.now();
+        xiazai.throttle(share, n, controller);
+
+        // The end may be taken over in the meantime
+        synchronized (this) {
+          n = (int) Math.min(n, part.end - part.position + 1);
+          part.position += n;
+          read += n;
+          mirror.sample(n, fillEnd - fillStart);
+          notifyAll();
+        }
+        long writeStart = metrics.now();
+        os.write(buffer.array(), 0, n);
+        metrics.onChunk(n, buffer.waitNanos(), fillEnd, writeStart, metrics.now());
+
+        if (progress != null) {
+          report(progress);
+        }
+      }
+      OutputStream stream = os;
+      os = null;
+      stream.close();
+      return null;
+    } finally {
+      if (os != null) {
+        try {
+          os.close();
+        } catch (IOException e) {
+          // Ignore
+        }
+      }
+      buffer.release();
+    }
+  }
+
+  // Leave the part to other connections, wait before retrying the mirror.
+  // Throw the failure if no mirror is left.
+  private void fail(Part part, Mirror mirror, IOException failure,
+      @Nullable ProgressReporter progress) throws IOException {
+    if (isCancelled()) throw failure;
+    if (failure instanceof SocketTimeoutException) {
+      failure = new StallException("No data in time", failure);
+    }
+
+    long delay = 0;
+    long position;
+    long read;
+    int retries;
+    synchronized (this) {
+      parts.remove(part);
+      mirror.connections--;
+      pending.addFirst(part);
+      mirror.failures++;
+      if (!mirror.dropped && (policy == null || mirror.failures > policy.maxRetries())) {
+        mirror.dropped = true;
+      }
+      if (choose() == null) throw failure;
+      if (!mirror.dropped) {
+        delay = policy.backoff(mirror.failures);
+      }
+      retries = ++this.retries;
+      position = part.position;
+      read = this.read;
+    }
+
+    metrics.onRetry();
+    XiaZaiCallback callback = progress != null ? this.callback : events;
+    if (progress != null) {
+      progress.flush();
+    }
+    if (callback instanceof XiaZaiRetryCallback) {
+      XiaZaiRetryCallback retryCallback = (XiaZaiRetryCallback) callback;
+      if (failure instanceof StallException) {
+        retryCallback.onStall(read, length);
+      }
+      retryCallback.onRetry(retries, TimeUnit.NANOSECONDS.toMillis(delay), position, failure);
+    }
+    Retrier.sleep(delay, this);
+  }
+
+  private synchronized void drop(Mirror mirror) {
+    mirror.dropped = true;
+  }
+
+  // Guarded by this
+  private void take(Part part, Mirror mirror) {
+    part.mirror = mirror;
+    parts.add(part);
+    mirror.connections++;
+  }
+
+  // Return the mirror for the next part, or null if all mirrors are dropped.
+  // Mirrors not measured yet go first, then the fastest.
+  // Guarded by this
+  @Nullable
+  private Mirror choose() {
+    Mirror best = null;
+    for (Mirror mirror : mirrors) {
+      if (mirror.dropped) continue;
+      if (best == null) {
+        best = mirror;
+        continue;
+      }
+      long speed = mirror.speed();
+      long bestSpeed = best.speed();
+      if (speed == -1 && bestSpeed == -1) {
+        if (mirror.connections < best.connections) {
+          best = mirror;
+        }
+      } else if (speed == -1 || (bestSpeed != -1 && speed > bestSpeed)) {
+        best = mirror;
+      }
+    }
+    return best;
+  }
+
+  // Return a waiting part, or the end of the part which would take the longest, or null
+  // Guarded by this
+  @Nullable
+  private Part next(Mirror mirror) {
+    Part part = pending.poll();
+    if (part != null) return part;
+
+    long speed = mirror.speed();
+    Part victim = null;
+    double longest = 0;
+    for (Part p : parts) {
+      long remaining = p.end - p.position + 1;
+      if (remaining < 2 * MIN_PART_SIZE) continue;
+      long victimSpeed = p.mirror.speed();
+      double time = (double) remaining / Math.max(1, victimSpeed != -1 ? victimSpeed : speed);
+      if (time > longest) {
+        longest = time;
+        victim = p;
+      }
+    }
+    if (victim == null) return null;
+
+    // Split it so that both finish at the same time
+    long remaining = victim.end - victim.position + 1;
+    long victimSpeed = victim.mirror.speed();
+    long keep;
+    if (victimSpeed == -1 || speed == -1) {
+      keep = remaining / 2;
+    } else {
+      keep = (long) ((double) remaining * victimSpeed / (victimSpeed + speed));
+    }
+    keep = Math.max(MIN_PART_SIZE, Math.min(remaining - MIN_PART_SIZE, keep));
+    part = new Part(victim.position + keep, victim.end);
+    victim.end = part.position - 1;
+    return part;
+  }
+
+  private synchronized void finish(@Nullable Throwable t) {
+    running--;
+    if (t != null && error == null) {
+      error = t;
+      abort();
+    }
+    notifyAll();
+  }
+
+  /**
+   * Stop all connections.
+   */
+  synchronized void abort() {
+    aborted = true;
+    for (Call call : calls) {
+      call.cancel();
+    }
+  }
+
+  private void report(ProgressReporter progress) {
+    long total;
+    synchronized (this) {
+      total = read;
+    }
+    long n = total - reported;
+    if (n > 0) {
+      reported = total;
+      progress.onProgress(n, total, length);
+    }
+  }
+
+  // Wait for all connections, report progress and events in the meantime
+  private void await(ProgressReporter progress) throws IOException {
+    for (;;) {
+      boolean done;
+      List<Runnable> pending;
+      synchronized (this) {
+        while (running > 0 && read == reported && runnables.isEmpty()) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            abort();
+            throw new InterruptedIOException();
+          }
+        }
+        done = running == 0;
+        pending = new ArrayList<>(runnables);
+        runnables.clear();
+      }
+      report(progress);
+      for (Runnable runnable : pending) {
+        runnable.run();
+      }
+      if (done) break;
+    }
+
+    Throwable t;
+    synchronized (this) {
+      t = error;
+    }
+    if (t instanceof IOException) {
+      throw (IOException) t;
+    } else if (t instanceof RuntimeException) {
+      throw (RuntimeException) t;
+    } else if (t instanceof Error) {
+      throw (Error) t;
+    } else if (t != null) {
+      throw new IOException(t);
+    }
+  }
+
+  private class Worker implements Runnable {
+    @Override
+    public void run() {
+      try {
+        work(null, null, null, null);
+        finish(null);
+      } catch (Throwable t) {
+        finish(t);
+      }
+    }
+  }
+
+  // Guarded by MirroredDownload.this
+  private static class Mirror {
+
+    private final Request request;
+    private boolean dropped;
+    private int connections;
+    private int failures;
+
+    // Bytes received in the time, older samples count less
+    private long bytes;
+    private long nanos;
+
+    Mirror(Request request) {
+      this.request = request;
+    }
+
+    void sample(long n, long nanos) {
+      this.bytes += n;
+      this.nanos += nanos;
+      if (this.nanos > SPEED_WINDOW_NANOS) {
+        this.bytes /= 2;
+        this.nanos /= 2;
+      }
+    }
+
+    // Bytes per second of a connection, -1 if not measured yet
+    long speed() {
+      return nanos > 0 ? (long) (bytes * 1e9 / nanos) : -1;
+    }
+  }
+
+  // Guarded by MirroredDownload.this
+  private static class Part {
+
+    // The next byte to download
+    private long position;
+    // The last byte to download, moves back if the end is taken over
+    private long end;
+    @Nullable
+    private Mirror mirror;
+    // Only touched in the connection downloading it
+    @Nullable
+    private Call call;
+
+    Part(long position, long end) {
+      this.position = position;
+      this.end = end;
+    }
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.xiazai;
+
+/*
+ * Created by Hippo on 2/18/2017.
+ */
+
+import android.support.annotation.Nullable;
+
+/**
+ * Throttles {@link XiaZaiCallback#onProgress(int, long, long)} of one download.
+ * <p>
+ * Progress is reported if {@code interval} nanoseconds passed
+ * or {@code step} bytes were read since the last report.
+ * 0 disables the condition. If both are 0, every chunk is reported.
+ * <p>
+ * Not thread-safe.
+ */
+final class ProgressReporter {
+
+  @Nullable
+  private final XiaZaiCallback callback;
+  private final long interval;
+  private final long step;
+
+  // System.nanoTime() may be anything, the first report doesn't wait for the interval
+  private boolean reported;
+  private long lastTime;
+  private long pending;
+  private long read;
+  private long content = -1;
+
+  ProgressReporter(@Nullable XiaZaiCallback callback, long interval, long step) {
+    this.callback = callback;
+    this.interval = interval;
+    this.step = step;
+  }
+
+  void onProgress(long n, long read, long content) {
+    if (callback == null) return;
+
+    // n of XiaZaiCallback.onProgress() is an int
+    if (pending + n > Integer.MAX_VALUE) {
+      flush();
+    }
+    this.pending += n;
+    this.read = read;
+    this.content = content;
+
+    boolean due;
+    if (interval == 0 && step == 0) {
+      due = true;
+    } else {
+      due = step > 0 && pending >= step;
+      if (!due && interval > 0) {
+        long now = System.nanoTime();
+        due = !reported || now - lastTime >= interval;
+      }
+    }
+    if (due) {
+      flush();
+    }
+  }
+
+  /**
+   * Report pending progress now.
+   */
+  void flush() {
+    if (callback == null || pending == 0) return;
+    int n = (int) pending;
+    pending = 0;
+    reported = true;
+    if (interval > 0) {
+      lastTime = System.nanoTime();
+    }
+    callback.onProgress(n, read, content);
+  }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.xiazai;
+
+/*
+ * Created by Hippo on 2/12/2017.
+ */
+
+import android.support.annotation.Nullable;
+import com.hippo.xiazai.destination.BaseDestination;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Helpers for HTTP byte ranges.
+ */
+final class Ranges {
+  private Ranges() {}
+
+  private static final Pattern PATTERN_CONTENT_RANGE =
+      Pattern.compile("bytes\\s+(\\d+)-(\\d+)/(\\d+|\\*)");
+  private static final Pattern PATTERN_UNSATISFIED_CONTENT_RANGE =
+      Pattern.compile("bytes\\s+\\*/(\\d+)");
+
+  /**
+   * Add a {@code Range} header which asks for the whole entity,
+   * so that the response shows whether the server supports byte ranges.
+   */
+  static Request probe(Request request) {
+    return request.newBuilder().header("Range", "bytes=0-").build();
+  }
+
+  /**
+   * Add {@code Range} header which asks for the data from the offset,
+   * and {@code If-Range} header if the validator isn't null.
+   */
+  static Request from(Request request, long offset, @Nullable String validator) {
+    Request.Builder builder = request.newBuilder().header("Range", "bytes=" + offset + "-");
+    if (validator != null) {
+      builder.header("If-Range", validator);
+    }
+    return builder.build();
+  }
+
+  /**
+   * Return the length of the whole entity if the response is
+   * a partial response starting from 0, or -1.
+   */
+  static long entityLength(Response response) {
+    if (response.code() != 206) return -1;
+    long[] range = parseContentRange(response.header("Content-Range"));
+    if (range == null || range[0] != 0 || range[2] <= 0) return -1;
+    return range[2];
+  }
+
+  /**
+   * Parse {@code Content-Range} header, return {@code [start, end, total]}, or null.
+   * {@code total} is -1 if unknown.
+   */
+  @Nullable
+  static long[] parseContentRange(@Nullable String contentRange) {
+    if (contentRange == null) return null;
+    Matcher matcher = PATTERN_CONTENT_RANGE.matcher(contentRange);
+    if (!matcher.find()) return null;
+    try {
+      long start = Long.parseLong(matcher.group(1));
+      long end = Long.parseLong(matcher.group(2));
+      String total = matcher.group(3);
+      return new long[] {start, end, "*".equals(total) ? -1 : Long.parseLong(total)};
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Return the length of the entity in a 416 response, or -1.
+   */
+  static long unsatisfiedLength(Response response) {
+    if (response.code() != 416) return -1;
+    String contentRange = response.header("Content-Range");
+    if (contentRange == null) return -1;
+    Matcher matcher = PATTERN_UNSATISFIED_CONTENT_RANGE.matcher(contentRange);
+    if (!matcher.find()) return -1;
+    try {
+      return Long.parseLong(matcher.group(1));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Return the validator to put in {@code If-Range} header, or null.
+   * Weak ETags can't be used in {@code If-Range}.
+   */
+  @Nullable
+  static String validator(Response response) {
+    return BaseDestination.getValidator(response.headers());
+  }
+}
@@ -0,0 +1,406 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hippo.xiazai;
+
+/*
+ * Created by Hippo on 3/6/2017.
+ */
+
+import android.support.annotation.Nullable;
+import com.hippo.xiazai.exception.BadCodeException;
+import com.hippo.xiazai.exception.StallException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+import okhttp3.Call;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Retries one transfer by {@link XiaZaiRetryPolicy}.
+ * <p>
+ * It retries requests which fail to connect or get a 408, 429 or 5xx response,
+ * detects stalls, and reconnects a broken transfer to continue from the last byte.
+ * If the server supports byte ranges, it asks for the rest with {@code Range}
+ * and {@code If-Range}, otherwise it downloads the entity again and skips the received part.
+ * The entity must have a validator or a known length, so that it's known to be the same.
+ * <p>
+ * Without a policy it never retries, but still works.
+ * <p>
+ * Not thread-safe, each segment has its own.
+ */
+final class Retrier {
+
+  // Check cancellation at least in this interval while waiting
+  private static final long MAX_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+  /**
+   * Where the calls of a transfer are registered, so that they could be cancelled.
+   */
+  interface Host {
+    // Register the call, return true if the transfer is cancelled
+    boolean addCall(Call call);
+
+    void removeCall(Call call);
+
+    boolean isCancelled();
+  }
+
+  private final XiaZai xiazai;
+  @Nullable
+  private final XiaZaiRetryPolicy policy;
+  private final Host host;
+  @Nullable
+  private final XiaZaiCallback callback;
+  @Nullable
+  private final ProgressReporter progress;
+  private final MetricsRecorder metrics;
+
+  private int retries;
+  // The last response is from the alternate request
+  private boolean alternate;
+  private long windowBytes;
+  private long windowNanos;
+
+  // The entity to continue
+  private Request request;
+  @Nullable
+  private String validator;
+  private long content = -1;
+  private boolean rangeable;
+
+  /**
+   * @param callback receives stall and retry events if it's a {@link XiaZaiRetryCallback}
+   * @param progress flushed before stall and retry events
+   */
+  Retrier(XiaZai xiazai, @Nullable XiaZaiRetryPolicy policy, Host host,
+      @Nullable XiaZaiCallback callback, @Nullable ProgressReporter progress,
+      MetricsRecorder metrics) {
+    this.xiazai = xiazai;
+    this.policy = policy;
+    this.host = host;
+    this.callback = callback;
+    this.progress = progress;
+    this.metrics = metrics;
+  }
+
+  /**
+   * Return a Host which registers calls to the controller.
+   */
+  static Host host(@Nullable final XiaZaiController controller) {
+    return new Host() {
+      @Override
+      public boolean addCall(Call call) {
+        return controller != null && controller.addCall(call);
+      }
+
+      @Override
+      public void removeCall(Call call) {
+        if (controller != null) {
+          controller.removeCall(call);
+        }
+      }
+
+      @Override
+      public boolean isCancelled() {
+        return controller != null && controller.isCancelled();
+      }
+    };
+  }
+
+  /**
+   * Execute the request. Retry if it fails to connect or gets a 408, 429 or 5xx response.
+   * If {@link XiaZai.Builder#hedgePolicy(XiaZaiHedgePolicy)} is set,
+   * the alternate request is sent too if the request is slow.
+   *
+   * @param alternate the request to hedge, null for the same request
+   * @param read the bytes already stored, for {@link XiaZaiRetryCallback#onRetry}
+   */
+  Response execute(Request request, @Nullable Request alternate, long read) throws IOException {
+    for (;;) {
+      Response response;
+      try {
+        response = connect(request, alternate != null ? alternate : request);
+      } catch (IOException e) {
+        retry(e, read, -1);
+        continue;
+      }
+      if (isRetryable(response.code()) && canRetry()) {
+        long delay = retryAfter(response);
+        response.close();
+        retry(new BadCodeException(response.code()), read, delay);
+        continue;
+      }
+      watch(response);
+      return response;
+    }
+  }
+
+  /**
+   * Remember the entity of the response, so that the transfer could continue if it breaks.
+   *
+   * @param content the length of the entity, -1 if unknown
+   */
+  void setEntity(Request request, Response response, long content) {
+    this.request = request.newBuilder()
+        .removeHeader("Range")
+        .removeHeader("If-Range")
+        .removeHeader("If-None-Match")
+        .removeHeader("If-Modified-Since")
+        .build();
+    this.validator = Ranges.validator(response);
+    this.content = content;
+    // Positions of decompressed data can't be asked by Range
+    Response networkResponse = response.networkResponse();
+    boolean decompressed = networkResponse != null
+        && networkResponse.header("Content-Encoding") != null
+        && response.header("Content-Encoding") == null;
+    this.rangeable = !decompressed && (response.code() == 206
+        || "bytes".equalsIgnoreCase(response.header("Accept-Ranges")));
+  }
+
+  /**
+   * Record a chunk. Return a StallException if the transfer is slower
+   * than min throughput in the window, or null.
+   *
+   * @param fillNanos the time to receive the chunk
+   */
+  @Nullable
+  StallException onChunk(long n, long fillNanos) {
+    if (policy == null || policy.minThroughput() == 0) return null;
+    windowBytes += n;
+    windowNanos += fillNanos;
+    if (windowNanos < policy.throughputWindow()) return null;
+    long throughput = (long) (windowBytes * 1e9 / windowNanos);
+    windowBytes = 0;
+    windowNanos = 0;
+    if (throughput < policy.minThroughput()) {
+      return new StallException("Throughput is " + throughput
+          + " bytes per second, less than " + policy.minThroughput());
+    }
+    return null;
+  }
+
+  /**
+   * Continue the broken transfer. Return the response whose body starts from the position,
+   * or throw the failure if it can't continue.
+   *
+   * @param failure the failure of reading the body
+   * @param position the position in the entity to continue from
+   * @param end the last byte wanted, -1 for the end of the entity
+   * @param read the bytes read so far, for {@link XiaZaiRetryCallback#onStall}
+   * @param total the bytes to read, for {@link XiaZaiRetryCallback#onStall}
+   */
+  Response recover(IOException failure, long position, long end, long read, long total)
+      throws IOException {
+    return recover(failure, -1, position, end, read, total);
+  }
+
+  /**
+   * Continue after a retryable response, like 503, of a range request.
+   * The response is closed.
+   *
+   * @see #recover(IOException, long, long, long, long)
+   */
+  Response recover(Response response, long position, long end, long read, long total)
+      throws IOException {
+    response.close();
+    return recover(new BadCodeException(response.code()), retryAfter(response),
+        position, end, read, total);
+  }
+
+  private Response recover(IOException failure, long delay, long position, long end,
+      long read, long total) throws IOException {
+    if (host.isCancelled()) throw failure;
+    if (failure instanceof SocketTimeoutException) {
+      failure = new StallException("No data in time", failure);
+    }
+    if (failure instanceof StallException) {
+      if (progress != null) {
+        progress.flush();
+      }
+      if (callback instanceof XiaZaiRetryCallback) {
+        ((XiaZaiRetryCallback) callback).onStall(read, total);
+      }
+    }
+    // Can't tell whether it's the same entity
+    if (request == null || (validator == null && content == -1)) throw failure;
+
+    for (;;) {
+      retry(failure, position, delay);
+      delay = -1;
+
+      Request request = this.request;
+      if (rangeable) {
+        Request.Builder builder = request.newBuilder()
+            .header("Range", "bytes=" + position + "-" + (end != -1 ? end : ""));
+        if (validator != null) {
+          builder.header("If-Range", validator);
+        }
+        request = builder.build();
+      }
+
+      Response response;
+      try {
+        response = call(request);
+      } catch (IOException e) {
+        failure = e;
+        continue;
+      }
+
+      int code = response.code();
+      try {
+        if (code == 206 && isContinued(response, position)) {
+          watch(response);
+          return response;
+        }
+        if (code == 200 && isSameEntity(response)) {
+          watch(response);
+          response.body().source().skip(position);
+          return response;
+        }
+      } catch (IOException e) {
+        response.close();
+        failure = e;
+        continue;
+      }
+
+      response.close();
+      if (isRetryable(code)) {
+        failure = new BadCodeException(code);
+        delay = retryAfter(response);
+        continue;
+      }
+      throw new IOException("Can't continue, the entity is changed, code: " + code, failure);
+    }
+  }
+
+  // Return true if the partial response starts from the position of the entity
+  private boolean isContinued(Response response, long position) {
+    long[] range = Ranges.parseContentRange(response.header("Content-Range"));
+    if (range == null || range[0] != position) return false;
+    if (content != -1 && range[2] != -1 && range[2] != content) return false;
+    String validator = Ranges.validator(response);
+    return validator == null || this.validator == null || validator.equals(this.validator);
+  }
+
+  private boolean isSameEntity(Response response) {
+    if (validator != null && !validator.equals(Ranges.validator(response))) return false;
+    long length = response.body().contentLength();
+    if (content != -1 && length != -1) return length == content;
+    // One of them must be known
+    return validator != null;
+  }
+
+  /**
+   * Return true if the response of the last {@link #execute(Request, Request, long)}
+   * is from the alternate request.
+   */
+  boolean isAlternate() {
+    return alternate;
+  }
+
+  private Response connect(Request request, Request alternate) throws IOException {
+    XiaZaiHedgePolicy hedge = xiazai.hedgePolicy();
+    if (hedge == null) {
+      this.alternate = false;
+      return call(request);
+    }
+    HedgedCall call = new HedgedCall(xiazai, hedge, host, metrics);
+    try {
+      return call.execute(request, alternate);
+    } finally {
+      this.alternate = call.isAlternate();
+    }
+  }
+
+  private Response call(Request request) throws IOException {
+    Call call = xiazai.client().newCall(request);
+    if (host.addCall(call)) {
+      throw new IOException("Canceled");
+    }
+    try {
+      Response response = call.execute();
+      metrics.onHeaders();
+      return response;
+    } finally {
+      host.removeCall(call);
+    }
+  }
+
+  // Apply the stall timeout to the body, and start a new throughput window
+  void watch(Response response) {
+    if (policy != null && policy.stallTimeout() > 0) {
+      response.body().source().timeout().timeout(policy.stallTimeout(), TimeUnit.NANOSECONDS);
+    }
+    windowBytes = 0;
+    windowNanos = 0;
+  }
+
+  private boolean canRetry() {
+    return policy != null && retries < policy.maxRetries() && !host.isCancelled();
+  }
+
+  // Wait before the next retry, or throw the failure if it can't retry
+  private void retry(IOException failure, long read, long delay) throws IOException {
+    if (!canRetry()) throw failure;
+    retries++;
+    if (delay < 0) {
+      delay = policy.backoff(retries);
+    }
+    metrics.onRetry();
+    if (progress != null) {
+      progress.flush();
+    }
+    if (callback instanceof XiaZaiRetryCallback) {
+      ((XiaZaiRetryCallback) callback).onRetry(retries,
+          TimeUnit.NANOSECONDS.toMillis(delay), read, failure);
+    }
+    sleep(delay, host);
+  }
+
+  /**
+   * Sleep, but throw if the host is cancelled.
+   */
+  static void sleep(long nanos, Host host) throws IOException {
+    long deadline = System.nanoTime() + nanos;
+    for (;;) {
+      if (host.isCancelled()) {
+        throw new IOException("Canceled");
+      }
+      long remaining = deadline - System.nanoTime();
+      if (remaining <= 0) return;
+      try {
+        TimeUnit.NANOSECONDS.sleep(Math.min(remaining, MAX_WAIT_NANOS));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException();
+      }
+    }
+  }
+
+  private long retryAfter(Response response) {
+    int code = response.code();
+    if (policy == null || (code != 429 && code != 503)) return -1;
+    return policy.retryAfter(response.header("Retry-After"));
+  }
+
+  static boolean isRetryable(int code) {
+    return code == 408 || code == 429 || code == 500
+        || code == 502 || code == 503 || code == 504;
+  }
+}
@@ -0,0 +1,433 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.xiazai;
+
+/*
+ * Created by Hippo on 2/10/2017.
+ */
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import com.hippo.xiazai.exception.BadCodeException;
+import com.hippo.xiazai.exception.ContentLengthException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Downloads several byte ranges of one file at the same time.
+ * <p>
+ * The first range is read from the probe response in the calling thread,
+ * the others are enqueued to the dispatcher of the {@code OkHttpClient}.
+ * Progress is always reported in the calling thread, so are stall and retry events.
+ * Each segment retries by itself, continuing from its last byte.
+ * A segment which fails in a dispatcher callback leaves the dispatcher at once,
+ * its retries and backoff run in the executor service of the dispatcher,
+ * so they don't hold {@link okhttp3.Dispatcher#getMaxRequestsPerHost()} slots.
+ */
+final class SegmentedDownload implements Executor, Retrier.Host {
+
+  // Don't split files into segments smaller than it
+  static final long MIN_SEGMENT_SIZE = 512 * 1024;
+
+  private final XiaZai xiazai;
+  private final XiaZaiSegmentDestination dest;
+  @Nullable
+  private final XiaZaiController controller;
+  private final XiaZaiRateLimiter.Share share;
+  private final MetricsRecorder metrics;
+  @Nullable
+  private final XiaZaiCallback callback;
+  // Delivers stall and retry events of other segments in the calling thread
+  @Nullable
+  private final XiaZaiCallback events;
+  private final long length;
+
+  private volatile boolean aborted;
+
+  // Guarded by this
+  private final List<Call> calls = new ArrayList<>();
+  // Guarded by this
+  private long read;
+  // Guarded by this
+  private int running;
+  // Guarded by this
+  private Throwable error;
+  // Guarded by this
+  private final ArrayDeque<Runnable> runnables = new ArrayDeque<>();
+
+  // Only touched in the calling thread
+  private long reported;
+
+  SegmentedDownload(XiaZai xiazai, XiaZaiSegmentDestination dest,
+      @Nullable XiaZaiController controller, XiaZaiRateLimiter.Share share,
+      MetricsRecorder metrics, @Nullable XiaZaiCallback callback, long length) {
+    this.xiazai = xiazai;
+    this.dest = dest;
+    this.controller = controller;
+    this.share = share;
+    this.metrics = metrics;
+    this.callback = callback;
+    this.events = callback != null ? new ExecutorCallback(callback, this) : null;
+    this.length = length;
+  }
+
+  /**
+   * Download all segments. The response must be the response of {@link Ranges#probe(Request)}.
+   */
+  void download(Request request, Response response, int segments,
+      ProgressReporter progress) throws IOException {
+    int count = (int) Math.max(1, Math.min(segments, length / MIN_SEGMENT_SIZE));
+    long size = length / count;
+
+    Request.Builder builder = request.newBuilder();
+    String validator = Ranges.validator(response);
+    if (validator != null) {
+      builder.header("If-Range", validator);
+    }
+
+    synchronized (this) {
+      running = count;
+    }
+    metrics.onConnections(count);
+    for (int i = 1; i < count; i++) {
+      long start = i * size;
+      long end = i == count - 1 ? length - 1 : start + size - 1;
+      Retrier retrier = new Retrier(xiazai, xiazai.retryPolicy(), this, events, null, metrics);
+      retrier.setEntity(request, response, length);
+      enqueue(builder, new Segment(start, end, retrier));
+    }
+
+    // The first segment is in the probe response
+    try {
+      Retrier retrier = new Retrier(xiazai, xiazai.retryPolicy(), this, callback, progress, metrics);
+      retrier.setEntity(request, response, length);
+      Segment segment = new Segment(0, count == 1 ? length - 1 : size - 1, retrier);
+      copy(segment, response, progress, true);
+      finish(null, null);
+    } catch (Throwable t) {
+      finish(null, t);
+    }
+
+    await(progress);
+  }
+
+  private void enqueue(Request.Builder builder, Segment segment) {
+    Request request = builder
+        .header("Range", "bytes=" + segment.start + "-" + segment.end).build();
+    Call call = xiazai.client().newCall(request);
+    synchronized (this) {
+      calls.add(call);
+    }
+    if (aborted || (controller != null && controller.addCall(call))) {
+      finish(call, new IOException("Canceled"));
+      return;
+    }
+    call.enqueue(new SegmentCallback(segment));
+  }
+
+  @Override
+  public synchronized void execute(@NonNull Runnable runnable) {
+    runnables.add(runnable);
+    notifyAll();
+  }
+
+  @Override
+  public boolean addCall(Call call) {
+    synchronized (this) {
+      calls.add(call);
+    }
+    return aborted || (controller != null && controller.addCall(call));
+  }
+
+  @Override
+  public void removeCall(Call call) {
+    synchronized (this) {
+      calls.remove(call);
+    }
+    if (controller != null) {
+      controller.removeCall(call);
+    }
+  }
+
+  @Override
+  public boolean isCancelled() {
+    return aborted || (controller != null && controller.isCancelled());
+  }
+
+  // Only the calling thread has the progress reporter
+  // Return null if the segment is completed. If it breaks, continue it if recover is true,
+  // otherwise return the failure. The response is closed
+  @Nullable
+  private IOException copy(Segment segment, Response response,
+      @Nullable ProgressReporter progress, boolean recover) throws IOException {
+    OutputStream os = null;
+    AdaptiveBuffer buffer = xiazai.newBuffer();
+    try {
+      os = dest.open(segment.position);
+      InputStream is = response.body().byteStream();
+      while (segment.position <= segment.end) {
+        if (isCancelled()) {
+          throw new IOException("Canceled");
+        }
+
+        long fillStart = metrics.now();
+        int n;
+        IOException failure = null;
+        try {
+          n = buffer.fill(is, xiazai.chunkLimit(segment.end - segment.position + 1));
+          if (n == -1) {
+            throw new ContentLengthException(segment.end - segment.start + 1,
+                segment.position - segment.start);
+          }
+        } catch (IOException e) {
+          n = 0;
+          failure = e;
+        }
+
+        if (failure == null) {
+          long fillEnd = metrics.now();
+          xiazai.throttle(share, n, controller);
+          long writeStart = metrics.now();
+          os.write(buffer.array(), 0, n);
+          metrics.onChunk(n, buffer.waitNanos(), fillEnd, writeStart, metrics.now());
+          segment.position += n;
+
+          synchronized (this) {
+            read += n;
+            notifyAll();
+          }
+          if (progress != null) {
+            report(progress);
+          }
+          failure = segment.retrier.onChunk(n, fillEnd - fillStart);
+        }
+
+        if (failure != null) {
+          response.close();
+          if (!recover) {
+            OutputStream stream = os;
+            os = null;
+            stream.close();
+            return failure;
+          }
+          // Continue from the last byte if possible
+          response = segment.retrier.recover(failure, segment.position, segment.end,
+              read(), length);
+          is = response.body().byteStream();
+        }
+      }
+      OutputStream stream = os;
+      os = null;
+      stream.close();
+      return null;
+    } finally {
+      if (os != null) {
+        closeQuietly(os);
+      }
+      buffer.release();
+      response.close();
+    }
+  }
+
+  private synchronized void finish(@Nullable Call call, @Nullable Throwable t) {
+    running--;
+    if (call != null) {
+      calls.remove(call);
+      if (controller != null) {
+        controller.removeCall(call);
+      }
+    }
+    if (t != null && error == null) {
+      error = t;
+      abort();
+    }
+    notifyAll();
+  }
+
+  /**
+   * Stop all segments.
+   */
+  synchronized void abort() {
+    aborted = true;
+    for (Call call : calls) {
+      call.cancel();
+    }
+  }
+
+  private void report(ProgressReporter progress) {
+    long total;
+    synchronized (this) {
+      total = read;
+    }
+    long n = total - reported;
+    if (n > 0) {
+      reported = total;
+      progress.onProgress(n, total, length);
+    }
+  }
+
+  private synchronized long read() {
+    return read;
+  }
+
+  // Wait for all segments, report progress and events in the meantime
+  private void await(ProgressReporter progress) throws IOException {
+    for (;;) {
+      boolean done;
+      List<Runnable> pending;
+      synchronized (this) {
+        while (running > 0 && read == reported && runnables.isEmpty()) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            abort();
+            throw new InterruptedIOException();
+          }
+        }
+        done = running == 0;
+        pending = new ArrayList<>(runnables);
+        runnables.clear();
+      }
+      report(progress);
+      for (Runnable runnable : pending) {
+        runnable.run();
+      }
+      if (done) break;
+    }
+
+    Throwable t;
+    synchronized (this) {
+      t = error;
+    }
+    if (t instanceof IOException) {
+      throw (IOException) t;
+    } else if (t instanceof RuntimeException) {
+      throw (RuntimeException) t;
+    } else if (t instanceof Error) {
+      throw (Error) t;
+    } else if (t != null) {
+      throw new IOException(t);
+    }
+  }
+
+  private static void closeQuietly(OutputStream os) {
+    try {
+      os.close();
+    } catch (IOException e) {
+      // Ignore
+    }
+  }
+
+  /**
+   * A byte range. Only one thread touches it at a time.
+   */
+  private static final class Segment {
+
+    private final long start;
+    private final long end;
+    private final Retrier retrier;
+    // The next byte to write
+    private long position;
+
+    Segment(long start, long end, Retrier retrier) {
+      this.start = start;
+      this.end = end;
+      this.retrier = retrier;
+      this.position = start;
+    }
+  }
+
+  private class SegmentCallback implements Callback {
+
+    private final Segment segment;
+
+    public SegmentCallback(Segment segment) {
+      this.segment = segment;
+    }
+
+    @Override
+    public void onFailure(Call call, IOException e) {
+      retry(call, e, null);
+    }
+
+    @Override
+    public void onResponse(Call call, @NonNull Response response) throws IOException {
+      try {
+        if (Retrier.isRetryable(response.code())) {
+          response.close();
+          retry(call, new BadCodeException(response.code()), response);
+          return;
+        }
+        // 200 means the entity is changed or the server doesn't support ranges any more
+        if (response.code() != 206) {
+          throw new BadCodeException(response.code());
+        }
+        long[] range = Ranges.parseContentRange(response.header("Content-Range"));
+        if (range == null || range[0] != segment.start) {
+          throw new IOException("Unexpected Content-Range: " + response.header("Content-Range"));
+        }
+        segment.retrier.watch(response);
+        IOException failure = copy(segment, response, null, false);
+        if (failure != null) {
+          retry(call, failure, null);
+        } else {
+          finish(call, null);
+        }
+      } catch (Throwable t) {
+        finish(call, t);
+      } finally {
+        response.close();
+      }
+    }
+
+    // Leave the dispatcher thread, retry in the executor service
+    private void retry(final Call call, final IOException failure,
+        @Nullable final Response response) {
+      Runnable runnable = new Runnable() {
+        @Override
+        public void run() {
+          try {
+            Retrier retrier = segment.retrier;
+            Response recovered = response != null
+                ? retrier.recover(response, segment.position, segment.end, read(), length)
+                : retrier.recover(failure, segment.position, segment.end, read(), length);
+            copy(segment, recovered, null, true);
+            finish(call, null);
+          } catch (Throwable t) {
+            finish(call, t);
+          }
+        }
+      };
+      try {
+        xiazai.client().dispatcher().executorService().execute(runnable);
+      } catch (RejectedExecutionException e) {
+        finish(call, failure);
+      }
+    }
+  }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.xiazai;
+
+/*
+ * Created by Hippo on 3/13/2017.
+ */
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter split into cells, each thread adds to one of them,
+ * so that many threads adding at the same time rarely contend.
+ * Like {@code LongAdder} which isn't in Java 7.
+ * <p>
+ * {@link #sum()} isn't an atomic snapshot while adding.
+ */
+final class StripedLong {
+
+  // Longs from one cell to the next one, to keep cells on different cache lines
+  private static final int PAD = 8;
+  private static final int MAX_CELLS = 64;
+
+  private final int mask;
+  private final AtomicLongArray cells;
+
+  StripedLong() {
+    int wanted = 2 * Runtime.getRuntime().availableProcessors();
+    int count = 1;
+    while (count < wanted && count < MAX_CELLS) {
+      count <<= 1;
+    }
+    this.mask = count - 1;
+    this.cells = new AtomicLongArray(count * PAD);
+  }
+
+  void add(long x) {
+    long id = Thread.currentThread().getId();
+    int index = (int) ((id * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+    cells.addAndGet(index * PAD, x);
+  }
+
+  long sum() {
+    long sum = 0;
+    for (int i = 0, n = mask + 1; i < n; i++) {
+      sum += cells.get(i * PAD);
+    }
+    return sum;
+  }
+}
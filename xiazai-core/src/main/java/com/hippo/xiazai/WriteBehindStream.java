@@ -0,0 +1,274 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.xiazai;
+
+/*
+ * Created by Hippo on 3/14/2017.
+ */
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queues written bytes, and writes them to the stream in the executor
+ * of {@link XiaZaiWriteBehind}.
+ * <p>
+ * Closing waits for the writer. After cancelling, queued chunks are dropped, and
+ * closing only waits for the chunk being written, at most the close timeout.
+ * If it times out, closing throws, and the writer closes the stream when it returns.
+ * <p>
+ * Written by one thread at a time, like other streams.
+ */
+final class WriteBehindStream extends OutputStream implements Runnable {
+
+  // Arrays kept for next chunks
+  private static final int MAX_SPARE_COUNT = 4;
+
+  private final XiaZaiWriteBehind writeBehind;
+  private final OutputStream os;
+  @Nullable
+  private final XiaZaiController controller;
+  @Nullable
+  private final XiaZaiBufferPool pool;
+
+  // Guarded by this
+  private final ArrayDeque<Chunk> chunks = new ArrayDeque<>();
+  // Guarded by this
+  private final ArrayDeque<byte[]> spares = new ArrayDeque<>();
+  // Guarded by this, bytes queued or being written
+  private long pending;
+  // Guarded by this, the writer is scheduled or running
+  private boolean draining;
+  // Guarded by this, drop queued chunks instead of writing them
+  private boolean discard;
+  // Guarded by this, the writer closes the stream when it's done
+  private boolean closeByWriter;
+  // Guarded by this
+  @Nullable
+  private IOException failure;
+
+  private boolean closed;
+
+  WriteBehindStream(XiaZaiWriteBehind writeBehind, OutputStream os,
+      @Nullable XiaZaiController controller, @Nullable XiaZaiBufferPool pool) {
+    this.writeBehind = writeBehind;
+    this.os = os;
+    this.controller = controller;
+    this.pool = pool;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] {(byte) b}, 0, 1);
+  }
+
+  @Override
+  public void write(@NonNull byte[] b, int off, int len) throws IOException {
+    if (closed) throw new IOException("Closed");
+    if (len == 0) return;
+
+    byte[] array;
+    synchronized (this) {
+      // Wait for the writer if the queue of this download is full
+      while (failure == null && pending > 0 && pending + len > writeBehind.maxPending()) {
+        await();
+      }
+      if (failure != null) throw failure;
+      array = spares.isEmpty() || spares.peek().length < len ? null : spares.poll();
+    }
+    writeBehind.acquire(len, controller);
+    if (array == null) {
+      array = pool != null ? pool.obtain(len) : new byte[len];
+    }
+    System.arraycopy(b, off, array, 0, len);
+
+    boolean start;
+    synchronized (this) {
+      chunks.add(new Chunk(array, len));
+      pending += len;
+      start = !draining;
+      draining = true;
+    }
+    if (start) {
+      try {
+        writeBehind.executor().execute(this);
+      } catch (RejectedExecutionException e) {
+        // Write in this thread
+        run();
+      }
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    if (closed) throw new IOException("Closed");
+    synchronized (this) {
+      while (draining) {
+        await();
+      }
+      if (failure != null) throw failure;
+    }
+    os.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) return;
+    closed = true;
+
+    IOException failure;
+    boolean interrupted = false;
+    synchronized (this) {
+      // The stream can't be closed while the writer is writing
+      boolean bounded = false;
+      long deadline = 0;
+      while (draining) {
+        if (!bounded && (interrupted || (controller != null && controller.isCancelled()))) {
+          // Cancelled, don't wait for queued chunks, drop them.
+          // Wait for the chunk being written, or the caller could delete
+          // or reopen the file while the writer is still writing it.
+          bounded = true;
+          discard = true;
+          deadline = System.nanoTime() + writeBehind.closeTimeout();
+        }
+        long wait = XiaZaiWriteBehind.MAX_WAIT_NANOS;
+        if (bounded) {
+          long remaining = deadline - System.nanoTime();
+          if (remaining <= 0) {
+            // The storage stalls, the writer closes the stream when it returns
+            closeByWriter = true;
+            if (interrupted) {
+              Thread.currentThread().interrupt();
+            }
+            throw new IOException("The writer is still writing");
+          }
+          wait = Math.min(wait, remaining);
+        }
+        try {
+          TimeUnit.NANOSECONDS.timedWait(this, wait);
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      failure = this.failure;
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+
+    try {
+      os.close();
+    } finally {
+      recycleSpares();
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  private synchronized void recycleSpares() {
+    if (pool != null) {
+      for (byte[] array : spares) {
+        pool.recycle(array);
+      }
+    }
+    spares.clear();
+  }
+
+  // Guarded by this, wait for the writer and check cancellation
+  private void await() throws IOException {
+    if (controller != null && controller.isCancelled()) {
+      throw new IOException("Canceled");
+    }
+    try {
+      TimeUnit.NANOSECONDS.timedWait(this, XiaZaiWriteBehind.MAX_WAIT_NANOS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    }
+  }
+
+  // Drain the queue
+  @Override
+  public void run() {
+    for (;;) {
+      Chunk chunk;
+      boolean write;
+      synchronized (this) {
+        chunk = chunks.poll();
+        if (chunk == null) {
+          draining = false;
+          notifyAll();
+          if (!closeByWriter) return;
+        }
+        write = failure == null && !discard;
+      }
+      if (chunk == null) {
+        // Closed after cancelling
+        try {
+          os.close();
+        } catch (IOException e) {
+          // Ignore
+        }
+        recycleSpares();
+        return;
+      }
+
+      IOException error = null;
+      if (write) {
+        try {
+          os.write(chunk.array, 0, chunk.length);
+        } catch (IOException e) {
+          error = e;
+        } catch (RuntimeException e) {
+          error = new IOException(e);
+        }
+      }
+      writeBehind.release(chunk.length);
+
+      synchronized (this) {
+        pending -= chunk.length;
+        if (error != null && failure == null) {
+          failure = error;
+        }
+        if (spares.size() < MAX_SPARE_COUNT) {
+          spares.add(chunk.array);
+        } else if (pool != null) {
+          pool.recycle(chunk.array);
+        }
+        notifyAll();
+      }
+    }
+  }
+
+  private static final class Chunk {
+
+    private final byte[] array;
+    private final int length;
+
+    Chunk(byte[] array, int length) {
+      this.array = array;
+      this.length = length;
+    }
+  }
+}
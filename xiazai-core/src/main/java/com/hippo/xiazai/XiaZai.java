@@ -0,0 +1,993 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.xiazai;
+
+/*
+ * Created by Hippo on 12/31/2016.
+ */
+
+import android.support.annotation.IntDef;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import com.hippo.xiazai.destination.FileDestination;
+import com.hippo.xiazai.destination.ResumableFileDestination;
+import com.hippo.xiazai.exception.ChecksumException;
+import com.hippo.xiazai.exception.ContentLengthException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.Sink;
+
+/**
+ * This class provides thread-blocking methods to download file,
+ * and {@code enqueue()} to run them in an executor.
+ */
+public class XiaZai {
+
+  @IntDef({STATE_COMPLETED, STATE_CANCELLED, STATE_ERROR})
+  @Retention(RetentionPolicy.CLASS)
+  public @interface State {}
+
+  public static final int STATE_COMPLETED = 0;
+  public static final int STATE_CANCELLED = 1;
+  public static final int STATE_ERROR = 2;
+
+  private static final int DEFAULT_CHUNK_SIZE = 4 * 1024;
+  private static final int DEFAULT_MAX_THREADS = 64;
+
+  private final OkHttpClient client;
+  @Nullable
+  private final XiaZaiBufferPool bufferPool;
+  private final int minChunkSize;
+  private final int maxChunkSize;
+  private final long progressInterval;
+  private final long progressStep;
+  @Nullable
+  private final Executor callbackExecutor;
+  @Nullable
+  private final XiaZaiRateLimiter rateLimiter;
+  @Nullable
+  private final XiaZaiCache cache;
+  @Nullable
+  private final XiaZaiMetricsListener metricsListener;
+  @Nullable
+  private final XiaZaiRetryPolicy retryPolicy;
+  @Nullable
+  private final XiaZaiHedgePolicy hedgePolicy;
+  @Nullable
+  private final ExecutorService executor;
+  @Nullable
+  private final XiaZaiWriteBehind writeBehind;
+
+  // Guarded by XiaZai.class, shared by all XiaZai, created when first enqueuing
+  @Nullable
+  private static ExecutorService defaultExecutor;
+
+  public XiaZai(@NonNull OkHttpClient client) {
+    this(new Builder(client));
+  }
+
+  private XiaZai(Builder builder) {
+    this.client = builder.client;
+    this.bufferPool = builder.bufferPool;
+    this.minChunkSize = builder.minChunkSize;
+    this.maxChunkSize = builder.maxChunkSize;
+    this.progressInterval = builder.progressInterval;
+    this.progressStep = builder.progressStep;
+    this.callbackExecutor = builder.callbackExecutor;
+    this.rateLimiter = builder.rateLimiter;
+    this.cache = builder.cache;
+    this.metricsListener = builder.metricsListener;
+    this.retryPolicy = builder.retryPolicy;
+    this.hedgePolicy = builder.hedgePolicy;
+    this.executor = builder.executor;
+    this.writeBehind = builder.writeBehind;
+  }
+
+  OkHttpClient client() {
+    return client;
+  }
+
+  @Nullable
+  Executor callbackExecutor() {
+    return callbackExecutor;
+  }
+
+  @Nullable
+  XiaZaiRetryPolicy retryPolicy() {
+    return retryPolicy;
+  }
+
+  @Nullable
+  XiaZaiHedgePolicy hedgePolicy() {
+    return hedgePolicy;
+  }
+
+  // Return the executor to run enqueued downloads
+  ExecutorService executor() {
+    return executor != null ? executor : defaultExecutor();
+  }
+
+  private static synchronized ExecutorService defaultExecutor() {
+    if (defaultExecutor == null) {
+      ThreadPoolExecutor pool = new ThreadPoolExecutor(DEFAULT_MAX_THREADS, DEFAULT_MAX_THREADS,
+          60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull Runnable r) {
+              Thread thread = new Thread(r, "XiaZai");
+              thread.setDaemon(true);
+              return thread;
+            }
+          });
+      pool.allowCoreThreadTimeOut(true);
+      defaultExecutor = pool;
+    }
+    return defaultExecutor;
+  }
+
+  // Create a transfer buffer for one download
+  AdaptiveBuffer newBuffer() {
+    return new AdaptiveBuffer(bufferPool, minChunkSize, maxChunkSize);
+  }
+
+  // Cap a chunk at the burst of the rate limiter, so a large chunk doesn't overdraw it
+  long chunkLimit(long limit) {
+    return rateLimiter != null ? Math.min(limit, rateLimiter.maxChunk()) : limit;
+  }
+
+  // Wait for the rate limiter before handling n bytes
+  void throttle(XiaZaiRateLimiter.Share share, long n,
+      @Nullable XiaZaiController controller) throws IOException {
+    if (rateLimiter != null) {
+      rateLimiter.acquire(share, controller != null ? controller.getWeight() : 1, n, controller);
+    }
+  }
+
+  /**
+   * Return a {@code Builder} with the same settings as this XiaZai.
+   */
+  public Builder newBuilder() {
+    return new Builder(this);
+  }
+
+  /**
+   * A convenient way to call {@code xiazai(url, file, null, null)}.
+   */
+  @State
+  public int xiazai(@NonNull String url, @NonNull File file) {
+    return xiazai(url, file, null, null);
+  }
+
+  /**
+   * Download the data get from the url to the file.
+   */
+  @State
+  public int xiazai(@NonNull String url, @NonNull File file,
+      @Nullable XiaZaiController controller, @Nullable XiaZaiCallback callback) {
+    XiaZaiDestination dest = new FileDestination(file);
+    return xiazai(url, dest, controller, callback);
+  }
+
+  /**
+   * Download the data get from the url to the destination.
+   */
+  @State
+  public int xiazai(@NonNull String url, @NonNull XiaZaiDestination dest,
+      @Nullable XiaZaiController controller, @Nullable XiaZaiCallback callback) {
+    Request request = new Request.Builder().get().url(url).build();
+    return xiazai(request, dest, controller, callback);
+  }
+
+  /**
+   * Download the data from the OkHttp request to the destination.
+   * <p>
+   * If the destination is a {@link XiaZaiResumeDestination} with stored data and validator,
+   * only the rest of the data is requested. {@code read} and {@code content} in
+   * {@link XiaZaiCallback#onProgress(int, long, long)} include the stored data.
+   * <p>
+   * If the destination is a {@link XiaZaiSinkDestination}, the segments of the
+   * response body are moved to the sink without copying.
+   *
+   * @param request OkHttp Request
+   * @param dest the destination to store downloaded date
+   * @param controller the controller to cancel download
+   * @param callback the callback of download, called in the same thread,
+   *     or in the executor set by {@link Builder#callbackExecutor(Executor)}
+   * @return one of {@link #STATE_COMPLETED}, {@link #STATE_CANCELLED} and {@link #STATE_ERROR}
+   */
+  @State
+  public int xiazai(@NonNull Request request, @NonNull XiaZaiDestination dest,
+      @Nullable XiaZaiController controller, @Nullable XiaZaiCallback callback) {
+    return download(Collections.singletonList(request), dest, 1, null, controller, callback);
+  }
+
+  /**
+   * Download the data from the OkHttp request to the destination,
+   * and verify the checksum of the data.
+   * <p>
+   * The checksum is computed while downloading.
+   * If it doesn't meet the expected one, {@link XiaZaiCallback#onError(Throwable)}
+   * is called with {@link ChecksumException}. If the download continues from stored data,
+   * the stored data is read back to compute the checksum.
+   *
+   * @param checksum the expected checksum, null for no verification
+   * @see #xiazai(Request, XiaZaiDestination, XiaZaiController, XiaZaiCallback)
+   */
+  @State
+  public int xiazai(@NonNull Request request, @NonNull XiaZaiDestination dest,
+      @Nullable XiaZaiChecksum checksum,
+      @Nullable XiaZaiController controller, @Nullable XiaZaiCallback callback) {
+    return download(Collections.singletonList(request), dest, 1, checksum,
+        controller, callback);
+  }
+
+  /**
+   * Download the data get from the url to the file, continue from the partial file
+   * downloaded last time if possible.
+   *
+   * @see ResumableFileDestination
+   */
+  @State
+  public int resume(@NonNull String url, @NonNull File file,
+      @Nullable XiaZaiController controller, @Nullable XiaZaiCallback callback) {
+    XiaZaiDestination dest = new ResumableFileDestination(file);
+    return xiazai(url, dest, controller, callback);
+  }
+
+  /**
+   * Download the data get from the url to the file in at most {@code segments} connections.
+   *
+   * @see #xiazai(Request, XiaZaiSegmentDestination, int, XiaZaiController, XiaZaiCallback)
+   */
+  @State
+  public int xiazai(@NonNull String url, @NonNull File file, int segments,
+      @Nullable XiaZaiController controller, @Nullable XiaZaiCallback callback) {
+    Request request = new Request.Builder().get().url(url).build();
+    return xiazai(request, new FileDestination(file), segments, controller, callback);
+  }
+
+  /**
+   * Download the data from the OkHttp request to the destination
+   * in at most {@code segments} connections.
+   * <p>
+   * If the server supports byte ranges and the content length is known,
+   * the file is split into byte ranges which are downloaded at the same time.
+   * The first range is downloaded in current thread, the others are
+   * enqueued to the {@link okhttp3.Dispatcher} of the {@code OkHttpClient},
+   * so {@link okhttp3.Dispatcher#getMaxRequestsPerHost()} also limits the connections.
+   * Otherwise, it's the same as {@link #xiazai(Request, XiaZaiDestination,
+   * XiaZaiController, XiaZaiCallback)}.
+   *
+   * @param request OkHttp Request
+   * @param dest the destination to store downloaded date
+   * @param segments the max number of connections
+   * @param controller the controller to cancel download
+   * @param callback the callback of download, called in the same thread,
+   *     or in the executor set by {@link Builder#callbackExecutor(Executor)}
+   * @return one of {@link #STATE_COMPLETED}, {@link #STATE_CANCELLED} and {@link #STATE_ERROR}
+   */
+  @State
+  public int xiazai(@NonNull Request request, @NonNull XiaZaiSegmentDestination dest, int segments,
+      @Nullable XiaZaiController controller, @Nullable XiaZaiCallback callback) {
+    return download(Collections.singletonList(request), dest, segments, null,
+        controller, callback);
+  }
+
+  /**
+   * Download the data to the destination from several mirrors of the same entity
+   * in one connection per mirror.
+   *
+   * @see #xiazai(List, XiaZaiSegmentDestination, int, XiaZaiController, XiaZaiCallback)
+   */
+  @State
+  public int xiazai(@NonNull List<Request> mirrors, @NonNull XiaZaiSegmentDestination dest,
+      @Nullable XiaZaiController controller, @Nullable XiaZaiCallback callback) {
+    return xiazai(mirrors, dest, mirrors.size(), controller, callback);
+  }
+
+  /**
+   * Download the data to the destination from several mirrors of the same entity
+   * in at most {@code segments} connections.
+   * <p>
+   * The first mirror which responds decides the entity. If it supports byte ranges
+   * and the content length is known, byte ranges are downloaded from several mirrors
+   * at the same time. Connections move to the mirrors measured fastest, and take over
+   * the rest of the ranges of slower ones. A mirror is dropped if it serves a different
+   * ETag or length, or fails more than {@link XiaZaiRetryPolicy#maxRetries()} times.
+   * Otherwise, the data is downloaded from the first mirror which responds in one connection.
+   * <p>
+   * Connections other than the first one run in the executor service of
+   * the {@link okhttp3.Dispatcher} of the {@code OkHttpClient}.
+   *
+   * @param mirrors OkHttp Requests of the same entity from different servers, the preferred first
+   * @see #xiazai(Request, XiaZaiSegmentDestination, int, XiaZaiController, XiaZaiCallback)
+   */
+  @State
+  public int xiazai(@NonNull List<Request> mirrors, @NonNull XiaZaiSegmentDestination dest,
+      int segments, @Nullable XiaZaiController controller, @Nullable XiaZaiCallback callback) {
+    if (mirrors.isEmpty()) {
+      throw new IllegalArgumentException("No mirror");
+    }
+    return download(mirrors, dest, segments, null, controller, callback);
+  }
+
+  /**
+   * Enqueue the download, it runs in the executor set by {@link Builder#executor(ExecutorService)}.
+   * It's the same as {@link #xiazai(Request, XiaZaiDestination, XiaZaiController, XiaZaiCallback)}
+   * except that current thread doesn't wait.
+   *
+   * @param controller the controller to cancel download, or null to create one,
+   *     it's also returned by {@link XiaZaiCall#controller()}
+   * @param callback the callback of download, called in the thread running the download,
+   *     or in the executor set by {@link Builder#callbackExecutor(Executor)}
+   * @return the call to wait for or cancel the download
+   */
+  @NonNull
+  public XiaZaiCall enqueue(@NonNull Request request, @NonNull XiaZaiDestination dest,
+      @Nullable XiaZaiController controller, @Nullable XiaZaiCallback callback) {
+    return enqueue(Collections.singletonList(request), dest, 1, null, controller, callback);
+  }
+
+  /**
+   * Enqueue the download, and verify the checksum of the data.
+   *
+   * @see #enqueue(Request, XiaZaiDestination, XiaZaiController, XiaZaiCallback)
+   * @see #xiazai(Request, XiaZaiDestination, XiaZaiChecksum, XiaZaiController, XiaZaiCallback)
+   */
+  @NonNull
+  public XiaZaiCall enqueue(@NonNull Request request, @NonNull XiaZaiDestination dest,
+      @Nullable XiaZaiChecksum checksum,
+      @Nullable XiaZaiController controller, @Nullable XiaZaiCallback callback) {
+    return enqueue(Collections.singletonList(request), dest, 1, checksum, controller, callback);
+  }
+
+  /**
+   * Enqueue the download from one or several mirrors in at most {@code segments} connections.
+   *
+   * @see #enqueue(Request, XiaZaiDestination, XiaZaiController, XiaZaiCallback)
+   * @see #xiazai(List, XiaZaiSegmentDestination, int, XiaZaiController, XiaZaiCallback)
+   */
+  @NonNull
+  public XiaZaiCall enqueue(@NonNull List<Request> mirrors, @NonNull XiaZaiSegmentDestination dest,
+      int segments, @Nullable XiaZaiController controller, @Nullable XiaZaiCallback callback) {
+    if (mirrors.isEmpty()) {
+      throw new IllegalArgumentException("No mirror");
+    }
+    return enqueue(mirrors, dest, segments, null, controller, callback);
+  }
+
+  private XiaZaiCall enqueue(final List<Request> requests, final XiaZaiDestination dest,
+      final int segments, @Nullable final XiaZaiChecksum checksum,
+      @Nullable XiaZaiController controller, @Nullable final XiaZaiCallback callback) {
+    final XiaZaiController c = controller != null ? controller : new XiaZaiController();
+    final XiaZaiCall call = new XiaZaiCall(c);
+    executor().execute(new Runnable() {
+      @Override
+      public void run() {
+        // Finish the call even if the callback throws, or get() waits forever
+        int state = STATE_ERROR;
+        try {
+          state = download(requests, dest, segments, checksum, c, callback);
+        } finally {
+          call.finish(state);
+        }
+      }
+    });
+    return call;
+  }
+
+  // Return the request to send for the stored data
+  private static Request prepare(Request request, long offset, @Nullable String validator,
+      @Nullable XiaZaiCache.Entry cached) {
+    if (offset > 0) {
+      request = Ranges.from(request, offset, validator);
+    }
+    if (cached != null) {
+      request = XiaZaiCache.revalidate(request, cached);
+    }
+    return request;
+  }
+
+  @State
+  private int download(List<Request> requests, XiaZaiDestination dest, int segments,
+      @Nullable XiaZaiChecksum checksum,
+      @Nullable XiaZaiController controller, @Nullable XiaZaiCallback callback) {
+    if (callback != null && callbackExecutor != null) {
+      callback = new ExecutorCallback(callback, callbackExecutor);
+    }
+    ProgressReporter progress = new ProgressReporter(callback, progressInterval, progressStep);
+    XiaZaiRateLimiter.Share share = new XiaZaiRateLimiter.Share();
+    MetricsRecorder metrics = new MetricsRecorder();
+
+    Request request = requests.get(0);
+    Response response = null;
+    OutputStream os = null;
+    InputStream is = null;
+    Sink sink = null;
+    AdaptiveBuffer buffer = null;
+    SegmentedDownload segmented = null;
+    MirroredDownload mirrored = null;
+    XiaZaiCache.Editor editor = null;
+    Throwable exception = null;
+
+    try {
+      // Occupy the XiaZaiController
+      if (controller != null) {
+        controller.occupy();
+      }
+
+      if (controller != null && controller.isCancelled()) {
+        return STATE_CANCELLED;
+      }
+      if (callback != null) {
+        callback.onStart();
+      }
+      if (hedgePolicy != null) {
+        hedgePolicy.onRequest();
+      }
+
+      // Continue from stored data if possible
+      long offset = 0;
+      String validator = null;
+      if (dest instanceof XiaZaiResumeDestination) {
+        XiaZaiResumeDestination resumeDest = (XiaZaiResumeDestination) dest;
+        validator = resumeDest.getResumeValidator();
+        if (validator != null) {
+          offset = Math.max(0, resumeDest.getResumeOffset());
+        }
+      }
+
+      // Segments can't be hashed in order
+      boolean segmentable = offset == 0 && (segments > 1 || requests.size() > 1)
+          && checksum == null && dest instanceof XiaZaiSegmentDestination;
+
+      // Revalidate the stored data
+      boolean cacheable = cache != null && offset == 0 && !segmentable && requests.size() == 1;
+      XiaZaiCache.Entry cached = cacheable ? cache.get(request) : null;
+
+      // Try mirrors in order until one responds
+      Retrier retrier = new Retrier(this, retryPolicy, Retrier.host(controller),
+          callback, progress, metrics);
+      int mirror = 0;
+      for (;;) {
+        request = prepare(requests.get(mirror), offset, validator, cached);
+        boolean last = mirror == requests.size() - 1;
+        // Hedge to the next mirror
+        Request alternate = last ? null
+            : prepare(requests.get(mirror + 1), offset, validator, cached);
+        try {
+          response = segmentable
+              ? retrier.execute(Ranges.probe(request),
+                  alternate != null ? Ranges.probe(alternate) : null, offset)
+              : retrier.execute(request, alternate, offset);
+        } catch (IOException e) {
+          if (last || (controller != null && controller.isCancelled())) throw e;
+          mirror++;
+          continue;
+        }
+        if (retrier.isAlternate() && alternate != null) {
+          request = alternate;
+          mirror++;
+          last = mirror == requests.size() - 1;
+        }
+        int code = response.code();
+        if (last || (code >= 200 && code < 300)) break;
+        response.close();
+        response = null;
+        mirror++;
+      }
+      if (controller != null && controller.isCancelled()) {
+        return STATE_CANCELLED;
+      }
+      long length = segmentable ? Ranges.entityLength(response) : -1;
+      if (length > 0) {
+        XiaZaiSegmentDestination segmentDest = (XiaZaiSegmentDestination) dest;
+        segmentDest.prepare(response.request().url(), response.code(), response.headers(), length);
+        if (mirror < requests.size() - 1) {
+          // Mirrors failed to respond are dropped
+          mirrored = new MirroredDownload(this, segmentDest, controller, share, metrics,
+              callback, length);
+          mirrored.download(requests.subList(mirror, requests.size()), response, segments, progress);
+        } else {
+          segmented = new SegmentedDownload(this, segmentDest, controller, share, metrics,
+              callback, length);
+          segmented.download(request, response, segments, progress);
+        }
+        return STATE_COMPLETED;
+      }
+
+      XiaZaiChecksum expected = checksum != null ? checksum.resolve(response) : null;
+      XiaZaiChecksum.Hasher hasher = expected != null ? expected.newHasher() : null;
+      buffer = newBuffer();
+
+      long read = 0;
+      if (offset > 0) {
+        // The stored data is the whole entity
+        if (Ranges.unsatisfiedLength(response) == offset) {
+          if (hasher != null) {
+            hashStored((XiaZaiResumeDestination) dest, offset, buffer, hasher);
+            hasher.verify();
+          }
+          return STATE_COMPLETED;
+        }
+        // 200 means the entity is changed, start over
+        if (response.code() == 206) {
+          long[] range = Ranges.parseContentRange(response.header("Content-Range"));
+          if (range == null || range[0] != offset) {
+            throw new IOException("Unexpected Content-Range: " + response.header("Content-Range"));
+          }
+          if (hasher != null) {
+            hashStored((XiaZaiResumeDestination) dest, offset, buffer, hasher);
+          }
+          os = ((XiaZaiResumeDestination) dest).openResume(
+              response.request().url(), response.headers(), offset);
+          read = offset;
+        }
+      }
+      // Not modified, copy the stored data
+      boolean fromCache = cached != null && response.code() == 304;
+      if (fromCache) {
+        metrics.onFromCache();
+        is = cache.open(cached);
+        os = dest.open(response.request().url(), 200, cached.headers);
+      } else if (cacheable) {
+        editor = cache.edit(request, response);
+      }
+      if (os == null && editor == null && dest instanceof XiaZaiSinkDestination) {
+        sink = ((XiaZaiSinkDestination) dest).openSink(
+            response.request().url(), response.code(), response.headers());
+      } else if (os == null) {
+        os = dest.open(response.request().url(), response.code(), response.headers());
+      }
+      if (editor != null) {
+        os = editor.wrap(os);
+      }
+      if (os != null && writeBehind != null) {
+        os = writeBehind.wrap(os, controller, bufferPool);
+      }
+      if (controller != null && controller.isCancelled()) {
+        return STATE_CANCELLED;
+      }
+
+      long content = fromCache ? cached.length : response.body().contentLength();
+      if (content != -1) {
+        content += read;
+      }
+      if (!fromCache) {
+        retrier.setEntity(request, response, content);
+      }
+
+      if (sink != null) {
+        // Move segments from the body to the sink, no copy
+        BufferedSource source = response.body().source();
+        Buffer chunk = new Buffer();
+        for (;;) {
+          long fillStart = metrics.now();
+          long n;
+          IOException failure = null;
+          try {
+            n = buffer.fill(source, chunk, chunkLimit(Long.MAX_VALUE));
+            if (n == -1 && content != -1 && read < content) {
+              throw new ContentLengthException(content, read);
+            }
+          } catch (IOException e) {
+            n = 0;
+            failure = e;
+          }
+          if (n == -1) break;
+
+          if (failure == null) {
+            long fillEnd = metrics.now();
+            throttle(share, n, controller);
+            long writeStart = metrics.now();
+            if (hasher != null) {
+              chunk.copyTo(hasher, 0, n);
+            }
+            sink.write(chunk, n);
+            metrics.onChunk((int) n, buffer.waitNanos(), fillEnd, writeStart, metrics.now());
+            read += n;
+
+            if (controller != null && controller.isCancelled()) {
+              return STATE_CANCELLED;
+            }
+
+            progress.onProgress(n, read, content);
+            failure = retrier.onChunk(n, fillEnd - fillStart);
+          }
+
+          if (failure != null) {
+            // Continue from the last byte if possible
+            response.close();
+            response = retrier.recover(failure, read, -1, read, content);
+            source = response.body().source();
+          }
+        }
+        Sink stream = sink;
+        sink = null;
+        stream.close();
+      } else {
+        if (is == null) {
+          is = response.body().byteStream();
+        }
+        for (;;) {
+          long fillStart = metrics.now();
+          int n;
+          IOException failure = null;
+          try {
+            n = buffer.fill(is, fromCache ? Long.MAX_VALUE : chunkLimit(Long.MAX_VALUE));
+            if (n == -1 && content != -1 && read < content) {
+              throw new ContentLengthException(content, read);
+            }
+          } catch (IOException e) {
+            n = 0;
+            failure = e;
+          }
+          if (n == -1) break;
+
+          if (failure == null) {
+            long fillEnd = metrics.now();
+            if (!fromCache) {
+              throttle(share, n, controller);
+            }
+            long writeStart = metrics.now();
+            if (hasher != null) {
+              hasher.write(buffer.array(), 0, n);
+            }
+            os.write(buffer.array(), 0, n);
+            metrics.onChunk(n, buffer.waitNanos(), fillEnd, writeStart, metrics.now());
+            read += n;
+
+            if (controller != null && controller.isCancelled()) {
+              return STATE_CANCELLED;
+            }
+
+            progress.onProgress(n, read, content);
+            if (!fromCache) {
+              failure = retrier.onChunk(n, fillEnd - fillStart);
+            }
+          }
+
+          if (failure != null) {
+            // Stored data can't be reconnected
+            if (fromCache) throw failure;
+            // Continue from the last byte if possible
+            response.close();
+            response = retrier.recover(failure, read, -1, read, content);
+            is = response.body().byteStream();
+          }
+        }
+        // Data may not be stored until the stream is closed
+        OutputStream stream = os;
+        os = null;
+        stream.close();
+      }
+
+      // Check whether read length meets content length
+      if (content != -1 && content != read) {
+        throw new ContentLengthException(content, read);
+      }
+      // Check whether the checksum meets the expected one
+      if (hasher != null) {
+        hasher.verify();
+      }
+      if (editor != null) {
+        editor.commit();
+        editor = null;
+      }
+
+      return STATE_COMPLETED;
+    } catch (Throwable e) {
+      exception = e;
+      return controller != null && controller.isCancelled() ? STATE_CANCELLED : STATE_ERROR;
+    } finally {
+      if (segmented != null) {
+        segmented.abort();
+      }
+      if (mirrored != null) {
+        mirrored.abort();
+      }
+      // Close the stream before the editor deletes its file
+      if (os != null) {
+        try {
+          os.close();
+        } catch (IOException e) {
+          // Ignore
+        }
+      }
+      if (editor != null) {
+        editor.abort();
+      }
+      if (controller != null) {
+        controller.setCall(null);
+      }
+      if (response != null) {
+        response.close();
+      }
+      if (is != null) {
+        try {
+          is.close();
+        } catch (IOException e) {
+          // Ignore
+        }
+      }
+      if (sink != null) {
+        try {
+          sink.close();
+        } catch (IOException e) {
+          // Ignore
+        }
+      }
+      if (buffer != null) {
+        buffer.release();
+      }
+
+      // Callback
+      progress.flush();
+      int state;
+      if (controller != null && controller.isCancelled()) {
+        state = STATE_CANCELLED;
+      } else if (exception != null) {
+        state = STATE_ERROR;
+      } else {
+        state = STATE_COMPLETED;
+      }
+      if (callback != null) {
+        if (state == STATE_CANCELLED) {
+          callback.onCancelled();
+        } else if (state == STATE_ERROR) {
+          callback.onError(exception);
+        } else {
+          callback.onCompleted();
+        }
+      }
+
+      // Metrics
+      XiaZaiMetrics result = metrics.build(request.url(), state,
+          state == STATE_ERROR ? exception : null);
+      XiaZaiStats.global().record(result);
+      if (metricsListener != null) {
+        try {
+          metricsListener.onMetrics(result);
+        } catch (Throwable t) {
+          // The download is finished, failures of the listener don't change it
+        }
+      }
+    }
+  }
+
+  // Feed the first length bytes of the stored data to the hasher
+  private static void hashStored(XiaZaiResumeDestination dest, long length,
+      AdaptiveBuffer buffer, OutputStream hasher) throws IOException {
+    InputStream is = dest.openStored();
+    try {
+      long remaining = length;
+      int n;
+      while (remaining > 0 && (n = buffer.fill(is, remaining)) != -1) {
+        hasher.write(buffer.array(), 0, n);
+        remaining -= n;
+      }
+      if (remaining != 0) {
+        throw new IOException("Stored data is shorter than " + length);
+      }
+    } finally {
+      is.close();
+    }
+  }
+
+  public static class Builder {
+
+    private OkHttpClient client;
+    private XiaZaiBufferPool bufferPool;
+    private int minChunkSize = DEFAULT_CHUNK_SIZE;
+    private int maxChunkSize = DEFAULT_CHUNK_SIZE;
+    private long progressInterval;
+    private long progressStep;
+    private Executor callbackExecutor;
+    private XiaZaiRateLimiter rateLimiter;
+    private XiaZaiCache cache;
+    private XiaZaiMetricsListener metricsListener;
+    private XiaZaiRetryPolicy retryPolicy;
+    private XiaZaiHedgePolicy hedgePolicy;
+    private ExecutorService executor;
+    private XiaZaiWriteBehind writeBehind;
+
+    public Builder(@NonNull OkHttpClient client) {
+      this.client = client;
+    }
+
+    Builder(XiaZai xiazai) {
+      this.client = xiazai.client;
+      this.bufferPool = xiazai.bufferPool;
+      this.minChunkSize = xiazai.minChunkSize;
+      this.maxChunkSize = xiazai.maxChunkSize;
+      this.progressInterval = xiazai.progressInterval;
+      this.progressStep = xiazai.progressStep;
+      this.callbackExecutor = xiazai.callbackExecutor;
+      this.rateLimiter = xiazai.rateLimiter;
+      this.cache = xiazai.cache;
+      this.metricsListener = xiazai.metricsListener;
+      this.retryPolicy = xiazai.retryPolicy;
+      this.hedgePolicy = xiazai.hedgePolicy;
+      this.executor = xiazai.executor;
+      this.writeBehind = xiazai.writeBehind;
+    }
+
+    public Builder client(@NonNull OkHttpClient client) {
+      this.client = client;
+      return this;
+    }
+
+    /**
+     * Take transfer buffers from the pool instead of allocating them.
+     * A pool could be shared by many XiaZai. No pool as default.
+     */
+    public Builder bufferPool(@Nullable XiaZaiBufferPool bufferPool) {
+      this.bufferPool = bufferPool;
+      return this;
+    }
+
+    /**
+     * Set the range of chunk size in bytes.
+     * Each download starts with {@code min} bytes a chunk,
+     * and doubles it while chunks keep filling quickly, up to {@code max}.
+     * 4 KB for both as default.
+     */
+    public Builder chunkSize(int min, int max) {
+      this.minChunkSize = min;
+      this.maxChunkSize = max;
+      return this;
+    }
+
+    /**
+     * Report progress only if the interval passed since the last report.
+     * It works with {@link #progressStep(long)}, whichever comes first.
+     * 0 as default, every chunk is reported if both are 0.
+     * The last progress is always reported before download finishing.
+     */
+    public Builder progressInterval(long interval, TimeUnit unit) {
+      this.progressInterval = unit.toNanos(interval);
+      return this;
+    }
+
+    /**
+     * Report progress only if the bytes were read since the last report.
+     * It works with {@link #progressInterval(long, TimeUnit)}, whichever comes first.
+     * 0 as default, every chunk is reported if both are 0.
+     * The last progress is always reported before download finishing.
+     */
+    public Builder progressStep(long bytes) {
+      this.progressStep = bytes;
+      return this;
+    }
+
+    /**
+     * Call {@link XiaZaiCallback} in the executor instead of the download thread.
+     * Events are delivered in order, progress events waiting for the executor
+     * are merged into one, so the download thread never waits for the callback.
+     * Null as default.
+     */
+    public Builder callbackExecutor(@Nullable Executor executor) {
+      this.callbackExecutor = executor;
+      return this;
+    }
+
+    /**
+     * Limit the bandwidth by the rate limiter.
+     * A rate limiter could be shared by many XiaZai to limit the total bandwidth.
+     * Null as default.
+     *
+     * @see XiaZaiController#setWeight(int)
+     */
+    public Builder rateLimiter(@Nullable XiaZaiRateLimiter rateLimiter) {
+      this.rateLimiter = rateLimiter;
+      return this;
+    }
+
+    /**
+     * Store downloaded data in the cache, and revalidate it next time.
+     * A cache could be shared by many XiaZai. Null as default.
+     */
+    public Builder cache(@Nullable XiaZaiCache cache) {
+      this.cache = cache;
+      return this;
+    }
+
+    /**
+     * Receive {@link XiaZaiMetrics} of each download.
+     * All downloads are also recorded in {@link XiaZaiStats#global()}.
+     * Null as default.
+     */
+    public Builder metricsListener(@Nullable XiaZaiMetricsListener listener) {
+      this.metricsListener = listener;
+      return this;
+    }
+
+    /**
+     * Retry after network failures and stalls by the policy.
+     * A broken transfer continues from the last byte if possible.
+     * Pass a {@link XiaZaiRetryCallback} to {@code xiazai()} to know stalls and retries.
+     * Null as default, never retry.
+     */
+    public Builder retryPolicy(@Nullable XiaZaiRetryPolicy retryPolicy) {
+      this.retryPolicy = retryPolicy;
+      return this;
+    }
+
+    /**
+     * Send a hedged request if the first byte of the response is late, by the policy.
+     * It goes to the next mirror if downloading from mirrors, or the same url.
+     * The policy could be shared by many XiaZai. Null as default, never hedge.
+     */
+    public Builder hedgePolicy(@Nullable XiaZaiHedgePolicy hedgePolicy) {
+      this.hedgePolicy = hedgePolicy;
+      return this;
+    }
+
+    /**
+     * Run downloads enqueued by {@code enqueue()} in the executor.
+     * Each running download takes a thread, waiting ones take none.
+     * Null as default, a pool of at most 64 threads shared by all XiaZai,
+     * idle threads are released after 60 seconds.
+     */
+    public Builder executor(@Nullable ExecutorService executor) {
+      this.executor = executor;
+      return this;
+    }
+
+    /**
+     * Write data to {@link java.io.OutputStream}s of destinations in other threads,
+     * so that a stalled storage doesn't stop reading the socket.
+     * It could be shared by many XiaZai to share the memory budget.
+     * Byte ranges downloaded in several connections and {@link XiaZaiSinkDestination}
+     * don't use it.
+     * Null as default, write in the download thread.
+     */
+    public Builder writeBehind(@Nullable XiaZaiWriteBehind writeBehind) {
+      this.writeBehind = writeBehind;
+      return this;
+    }
+
+    public XiaZai build() throws IllegalStateException {
+      if (client == null) {
+        throw new IllegalStateException("client == null");
+      }
+      if (minChunkSize <= 0 || minChunkSize > maxChunkSize || maxChunkSize > 1 << 30) {
+        throw new IllegalStateException("Bad chunk size: " + minChunkSize + ", " + maxChunkSize);
+      }
+      if (progressInterval < 0 || progressStep < 0) {
+        throw new IllegalStateException("progressInterval < 0 || progressStep < 0");
+      }
+      return new XiaZai(this);
+    }
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.xiazai;
+
+/*
+ * Created by Hippo on 2/16/2017.
+ */
+
+import android.support.annotation.NonNull;
+import java.util.ArrayDeque;
+
+/**
+ * A pool of {@code byte[]} buffers which can be shared by many {@link XiaZai}.
+ * <p>
+ * Buffer sizes are rounded up to powers of two.
+ * Recycled buffers are dropped if the pool would hold more than {@code maxSize} bytes.
+ * <p>
+ * Thread-safe.
+ */
+public class XiaZaiBufferPool {
+
+  private final long maxSize;
+
+  // Index is log2 of buffer size
+  // Guarded by this
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private final ArrayDeque<byte[]>[] buckets = new ArrayDeque[31];
+  // Guarded by this
+  private long size;
+
+  /**
+   * @param maxSize the max bytes held by this pool
+   */
+  public XiaZaiBufferPool(long maxSize) {
+    if (maxSize < 0) throw new IllegalArgumentException("maxSize < 0");
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * Return the max bytes held by this pool.
+   */
+  public long maxSize() {
+    return maxSize;
+  }
+
+  /**
+   * Return the bytes held by this pool now.
+   */
+  public synchronized long size() {
+    return size;
+  }
+
+  /**
+   * Return a buffer whose length is the smallest power of two not less than {@code size}.
+   */
+  @NonNull
+  public byte[] obtain(int size) {
+    if (size <= 0 || size > 1 << 30) throw new IllegalArgumentException("Bad size: " + size);
+    int index = index(size);
+    synchronized (this) {
+      ArrayDeque<byte[]> bucket = buckets[index];
+      if (bucket != null && !bucket.isEmpty()) {
+        byte[] buffer = bucket.pop();
+        this.size -= buffer.length;
+        return buffer;
+      }
+    }
+    return new byte[1 << index];
+  }
+
+  /**
+   * Put the buffer back to the pool.
+   * Buffers whose length isn't a power of two are ignored.
+   */
+  public void recycle(@NonNull byte[] buffer) {
+    int length = buffer.length;
+    if (length == 0 || (length & (length - 1)) != 0) return;
+    int index = index(length);
+    synchronized (this) {
+      if (size + length > maxSize) return;
+      ArrayDeque<byte[]> bucket = buckets[index];
+      if (bucket == null) {
+        bucket = new ArrayDeque<>();
+        buckets[index] = bucket;
+      }
+      bucket.push(buffer);
+      size += length;
+    }
+  }
+
+  /**
+   * Drop all buffers.
+   */
+  public synchronized void clear() {
+    for (int i = 0; i < buckets.length; i++) {
+      buckets[i] = null;
+    }
+    size = 0;
+  }
+
+  // Return log2 of the smallest power of two not less than size
+  private static int index(int size) {
+    return 32 - Integer.numberOfLeadingZeros(size - 1);
+  }
+}
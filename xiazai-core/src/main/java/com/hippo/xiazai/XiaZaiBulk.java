@@ -0,0 +1,488 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hippo.xiazai;
+
+/*
+ * Created by Hippo on 3/5/2017.
+ */
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import com.hippo.xiazai.destination.FileDestination;
+import com.hippo.xiazai.exception.ContentLengthException;
+import com.hippo.xiazai.exception.ManifestException;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import okhttp3.ConnectionPool;
+import okhttp3.Request;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.Okio;
+import okio.Sink;
+
+/**
+ * Downloads all files in a {@link XiaZaiManifest} into a directory,
+ * and writes the result of each file to a report.
+ * <p>
+ * Memory use doesn't grow with the manifest. The manifest is read only when
+ * a download slot is free, and each result is written to the report as soon as
+ * the download finishes. The connection pool keeps as many idle connections as
+ * the parallelism, so connections are reused between files.
+ * <p>
+ * A file is downloaded to {@code path.xiazai} first, then renamed to {@code path}.
+ * <p>
+ * The report has tab-separated fields:
+ * result, line, url, path, bytes, milliseconds and error message.
+ * The result is one of {@link #RESULT_COMPLETED}, {@link #RESULT_SKIPPED},
+ * {@link #RESULT_ERROR} and {@link #RESULT_CANCELLED}.
+ * <p>
+ * Thread-safe, many manifests could be run at the same time.
+ */
+public class XiaZaiBulk {
+
+  public static final String RESULT_COMPLETED = "COMPLETED";
+  public static final String RESULT_SKIPPED = "SKIPPED";
+  public static final String RESULT_ERROR = "ERROR";
+  public static final String RESULT_CANCELLED = "CANCELLED";
+
+  private static final String TMP_SUFFIX = ".xiazai";
+
+  private final XiaZai xiazai;
+  private final File dir;
+  private final int parallelism;
+  private final boolean skipExisting;
+
+  private XiaZaiBulk(Builder builder) {
+    ConnectionPool pool = builder.connectionPool != null ? builder.connectionPool
+        : new ConnectionPool(builder.parallelism, 5, TimeUnit.MINUTES);
+    // Errors are taken from the callback right after xiazai() returns
+    this.xiazai = builder.xiazai.newBuilder()
+        .client(builder.xiazai.client().newBuilder().connectionPool(pool).build())
+        .callbackExecutor(null)
+        .build();
+    this.dir = builder.dir;
+    this.parallelism = builder.parallelism;
+    this.skipExisting = builder.skipExisting;
+  }
+
+  /**
+   * Download all files in the manifest, block until all of them finish.
+   * <p>
+   * Bad lines of the manifest are reported as {@link #RESULT_ERROR}.
+   * Files which aren't started before cancelling aren't reported.
+   * Neither the manifest nor the report is closed.
+   *
+   * @param manifest the manifest to read
+   * @param report the sink to write results to
+   * @param controller the controller to cancel all downloads
+   * @throws IOException if it fails to read the manifest or to write the report
+   */
+  public Summary run(@NonNull XiaZaiManifest manifest, @NonNull Sink report,
+      @Nullable XiaZaiController controller) throws IOException {
+    if (controller != null) {
+      controller.occupy();
+    } else {
+      controller = new XiaZaiController();
+    }
+
+    Run run = new Run(Okio.buffer(report), controller);
+    ExecutorService executor = newExecutor(parallelism);
+    Semaphore slots = new Semaphore(parallelism);
+    try {
+      run.writeHeader();
+      while (!controller.isCancelled()) {
+        XiaZaiManifest.Entry entry;
+        try {
+          entry = manifest.next();
+        } catch (ManifestException e) {
+          run.report(RESULT_ERROR, e.line(), "", "", 0, 0, e);
+          continue;
+        }
+        if (entry == null) break;
+
+        try {
+          slots.acquire();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          controller.cancel();
+          break;
+        }
+        executor.execute(new Task(run, entry, slots));
+      }
+    } catch (IOException e) {
+      controller.cancel();
+      throw e;
+    } finally {
+      // Wait for running downloads
+      slots.acquireUninterruptibly(parallelism);
+      executor.shutdown();
+    }
+
+    return run.finish();
+  }
+
+  private static ExecutorService newExecutor(int parallelism) {
+    return new ThreadPoolExecutor(parallelism, parallelism, 60, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+          @Override
+          public Thread newThread(@NonNull Runnable r) {
+            Thread thread = new Thread(r, "XiaZaiBulk");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+  }
+
+  // Return the file in the directory, or throw IOException
+  private File resolve(String path) throws IOException {
+    File file = new File(dir, path);
+    String dirPath = dir.getCanonicalPath() + File.separator;
+    if (!file.getCanonicalPath().startsWith(dirPath) || path.endsWith(TMP_SUFFIX)) {
+      throw new IOException("Bad path: " + path);
+    }
+    return file;
+  }
+
+  // Return true if the file is already downloaded
+  private static boolean exists(File file, XiaZaiManifest.Entry entry) throws IOException {
+    if (!file.isFile()) return false;
+    if (entry.size() >= 0 && file.length() != entry.size()) return false;
+
+    XiaZaiChecksum checksum = entry.checksum();
+    if (checksum == null) return true;
+    XiaZaiChecksum.Hasher hasher = checksum.newHasher();
+    BufferedSource source = Okio.buffer(Okio.source(file));
+    try {
+      source.readAll(Okio.sink(hasher));
+    } finally {
+      source.close();
+    }
+    try {
+      hasher.verify();
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  // Replace the target with the downloaded file
+  private static void rename(File tmp, File target) throws IOException {
+    if (!tmp.renameTo(target)) {
+      target.delete();
+      if (!tmp.renameTo(target)) {
+        throw new IOException("Can't rename " + tmp + " to " + target);
+      }
+    }
+  }
+
+  /**
+   * The state of one {@link #run(XiaZaiManifest, Sink, XiaZaiController)}.
+   */
+  private static final class Run {
+
+    private final BufferedSink report;
+    private final XiaZaiController controller;
+    private final long start = System.nanoTime();
+
+    // Guarded by this
+    private int completed;
+    // Guarded by this
+    private int skipped;
+    // Guarded by this
+    private int failed;
+    // Guarded by this
+    private int cancelled;
+    // Guarded by this
+    private long bytes;
+    // Guarded by this
+    private IOException reportException;
+
+    Run(BufferedSink report, XiaZaiController controller) {
+      this.report = report;
+      this.controller = controller;
+    }
+
+    synchronized void writeHeader() throws IOException {
+      report.writeUtf8("# result\tline\turl\tpath\tbytes\tmillis\tmessage\n");
+      report.flush();
+    }
+
+    // Write a result, cancel the run if the report can't be written
+    void report(String result, int line, String url, String path,
+        long bytes, long nanos, @Nullable Throwable e) {
+      synchronized (this) {
+        if (RESULT_COMPLETED.equals(result)) {
+          completed++;
+          this.bytes += bytes;
+        } else if (RESULT_SKIPPED.equals(result)) {
+          skipped++;
+        } else if (RESULT_CANCELLED.equals(result)) {
+          cancelled++;
+        } else {
+          failed++;
+        }
+
+        if (reportException != null) return;
+        try {
+          report.writeUtf8(result).writeByte('\t')
+              .writeUtf8(Integer.toString(line)).writeByte('\t')
+              .writeUtf8(url).writeByte('\t')
+              .writeUtf8(clean(path)).writeByte('\t')
+              .writeUtf8(Long.toString(bytes)).writeByte('\t')
+              .writeUtf8(Long.toString(TimeUnit.NANOSECONDS.toMillis(nanos))).writeByte('\t')
+              .writeUtf8(e != null ? clean(String.valueOf(e)) : "").writeByte('\n');
+          report.flush();
+          return;
+        } catch (IOException ex) {
+          reportException = ex;
+        }
+      }
+      controller.cancel();
+    }
+
+    synchronized Summary finish() throws IOException {
+      if (reportException != null) throw reportException;
+      report.flush();
+      return new Summary(completed, skipped, failed, cancelled, bytes, System.nanoTime() - start);
+    }
+
+    // Keep one result in one line
+    private static String clean(String text) {
+      return text.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+  }
+
+  private final class Task implements Runnable {
+
+    private final Run run;
+    private final XiaZaiManifest.Entry entry;
+    private final Semaphore slots;
+
+    Task(Run run, XiaZaiManifest.Entry entry, Semaphore slots) {
+      this.run = run;
+      this.entry = entry;
+      this.slots = slots;
+    }
+
+    @Override
+    public void run() {
+      try {
+        download();
+      } finally {
+        slots.release();
+      }
+    }
+
+    private void download() {
+      long start = System.nanoTime();
+      String url = entry.url().toString();
+      File target;
+      try {
+        target = resolve(entry.path());
+        if (skipExisting && exists(target, entry)) {
+          run.report(RESULT_SKIPPED, entry.line(), url, entry.path(),
+              target.length(), System.nanoTime() - start, null);
+          return;
+        }
+        File parent = target.getParentFile();
+        // Other downloads may create it at the same time
+        if (parent != null && !parent.mkdirs() && !parent.isDirectory()) {
+          throw new IOException("Can't create directory: " + parent);
+        }
+      } catch (IOException e) {
+        run.report(RESULT_ERROR, entry.line(), url, entry.path(),
+            0, System.nanoTime() - start, e);
+        return;
+      }
+
+      XiaZaiController controller = new XiaZaiController();
+      if (run.controller.addChild(controller)) {
+        run.report(RESULT_CANCELLED, entry.line(), url, entry.path(),
+            0, System.nanoTime() - start, null);
+        return;
+      }
+
+      File tmp = new File(target.getPath() + TMP_SUFFIX);
+      ErrorCallback callback = new ErrorCallback();
+      int state;
+      try {
+        state = xiazai.xiazai(new Request.Builder().url(entry.url()).build(),
+            new FileDestination(tmp), entry.checksum(), controller, callback);
+      } finally {
+        run.controller.removeChild(controller);
+      }
+
+      Throwable error = callback.error;
+      long length = tmp.length();
+      if (state == XiaZai.STATE_COMPLETED) {
+        try {
+          if (entry.size() >= 0 && length != entry.size()) {
+            throw new ContentLengthException(entry.size(), length);
+          }
+          rename(tmp, target);
+        } catch (IOException e) {
+          state = XiaZai.STATE_ERROR;
+          error = e;
+        }
+      }
+      if (state != XiaZai.STATE_COMPLETED) {
+        tmp.delete();
+      }
+
+      String result = state == XiaZai.STATE_COMPLETED ? RESULT_COMPLETED
+          : state == XiaZai.STATE_CANCELLED ? RESULT_CANCELLED : RESULT_ERROR;
+      run.report(result, entry.line(), url, entry.path(),
+          length, System.nanoTime() - start, error);
+    }
+  }
+
+  private static final class ErrorCallback implements XiaZaiCallback {
+
+    private Throwable error;
+
+    @Override
+    public void onStart() {}
+
+    @Override
+    public void onProgress(int n, long read, long content) {}
+
+    @Override
+    public void onCancelled() {}
+
+    @Override
+    public void onCompleted() {}
+
+    @Override
+    public void onError(Throwable e) {
+      error = e;
+    }
+  }
+
+  /**
+   * The result of a manifest.
+   */
+  public static final class Summary {
+
+    private final int completed;
+    private final int skipped;
+    private final int failed;
+    private final int cancelled;
+    private final long bytes;
+    private final long nanos;
+
+    Summary(int completed, int skipped, int failed, int cancelled, long bytes, long nanos) {
+      this.completed = completed;
+      this.skipped = skipped;
+      this.failed = failed;
+      this.cancelled = cancelled;
+      this.bytes = bytes;
+      this.nanos = nanos;
+    }
+
+    public int completed() {
+      return completed;
+    }
+
+    public int skipped() {
+      return skipped;
+    }
+
+    /**
+     * Return the number of files failed, including bad lines of the manifest.
+     */
+    public int failed() {
+      return failed;
+    }
+
+    public int cancelled() {
+      return cancelled;
+    }
+
+    /**
+     * Return the bytes of completed files.
+     */
+    public long bytes() {
+      return bytes;
+    }
+
+    public long time(TimeUnit unit) {
+      return unit.convert(nanos, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  public static class Builder {
+
+    private XiaZai xiazai;
+    private File dir;
+    private int parallelism = 8;
+    private boolean skipExisting;
+    private ConnectionPool connectionPool;
+
+    public Builder(@NonNull XiaZai xiazai) {
+      this.xiazai = xiazai;
+    }
+
+    /**
+     * Set the directory to download to. Paths in the manifest are relative to it.
+     */
+    public Builder directory(@NonNull File dir) {
+      this.dir = dir;
+      return this;
+    }
+
+    /**
+     * Set the number of files downloaded at the same time. 8 as default.
+     */
+    public Builder parallelism(int parallelism) {
+      this.parallelism = parallelism;
+      return this;
+    }
+
+    /**
+     * Skip files which exist and match the size and the checksum in the manifest,
+     * so that a manifest could be run again after failures. False as default.
+     */
+    public Builder skipExisting(boolean skipExisting) {
+      this.skipExisting = skipExisting;
+      return this;
+    }
+
+    /**
+     * Set the connection pool. A pool keeping as many idle connections
+     * as the parallelism for 5 minutes as default.
+     */
+    public Builder connectionPool(@Nullable ConnectionPool connectionPool) {
+      this.connectionPool = connectionPool;
+      return this;
+    }
+
+    public XiaZaiBulk build() throws IllegalStateException {
+      if (xiazai == null || dir == null) {
+        throw new IllegalStateException("xiazai == null || dir == null");
+      }
+      if (parallelism < 1) {
+        throw new IllegalStateException("parallelism < 1");
+      }
+      return new XiaZaiBulk(this);
+    }
+  }
+}
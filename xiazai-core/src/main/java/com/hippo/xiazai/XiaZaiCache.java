@@ -0,0 +1,553 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.xiazai;
+
+/*
+ * Created by Hippo on 3/1/2017.
+ */
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import okhttp3.Headers;
+import okhttp3.Request;
+import okhttp3.Response;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.ByteString;
+import okio.Okio;
+
+/**
+ * A disk cache of downloaded data, set by {@link XiaZai.Builder#cache(XiaZaiCache)}.
+ * <p>
+ * 200 responses of GET requests with {@code ETag} or {@code Last-Modified} are stored.
+ * The next request for the url carries {@code If-None-Match} or {@code If-Modified-Since}.
+ * If the server returns 304, the stored data is copied to the destination,
+ * which is opened with code 200 and the stored headers.
+ * <p>
+ * Stored data is named by its SHA-256, the same data from different urls is stored once.
+ * The least recently used urls are removed if the data is larger than {@code maxSize}.
+ * <p>
+ * One response is stored for each url. If it has {@code Vary}, the request headers it
+ * names are stored too, and only requests with the same values use it.
+ * Requests with {@code Authorization}, and responses with {@code Vary: *}
+ * or {@code Cache-Control: no-store} aren't stored.
+ * Resuming and segmented downloading skip the cache.
+ * <p>
+ * Thread-safe. Do NOT share a directory between caches.
+ */
+public class XiaZaiCache {
+
+  private static final String DIR_ENTRIES = "entries";
+  private static final String DIR_DATA = "data";
+  private static final String DIR_TMP = "tmp";
+
+  private final File entryDir;
+  private final File dataDir;
+  private final File tmpDir;
+  private final long maxSize;
+
+  // In access order
+  // Guarded by this
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  // The number of entries referring to the data
+  // Guarded by this
+  private final Map<String, Integer> references = new HashMap<>();
+  // Guarded by this
+  private long size;
+
+  /**
+   * @param dir the directory to store data, it's created if missing
+   * @param maxSize the max bytes of stored data
+   */
+  public XiaZaiCache(@NonNull File dir, long maxSize) throws IOException {
+    if (maxSize < 0) throw new IllegalArgumentException("maxSize < 0");
+    this.entryDir = new File(dir, DIR_ENTRIES);
+    this.dataDir = new File(dir, DIR_DATA);
+    this.tmpDir = new File(dir, DIR_TMP);
+    this.maxSize = maxSize;
+    mkdirs(entryDir);
+    mkdirs(dataDir);
+    mkdirs(tmpDir);
+    load();
+  }
+
+  private static void mkdirs(File dir) throws IOException {
+    if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Can't create " + dir);
+  }
+
+  private static File[] listFiles(File dir) {
+    File[] files = dir.listFiles();
+    return files != null ? files : new File[0];
+  }
+
+  // Read entries, remove broken entries and unreferenced data
+  private synchronized void load() {
+    for (File file : listFiles(tmpDir)) {
+      file.delete();
+    }
+
+    List<File> files = new ArrayList<>();
+    Collections.addAll(files, listFiles(entryDir));
+    // The last modified time of entry files is the access time
+    Collections.sort(files, new Comparator<File>() {
+      @Override
+      public int compare(File f1, File f2) {
+        long t1 = f1.lastModified();
+        long t2 = f2.lastModified();
+        return t1 < t2 ? -1 : (t1 == t2 ? 0 : 1);
+      }
+    });
+    for (File file : files) {
+      Entry entry = readEntry(file);
+      if (entry == null || !dataFile(entry.hash).isFile()) {
+        file.delete();
+        continue;
+      }
+      entries.put(entry.key, entry);
+      reference(entry);
+    }
+
+    for (File file : listFiles(dataDir)) {
+      if (!references.containsKey(file.getName())) {
+        file.delete();
+      }
+    }
+    trim();
+  }
+
+  @Nullable
+  private static Entry readEntry(File file) {
+    try {
+      BufferedSource source = Okio.buffer(Okio.source(file));
+      try {
+        String key = source.readUtf8LineStrict();
+        String hash = source.readUtf8LineStrict();
+        long length = Long.parseLong(source.readUtf8LineStrict());
+        int varyCount = Integer.parseInt(source.readUtf8LineStrict());
+        Headers.Builder varyBuilder = new Headers.Builder();
+        for (int i = 0; i < varyCount; i++) {
+          varyBuilder.add(source.readUtf8LineStrict());
+        }
+        Headers.Builder builder = new Headers.Builder();
+        String line;
+        while ((line = source.readUtf8Line()) != null) {
+          if (!line.isEmpty()) {
+            builder.add(line);
+          }
+        }
+        return new Entry(key, hash, length, varyBuilder.build(), builder.build());
+      } finally {
+        source.close();
+      }
+    } catch (IOException | RuntimeException e) {
+      return null;
+    }
+  }
+
+  private void writeEntry(Entry entry) throws IOException {
+    File tmp = File.createTempFile("entry", ".tmp", tmpDir);
+    BufferedSink sink = Okio.buffer(Okio.sink(tmp));
+    try {
+      sink.writeUtf8(entry.key).writeByte('\n');
+      sink.writeUtf8(entry.hash).writeByte('\n');
+      sink.writeDecimalLong(entry.length).writeByte('\n');
+      sink.writeDecimalLong(entry.varyHeaders.size()).writeByte('\n');
+      for (int i = 0, n = entry.varyHeaders.size(); i < n; i++) {
+        sink.writeUtf8(entry.varyHeaders.name(i)).writeUtf8(": ")
+            .writeUtf8(entry.varyHeaders.value(i)).writeByte('\n');
+      }
+      for (int i = 0, n = entry.headers.size(); i < n; i++) {
+        sink.writeUtf8(entry.headers.name(i)).writeUtf8(": ")
+            .writeUtf8(entry.headers.value(i)).writeByte('\n');
+      }
+    } finally {
+      sink.close();
+    }
+    File file = entryFile(entry.key);
+    if (!tmp.renameTo(file)) {
+      tmp.delete();
+      throw new IOException("Can't rename " + tmp + " to " + file);
+    }
+  }
+
+  private File entryFile(String key) {
+    return new File(entryDir, ByteString.encodeUtf8(key).md5().hex());
+  }
+
+  private File dataFile(String hash) {
+    return new File(dataDir, hash);
+  }
+
+  // Guarded by this
+  private void reference(Entry entry) {
+    Integer count = references.get(entry.hash);
+    if (count == null) {
+      references.put(entry.hash, 1);
+      size += entry.length;
+    } else {
+      references.put(entry.hash, count + 1);
+    }
+  }
+
+  // Guarded by this
+  private void release(Entry entry) {
+    Integer count = references.get(entry.hash);
+    if (count == null) return;
+    if (count > 1) {
+      references.put(entry.hash, count - 1);
+    } else {
+      references.remove(entry.hash);
+      size -= entry.length;
+      dataFile(entry.hash).delete();
+    }
+  }
+
+  // Guarded by this
+  private void removeEntry(Entry entry) {
+    entryFile(entry.key).delete();
+    release(entry);
+  }
+
+  // Remove least recently used entries until size fits
+  // Guarded by this
+  private void trim() {
+    for (Iterator<Entry> iterator = entries.values().iterator();
+        size > maxSize && iterator.hasNext(); ) {
+      Entry entry = iterator.next();
+      iterator.remove();
+      removeEntry(entry);
+    }
+  }
+
+  /**
+   * Return the bytes of stored data.
+   */
+  public synchronized long size() {
+    return size;
+  }
+
+  public long maxSize() {
+    return maxSize;
+  }
+
+  /**
+   * Return the number of stored urls.
+   */
+  public synchronized int entryCount() {
+    return entries.size();
+  }
+
+  /**
+   * Remove the stored data of the url.
+   */
+  public synchronized void remove(@NonNull String url) {
+    Entry entry = entries.remove(url);
+    if (entry != null) {
+      removeEntry(entry);
+    }
+  }
+
+  /**
+   * Remove all stored data.
+   */
+  public synchronized void evictAll() {
+    for (Entry entry : entries.values()) {
+      removeEntry(entry);
+    }
+    entries.clear();
+  }
+
+  private static String key(Request request) {
+    return request.url().toString();
+  }
+
+  // Return the names of request headers in Vary, or null for Vary: *
+  @Nullable
+  private static Set<String> varyFields(Headers headers) {
+    Set<String> fields = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+    for (String value : headers.values("Vary")) {
+      for (String field : value.split(",")) {
+        field = field.trim();
+        if ("*".equals(field)) return null;
+        if (!field.isEmpty()) {
+          fields.add(field);
+        }
+      }
+    }
+    return fields;
+  }
+
+  // Return the request headers selected by Vary
+  private static Headers varyHeaders(Request request, Set<String> fields) {
+    Headers.Builder builder = new Headers.Builder();
+    for (String field : fields) {
+      for (String value : request.headers(field)) {
+        builder.add(field, value);
+      }
+    }
+    return builder.build();
+  }
+
+  // Return true if the request has the same values of the headers selected by Vary
+  private static boolean matches(Entry entry, Request request) {
+    Set<String> fields = varyFields(entry.headers);
+    if (fields == null) return false;
+    for (String field : fields) {
+      if (!entry.varyHeaders.values(field).equals(request.headers(field))) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Return the entry for the request, or null if it can't be revalidated.
+   */
+  @Nullable
+  synchronized Entry get(Request request) {
+    if (!"GET".equals(request.method())) return null;
+    // The caller does it by itself
+    if (request.header("If-None-Match") != null || request.header("If-Modified-Since") != null
+        || request.header("Range") != null) {
+      return null;
+    }
+    // Private data
+    if (request.header("Authorization") != null) return null;
+    Entry entry = entries.get(key(request));
+    if (entry != null && !matches(entry, request)) return null;
+    if (entry != null) {
+      entryFile(entry.key).setLastModified(System.currentTimeMillis());
+    }
+    return entry;
+  }
+
+  /**
+   * Add {@code If-None-Match} or {@code If-Modified-Since} for the entry.
+   */
+  static Request revalidate(Request request, Entry entry) {
+    Request.Builder builder = request.newBuilder();
+    String etag = entry.headers.get("ETag");
+    String lastModified = entry.headers.get("Last-Modified");
+    if (etag != null) {
+      builder.header("If-None-Match", etag);
+    }
+    if (lastModified != null) {
+      builder.header("If-Modified-Since", lastModified);
+    }
+    return builder.build();
+  }
+
+  /**
+   * Open the stored data of the entry. The entry is removed if the data is missing.
+   */
+  InputStream open(Entry entry) throws IOException {
+    try {
+      return new FileInputStream(dataFile(entry.hash));
+    } catch (FileNotFoundException e) {
+      synchronized (this) {
+        if (entries.get(entry.key) == entry) {
+          entries.remove(entry.key);
+          removeEntry(entry);
+        }
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Return an editor to store the response, or null if it shouldn't be stored.
+   */
+  @Nullable
+  Editor edit(Request request, Response response) {
+    if (!"GET".equals(request.method()) || response.code() != 200) return null;
+    if (response.header("ETag") == null && response.header("Last-Modified") == null) return null;
+    if (request.header("Authorization") != null) return null;
+    Set<String> varyFields = varyFields(response.headers());
+    if (varyFields == null) return null;
+    if (request.cacheControl().noStore() || response.cacheControl().noStore()) return null;
+    long contentLength = response.body().contentLength();
+    if (contentLength > maxSize) return null;
+
+    try {
+      return new Editor(key(request), varyHeaders(request, varyFields), response.headers(),
+          File.createTempFile("data", ".tmp", tmpDir), MessageDigest.getInstance("SHA-256"));
+    } catch (IOException | NoSuchAlgorithmException e) {
+      return null;
+    }
+  }
+
+  private synchronized void commit(Editor editor) throws IOException {
+    String hash = ByteString.of(editor.digest.digest()).hex();
+    if (editor.length > maxSize) {
+      editor.file.delete();
+      return;
+    }
+
+    // The same data may be stored for another url
+    File data = dataFile(hash);
+    if (references.containsKey(hash)) {
+      editor.file.delete();
+    } else if (!editor.file.renameTo(data)) {
+      editor.file.delete();
+      throw new IOException("Can't rename " + editor.file + " to " + data);
+    }
+
+    Entry entry = new Entry(editor.key, hash, editor.length, editor.varyHeaders, editor.headers);
+    Entry old = entries.remove(entry.key);
+    // Reference the new data before releasing the old one, they may be the same
+    reference(entry);
+    if (old != null) {
+      release(old);
+    }
+    try {
+      writeEntry(entry);
+    } catch (IOException e) {
+      release(entry);
+      entryFile(entry.key).delete();
+      throw e;
+    }
+    entries.put(entry.key, entry);
+    trim();
+  }
+
+  static final class Entry {
+
+    final String key;
+    final String hash;
+    final long length;
+    // Request headers selected by Vary
+    final Headers varyHeaders;
+    final Headers headers;
+
+    Entry(String key, String hash, long length, Headers varyHeaders, Headers headers) {
+      this.key = key;
+      this.hash = hash;
+      this.length = length;
+      this.varyHeaders = varyHeaders;
+      this.headers = headers;
+    }
+  }
+
+  /**
+   * Copies data to a temp file while it's written to the destination.
+   * Errors of the temp file only stop storing, the download goes on.
+   */
+  final class Editor {
+
+    private final String key;
+    private final Headers varyHeaders;
+    private final Headers headers;
+    private final File file;
+    private final MessageDigest digest;
+
+    @Nullable
+    private OutputStream os;
+    private boolean failed;
+    private long length;
+
+    private Editor(String key, Headers varyHeaders, Headers headers, File file,
+        MessageDigest digest) {
+      this.key = key;
+      this.varyHeaders = varyHeaders;
+      this.headers = headers;
+      this.file = file;
+      this.digest = digest;
+    }
+
+    /**
+     * Return a {@code OutputStream} which writes to both the stream and the cache.
+     */
+    OutputStream wrap(final OutputStream out) throws IOException {
+      os = new FileOutputStream(file);
+      return new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+          write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) throws IOException {
+          out.write(b, off, len);
+          if (!failed) {
+            try {
+              os.write(b, off, len);
+              digest.update(b, off, len);
+              length += len;
+            } catch (IOException e) {
+              failed = true;
+            }
+          }
+        }
+
+        @Override
+        public void close() throws IOException {
+          closeCache();
+          out.close();
+        }
+      };
+    }
+
+    private void closeCache() {
+      if (os != null) {
+        try {
+          os.close();
+        } catch (IOException e) {
+          failed = true;
+        }
+        os = null;
+      }
+    }
+
+    /**
+     * Store the data. Call it after the download is completed.
+     */
+    void commit() {
+      closeCache();
+      if (failed) {
+        abort();
+        return;
+      }
+      try {
+        XiaZaiCache.this.commit(this);
+      } catch (IOException e) {
+        // The download is completed anyway
+      }
+    }
+
+    void abort() {
+      closeCache();
+      file.delete();
+    }
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.xiazai;
+
+/*
+ * Created by Hippo on 3/9/2017.
+ */
+
+import android.support.annotation.NonNull;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A download enqueued by {@code XiaZai.enqueue()}.
+ * <p>
+ * {@link #get()} returns the state of the download, one of {@link XiaZai#STATE_COMPLETED},
+ * {@link XiaZai#STATE_CANCELLED} and {@link XiaZai#STATE_ERROR}. The exception is passed
+ * to {@link XiaZaiCallback#onError(Throwable)}, {@code get()} never throws
+ * {@link java.util.concurrent.ExecutionException}.
+ * <p>
+ * {@link #cancel(boolean)} cancels the controller. The callback still receives
+ * {@link XiaZaiCallback#onCancelled()}, but {@code get()} throws
+ * {@link CancellationException} at once, like other futures.
+ * <p>
+ * Thread-safe.
+ */
+public final class XiaZaiCall implements Future<Integer> {
+
+  private final XiaZaiController controller;
+
+  // Guarded by this
+  private boolean done;
+  // Guarded by this
+  private int state;
+  // Guarded by this
+  private boolean cancelled;
+
+  XiaZaiCall(XiaZaiController controller) {
+    this.controller = controller;
+  }
+
+  // The download is finished
+  synchronized void finish(@XiaZai.State int state) {
+    this.done = true;
+    this.state = state;
+    notifyAll();
+  }
+
+  /**
+   * Return the controller of the download.
+   */
+  public XiaZaiController controller() {
+    return controller;
+  }
+
+  /**
+   * Cancel the download, whether it's running or waiting.
+   * A waiting download finishes with {@link XiaZaiCallback#onCancelled()}
+   * as soon as it gets a thread.
+   *
+   * @param mayInterruptIfRunning ignored, the controller stops the download
+   * @return false if the download is finished or cancelled
+   */
+  @Override
+  public boolean cancel(boolean mayInterruptIfRunning) {
+    synchronized (this) {
+      if (done || cancelled) return false;
+      cancelled = true;
+      notifyAll();
+    }
+    controller.cancel();
+    return true;
+  }
+
+  @Override
+  public synchronized boolean isCancelled() {
+    return cancelled;
+  }
+
+  /**
+   * Return true if the download is finished or cancelled by {@link #cancel(boolean)}.
+   */
+  @Override
+  public synchronized boolean isDone() {
+    return done || cancelled;
+  }
+
+  @Override
+  public synchronized Integer get() throws InterruptedException {
+    while (!done && !cancelled) {
+      wait();
+    }
+    return result();
+  }
+
+  @Override
+  public synchronized Integer get(long timeout, @NonNull TimeUnit unit)
+      throws InterruptedException, TimeoutException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    while (!done && !cancelled) {
+      long remaining = deadline - System.nanoTime();
+      if (remaining <= 0) {
+        throw new TimeoutException();
+      }
+      TimeUnit.NANOSECONDS.timedWait(this, remaining);
+    }
+    return result();
+  }
+
+  // Guarded by this
+  private int result() {
+    if (cancelled) {
+      throw new CancellationException();
+    }
+    return state;
+  }
+}
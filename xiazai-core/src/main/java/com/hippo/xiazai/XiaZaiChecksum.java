@@ -0,0 +1,226 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.xiazai;
+
+/*
+ * Created by Hippo on 2/26/2017.
+ */
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import com.hippo.xiazai.exception.ChecksumException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import okhttp3.Response;
+import okio.ByteString;
+
+/**
+ * The expected checksum of downloaded data.
+ * It's computed while downloading, no need to read the file again.
+ * <p>
+ * Use {@link #fromHeaders()} to take it from {@code Digest} or {@code Content-MD5}
+ * response header.
+ */
+public final class XiaZaiChecksum {
+
+  public static final String MD5 = "MD5";
+  public static final String SHA_1 = "SHA-1";
+  public static final String SHA_256 = "SHA-256";
+  public static final String CRC32 = "CRC32";
+
+  private static final XiaZaiChecksum FROM_HEADERS = new XiaZaiChecksum(null, null);
+
+  @Nullable
+  private final String algorithm;
+  @Nullable
+  private final ByteString expected;
+
+  private XiaZaiChecksum(@Nullable String algorithm, @Nullable ByteString expected) {
+    this.algorithm = algorithm;
+    this.expected = expected;
+  }
+
+  /**
+   * Create a checksum.
+   *
+   * @param algorithm one of {@link #MD5}, {@link #SHA_1}, {@link #SHA_256} and {@link #CRC32}
+   * @param hex the expected checksum in hex, CRC32 in 8 digits
+   */
+  public static XiaZaiChecksum of(@NonNull String algorithm, @NonNull String hex) {
+    if (!MD5.equals(algorithm) && !SHA_1.equals(algorithm)
+        && !SHA_256.equals(algorithm) && !CRC32.equals(algorithm)) {
+      throw new IllegalArgumentException("Unsupported algorithm: " + algorithm);
+    }
+    return new XiaZaiChecksum(algorithm, ByteString.decodeHex(hex.toLowerCase(Locale.US)));
+  }
+
+  public static XiaZaiChecksum md5(@NonNull String hex) {
+    return of(MD5, hex);
+  }
+
+  public static XiaZaiChecksum sha1(@NonNull String hex) {
+    return of(SHA_1, hex);
+  }
+
+  public static XiaZaiChecksum sha256(@NonNull String hex) {
+    return of(SHA_256, hex);
+  }
+
+  public static XiaZaiChecksum crc32(long value) {
+    return of(CRC32, String.format(Locale.US, "%08x", value & 0xffffffffL));
+  }
+
+  /**
+   * Take the checksum from {@code Digest} (SHA-256, SHA or MD5) or {@code Content-MD5}
+   * response header. Nothing is verified if the response has neither,
+   * or if it isn't a 200 response, or if OkHttp decompressed it.
+   */
+  public static XiaZaiChecksum fromHeaders() {
+    return FROM_HEADERS;
+  }
+
+  /**
+   * Return the algorithm, or null for {@link #fromHeaders()}.
+   */
+  @Nullable
+  public String algorithm() {
+    return algorithm;
+  }
+
+  /**
+   * Return the expected checksum in hex, or null for {@link #fromHeaders()}.
+   */
+  @Nullable
+  public String hex() {
+    return expected != null ? expected.hex() : null;
+  }
+
+  // Return the checksum to verify the response, or null
+  @Nullable
+  XiaZaiChecksum resolve(Response response) {
+    if (this != FROM_HEADERS) return this;
+
+    // Content-MD5 of 206 is the checksum of the range
+    if (response.code() != 200) return null;
+    // The checksum is for the compressed data
+    Response networkResponse = response.networkResponse();
+    if (networkResponse != null && networkResponse.header("Content-Encoding") != null
+        && response.header("Content-Encoding") == null) {
+      return null;
+    }
+
+    String digest = response.header("Digest");
+    if (digest != null) {
+      String sha256 = null;
+      String sha1 = null;
+      String md5 = null;
+      for (String item : digest.split(",")) {
+        int index = item.indexOf('=');
+        if (index == -1) continue;
+        String name = item.substring(0, index).trim().toUpperCase(Locale.US);
+        String value = item.substring(index + 1).trim();
+        if ("SHA-256".equals(name)) {
+          sha256 = value;
+        } else if ("SHA".equals(name)) {
+          sha1 = value;
+        } else if ("MD5".equals(name)) {
+          md5 = value;
+        }
+      }
+      XiaZaiChecksum checksum = fromBase64(SHA_256, sha256);
+      if (checksum == null) checksum = fromBase64(SHA_1, sha1);
+      if (checksum == null) checksum = fromBase64(MD5, md5);
+      if (checksum != null) return checksum;
+    }
+
+    return fromBase64(MD5, response.header("Content-MD5"));
+  }
+
+  @Nullable
+  private static XiaZaiChecksum fromBase64(String algorithm, @Nullable String base64) {
+    if (base64 == null) return null;
+    ByteString expected = ByteString.decodeBase64(base64);
+    return expected != null ? new XiaZaiChecksum(algorithm, expected) : null;
+  }
+
+  Hasher newHasher() throws IOException {
+    if (CRC32.equals(algorithm)) {
+      return new Hasher(new CRC32(), null);
+    }
+    try {
+      return new Hasher(null, MessageDigest.getInstance(algorithm));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Computes the checksum of all bytes written to it.
+   */
+  final class Hasher extends OutputStream {
+
+    @Nullable
+    private final CRC32 crc32;
+    @Nullable
+    private final MessageDigest digest;
+
+    private Hasher(@Nullable CRC32 crc32, @Nullable MessageDigest digest) {
+      this.crc32 = crc32;
+      this.digest = digest;
+    }
+
+    @Override
+    public void write(int b) {
+      if (crc32 != null) {
+        crc32.update(b);
+      } else if (digest != null) {
+        digest.update((byte) b);
+      }
+    }
+
+    @Override
+    public void write(@NonNull byte[] b, int off, int len) {
+      if (crc32 != null) {
+        crc32.update(b, off, len);
+      } else if (digest != null) {
+        digest.update(b, off, len);
+      }
+    }
+
+    /**
+     * Throw ChecksumException if the checksum doesn't meet the expected one.
+     */
+    void verify() throws ChecksumException {
+      ByteString actual;
+      if (crc32 != null) {
+        actual = ByteString.decodeHex(String.format(Locale.US, "%08x", crc32.getValue()));
+      } else if (digest != null) {
+        actual = ByteString.of(digest.digest());
+      } else {
+        return;
+      }
+      if (!actual.equals(expected)) {
+        throw new ChecksumException(algorithm, expected != null ? expected.hex() : null,
+            actual.hex());
+      }
+    }
+  }
+}
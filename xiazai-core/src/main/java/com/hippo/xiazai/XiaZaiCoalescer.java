@@ -0,0 +1,476 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.xiazai;
+
+/*
+ * Created by Hippo on 2/28/2017.
+ */
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import okhttp3.Headers;
+import okhttp3.HttpUrl;
+import okhttp3.Request;
+
+/**
+ * Downloads identical requests at the same time in one transfer.
+ * <p>
+ * GET requests with the same url and headers share a transfer
+ * if it hasn't received the response yet. The data is written to
+ * the destinations of all of them. Each of them gets its own callback events,
+ * and could be cancelled by its own controller without affecting the others.
+ * The transfer is cancelled if all of them are cancelled.
+ * <p>
+ * Transfers run in the executor, {@code xiazai()} blocks until its own download finishes.
+ * Destinations are always opened by {@link XiaZaiDestination#open(HttpUrl, int, Headers)},
+ * so they can't resume or download in segments. Other requests are passed to XiaZai directly.
+ * <p>
+ * Thread-safe.
+ */
+public class XiaZaiCoalescer {
+
+  // Check cancellation at least in this interval while waiting
+  private static final long MAX_WAIT_MILLIS = 100;
+
+  private final XiaZai xiazai;
+  // XiaZai for transfers, callbacks are dispatched by members
+  private final XiaZai transferXiaZai;
+  @Nullable
+  private final Executor callbackExecutor;
+  private final ExecutorService executor;
+
+  // Transfers which haven't received the response
+  // Guarded by this
+  private final Map<String, Flight> flights = new HashMap<>();
+
+  public XiaZaiCoalescer(@NonNull XiaZai xiazai) {
+    this(xiazai, defaultExecutor());
+  }
+
+  /**
+   * @param executor the executor to run transfers
+   */
+  public XiaZaiCoalescer(@NonNull XiaZai xiazai, @NonNull ExecutorService executor) {
+    this.xiazai = xiazai;
+    this.transferXiaZai = xiazai.newBuilder().callbackExecutor(null).build();
+    this.callbackExecutor = xiazai.callbackExecutor();
+    this.executor = executor;
+  }
+
+  private static ExecutorService defaultExecutor() {
+    return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+        new SynchronousQueue<Runnable>(), new ThreadFactory() {
+          @Override
+          public Thread newThread(@NonNull Runnable r) {
+            Thread thread = new Thread(r, "XiaZaiCoalescer");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+  }
+
+  private static String key(Request request) {
+    return request.url() + "\n" + request.headers();
+  }
+
+  /**
+   * Download the data from the OkHttp request to the destination,
+   * share the transfer with identical requests.
+   *
+   * @see XiaZai#xiazai(Request, XiaZaiDestination, XiaZaiController, XiaZaiCallback)
+   */
+  @XiaZai.State
+  public int xiazai(@NonNull Request request, @NonNull XiaZaiDestination dest,
+      @Nullable XiaZaiController controller, @Nullable XiaZaiCallback callback) {
+    if (!"GET".equals(request.method())) {
+      return xiazai.xiazai(request, dest, controller, callback);
+    }
+
+    if (controller != null) {
+      controller.occupy();
+    }
+    Member member = new Member(dest, controller, callback);
+    member.events.onStart();
+    if (controller != null && controller.isCancelled()) {
+      member.finish(XiaZai.STATE_CANCELLED, null);
+      return member.await();
+    }
+
+    String key = key(request);
+    Flight flight;
+    boolean start = false;
+    synchronized (this) {
+      flight = flights.get(key);
+      if (flight == null) {
+        flight = new Flight(key, request);
+        flights.put(key, flight);
+        start = true;
+      }
+      flight.members.add(member);
+    }
+    member.flight = flight;
+    if (start) {
+      try {
+        executor.execute(flight);
+      } catch (RejectedExecutionException e) {
+        // Nobody could join the dead transfer, members joined in the meantime fail too
+        synchronized (this) {
+          if (flights.get(key) == flight) {
+            flights.remove(key);
+          }
+        }
+        flight.onError(e);
+      }
+    }
+
+    return member.await();
+  }
+
+  /**
+   * Return the number of transfers which can still be joined.
+   */
+  public synchronized int pendingCount() {
+    return flights.size();
+  }
+
+  // Remove the member from the transfer, cancel the transfer if no member is left
+  private synchronized void remove(Flight flight, Member member) {
+    flight.members.remove(member);
+    if (flight.members.isEmpty()) {
+      if (flights.get(flight.key) == flight) {
+        flights.remove(flight.key);
+      }
+      flight.controller.cancel();
+    }
+  }
+
+  private synchronized List<Member> members(Flight flight) {
+    return new ArrayList<>(flight.members);
+  }
+
+  /**
+   * One transfer, and a destination which writes to all members.
+   */
+  private final class Flight implements Runnable, XiaZaiDestination, XiaZaiCallback {
+
+    private final String key;
+    private final Request request;
+    private final XiaZaiController controller = new XiaZaiController();
+    // Guarded by XiaZaiCoalescer.this
+    private final List<Member> members = new ArrayList<>();
+
+    Flight(String key, Request request) {
+      this.key = key;
+      this.request = request;
+    }
+
+    @Override
+    public void run() {
+      try {
+        transferXiaZai.xiazai(request, this, controller, this);
+      } finally {
+        synchronized (XiaZaiCoalescer.this) {
+          if (flights.get(key) == this) {
+            flights.remove(key);
+          }
+        }
+      }
+    }
+
+    @NonNull
+    @Override
+    public OutputStream open(HttpUrl url, int code, Headers headers) throws IOException {
+      List<Member> members;
+      synchronized (XiaZaiCoalescer.this) {
+        // The data is coming, it's too late to join
+        if (flights.get(key) == this) {
+          flights.remove(key);
+        }
+        members = new ArrayList<>(this.members);
+      }
+
+      IOException exception = null;
+      List<Member> opened = new ArrayList<>(members.size());
+      for (Member member : members) {
+        try {
+          if (member.setOutput(member.dest.open(url, code, headers))) {
+            opened.add(member);
+          }
+        } catch (IOException e) {
+          if (exception == null) {
+            exception = e;
+          }
+          member.fail(e);
+        }
+      }
+      if (opened.isEmpty()) {
+        throw exception != null ? exception : new IOException("All downloads are cancelled");
+      }
+      return new FanOutStream(opened);
+    }
+
+    @Override
+    public void onStart() {}
+
+    @Override
+    public void onProgress(int n, long read, long content) {
+      for (Member member : members(this)) {
+        member.events.onProgress(n, read, content);
+      }
+    }
+
+    @Override
+    public void onCancelled() {
+      for (Member member : members(this)) {
+        member.finish(XiaZai.STATE_CANCELLED, null);
+      }
+    }
+
+    @Override
+    public void onCompleted() {
+      for (Member member : members(this)) {
+        member.finish(XiaZai.STATE_COMPLETED, null);
+      }
+    }
+
+    @Override
+    public void onError(Throwable e) {
+      for (Member member : members(this)) {
+        member.finish(XiaZai.STATE_ERROR, e);
+      }
+    }
+  }
+
+  private static final class FanOutStream extends OutputStream {
+
+    private final List<Member> members;
+
+    FanOutStream(List<Member> members) {
+      this.members = members;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(@NonNull byte[] b, int off, int len) throws IOException {
+      boolean written = false;
+      for (Member member : members) {
+        written |= member.write(b, off, len);
+      }
+      if (!written) {
+        throw new IOException("All destinations are closed");
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      for (Member member : members) {
+        member.closeOutput();
+      }
+    }
+  }
+
+  /**
+   * One {@code xiazai()} call in a transfer.
+   */
+  private final class Member implements Executor {
+
+    private final XiaZaiDestination dest;
+    @Nullable
+    private final XiaZaiController controller;
+    // Delivers events in the thread of xiazai(), or in the callback executor
+    private final XiaZaiCallback events;
+    private final Object writeLock = new Object();
+
+    private volatile Flight flight;
+    // Guarded by writeLock
+    private OutputStream os;
+    // Guarded by writeLock
+    private boolean closed;
+    // Guarded by this
+    private final ArrayDeque<Runnable> runnables = new ArrayDeque<>();
+    // Guarded by this
+    private boolean finished;
+    // Guarded by this
+    private int state = -1;
+
+    Member(XiaZaiDestination dest, @Nullable XiaZaiController controller,
+        @Nullable XiaZaiCallback callback) {
+      this.dest = dest;
+      this.controller = controller;
+      this.events = new ExecutorCallback(callback != null ? callback : new EmptyCallback(),
+          callbackExecutor != null ? callbackExecutor : this);
+    }
+
+    @Override
+    public synchronized void execute(@NonNull Runnable runnable) {
+      runnables.add(runnable);
+      notifyAll();
+    }
+
+    // Return false if the member is closed
+    boolean setOutput(OutputStream os) {
+      synchronized (writeLock) {
+        if (!closed) {
+          this.os = os;
+          return true;
+        }
+      }
+      closeQuietly(os);
+      return false;
+    }
+
+    // Return false if the member is closed
+    boolean write(byte[] b, int off, int len) {
+      synchronized (writeLock) {
+        if (closed) return false;
+        try {
+          os.write(b, off, len);
+          return true;
+        } catch (IOException e) {
+          closed = true;
+          closeQuietly(os);
+          fail(e);
+          return false;
+        }
+      }
+    }
+
+    void closeOutput() {
+      synchronized (writeLock) {
+        if (closed) return;
+        closed = true;
+        if (os != null) {
+          try {
+            os.close();
+          } catch (IOException e) {
+            fail(e);
+          }
+        }
+      }
+    }
+
+    // Leave the transfer with the error
+    void fail(Throwable e) {
+      Flight flight = this.flight;
+      if (flight != null) {
+        remove(flight, this);
+      }
+      finish(XiaZai.STATE_ERROR, e);
+    }
+
+    void finish(int state, @Nullable Throwable e) {
+      synchronized (this) {
+        if (finished) return;
+        finished = true;
+      }
+      if (state == XiaZai.STATE_COMPLETED) {
+        events.onCompleted();
+      } else if (state == XiaZai.STATE_CANCELLED) {
+        events.onCancelled();
+      } else {
+        events.onError(e);
+      }
+      // Set state after the last event is posted
+      synchronized (this) {
+        this.state = state;
+        notifyAll();
+      }
+    }
+
+    // Run events until finished
+    int await() {
+      for (;;) {
+        Runnable runnable;
+        boolean cancelled = false;
+        synchronized (this) {
+          runnable = runnables.poll();
+          if (runnable == null) {
+            if (state != -1) return state;
+            if (controller != null && controller.isCancelled()) {
+              cancelled = true;
+            } else {
+              try {
+                wait(MAX_WAIT_MILLIS);
+              } catch (InterruptedException e) {
+                // Treat it as cancelled
+                Thread.currentThread().interrupt();
+                cancelled = true;
+              }
+            }
+          }
+        }
+        if (runnable != null) {
+          runnable.run();
+        } else if (cancelled) {
+          cancel();
+        }
+      }
+    }
+
+    private void cancel() {
+      Flight flight = this.flight;
+      if (flight != null) {
+        remove(flight, this);
+      }
+      closeOutput();
+      finish(XiaZai.STATE_CANCELLED, null);
+    }
+  }
+
+  private static void closeQuietly(OutputStream os) {
+    try {
+      os.close();
+    } catch (IOException e) {
+      // Ignore
+    }
+  }
+
+  private static final class EmptyCallback implements XiaZaiCallback {
+    @Override
+    public void onStart() {}
+
+    @Override
+    public void onProgress(int n, long read, long content) {}
+
+    @Override
+    public void onCancelled() {}
+
+    @Override
+    public void onCompleted() {}
+
+    @Override
+    public void onError(Throwable e) {}
+  }
+}
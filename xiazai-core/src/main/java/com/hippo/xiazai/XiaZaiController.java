@@ -20,6 +20,8 @@ package com.hippo.xiazai;
  * Created by Hippo on 12/31/2016.
  */
 
+import java.util.ArrayList;
+import java.util.List;
 import okhttp3.Call;
 
 /**
@@ -35,6 +37,9 @@ public class XiaZaiController {
   private boolean occupied;
   private boolean cancelled;
   private Call call;
+  private List<Call> extraCalls;
+  private List<XiaZaiController> children;
+  private volatile int weight = 1;
 
   // Occupy this XiaZaiController
   // Throw IllegalStateException if occupy it twice
@@ -54,6 +59,42 @@ public class XiaZaiController {
     return cancelled;
   }
 
+  // Add a call running beside the main one, return cancelled
+  synchronized boolean addCall(Call call) {
+    if (!cancelled) {
+      if (extraCalls == null) {
+        extraCalls = new ArrayList<>();
+      }
+      extraCalls.add(call);
+    }
+    return cancelled;
+  }
+
+  // Remove a call added by addCall()
+  synchronized void removeCall(Call call) {
+    if (extraCalls != null) {
+      extraCalls.remove(call);
+    }
+  }
+
+  // Cancel the child with this one, return cancelled
+  synchronized boolean addChild(XiaZaiController child) {
+    if (!cancelled) {
+      if (children == null) {
+        children = new ArrayList<>();
+      }
+      children.add(child);
+    }
+    return cancelled;
+  }
+
+  // Remove a child added by addChild()
+  synchronized void removeChild(XiaZaiController child) {
+    if (children != null) {
+      children.remove(child);
+    }
+  }
+
   /**
    * Cancel downloading.
    * <p>
@@ -66,6 +107,37 @@ public class XiaZaiController {
       call.cancel();
       call = null;
     }
+    if (extraCalls != null) {
+      for (Call extraCall : extraCalls) {
+        extraCall.cancel();
+      }
+      extraCalls = null;
+    }
+    if (children != null) {
+      for (XiaZaiController child : children) {
+        child.cancel();
+      }
+      children = null;
+    }
+  }
+
+  /**
+   * Set the weight of this download in {@link XiaZaiRateLimiter}.
+   * A download with weight 2 gets twice as much bandwidth as one with weight 1.
+   * 1 as default.
+   * <p>
+   * Can be called in any thread, even while downloading.
+   */
+  public void setWeight(int weight) {
+    if (weight < 1) throw new IllegalArgumentException("weight < 1");
+    this.weight = weight;
+  }
+
+  /**
+   * Return the weight of this download in {@link XiaZaiRateLimiter}.
+   */
+  public int getWeight() {
+    return weight;
   }
 
   /**
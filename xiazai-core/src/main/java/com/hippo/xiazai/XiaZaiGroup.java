@@ -0,0 +1,350 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.xiazai;
+
+/*
+ * Created by Hippo on 3/13/2017.
+ */
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Progress of a group of downloads, like a batch: total bytes read, total content length,
+ * smoothed speed and ETA.
+ * <p>
+ * A download joins the group by the callback returned by {@link #join(XiaZaiCallback)}.
+ * Bytes are added to striped counters, so hundreds of downloads could report progress
+ * at the same time without contention. The speed is an exponentially weighted moving
+ * average of bytes transferred, updated when it's read.
+ * <p>
+ * A completed download stays in the group. A cancelled or failed one leaves it,
+ * its bytes and content length are taken away.
+ * <p>
+ * Thread-safe. Values are read one by one, so they may be slightly inconsistent
+ * with each other while downloads are running.
+ */
+public final class XiaZaiGroup {
+
+  // Update the speed at most once in this interval
+  private static final long MIN_SAMPLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+  static final Clock SYSTEM_CLOCK = new Clock() {
+    @Override
+    public long nanoTime() {
+      return System.nanoTime();
+    }
+  };
+
+  private final String name;
+  private final long smoothing;
+  private final Clock clock;
+
+  // Bytes read by members, including stored data they continue from
+  private final StripedLong read = new StripedLong();
+  // Bytes transferred by members, for speed
+  private final StripedLong transferred = new StripedLong();
+
+  // Guarded by this, sum of known content lengths
+  private long content;
+  // Guarded by this, the number of members whose content length is unknown
+  private int unknown;
+  // Guarded by this
+  private int active;
+  // Guarded by this
+  private int completed;
+  // Guarded by this
+  private int failed;
+
+  // Guarded by this
+  private long sampleTime;
+  // Guarded by this
+  private long sampleBytes;
+  // Guarded by this
+  private boolean sampled;
+  // Guarded by this, bytes per second
+  private double speed;
+
+  public XiaZaiGroup(@NonNull String name) {
+    this(new Builder(name));
+  }
+
+  private XiaZaiGroup(Builder builder) {
+    this.name = builder.name;
+    this.smoothing = builder.smoothing;
+    this.clock = builder.clock;
+  }
+
+  public String name() {
+    return name;
+  }
+
+  /**
+   * Return a callback which adds the progress of the download to this group,
+   * and calls the given callback. Stall and retry events are passed if it's
+   * a {@link XiaZaiRetryCallback}. Join once for each download.
+   */
+  @NonNull
+  public XiaZaiCallback join(@Nullable XiaZaiCallback callback) {
+    return new Member(callback);
+  }
+
+  /**
+   * Return the bytes read by the downloads in this group, including stored data
+   * they continue from.
+   */
+  public long read() {
+    return read.sum();
+  }
+
+  /**
+   * Return the total content length, -1 if any is unknown.
+   */
+  public synchronized long content() {
+    return unknown > 0 ? -1 : content;
+  }
+
+  /**
+   * Return the smoothed speed in bytes per second, 0 if no download is running.
+   */
+  public synchronized long speed() {
+    if (active == 0) return 0;
+    long now = clock.nanoTime();
+    long elapsed = now - sampleTime;
+    if (elapsed >= MIN_SAMPLE_NANOS) {
+      long bytes = transferred.sum();
+      double rate = (bytes - sampleBytes) * 1e9 / elapsed;
+      if (sampled) {
+        // Weight by time, so the speed doesn't depend on how often it's read
+        double alpha = 1 - Math.exp(-(double) elapsed / smoothing);
+        speed += alpha * (rate - speed);
+      } else {
+        speed = rate;
+        sampled = true;
+      }
+      sampleTime = now;
+      sampleBytes = bytes;
+    }
+    return (long) speed;
+  }
+
+  /**
+   * Return the estimated time to finish all downloads in this group by the speed,
+   * 0 if all bytes are read, -1 if the content length or the speed is unknown.
+   */
+  public long eta(@NonNull TimeUnit unit) {
+    long content = content();
+    if (content < 0) return -1;
+    long remaining = content - read();
+    if (remaining <= 0) return 0;
+    long speed = speed();
+    if (speed <= 0) return -1;
+    return unit.convert((long) (remaining * 1e9 / speed), TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Return the number of downloads started but not finished.
+   */
+  public synchronized int activeCount() {
+    return active;
+  }
+
+  public synchronized int completedCount() {
+    return completed;
+  }
+
+  /**
+   * Return the number of cancelled and failed downloads.
+   */
+  public synchronized int failedCount() {
+    return failed;
+  }
+
+  private synchronized void onStart() {
+    if (active++ == 0) {
+      // Don't count idle time in the speed
+      sampleTime = clock.nanoTime();
+      sampleBytes = transferred.sum();
+      sampled = false;
+      speed = 0;
+    }
+    unknown++;
+  }
+
+  private synchronized void onContent(long length) {
+    unknown--;
+    content += length;
+  }
+
+  private synchronized void onFinish(boolean success, long length, long read) {
+    active--;
+    if (success) {
+      completed++;
+      // The length of the data is known now
+      if (length < 0) {
+        unknown--;
+        content += read;
+      }
+    } else {
+      failed++;
+      if (length < 0) {
+        unknown--;
+      } else {
+        content -= length;
+      }
+      this.read.add(-read);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "XiaZaiGroup{name=" + name
+        + ", read=" + read()
+        + ", content=" + content()
+        + ", speed=" + speed()
+        + ", active=" + activeCount()
+        + ", completed=" + completedCount()
+        + ", failed=" + failedCount()
+        + "}";
+  }
+
+  // Replaced in tests
+  interface Clock {
+    long nanoTime();
+  }
+
+  /**
+   * Called one at a time, like other callbacks.
+   */
+  private final class Member implements XiaZaiRetryCallback {
+
+    @Nullable
+    private final XiaZaiCallback callback;
+
+    private boolean started;
+    private long read;
+    // -1 until it's known
+    private long content = -1;
+
+    Member(@Nullable XiaZaiCallback callback) {
+      this.callback = callback;
+    }
+
+    @Override
+    public void onStart() {
+      started = true;
+      XiaZaiGroup.this.onStart();
+      if (callback != null) {
+        callback.onStart();
+      }
+    }
+
+    @Override
+    public void onProgress(int n, long read, long content) {
+      XiaZaiGroup.this.read.add(read - this.read);
+      this.read = read;
+      transferred.add(n);
+      if (this.content < 0 && content >= 0) {
+        this.content = content;
+        onContent(content);
+      }
+      if (callback != null) {
+        callback.onProgress(n, read, content);
+      }
+    }
+
+    @Override
+    public void onCancelled() {
+      finish(false);
+      if (callback != null) {
+        callback.onCancelled();
+      }
+    }
+
+    @Override
+    public void onCompleted() {
+      finish(true);
+      if (callback != null) {
+        callback.onCompleted();
+      }
+    }
+
+    @Override
+    public void onError(Throwable e) {
+      finish(false);
+      if (callback != null) {
+        callback.onError(e);
+      }
+    }
+
+    @Override
+    public void onStall(long read, long content) {
+      if (callback instanceof XiaZaiRetryCallback) {
+        ((XiaZaiRetryCallback) callback).onStall(read, content);
+      }
+    }
+
+    @Override
+    public void onRetry(int retry, long delay, long read, Throwable e) {
+      if (callback instanceof XiaZaiRetryCallback) {
+        ((XiaZaiRetryCallback) callback).onRetry(retry, delay, read, e);
+      }
+    }
+
+    private void finish(boolean success) {
+      if (started) {
+        onFinish(success, content, read);
+      }
+    }
+  }
+
+  public static class Builder {
+
+    private String name;
+    private long smoothing = TimeUnit.SECONDS.toNanos(5);
+    private Clock clock = SYSTEM_CLOCK;
+
+    public Builder(@NonNull String name) {
+      this.name = name;
+    }
+
+    /**
+     * Set the time constant of the speed average. A longer one is steadier,
+     * a shorter one follows changes faster. 5 seconds as default.
+     */
+    public Builder smoothing(long smoothing, TimeUnit unit) {
+      this.smoothing = unit.toNanos(smoothing);
+      return this;
+    }
+
+    Builder clock(Clock clock) {
+      this.clock = clock;
+      return this;
+    }
+
+    public XiaZaiGroup build() throws IllegalStateException {
+      if (name == null) {
+        throw new IllegalStateException("name == null");
+      }
+      if (smoothing <= 0) {
+        throw new IllegalStateException("smoothing <= 0");
+      }
+      return new XiaZaiGroup(this);
+    }
+  }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.xiazai;
+
+/*
+ * Created by Hippo on 3/8/2017.
+ */
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when a download sends a hedged request.
+ * <p>
+ * If the first byte of the response doesn't come in the delay, the same request
+ * is sent again, to the next mirror if any. The first response wins, the other
+ * call is cancelled. The delay is fixed, or the given percentile of recent
+ * times to the first byte, so only the slowest requests are hedged. If the hedged
+ * request wins, the time the first one has waited is taken as its time.
+ * <p>
+ * Hedged requests are limited by a budget. Each download earns {@code ratio}
+ * hedged requests, at most {@code burst} could be saved.
+ * <p>
+ * Thread-safe, could be shared by many XiaZai, so that the budget and
+ * the recent times are shared too.
+ */
+public final class XiaZaiHedgePolicy {
+
+  // Recent times to the first byte to keep
+  private static final int SAMPLE_COUNT = 256;
+  // Use the fixed delay until there are enough samples
+  private static final int MIN_SAMPLE_COUNT = 16;
+
+  private final long delay;
+  private final double percentile;
+  private final long minDelay;
+  private final double ratio;
+  private final double burst;
+
+  // Guarded by this
+  private final long[] samples = new long[SAMPLE_COUNT];
+  // Guarded by this
+  private int sampleCount;
+  // Guarded by this
+  private int sampleIndex;
+  // Guarded by this
+  private double budget;
+
+  private XiaZaiHedgePolicy(Builder builder) {
+    this.delay = builder.delay;
+    this.percentile = builder.percentile;
+    this.minDelay = builder.minDelay;
+    this.ratio = builder.ratio;
+    this.burst = builder.burst;
+    this.budget = builder.burst;
+  }
+
+  /**
+   * Return the delay before a hedged request in nanoseconds.
+   */
+  synchronized long delay() {
+    if (percentile == 0 || sampleCount < MIN_SAMPLE_COUNT) return delay;
+    long[] sorted = Arrays.copyOf(samples, sampleCount);
+    Arrays.sort(sorted);
+    int index = (int) Math.min(sampleCount - 1, Math.ceil(percentile / 100 * sampleCount) - 1);
+    return Math.max(minDelay, sorted[Math.max(0, index)]);
+  }
+
+  /**
+   * A download starts, earn the budget. Once a download, not for every retry.
+   */
+  synchronized void onRequest() {
+    budget = Math.min(burst, budget + ratio);
+  }
+
+  /**
+   * Return true if the budget allows a hedged request, and spend it.
+   */
+  synchronized boolean acquire() {
+    if (budget < 1) return false;
+    budget -= 1;
+    return true;
+  }
+
+  /**
+   * Record the time to the first byte of the first request in nanoseconds.
+   */
+  synchronized void record(long nanos) {
+    samples[sampleIndex] = nanos;
+    sampleIndex = (sampleIndex + 1) % SAMPLE_COUNT;
+    sampleCount = Math.min(sampleCount + 1, SAMPLE_COUNT);
+  }
+
+  public static class Builder {
+
+    private long delay = TimeUnit.SECONDS.toNanos(1);
+    private double percentile;
+    private long minDelay = TimeUnit.MILLISECONDS.toNanos(50);
+    private double ratio = 0.05;
+    private double burst = 10;
+
+    /**
+     * Send a hedged request if the first byte doesn't come in the delay.
+     * It's also the delay before there are enough samples for
+     * {@link #percentile(double, long, TimeUnit)}. 1 second as default.
+     */
+    public Builder delay(long delay, TimeUnit unit) {
+      this.delay = unit.toNanos(delay);
+      return this;
+    }
+
+    /**
+     * Send a hedged request if the first byte doesn't come in the given percentile,
+     * like 95, of recent times to the first byte, but not earlier than the min delay.
+     * 0 to use the fixed delay. The fixed delay as default, the min delay is 50 ms.
+     */
+    public Builder percentile(double percentile, long minDelay, TimeUnit unit) {
+      this.percentile = percentile;
+      this.minDelay = unit.toNanos(minDelay);
+      return this;
+    }
+
+    /**
+     * Allow {@code ratio} hedged requests a download, and save at most
+     * {@code burst} of them. 0.05 and 10 as default.
+     */
+    public Builder budget(double ratio, int burst) {
+      this.ratio = ratio;
+      this.burst = burst;
+      return this;
+    }
+
+    public XiaZaiHedgePolicy build() throws IllegalStateException {
+      if (delay < 0 || minDelay < 0) {
+        throw new IllegalStateException("delay < 0 || minDelay < 0");
+      }
+      if (percentile < 0 || percentile >= 100) {
+        throw new IllegalStateException("percentile < 0 || percentile >= 100");
+      }
+      if (ratio < 0 || burst < 0) {
+        throw new IllegalStateException("ratio < 0 || burst < 0");
+      }
+      return new XiaZaiHedgePolicy(this);
+    }
+  }
+}
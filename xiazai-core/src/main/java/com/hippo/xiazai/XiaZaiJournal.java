@@ -0,0 +1,544 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.xiazai;
+
+/*
+ * Created by Hippo on 3/2/2017.
+ */
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import com.hippo.xiazai.destination.BaseDestination;
+import com.hippo.xiazai.destination.ResumableFileDestination;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import okhttp3.Headers;
+import okhttp3.HttpUrl;
+import okhttp3.Request;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.Okio;
+
+/**
+ * An append-only journal of downloads, to continue them after the process is killed.
+ * <p>
+ * It records the request, the file, the validator and the downloaded length of each download.
+ * The length is recorded at most once per {@code checkpointBytes} or {@code checkpointInterval},
+ * after the written data is synced to the file, so it never counts bytes lost in a crash.
+ * Downloads continue from the recorded length, the rest of the file is cut off.
+ * Downloads are removed from the journal when they are completed.
+ * The journal is rewritten if most of its records are out of date.
+ * <p>
+ * After restarting, get unfinished downloads by {@link #entries()}, and download them again
+ * with {@link Entry#request()}, {@link Entry#destination()} and
+ * {@link Entry#callback(XiaZaiCallback)}. They continue from the partial files.
+ * <p>
+ * Thread-safe.
+ */
+public class XiaZaiJournal {
+
+  private static final String ADD = "ADD";
+  private static final String HEADER = "HDR";
+  private static final String VALIDATOR = "VAL";
+  private static final String OFFSET = "OFF";
+  private static final String REMOVE = "DEL";
+
+  private static final long DEFAULT_CHECKPOINT_BYTES = 1024 * 1024;
+  private static final long DEFAULT_CHECKPOINT_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+  private static final int REDUNDANT_RECORD_THRESHOLD = 2000;
+
+  private final File file;
+  private final long checkpointBytes;
+  private final long checkpointInterval;
+
+  // Guarded by this
+  private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<>();
+  // Guarded by this
+  private BufferedSink sink;
+  // Guarded by this
+  private long nextId;
+  // Guarded by this
+  private int redundantRecordCount;
+
+  public XiaZaiJournal(@NonNull File file) throws IOException {
+    this(file, DEFAULT_CHECKPOINT_BYTES, DEFAULT_CHECKPOINT_INTERVAL, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * @param checkpointBytes record the downloaded length after at least these bytes
+   * @param checkpointInterval or after at least this interval
+   */
+  public XiaZaiJournal(@NonNull File file, long checkpointBytes,
+      long checkpointInterval, TimeUnit unit) throws IOException {
+    if (checkpointBytes < 0 || checkpointInterval < 0) {
+      throw new IllegalArgumentException("checkpointBytes < 0 || checkpointInterval < 0");
+    }
+    this.file = file;
+    this.checkpointBytes = checkpointBytes;
+    this.checkpointInterval = unit.toNanos(checkpointInterval);
+    load();
+  }
+
+  private synchronized void load() throws IOException {
+    boolean broken = false;
+    if (file.exists()) {
+      BufferedSource source = Okio.buffer(Okio.source(file));
+      try {
+        for (;;) {
+          String line;
+          try {
+            line = source.readUtf8LineStrict();
+          } catch (EOFException e) {
+            // The last record is cut off if the process is killed while writing
+            broken = !source.exhausted();
+            break;
+          }
+          if (!readRecord(line)) {
+            broken = true;
+          }
+        }
+      } finally {
+        source.close();
+      }
+    }
+
+    if (broken || !file.exists() || isRedundant()) {
+      rebuild();
+    } else {
+      sink = Okio.buffer(Okio.appendingSink(file));
+    }
+  }
+
+  // Return false if the record is broken
+  // Guarded by this
+  private boolean readRecord(String line) {
+    int first = line.indexOf(' ');
+    int second = first != -1 ? line.indexOf(' ', first + 1) : -1;
+    if (first == -1) return false;
+    String type = line.substring(0, first);
+    long id;
+    try {
+      id = Long.parseLong(second != -1 ? line.substring(first + 1, second) : line.substring(first + 1));
+    } catch (NumberFormatException e) {
+      return false;
+    }
+    String value = second != -1 ? line.substring(second + 1) : "";
+    nextId = Math.max(nextId, id + 1);
+
+    if (ADD.equals(type)) {
+      // ADD <id> <url> <path>
+      // Urls are parsed on demand to load quickly
+      int space = value.indexOf(' ');
+      if (space == -1) return false;
+      entries.put(id, new Entry(id, value.substring(0, space), new File(value.substring(space + 1))));
+      return true;
+    }
+
+    Entry entry = entries.get(id);
+    if (entry == null) return false;
+    if (HEADER.equals(type)) {
+      try {
+        entry.headers.add(value);
+      } catch (IllegalArgumentException e) {
+        return false;
+      }
+      return true;
+    } else if (VALIDATOR.equals(type)) {
+      entry.validator = value.isEmpty() ? null : value;
+    } else if (OFFSET.equals(type)) {
+      try {
+        entry.offset = Long.parseLong(value);
+      } catch (NumberFormatException e) {
+        return false;
+      }
+    } else if (REMOVE.equals(type)) {
+      entries.remove(id);
+    } else {
+      return false;
+    }
+    // Replaced by later records of the entry, or by rebuilding
+    redundantRecordCount++;
+    return true;
+  }
+
+  // Guarded by this
+  private boolean isRedundant() {
+    return redundantRecordCount >= REDUNDANT_RECORD_THRESHOLD
+        && redundantRecordCount >= entries.size();
+  }
+
+  // Write all entries to a new journal
+  // Guarded by this
+  private void rebuild() throws IOException {
+    if (sink != null) {
+      sink.close();
+    }
+
+    File tmp = new File(file.getPath() + ".tmp");
+    BufferedSink tmpSink = Okio.buffer(Okio.sink(tmp));
+    try {
+      for (Entry entry : entries.values()) {
+        writeEntry(tmpSink, entry);
+      }
+    } finally {
+      tmpSink.close();
+    }
+    if (!tmp.renameTo(file)) {
+      // Some file systems can't rename to an existing file
+      if (!file.delete() || !tmp.renameTo(file)) {
+        throw new IOException("Can't rename " + tmp + " to " + file);
+      }
+    }
+
+    redundantRecordCount = 0;
+    sink = Okio.buffer(Okio.appendingSink(file));
+  }
+
+  private static void writeEntry(BufferedSink sink, Entry entry) throws IOException {
+    writeRecord(sink, ADD, entry.id, entry.url + " " + entry.file.getPath());
+    Headers headers = entry.headers.build();
+    for (int i = 0, n = headers.size(); i < n; i++) {
+      writeRecord(sink, HEADER, entry.id, headers.name(i) + ": " + headers.value(i));
+    }
+    if (entry.validator != null) {
+      writeRecord(sink, VALIDATOR, entry.id, entry.validator);
+    }
+    if (entry.offset > 0) {
+      writeRecord(sink, OFFSET, entry.id, Long.toString(entry.offset));
+    }
+  }
+
+  private static void writeRecord(BufferedSink sink, String type, long id,
+      @Nullable String value) throws IOException {
+    sink.writeUtf8(type).writeByte(' ').writeDecimalLong(id);
+    if (value != null) {
+      sink.writeByte(' ').writeUtf8(value);
+    }
+    sink.writeByte('\n');
+  }
+
+  // Append a record of the entry, ignore it if the entry is removed
+  private synchronized void append(Entry entry, String type, @Nullable String value) {
+    if (entries.get(entry.id) != entry) return;
+    try {
+      writeRecord(sink, type, entry.id, value);
+      sink.flush();
+      redundantRecordCount++;
+      if (REMOVE.equals(type)) {
+        entries.remove(entry.id);
+      }
+      if (isRedundant()) {
+        rebuild();
+      }
+    } catch (IOException e) {
+      // The journal is out of date, downloads go on
+    }
+  }
+
+  /**
+   * Add a download of the GET request to the file.
+   * Header values can't contain line breaks.
+   */
+  public synchronized Entry add(@NonNull Request request, @NonNull File file) throws IOException {
+    if (!"GET".equals(request.method())) {
+      throw new IllegalArgumentException("Only GET request can be journaled");
+    }
+    Entry entry = new Entry(nextId++, request.url().toString(), file);
+    Headers headers = request.headers();
+    for (int i = 0, n = headers.size(); i < n; i++) {
+      entry.headers.add(headers.name(i), headers.value(i));
+    }
+    writeEntry(sink, entry);
+    sink.flush();
+    entries.put(entry.id, entry);
+    return entry;
+  }
+
+  /**
+   * Remove the download, the file is kept.
+   */
+  public void remove(@NonNull Entry entry) {
+    append(entry, REMOVE, null);
+  }
+
+  /**
+   * Return unfinished downloads in the order they were added.
+   */
+  public synchronized List<Entry> entries() {
+    return Collections.unmodifiableList(new ArrayList<>(entries.values()));
+  }
+
+  public synchronized void close() throws IOException {
+    sink.close();
+  }
+
+  /**
+   * A download in {@link XiaZaiJournal}.
+   */
+  public final class Entry {
+
+    private final long id;
+    private final String url;
+    private final File file;
+    private final Headers.Builder headers = new Headers.Builder();
+    // Guarded by XiaZaiJournal.this
+    @Nullable
+    private String validator;
+    // Guarded by XiaZaiJournal.this
+    private long offset;
+
+    private Entry(long id, String url, File file) {
+      this.id = id;
+      this.url = url;
+      this.file = file;
+    }
+
+    public String url() {
+      return url;
+    }
+
+    public File file() {
+      return file;
+    }
+
+    public Request request() {
+      Headers headers;
+      synchronized (XiaZaiJournal.this) {
+        headers = this.headers.build();
+      }
+      return new Request.Builder().get().url(url).headers(headers).build();
+    }
+
+    /**
+     * Return the downloaded length synced to the file at the last checkpoint.
+     */
+    public long offset() {
+      synchronized (XiaZaiJournal.this) {
+        return offset;
+      }
+    }
+
+    @Nullable
+    public String validator() {
+      synchronized (XiaZaiJournal.this) {
+        return validator;
+      }
+    }
+
+    /**
+     * Return a {@link ResumableFileDestination} which records the validator
+     * and the downloaded length in the journal.
+     */
+    public ResumableFileDestination destination() {
+      return new JournalDestination(this);
+    }
+
+    /**
+     * Return a callback which removes the download from the journal once it's completed.
+     *
+     * @param callback the callback to receive events, null for nothing
+     */
+    public XiaZaiCallback callback(@Nullable XiaZaiCallback callback) {
+      return new JournalCallback(this, callback);
+    }
+
+    private void setValidator(@Nullable String validator) {
+      synchronized (XiaZaiJournal.this) {
+        this.validator = validator;
+      }
+      append(this, VALIDATOR, validator);
+    }
+
+    private void setOffset(long offset) {
+      synchronized (XiaZaiJournal.this) {
+        this.offset = offset;
+      }
+      append(this, OFFSET, Long.toString(offset));
+    }
+  }
+
+  private final class JournalDestination extends ResumableFileDestination {
+
+    private final Entry entry;
+
+    JournalDestination(Entry entry) {
+      super(entry.file);
+      this.entry = entry;
+    }
+
+    @Override
+    public long getResumeOffset() {
+      // Bytes after the last checkpoint may not be on the disk
+      return Math.min(super.getResumeOffset(), entry.offset());
+    }
+
+    @Nullable
+    @Override
+    public String getResumeValidator() throws IOException {
+      String validator = super.getResumeValidator();
+      return validator != null ? validator : entry.validator();
+    }
+
+    @NonNull
+    @Override
+    public OutputStream open(HttpUrl url, int code, Headers headers) throws IOException {
+      // The file is truncated
+      entry.setOffset(0);
+      OutputStream os = super.open(url, code, headers);
+      entry.setValidator(BaseDestination.getValidator(headers));
+      return new CheckpointStream(entry, os, 0);
+    }
+
+    @NonNull
+    @Override
+    public OutputStream openResume(HttpUrl url, Headers headers, long offset) throws IOException {
+      if (file.length() > offset) {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+          raf.setLength(offset);
+        } finally {
+          raf.close();
+        }
+      }
+      return new CheckpointStream(entry, super.openResume(url, headers, offset), offset);
+    }
+
+    @Override
+    public void prepare(HttpUrl url, int code, Headers headers, long length) throws IOException {
+      super.prepare(url, code, headers, length);
+      // Files with holes can't be resumed
+      entry.setValidator(null);
+    }
+  }
+
+  /**
+   * Records the length in the journal after the data is synced.
+   */
+  private final class CheckpointStream extends OutputStream {
+
+    private final Entry entry;
+    private final OutputStream os;
+
+    private long position;
+    private long lastOffset;
+    private long lastTime = System.nanoTime();
+
+    CheckpointStream(Entry entry, OutputStream os, long position) {
+      this.entry = entry;
+      this.os = os;
+      this.position = position;
+      this.lastOffset = position;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(@NonNull byte[] b, int off, int len) throws IOException {
+      os.write(b, off, len);
+      position += len;
+      long now = System.nanoTime();
+      if (position - lastOffset >= checkpointBytes || now - lastTime >= checkpointInterval) {
+        lastTime = now;
+        checkpoint();
+      }
+    }
+
+    private void checkpoint() throws IOException {
+      if (position == lastOffset) return;
+      os.flush();
+      if (os instanceof FileOutputStream) {
+        ((FileOutputStream) os).getFD().sync();
+      }
+      lastOffset = position;
+      entry.setOffset(position);
+    }
+
+    @Override
+    public void flush() throws IOException {
+      os.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        checkpoint();
+      } finally {
+        os.close();
+      }
+    }
+  }
+
+  private final class JournalCallback implements XiaZaiCallback {
+
+    private final Entry entry;
+    @Nullable
+    private final XiaZaiCallback callback;
+
+    JournalCallback(Entry entry, @Nullable XiaZaiCallback callback) {
+      this.entry = entry;
+      this.callback = callback;
+    }
+
+    @Override
+    public void onStart() {
+      if (callback != null) {
+        callback.onStart();
+      }
+    }
+
+    @Override
+    public void onProgress(int n, long read, long content) {
+      if (callback != null) {
+        callback.onProgress(n, read, content);
+      }
+    }
+
+    @Override
+    public void onCancelled() {
+      if (callback != null) {
+        callback.onCancelled();
+      }
+    }
+
+    @Override
+    public void onCompleted() {
+      remove(entry);
+      if (callback != null) {
+        callback.onCompleted();
+      }
+    }
+
+    @Override
+    public void onError(Throwable e) {
+      if (callback != null) {
+        callback.onError(e);
+      }
+    }
+  }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hippo.xiazai;
+
+/*
+ * Created by Hippo on 3/5/2017.
+ */
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import com.hippo.xiazai.exception.ManifestException;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Locale;
+import okhttp3.HttpUrl;
+import okio.BufferedSource;
+import okio.Okio;
+import okio.Source;
+
+/**
+ * Reads a download manifest line by line, so it could be larger than memory.
+ * <p>
+ * Each line has tab-separated fields: url, path, and optional size and checksum.
+ * The size is in bytes, {@code -} if unknown.
+ * The checksum is {@code algorithm:hex}, the algorithm is one of
+ * {@code md5}, {@code sha1}, {@code sha256} and {@code crc32}.
+ * Empty lines and lines starting with {@code #} are ignored.
+ * <pre>
+ * https://example.com/a.zip	files/a.zip	1048576	sha256:9f86d0...
+ * https://example.com/b.txt	files/b.txt
+ * </pre>
+ * Not thread-safe.
+ */
+public class XiaZaiManifest implements Closeable {
+
+  private final BufferedSource source;
+  private int line;
+
+  public XiaZaiManifest(@NonNull File file) throws FileNotFoundException {
+    this(Okio.source(file));
+  }
+
+  public XiaZaiManifest(@NonNull Source source) {
+    this.source = Okio.buffer(source);
+  }
+
+  /**
+   * Return the next entry, or null at the end.
+   *
+   * @throws ManifestException if the line is bad, it's skipped,
+   *     call it again to read the following lines
+   */
+  @Nullable
+  public Entry next() throws IOException {
+    for (;;) {
+      String text = source.readUtf8Line();
+      if (text == null) return null;
+      line++;
+      if (text.trim().isEmpty() || text.startsWith("#")) continue;
+      return parse(line, text);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    source.close();
+  }
+
+  private static Entry parse(int line, String text) throws ManifestException {
+    String[] fields = text.split("\t", -1);
+    if (fields.length < 2 || fields.length > 4) {
+      throw new ManifestException(line, "Expect 2 to 4 fields, but there are " + fields.length);
+    }
+
+    HttpUrl url = HttpUrl.parse(fields[0]);
+    if (url == null) {
+      throw new ManifestException(line, "Bad url: " + fields[0]);
+    }
+
+    String path = fields[1];
+    if (path.isEmpty()) {
+      throw new ManifestException(line, "Empty path");
+    }
+
+    long size = -1;
+    if (fields.length > 2 && !fields[2].isEmpty() && !"-".equals(fields[2])) {
+      try {
+        size = Long.parseLong(fields[2]);
+      } catch (NumberFormatException e) {
+        size = -1;
+      }
+      if (size < 0) {
+        throw new ManifestException(line, "Bad size: " + fields[2]);
+      }
+    }
+
+    XiaZaiChecksum checksum = null;
+    if (fields.length > 3 && !fields[3].isEmpty()) {
+      checksum = parseChecksum(fields[3]);
+      if (checksum == null) {
+        throw new ManifestException(line, "Bad checksum: " + fields[3]);
+      }
+    }
+
+    return new Entry(line, url, path, size, checksum);
+  }
+
+  @Nullable
+  private static XiaZaiChecksum parseChecksum(String text) {
+    int index = text.indexOf(':');
+    if (index == -1) return null;
+
+    String algorithm;
+    switch (text.substring(0, index).toLowerCase(Locale.US)) {
+      case "md5":
+        algorithm = XiaZaiChecksum.MD5;
+        break;
+      case "sha1":
+      case "sha-1":
+        algorithm = XiaZaiChecksum.SHA_1;
+        break;
+      case "sha256":
+      case "sha-256":
+        algorithm = XiaZaiChecksum.SHA_256;
+        break;
+      case "crc32":
+        algorithm = XiaZaiChecksum.CRC32;
+        break;
+      default:
+        return null;
+    }
+
+    try {
+      return XiaZaiChecksum.of(algorithm, text.substring(index + 1));
+    } catch (IllegalArgumentException e) {
+      // Bad hex
+      return null;
+    }
+  }
+
+  /**
+   * A file in the manifest.
+   */
+  public static final class Entry {
+
+    private final int line;
+    private final HttpUrl url;
+    private final String path;
+    private final long size;
+    @Nullable
+    private final XiaZaiChecksum checksum;
+
+    Entry(int line, HttpUrl url, String path, long size, @Nullable XiaZaiChecksum checksum) {
+      this.line = line;
+      this.url = url;
+      this.path = path;
+      this.size = size;
+      this.checksum = checksum;
+    }
+
+    /**
+     * Return the line number, starting from 1.
+     */
+    public int line() {
+      return line;
+    }
+
+    public HttpUrl url() {
+      return url;
+    }
+
+    /**
+     * Return the path of the file, relative to the directory to download to.
+     */
+    public String path() {
+      return path;
+    }
+
+    /**
+     * Return the expected size in bytes, or -1 if unknown.
+     */
+    public long size() {
+      return size;
+    }
+
+    /**
+     * Return the expected checksum, or null.
+     */
+    @Nullable
+    public XiaZaiChecksum checksum() {
+      return checksum;
+    }
+  }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hippo.xiazai;
+
+/*
+ * Created by Hippo on 3/3/2017.
+ */
+
+import android.support.annotation.Nullable;
+import okhttp3.HttpUrl;
+
+/**
+ * The metrics of one download.
+ * Durations are in nanoseconds, -1 for never reached.
+ */
+public final class XiaZaiMetrics {
+
+  private final HttpUrl url;
+  private final int state;
+  @Nullable
+  private final Throwable exception;
+  private final boolean fromCache;
+  private final int connections;
+  private final long headersNanos;
+  private final long firstByteNanos;
+  private final long totalNanos;
+  private final long bytesWritten;
+  private final long writeNanos;
+  private final long throttleNanos;
+  private final int stallCount;
+  private final long stallNanos;
+  private final long longestStallNanos;
+  private final int retries;
+  private final int hedges;
+
+  XiaZaiMetrics(MetricsRecorder recorder, HttpUrl url, int state, @Nullable Throwable exception,
+      long totalNanos) {
+    this.url = url;
+    this.state = state;
+    this.exception = exception;
+    this.fromCache = recorder.fromCache;
+    this.connections = recorder.connections;
+    this.headersNanos = recorder.headersNanos;
+    this.firstByteNanos = recorder.firstByteNanos;
+    this.totalNanos = totalNanos;
+    this.bytesWritten = recorder.bytesWritten;
+    this.writeNanos = recorder.writeNanos;
+    this.throttleNanos = recorder.throttleNanos;
+    this.stallCount = recorder.stallCount;
+    this.stallNanos = recorder.stallNanos;
+    this.longestStallNanos = recorder.longestStallNanos;
+    this.retries = recorder.retries;
+    this.hedges = recorder.hedges;
+  }
+
+  public HttpUrl url() {
+    return url;
+  }
+
+  /**
+   * Return one of {@link XiaZai#STATE_COMPLETED}, {@link XiaZai#STATE_CANCELLED}
+   * and {@link XiaZai#STATE_ERROR}.
+   */
+  @XiaZai.State
+  public int state() {
+    return state;
+  }
+
+  /**
+   * Return the error for {@link XiaZai#STATE_ERROR}.
+   */
+  @Nullable
+  public Throwable exception() {
+    return exception;
+  }
+
+  /**
+   * Return true if the data is copied from {@link XiaZaiCache}.
+   */
+  public boolean fromCache() {
+    return fromCache;
+  }
+
+  /**
+   * Return the number of connections which transferred data.
+   */
+  public int connections() {
+    return connections;
+  }
+
+  /**
+   * Return the time from the start to receiving the first response headers.
+   * Retries don't change it.
+   */
+  public long headersNanos() {
+    return headersNanos;
+  }
+
+  /**
+   * Return the number of retries by {@link XiaZaiRetryPolicy}, in all connections.
+   */
+  public int retries() {
+    return retries;
+  }
+
+  /**
+   * Return the number of hedged requests by {@link XiaZaiHedgePolicy}.
+   */
+  public int hedges() {
+    return hedges;
+  }
+
+  /**
+   * Return the time from the start to receiving the first chunk of the body.
+   * A fill returns soon after the first byte if the link is slow,
+   * so it's close to the time to the first byte.
+   */
+  public long firstByteNanos() {
+    return firstByteNanos;
+  }
+
+  /**
+   * Return the time from the start to the end.
+   */
+  public long totalNanos() {
+    return totalNanos;
+  }
+
+  /**
+   * Return the bytes written to the destination.
+   */
+  public long bytesWritten() {
+    return bytesWritten;
+  }
+
+  /**
+   * Return the time blocked in writing to the destination, in all connections.
+   */
+  public long writeNanos() {
+    return writeNanos;
+  }
+
+  /**
+   * Return the time waiting for {@link XiaZaiRateLimiter}, in all connections.
+   */
+  public long throttleNanos() {
+    return throttleNanos;
+  }
+
+  /**
+   * Return the number of times no byte was received for more than one second.
+   */
+  public int stallCount() {
+    return stallCount;
+  }
+
+  /**
+   * Return the total time of stalls.
+   */
+  public long stallNanos() {
+    return stallNanos;
+  }
+
+  public long longestStallNanos() {
+    return longestStallNanos;
+  }
+
+  /**
+   * Return bytes per second from the start to the end, 0 for nothing written.
+   */
+  public long throughput() {
+    return totalNanos > 0 ? (long) (bytesWritten * 1e9 / totalNanos) : 0;
+  }
+
+  @Override
+  public String toString() {
+    return "XiaZaiMetrics{url=" + url
+        + ", state=" + state
+        + ", fromCache=" + fromCache
+        + ", connections=" + connections
+        + ", headersNanos=" + headersNanos
+        + ", firstByteNanos=" + firstByteNanos
+        + ", totalNanos=" + totalNanos
+        + ", bytesWritten=" + bytesWritten
+        + ", writeNanos=" + writeNanos
+        + ", throttleNanos=" + throttleNanos
+        + ", stallCount=" + stallCount
+        + ", stallNanos=" + stallNanos
+        + ", retries=" + retries
+        + ", hedges=" + hedges
+        + ", throughput=" + throughput()
+        + "}";
+  }
+}
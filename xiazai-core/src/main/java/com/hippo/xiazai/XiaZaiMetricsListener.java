@@ -0,0 +1,33 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hippo.xiazai;
+
+/*
+ * Created by Hippo on 3/3/2017.
+ */
+
+/**
+ * Receives {@link XiaZaiMetrics} of each download,
+ * set by {@link XiaZai.Builder#metricsListener(XiaZaiMetricsListener)}.
+ */
+public interface XiaZaiMetricsListener {
+
+  /**
+   * Called once after the download finished, after {@link XiaZaiCallback}.
+   * It's called in the download thread, keep it fast.
+   */
+  void onMetrics(XiaZaiMetrics metrics);
+}
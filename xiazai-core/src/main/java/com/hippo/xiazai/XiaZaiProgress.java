@@ -25,9 +25,9 @@ package com.hippo.xiazai;
  */
 public class XiaZaiProgress {
 
-  private long n;
-  private long read;
-  private long content;
+  private final long n;
+  private final long read;
+  private final long content;
 
   public XiaZaiProgress(long n, long read, long content) {
     this.n = n;
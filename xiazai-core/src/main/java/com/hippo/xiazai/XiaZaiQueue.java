@@ -0,0 +1,421 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.xiazai;
+
+/*
+ * Created by Hippo on 2/20/2017.
+ */
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import okhttp3.Request;
+
+/**
+ * A download queue on top of {@link XiaZai}.
+ * <p>
+ * At most {@code maxRunning} downloads run at the same time,
+ * and at most {@code maxRunningPerHost} of them for one host.
+ * Waiting downloads with higher priority start first,
+ * downloads with the same priority start in the order they are enqueued.
+ * <p>
+ * Thread-safe.
+ */
+public class XiaZaiQueue {
+
+  public static final int PRIORITY_LOW = -10;
+  public static final int PRIORITY_NORMAL = 0;
+  public static final int PRIORITY_HIGH = 10;
+
+  private static final Comparator<Task> COMPARATOR = new Comparator<Task>() {
+    @Override
+    public int compare(Task t1, Task t2) {
+      if (t1.priority != t2.priority) {
+        return t1.priority > t2.priority ? -1 : 1;
+      }
+      return t1.sequence < t2.sequence ? -1 : (t1.sequence == t2.sequence ? 0 : 1);
+    }
+  };
+
+  private final XiaZai xiazai;
+  private final ExecutorService executor;
+  private final int maxRunning;
+  private final int maxRunningPerHost;
+
+  // Guarded by this, hosts with waiting or running tasks
+  private final Map<String, Host> hosts = new HashMap<>();
+  // Guarded by this, the first waiting task of each host which is under its limit
+  private final TreeSet<Task> heads = new TreeSet<>(COMPARATOR);
+  // Guarded by this
+  private final List<Task> running = new ArrayList<>();
+  // Guarded by this
+  private int queuedCount;
+  // Guarded by this
+  private long sequence;
+  // Guarded by this
+  private long startedCount;
+  // Guarded by this
+  private long totalWaitNanos;
+  // Guarded by this
+  private long maxWaitNanos;
+
+  private XiaZaiQueue(Builder builder) {
+    this.xiazai = builder.xiazai;
+    this.executor = builder.executor != null ? builder.executor : defaultExecutor();
+    this.maxRunning = builder.maxRunning;
+    this.maxRunningPerHost = builder.maxRunningPerHost;
+  }
+
+  private static ExecutorService defaultExecutor() {
+    return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+        new SynchronousQueue<Runnable>(), new ThreadFactory() {
+          @Override
+          public Thread newThread(@NonNull Runnable r) {
+            Thread thread = new Thread(r, "XiaZaiQueue");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+  }
+
+  /**
+   * Enqueue a download with {@link #PRIORITY_NORMAL}.
+   */
+  public Task enqueue(@NonNull Request request, @NonNull XiaZaiDestination dest,
+      @Nullable XiaZaiController controller, @Nullable XiaZaiCallback callback) {
+    return enqueue(request, dest, PRIORITY_NORMAL, controller, callback);
+  }
+
+  /**
+   * Enqueue a download. It's run by
+   * {@link XiaZai#xiazai(Request, XiaZaiDestination, XiaZaiController, XiaZaiCallback)}
+   * in the executor.
+   * <p>
+   * Cancel it by the controller. If it's still waiting, it leaves the queue
+   * and finishes with {@link XiaZaiCallback#onCancelled()} at once,
+   * regardless of the running limits.
+   * <p>
+   * If the executor rejects it, it finishes with {@link XiaZaiCallback#onError(Throwable)}
+   * without running.
+   *
+   * @param priority higher priority starts first
+   */
+  public Task enqueue(@NonNull Request request, @NonNull XiaZaiDestination dest, int priority,
+      @Nullable XiaZaiController controller, @Nullable XiaZaiCallback callback) {
+    Task task;
+    synchronized (this) {
+      task = new Task(request, dest, priority, sequence++, controller, callback);
+      Host host = hosts.get(task.host);
+      if (host == null) {
+        host = new Host();
+        hosts.put(task.host, host);
+      }
+      host.tasks.add(task);
+      queuedCount++;
+      updateHead(host);
+    }
+    // Not in the lock, the controller calls back in its lock
+    if (controller != null && controller.addChild(task.hook)) {
+      cancelWaiting(task);
+    }
+    promote();
+    return task;
+  }
+
+  /**
+   * Return the number of waiting downloads.
+   */
+  public synchronized int queuedCount() {
+    return queuedCount;
+  }
+
+  /**
+   * Return the number of running downloads.
+   */
+  public synchronized int runningCount() {
+    return running.size();
+  }
+
+  /**
+   * Return the average time which started downloads waited in the queue.
+   */
+  public synchronized long averageWaitTime(TimeUnit unit) {
+    return startedCount == 0 ? 0 : unit.convert(totalWaitNanos / startedCount, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Return the longest time which started downloads waited in the queue.
+   */
+  public synchronized long maxWaitTime(TimeUnit unit) {
+    return unit.convert(maxWaitNanos, TimeUnit.NANOSECONDS);
+  }
+
+  private void promote() {
+    // Loop until the executor takes all started tasks, rejected tasks free their slots
+    for (boolean rejected = true; rejected; ) {
+      rejected = false;
+      List<Task> started = null;
+      synchronized (this) {
+        // Heads are only of hosts under their limit, so the first one could always start
+        while (running.size() < maxRunning && !heads.isEmpty()) {
+          Task task = heads.first();
+          Host host = hosts.get(task.host);
+          host.tasks.remove(task);
+          host.running++;
+          queuedCount--;
+          updateHead(host);
+          running.add(task);
+
+          task.startTime = System.nanoTime();
+          long wait = task.startTime - task.enqueueTime;
+          startedCount++;
+          totalWaitNanos += wait;
+          maxWaitNanos = Math.max(maxWaitNanos, wait);
+          if (started == null) {
+            started = new ArrayList<>();
+          }
+          started.add(task);
+        }
+      }
+      if (started != null) {
+        for (Task task : started) {
+          try {
+            executor.execute(task);
+          } catch (RejectedExecutionException e) {
+            removeRunning(task);
+            task.reject(e);
+            rejected = true;
+          }
+        }
+      }
+    }
+  }
+
+  // Guarded by this, put the first waiting task of the host to heads if the host is under its limit
+  private void updateHead(Host host) {
+    Task head = host.running < maxRunningPerHost && !host.tasks.isEmpty()
+        ? host.tasks.first() : null;
+    if (head != host.head) {
+      if (host.head != null) {
+        heads.remove(host.head);
+      }
+      if (head != null) {
+        heads.add(head);
+      }
+      host.head = head;
+    }
+  }
+
+  // Guarded by this
+  private void removeHostIfIdle(Task task, Host host) {
+    if (host.running == 0 && host.tasks.isEmpty()) {
+      hosts.remove(task.host);
+    }
+  }
+
+  private synchronized void removeRunning(Task task) {
+    if (running.remove(task)) {
+      Host host = hosts.get(task.host);
+      host.running--;
+      updateHead(host);
+      removeHostIfIdle(task, host);
+    }
+  }
+
+  // The controller of a waiting task is cancelled, finish it without waiting for a slot
+  private void cancelWaiting(Task task) {
+    synchronized (this) {
+      Host host = hosts.get(task.host);
+      if (host == null || !host.tasks.remove(task)) return;
+      queuedCount--;
+      updateHead(host);
+      removeHostIfIdle(task, host);
+    }
+    try {
+      executor.execute(task);
+    } catch (RejectedExecutionException e) {
+      task.reject(e);
+    }
+  }
+
+  private void finished(Task task) {
+    removeRunning(task);
+    promote();
+  }
+
+  /**
+   * Waiting and running tasks of a host.
+   */
+  private static final class Host {
+    private final TreeSet<Task> tasks = new TreeSet<>(COMPARATOR);
+    private int running;
+    // The task in heads
+    @Nullable
+    private Task head;
+  }
+
+  /**
+   * A download in {@link XiaZaiQueue}.
+   */
+  public final class Task implements Runnable {
+
+    private final Request request;
+    private final XiaZaiDestination dest;
+    private final int priority;
+    private final long sequence;
+    private final String host;
+    @Nullable
+    private final XiaZaiController controller;
+    @Nullable
+    private final XiaZaiCallback callback;
+    private final long enqueueTime;
+    // Registered to the controller while waiting, to leave the queue when it's cancelled
+    private final XiaZaiController hook = new XiaZaiController() {
+      @Override
+      public synchronized void cancel() {
+        super.cancel();
+        cancelWaiting(Task.this);
+      }
+    };
+    // Guarded by XiaZaiQueue.this
+    private long startTime;
+    private volatile int state = -1;
+
+    private Task(Request request, XiaZaiDestination dest, int priority, long sequence,
+        @Nullable XiaZaiController controller, @Nullable XiaZaiCallback callback) {
+      this.request = request;
+      this.dest = dest;
+      this.priority = priority;
+      this.sequence = sequence;
+      this.host = request.url().host();
+      this.controller = controller;
+      this.callback = callback;
+      this.enqueueTime = System.nanoTime();
+    }
+
+    public Request request() {
+      return request;
+    }
+
+    public int priority() {
+      return priority;
+    }
+
+    /**
+     * Return the time it waited in the queue, or has waited if it's still waiting.
+     */
+    public long waitTime(TimeUnit unit) {
+      long startTime;
+      synchronized (XiaZaiQueue.this) {
+        startTime = this.startTime;
+      }
+      long end = startTime != 0 ? startTime : System.nanoTime();
+      return unit.convert(end - enqueueTime, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Return true if it's finished.
+     */
+    public boolean isFinished() {
+      return state != -1;
+    }
+
+    /**
+     * Return the result of {@code xiazai()}, or -1 if it isn't finished.
+     */
+    public int state() {
+      return state;
+    }
+
+    // The executor rejects it, finish it without running
+    private void reject(RejectedExecutionException e) {
+      state = XiaZai.STATE_ERROR;
+      if (callback != null) {
+        callback.onError(e);
+      }
+    }
+
+    @Override
+    public void run() {
+      if (controller != null) {
+        controller.removeChild(hook);
+      }
+      try {
+        state = xiazai.xiazai(request, dest, controller, callback);
+      } finally {
+        finished(this);
+      }
+    }
+  }
+
+  public static class Builder {
+
+    private XiaZai xiazai;
+    private ExecutorService executor;
+    private int maxRunning = 4;
+    private int maxRunningPerHost = 2;
+
+    public Builder(@NonNull XiaZai xiazai) {
+      this.xiazai = xiazai;
+    }
+
+    /**
+     * Set the executor to run downloads. A cached thread pool as default.
+     */
+    public Builder executor(@NonNull ExecutorService executor) {
+      this.executor = executor;
+      return this;
+    }
+
+    /**
+     * Set the max number of running downloads. 4 as default.
+     */
+    public Builder maxRunning(int maxRunning) {
+      this.maxRunning = maxRunning;
+      return this;
+    }
+
+    /**
+     * Set the max number of running downloads for one host. 2 as default.
+     */
+    public Builder maxRunningPerHost(int maxRunningPerHost) {
+      this.maxRunningPerHost = maxRunningPerHost;
+      return this;
+    }
+
+    public XiaZaiQueue build() throws IllegalStateException {
+      if (xiazai == null) {
+        throw new IllegalStateException("xiazai == null");
+      }
+      if (maxRunning < 1 || maxRunningPerHost < 1) {
+        throw new IllegalStateException("maxRunning < 1 || maxRunningPerHost < 1");
+      }
+      return new XiaZaiQueue(this);
+    }
+  }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.xiazai;
+
+/*
+ * Created by Hippo on 2/22/2017.
+ */
+
+import android.support.annotation.Nullable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket which limits the total bandwidth of many downloads.
+ * <p>
+ * Waiting downloads share the bandwidth in proportion to their weights,
+ * see {@link XiaZaiController#setWeight(int)}.
+ * Downloads which don't wait leave their share to the others,
+ * so the bandwidth is never wasted.
+ * <p>
+ * Thread-safe.
+ */
+public class XiaZaiRateLimiter {
+
+  // Check cancellation at least in this interval while waiting
+  private static final long MAX_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+  // Guarded by this
+  private long rate;
+  // Guarded by this
+  private double tokens;
+  // Guarded by this
+  private long lastRefill = System.nanoTime();
+  // Finish tag of the last served chunk
+  // Guarded by this
+  private double virtualTime;
+  // Guarded by this
+  private long sequence;
+  // Guarded by this
+  private final PriorityQueue<Waiter> waiters = new PriorityQueue<>();
+
+  /**
+   * @param bytesPerSecond the max bandwidth, 0 for unlimited
+   */
+  public XiaZaiRateLimiter(long bytesPerSecond) {
+    setRate(bytesPerSecond);
+  }
+
+  /**
+   * Change the max bandwidth, 0 for unlimited.
+   */
+  public synchronized void setRate(long bytesPerSecond) {
+    if (bytesPerSecond < 0) throw new IllegalArgumentException("bytesPerSecond < 0");
+    refill(System.nanoTime());
+    this.rate = bytesPerSecond;
+    this.tokens = Math.min(tokens, capacity());
+    notifyAll();
+  }
+
+  /**
+   * Return the max bandwidth, 0 for unlimited.
+   */
+  public synchronized long getRate() {
+    return rate;
+  }
+
+  // Allow a burst of a quarter second
+  // Guarded by this
+  private double capacity() {
+    return Math.max(1, rate / 4);
+  }
+
+  // Guarded by this
+  private void refill(long now) {
+    if (rate > 0) {
+      tokens = Math.min(capacity(), tokens + (now - lastRefill) * rate / 1e9);
+    }
+    lastRefill = now;
+  }
+
+  /**
+   * Return the most bytes to take tokens for at once, the size of the bucket.
+   */
+  synchronized long maxChunk() {
+    return rate == 0 ? Long.MAX_VALUE : (long) capacity();
+  }
+
+  /**
+   * Take tokens for {@code n} bytes, wait if it's out of tokens.
+   * The tokens could be overdrawn by one chunk, chunks should be capped by
+   * {@link #maxChunk()} to keep it within a burst.
+   */
+  void acquire(Share share, int weight, long n,
+      @Nullable XiaZaiController controller) throws IOException {
+    synchronized (this) {
+      if (rate == 0) return;
+
+      double start = Math.max(virtualTime, share.finish);
+      double finish = start + (double) n / Math.max(1, weight);
+      share.finish = finish;
+      Waiter waiter = new Waiter(finish, sequence++);
+      waiters.add(waiter);
+
+      try {
+        for (;;) {
+          if (controller != null && controller.isCancelled()) {
+            throw new IOException("Canceled");
+          }
+
+          long now = System.nanoTime();
+          refill(now);
+          if (rate == 0 || (waiters.peek() == waiter && tokens > 0)) {
+            waiters.poll();
+            tokens -= n;
+            virtualTime = finish;
+            notifyAll();
+            return;
+          }
+
+          long waitNanos = MAX_WAIT_NANOS;
+          if (waiters.peek() == waiter) {
+            waitNanos = Math.min(waitNanos, (long) ((1 - tokens) * 1e9 / rate) + 1);
+          }
+          TimeUnit.NANOSECONDS.timedWait(this, waitNanos);
+        }
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException();
+      } finally {
+        if (waiters.remove(waiter)) {
+          notifyAll();
+        }
+      }
+    }
+  }
+
+  /**
+   * The state of one download in a rate limiter.
+   */
+  static final class Share {
+    // Guarded by the rate limiter
+    private double finish;
+  }
+
+  private static final class Waiter implements Comparable<Waiter> {
+
+    private final double finish;
+    private final long sequence;
+
+    Waiter(double finish, long sequence) {
+      this.finish = finish;
+      this.sequence = sequence;
+    }
+
+    @Override
+    public int compareTo(Waiter o) {
+      if (finish != o.finish) {
+        return finish < o.finish ? -1 : 1;
+      }
+      return sequence < o.sequence ? -1 : (sequence == o.sequence ? 0 : 1);
+    }
+  }
+}
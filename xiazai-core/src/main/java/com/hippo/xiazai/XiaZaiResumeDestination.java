@@ -0,0 +1,70 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.xiazai;
+
+/*
+ * Created by Hippo on 2/12/2017.
+ */
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import okhttp3.Headers;
+import okhttp3.HttpUrl;
+
+/**
+ * A {@link XiaZaiDestination} which keeps the data downloaded last time,
+ * so downloading can continue from it.
+ * <p>
+ * Downloading only continues if there is stored data and a validator.
+ * The request carries {@code If-Range} header with the validator.
+ * If the entity is changed, the server returns the whole entity,
+ * and {@link XiaZaiDestination#open(HttpUrl, int, Headers)} is called to start over.
+ * The destination should store the validator in
+ * {@link XiaZaiDestination#open(HttpUrl, int, Headers)},
+ * {@link com.hippo.xiazai.destination.BaseDestination#getValidator(Headers)} could help.
+ */
+public interface XiaZaiResumeDestination extends XiaZaiDestination {
+
+  /**
+   * Return the length of stored data, 0 for nothing.
+   */
+  long getResumeOffset() throws IOException;
+
+  /**
+   * Return the ETag or Last-Modified of stored data, null for unknown.
+   */
+  @Nullable
+  String getResumeValidator() throws IOException;
+
+  /**
+   * Open a {@code OutputStream} to append downloaded data after stored data.
+   * <p>
+   * Do NOT return null. If you don't want to download any more, throw IOException.
+   */
+  @NonNull
+  OutputStream openResume(HttpUrl url, Headers headers, long offset) throws IOException;
+
+  /**
+   * Open a {@code InputStream} to read stored data.
+   * It's only called to verify the checksum of the whole data, see {@link XiaZaiChecksum}.
+   */
+  @NonNull
+  InputStream openStored() throws IOException;
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hippo.xiazai;
+
+/*
+ * Created by Hippo on 3/6/2017.
+ */
+
+/**
+ * A {@link XiaZaiCallback} which is also told about stalls and retries.
+ * Called in the same way as {@code XiaZaiCallback}.
+ *
+ * @see XiaZai.Builder#retryPolicy(XiaZaiRetryPolicy)
+ */
+public interface XiaZaiRetryCallback extends XiaZaiCallback {
+
+  /**
+   * The transfer stalled, a retry or an error follows.
+   *
+   * @param read the bytes read so far
+   * @param content the content length, -1 if unknown
+   */
+  void onStall(long read, long content);
+
+  /**
+   * The download is going to retry after the delay.
+   *
+   * @param retry the number of the retry, starting from 1
+   * @param delay the time to wait in milliseconds
+   * @param read the download continues from this byte
+   * @param e the failure
+   */
+  void onRetry(int retry, long delay, long read, Throwable e);
+}
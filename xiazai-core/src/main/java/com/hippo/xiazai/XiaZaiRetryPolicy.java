@@ -0,0 +1,199 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hippo.xiazai;
+
+/*
+ * Created by Hippo on 3/6/2017.
+ */
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides how a download retries after network failures and stalls.
+ * <p>
+ * The n-th retry waits {@code initialBackoff * multiplier ^ (n - 1)},
+ * at most {@code maxBackoff}, minus a random part of {@code jitter}
+ * so that many downloads failed together don't retry together.
+ * {@code Retry-After} of 429 and 503 responses is respected, up to {@code maxBackoff}.
+ * <p>
+ * A transfer stalls if no data comes in {@code stallTimeout},
+ * or if it's slower than {@code minThroughput} in {@code throughputWindow}.
+ * Time spent in writing the destination and waiting for {@link XiaZaiRateLimiter}
+ * doesn't count.
+ * <p>
+ * Immutable, could be shared by many XiaZai.
+ */
+public final class XiaZaiRetryPolicy {
+
+  private final int maxRetries;
+  private final long initialBackoff;
+  private final long maxBackoff;
+  private final double multiplier;
+  private final double jitter;
+  private final long stallTimeout;
+  private final long minThroughput;
+  private final long throughputWindow;
+  private final Random random = new Random();
+
+  private XiaZaiRetryPolicy(Builder builder) {
+    this.maxRetries = builder.maxRetries;
+    this.initialBackoff = builder.initialBackoff;
+    this.maxBackoff = builder.maxBackoff;
+    this.multiplier = builder.multiplier;
+    this.jitter = builder.jitter;
+    this.stallTimeout = builder.stallTimeout;
+    this.minThroughput = builder.minThroughput;
+    this.throughputWindow = builder.throughputWindow;
+  }
+
+  public int maxRetries() {
+    return maxRetries;
+  }
+
+  /**
+   * Return the stall timeout in nanoseconds, 0 if disabled.
+   */
+  public long stallTimeout() {
+    return stallTimeout;
+  }
+
+  /**
+   * Return the min throughput in bytes per second, 0 if disabled.
+   */
+  public long minThroughput() {
+    return minThroughput;
+  }
+
+  /**
+   * Return the throughput window in nanoseconds.
+   */
+  public long throughputWindow() {
+    return throughputWindow;
+  }
+
+  /**
+   * Return the time to wait before the retry in nanoseconds.
+   *
+   * @param retry the number of the retry, starting from 1
+   */
+  long backoff(int retry) {
+    double backoff = initialBackoff * Math.pow(multiplier, retry - 1);
+    backoff = Math.min(backoff, maxBackoff);
+    return (long) (backoff * (1 - jitter * random.nextDouble()));
+  }
+
+  /**
+   * Return the time to wait for the {@code Retry-After} header in nanoseconds,
+   * at most max backoff, or -1 if it isn't a number of seconds.
+   */
+  long retryAfter(String retryAfter) {
+    if (retryAfter == null) return -1;
+    try {
+      long seconds = Long.parseLong(retryAfter.trim());
+      if (seconds < 0) return -1;
+      return Math.min(TimeUnit.SECONDS.toNanos(seconds), maxBackoff);
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  public static class Builder {
+
+    private int maxRetries = 3;
+    private long initialBackoff = TimeUnit.SECONDS.toNanos(1);
+    private long maxBackoff = TimeUnit.SECONDS.toNanos(30);
+    private double multiplier = 2;
+    private double jitter = 0.5;
+    private long stallTimeout = TimeUnit.SECONDS.toNanos(30);
+    private long minThroughput;
+    private long throughputWindow = TimeUnit.SECONDS.toNanos(10);
+
+    /**
+     * Set the max number of retries of a download. 3 as default.
+     */
+    public Builder maxRetries(int maxRetries) {
+      this.maxRetries = maxRetries;
+      return this;
+    }
+
+    /**
+     * Set the backoff before the first retry, and the max backoff.
+     * 1 second and 30 seconds as default.
+     */
+    public Builder backoff(long initial, long max, TimeUnit unit) {
+      this.initialBackoff = unit.toNanos(initial);
+      this.maxBackoff = unit.toNanos(max);
+      return this;
+    }
+
+    /**
+     * Set how much the backoff grows each retry. 2 as default.
+     */
+    public Builder multiplier(double multiplier) {
+      this.multiplier = multiplier;
+      return this;
+    }
+
+    /**
+     * Set the part of the backoff which is random, from 0 to 1. 0.5 as default.
+     */
+    public Builder jitter(double jitter) {
+      this.jitter = jitter;
+      return this;
+    }
+
+    /**
+     * Treat the transfer as stalled if no data comes in the timeout.
+     * 0 to disable. 30 seconds as default.
+     * <p>
+     * The read timeout of {@code OkHttpClient} still works, it's a stall too.
+     */
+    public Builder stallTimeout(long timeout, TimeUnit unit) {
+      this.stallTimeout = unit.toNanos(timeout);
+      return this;
+    }
+
+    /**
+     * Treat the transfer as stalled if it's slower than {@code bytesPerSecond}
+     * in the window. 0 to disable. Disabled as default, the window is 10 seconds.
+     */
+    public Builder minThroughput(long bytesPerSecond, long window, TimeUnit unit) {
+      this.minThroughput = bytesPerSecond;
+      this.throughputWindow = unit.toNanos(window);
+      return this;
+    }
+
+    public XiaZaiRetryPolicy build() throws IllegalStateException {
+      if (maxRetries < 0) {
+        throw new IllegalStateException("maxRetries < 0");
+      }
+      if (initialBackoff < 0 || maxBackoff < initialBackoff) {
+        throw new IllegalStateException("Bad backoff: " + initialBackoff + ", " + maxBackoff);
+      }
+      if (multiplier < 1) {
+        throw new IllegalStateException("multiplier < 1");
+      }
+      if (jitter < 0 || jitter > 1) {
+        throw new IllegalStateException("jitter < 0 || jitter > 1");
+      }
+      if (stallTimeout < 0 || minThroughput < 0 || throughputWindow <= 0) {
+        throw new IllegalStateException("Bad stall settings");
+      }
+      return new XiaZaiRetryPolicy(this);
+    }
+  }
+}
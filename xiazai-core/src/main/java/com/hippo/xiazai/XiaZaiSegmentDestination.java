@@ -0,0 +1,53 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.xiazai;
+
+/*
+ * Created by Hippo on 2/10/2017.
+ */
+
+import android.support.annotation.NonNull;
+import java.io.IOException;
+import java.io.OutputStream;
+import okhttp3.Headers;
+import okhttp3.HttpUrl;
+
+/**
+ * A {@link XiaZaiDestination} which can be written at any offset,
+ * so several byte ranges of one file can be downloaded at the same time.
+ * <p>
+ * If the server doesn't support byte ranges,
+ * {@link XiaZaiDestination#open(HttpUrl, int, Headers)} is used instead.
+ */
+public interface XiaZaiSegmentDestination extends XiaZaiDestination {
+
+  /**
+   * Prepare to store {@code length} bytes. Called once before any {@link #open(long)}.
+   * <p>
+   * If you don't want to download any more, throw IOException.
+   */
+  void prepare(HttpUrl url, int code, Headers headers, long length) throws IOException;
+
+  /**
+   * Open a {@code OutputStream} to store downloaded data from the offset.
+   * <p>
+   * It's called in different threads at the same time.
+   * Do NOT return null. If you don't want to download any more, throw IOException.
+   */
+  @NonNull
+  OutputStream open(long offset) throws IOException;
+}
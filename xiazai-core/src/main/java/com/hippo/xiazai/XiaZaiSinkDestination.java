@@ -0,0 +1,45 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.xiazai;
+
+/*
+ * Created by Hippo on 2/14/2017.
+ */
+
+import android.support.annotation.NonNull;
+import java.io.IOException;
+import okhttp3.Headers;
+import okhttp3.HttpUrl;
+import okio.Sink;
+
+/**
+ * A {@link XiaZaiDestination} which stores downloaded data through an Okio {@code Sink}.
+ * <p>
+ * The segments of the response body are moved to the sink as they are,
+ * instead of being copied to a {@code byte[]} and then to an {@code OutputStream}.
+ */
+public interface XiaZaiSinkDestination extends XiaZaiDestination {
+
+  /**
+   * Open a {@code Sink} to store downloaded data.
+   * It's used instead of {@link XiaZaiDestination#open(HttpUrl, int, Headers)}.
+   * <p>
+   * Do NOT return null. If you don't want to download any more, throw IOException.
+   */
+  @NonNull
+  Sink openSink(HttpUrl url, int code, Headers headers) throws IOException;
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hippo.xiazai;
+
+/*
+ * Created by Hippo on 3/3/2017.
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process-wide counters and histograms of all downloads.
+ * Every download is recorded once it's finished, no need to enable it.
+ * <p>
+ * Updates are lock-free. Values are read one by one, so they may be slightly
+ * inconsistent with each other while downloads are finishing.
+ */
+public final class XiaZaiStats {
+
+  private static final XiaZaiStats GLOBAL = new XiaZaiStats();
+
+  private final AtomicLong completed = new AtomicLong();
+  private final AtomicLong cancelled = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+  private final AtomicLong fromCache = new AtomicLong();
+  private final AtomicLong bytesWritten = new AtomicLong();
+  private final AtomicLong stalls = new AtomicLong();
+  private final AtomicLong retries = new AtomicLong();
+  private final AtomicLong hedges = new AtomicLong();
+
+  private final Histogram headersNanos = new Histogram();
+  private final Histogram firstByteNanos = new Histogram();
+  private final Histogram totalNanos = new Histogram();
+  private final Histogram writeNanos = new Histogram();
+  private final Histogram throughput = new Histogram();
+
+  private XiaZaiStats() {}
+
+  /**
+   * Return the stats of all downloads in this process.
+   */
+  public static XiaZaiStats global() {
+    return GLOBAL;
+  }
+
+  void record(XiaZaiMetrics metrics) {
+    switch (metrics.state()) {
+      case XiaZai.STATE_COMPLETED:
+        completed.incrementAndGet();
+        break;
+      case XiaZai.STATE_CANCELLED:
+        cancelled.incrementAndGet();
+        break;
+      default:
+        errors.incrementAndGet();
+        break;
+    }
+    if (metrics.fromCache()) {
+      fromCache.incrementAndGet();
+    }
+    bytesWritten.addAndGet(metrics.bytesWritten());
+    stalls.addAndGet(metrics.stallCount());
+    retries.addAndGet(metrics.retries());
+    hedges.addAndGet(metrics.hedges());
+
+    if (metrics.headersNanos() >= 0) {
+      headersNanos.record(metrics.headersNanos());
+    }
+    if (metrics.firstByteNanos() >= 0) {
+      firstByteNanos.record(metrics.firstByteNanos());
+    }
+    totalNanos.record(metrics.totalNanos());
+    writeNanos.record(metrics.writeNanos());
+    // Throughput of unfinished or cached downloads means nothing
+    if (metrics.state() == XiaZai.STATE_COMPLETED && !metrics.fromCache()) {
+      throughput.record(metrics.throughput());
+    }
+  }
+
+  public long completedCount() {
+    return completed.get();
+  }
+
+  public long cancelledCount() {
+    return cancelled.get();
+  }
+
+  public long errorCount() {
+    return errors.get();
+  }
+
+  /**
+   * Return the number of downloads copied from {@link XiaZaiCache}.
+   */
+  public long fromCacheCount() {
+    return fromCache.get();
+  }
+
+  public long bytesWritten() {
+    return bytesWritten.get();
+  }
+
+  public long stallCount() {
+    return stalls.get();
+  }
+
+  public long retryCount() {
+    return retries.get();
+  }
+
+  public long hedgeCount() {
+    return hedges.get();
+  }
+
+  /**
+   * Return the histogram of {@link XiaZaiMetrics#headersNanos()}.
+   */
+  public Histogram headersNanos() {
+    return headersNanos;
+  }
+
+  /**
+   * Return the histogram of {@link XiaZaiMetrics#firstByteNanos()}.
+   */
+  public Histogram firstByteNanos() {
+    return firstByteNanos;
+  }
+
+  /**
+   * Return the histogram of {@link XiaZaiMetrics#totalNanos()}.
+   */
+  public Histogram totalNanos() {
+    return totalNanos;
+  }
+
+  /**
+   * Return the histogram of {@link XiaZaiMetrics#writeNanos()}.
+   */
+  public Histogram writeNanos() {
+    return writeNanos;
+  }
+
+  /**
+   * Return the histogram of {@link XiaZaiMetrics#throughput()} of completed downloads
+   * from network.
+   */
+  public Histogram throughput() {
+    return throughput;
+  }
+
+  /**
+   * Set all counters and histograms to zero.
+   */
+  public void reset() {
+    completed.set(0);
+    cancelled.set(0);
+    errors.set(0);
+    fromCache.set(0);
+    bytesWritten.set(0);
+    stalls.set(0);
+    retries.set(0);
+    hedges.set(0);
+    headersNanos.reset();
+    firstByteNanos.reset();
+    totalNanos.reset();
+    writeNanos.reset();
+    throughput.reset();
+  }
+
+  @Override
+  public String toString() {
+    return "XiaZaiStats{completed=" + completedCount()
+        + ", cancelled=" + cancelledCount()
+        + ", errors=" + errorCount()
+        + ", fromCache=" + fromCacheCount()
+        + ", bytesWritten=" + bytesWritten()
+        + ", stalls=" + stallCount()
+        + ", retries=" + retryCount()
+        + ", hedges=" + hedgeCount()
+        + ", headersNanos=" + headersNanos
+        + ", firstByteNanos=" + firstByteNanos
+        + ", totalNanos=" + totalNanos
+        + ", writeNanos=" + writeNanos
+        + ", throughput=" + throughput
+        + "}";
+  }
+
+  /**
+   * A histogram of non-negative values in power-of-two buckets.
+   * Bucket 0 counts 0, bucket i counts values in [2^(i-1), 2^i).
+   */
+  public static final class Histogram {
+
+    public static final int BUCKET_COUNT = 64;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    Histogram() {}
+
+    void record(long value) {
+      if (value < 0) return;
+      buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+      count.incrementAndGet();
+      sum.addAndGet(value);
+      for (;;) {
+        long current = max.get();
+        if (value <= current || max.compareAndSet(current, value)) break;
+      }
+    }
+
+    void reset() {
+      for (int i = 0; i < BUCKET_COUNT; i++) {
+        buckets.set(i, 0);
+      }
+      count.set(0);
+      sum.set(0);
+      max.set(0);
+    }
+
+    public long count() {
+      return count.get();
+    }
+
+    public long sum() {
+      return sum.get();
+    }
+
+    public long max() {
+      return max.get();
+    }
+
+    public long mean() {
+      long count = count();
+      return count == 0 ? 0 : sum() / count;
+    }
+
+    /**
+     * Return the count of the bucket.
+     */
+    public long bucket(int index) {
+      return buckets.get(index);
+    }
+
+    /**
+     * Return the upper bound of the bucket which contains the percentile,
+     * it's at most twice the actual value.
+     *
+     * @param percentile in [0, 100]
+     */
+    public long percentile(double percentile) {
+      if (percentile < 0 || percentile > 100) {
+        throw new IllegalArgumentException("Bad percentile: " + percentile);
+      }
+      long[] counts = new long[BUCKET_COUNT];
+      long total = 0;
+      for (int i = 0; i < BUCKET_COUNT; i++) {
+        counts[i] = buckets.get(i);
+        total += counts[i];
+      }
+      if (total == 0) return 0;
+      long rank = (long) Math.ceil(total * percentile / 100);
+      long seen = 0;
+      for (int i = 0; i < BUCKET_COUNT; i++) {
+        seen += counts[i];
+        if (seen >= rank && counts[i] != 0) {
+          return i == 0 ? 0 : Math.min(max(), i == 63 ? Long.MAX_VALUE : (1L << i) - 1);
+        }
+      }
+      return max();
+    }
+
+    @Override
+    public String toString() {
+      return "{count=" + count() + ", mean=" + mean() + ", p50=" + percentile(50)
+          + ", p99=" + percentile(99) + ", max=" + max() + "}";
+    }
+  }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.xiazai;
+
+/*
+ * Created by Hippo on 3/14/2017.
+ */
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes downloaded data to destinations in other threads, so that reading
+ * the socket doesn't stop while the storage stalls.
+ * <p>
+ * Each chunk read is copied and queued, a writer thread drains the queue of
+ * each download. The queue of a download holds at most {@code maxPending} bytes,
+ * and all queues share a memory budget of {@code budget} bytes. A download
+ * waits for the writer if either is full.
+ * <p>
+ * Write failures are thrown by the next write or by closing.
+ * <p>
+ * Thread-safe, could be shared by many XiaZai, so that the budget is shared too.
+ */
+public final class XiaZaiWriteBehind {
+
+  // Check cancellation at least in this interval while waiting
+  static final long MAX_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+  private static final int DEFAULT_MAX_THREADS = 8;
+
+  private final long budget;
+  private final long maxPending;
+  private final long closeTimeout;
+  private final ExecutorService executor;
+
+  // Guarded by this
+  private long used;
+
+  private XiaZaiWriteBehind(Builder builder) {
+    this.budget = builder.budget;
+    this.maxPending = builder.maxPending;
+    this.closeTimeout = builder.closeTimeout;
+    this.executor = builder.executor != null ? builder.executor : defaultExecutor();
+  }
+
+  private static ExecutorService defaultExecutor() {
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(DEFAULT_MAX_THREADS, DEFAULT_MAX_THREADS,
+        60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+          @Override
+          public Thread newThread(@NonNull Runnable r) {
+            Thread thread = new Thread(r, "XiaZaiWriteBehind");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    pool.allowCoreThreadTimeOut(true);
+    return pool;
+  }
+
+  /**
+   * Return the max bytes queued by all downloads.
+   */
+  public long budget() {
+    return budget;
+  }
+
+  /**
+   * Return the bytes queued by all downloads now.
+   */
+  public synchronized long used() {
+    return used;
+  }
+
+  long maxPending() {
+    return maxPending;
+  }
+
+  long closeTimeout() {
+    return closeTimeout;
+  }
+
+  ExecutorService executor() {
+    return executor;
+  }
+
+  // Wrap the stream of one download
+  OutputStream wrap(OutputStream os, @Nullable XiaZaiController controller,
+      @Nullable XiaZaiBufferPool pool) {
+    return new WriteBehindStream(this, os, controller, pool);
+  }
+
+  /**
+   * Take n bytes from the budget, wait if it's used up.
+   * A chunk larger than the budget waits until the budget is free.
+   */
+  synchronized void acquire(long n, @Nullable XiaZaiController controller) throws IOException {
+    try {
+      while (used > 0 && used + n > budget) {
+        if (controller != null && controller.isCancelled()) {
+          throw new IOException("Canceled");
+        }
+        TimeUnit.NANOSECONDS.timedWait(this, MAX_WAIT_NANOS);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    }
+    used += n;
+  }
+
+  synchronized void release(long n) {
+    used -= n;
+    notifyAll();
+  }
+
+  public static class Builder {
+
+    private long budget = 16 * 1024 * 1024;
+    private long maxPending = 1024 * 1024;
+    private long closeTimeout = TimeUnit.SECONDS.toNanos(10);
+    private ExecutorService executor;
+
+    /**
+     * Set the max bytes queued by all downloads. 16 MB as default.
+     */
+    public Builder budget(long bytes) {
+      this.budget = bytes;
+      return this;
+    }
+
+    /**
+     * Set the max bytes queued by one download. 1 MB as default.
+     */
+    public Builder maxPending(long bytes) {
+      this.maxPending = bytes;
+      return this;
+    }
+
+    /**
+     * Set the max time closing a cancelled download waits for the chunk
+     * being written. 10 seconds as default.
+     */
+    public Builder closeTimeout(long timeout, TimeUnit unit) {
+      this.closeTimeout = unit.toNanos(timeout);
+      return this;
+    }
+
+    /**
+     * Set the executor to run writers, each writing download takes a thread,
+     * a writer returns the thread once its queue is empty.
+     * A pool of at most 8 threads as default, more writers wait for a thread.
+     */
+    public Builder executor(@NonNull ExecutorService executor) {
+      this.executor = executor;
+      return this;
+    }
+
+    public XiaZaiWriteBehind build() throws IllegalStateException {
+      if (budget <= 0 || maxPending <= 0) {
+        throw new IllegalStateException("budget <= 0 || maxPending <= 0");
+      }
+      if (closeTimeout < 0) {
+        throw new IllegalStateException("closeTimeout < 0");
+      }
+      return new XiaZaiWriteBehind(this);
+    }
+  }
+}
@@ -0,0 +1,480 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.xiazai.destination;
+
+/*
+ * Created by Hippo on 2/27/2017.
+ */
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import com.hippo.xiazai.XiaZaiDestination;
+import com.hippo.xiazai.exception.BadCodeException;
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import okhttp3.Headers;
+import okhttp3.HttpUrl;
+import okio.Okio;
+import okio.Pipe;
+
+/**
+ * A destination which extracts a zip, tar or tar.gz archive into a directory
+ * while downloading, the archive itself is never stored.
+ * <p>
+ * The format is detected from the first bytes of the data.
+ * Entries are extracted in a background thread.
+ * Entries whose path goes out of the directory are rejected,
+ * links and special files in tar are skipped.
+ * The download fails if an entry or all entries are larger than the limits,
+ * or if the archive is truncated: a tar without its zero end blocks, or a zip
+ * without its central directory. Entries extracted before a failure are kept.
+ */
+public class ArchiveDestination implements XiaZaiDestination {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private static final int PIPE_SIZE = 64 * 1024;
+  private static final int BUFFER_SIZE = 8 * 1024;
+  private static final int TAR_BLOCK_SIZE = 512;
+  // The end of central directory record and the longest comment
+  private static final int ZIP_MAX_END_SIZE = 22 + 0xffff;
+
+  public File dir;
+  public long maxEntrySize;
+  public long maxTotalSize;
+
+  /**
+   * Extract without size limits.
+   */
+  public ArchiveDestination(File dir) {
+    this(dir, Long.MAX_VALUE, Long.MAX_VALUE);
+  }
+
+  /**
+   * @param maxEntrySize the max size of an extracted entry
+   * @param maxTotalSize the max size of all extracted entries
+   */
+  public ArchiveDestination(File dir, long maxEntrySize, long maxTotalSize) {
+    if (maxEntrySize < 0 || maxTotalSize < 0) {
+      throw new IllegalArgumentException("maxEntrySize < 0 || maxTotalSize < 0");
+    }
+    this.dir = dir;
+    this.maxEntrySize = maxEntrySize;
+    this.maxTotalSize = maxTotalSize;
+  }
+
+  @NonNull
+  @Override
+  public OutputStream open(HttpUrl url, int code, Headers headers) throws IOException {
+    if (code < 200 || code >= 300) throw new BadCodeException(code);
+    if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Can't create " + dir);
+
+    Pipe pipe = new Pipe(PIPE_SIZE);
+    Extractor extractor = new Extractor(Okio.buffer(pipe.source()).inputStream(),
+        dir.getCanonicalFile(), maxEntrySize, maxTotalSize);
+    Thread thread = new Thread(extractor, "XiaZai-Extract");
+    thread.start();
+    return new ExtractOutputStream(Okio.buffer(pipe.sink()).outputStream(), thread, extractor);
+  }
+
+  private static final class ExtractOutputStream extends OutputStream {
+
+    private final OutputStream os;
+    private final Thread thread;
+    private final Extractor extractor;
+
+    ExtractOutputStream(OutputStream os, Thread thread, Extractor extractor) {
+      this.os = os;
+      this.thread = thread;
+      this.extractor = extractor;
+    }
+
+    // The failure of extractor is the cause of a closed pipe
+    private IOException failure(IOException e) {
+      IOException failure = extractor.failure;
+      return failure != null ? failure : e;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      try {
+        os.write(b);
+      } catch (IOException e) {
+        throw failure(e);
+      }
+    }
+
+    @Override
+    public void write(@NonNull byte[] b, int off, int len) throws IOException {
+      try {
+        os.write(b, off, len);
+      } catch (IOException e) {
+        throw failure(e);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        os.close();
+      } catch (IOException e) {
+        throw failure(e);
+      }
+      // Wait for the rest of entries
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException();
+      }
+      if (extractor.failure != null) {
+        throw extractor.failure;
+      }
+    }
+  }
+
+  private static final class Extractor implements Runnable {
+
+    private final InputStream is;
+    private final File dir;
+    private final long maxEntrySize;
+    private final long maxTotalSize;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    private long total;
+    volatile IOException failure;
+
+    Extractor(InputStream is, File dir, long maxEntrySize, long maxTotalSize) {
+      this.is = is;
+      this.dir = dir;
+      this.maxEntrySize = maxEntrySize;
+      this.maxTotalSize = maxTotalSize;
+    }
+
+    @Override
+    public void run() {
+      try {
+        extract(new BufferedInputStream(is, BUFFER_SIZE));
+        // Consume the trailing data, or the writer finds the pipe closed
+        while (is.read(buffer) != -1) {}
+      } catch (IOException e) {
+        failure = e;
+      } catch (RuntimeException e) {
+        failure = new IOException(e);
+      } finally {
+        try {
+          is.close();
+        } catch (IOException e) {
+          // Ignore
+        }
+      }
+    }
+
+    private void extract(BufferedInputStream is) throws IOException {
+      byte[] magic = new byte[2];
+      is.mark(magic.length);
+      int n = readFully(is, magic, 0, magic.length);
+      is.reset();
+
+      if (n == 2 && magic[0] == 'P' && magic[1] == 'K') {
+        extractZip(new TailInputStream(is));
+      } else if (n == 2 && magic[0] == (byte) 0x1f && magic[1] == (byte) 0x8b) {
+        extractTar(new GZIPInputStream(is, BUFFER_SIZE));
+      } else {
+        extractTar(is);
+      }
+    }
+
+    private void extractZip(TailInputStream tail) throws IOException {
+      ZipInputStream is = new ZipInputStream(tail);
+      ZipEntry entry;
+      while ((entry = is.getNextEntry()) != null) {
+        File file = resolve(entry.getName());
+        if (file == null) continue;
+        if (entry.isDirectory()) {
+          mkdirs(file);
+        } else {
+          write(is, file, Long.MAX_VALUE);
+        }
+      }
+      // ZipInputStream also stops at the end of the stream,
+      // only the central directory tells the archive is complete
+      while (tail.read(buffer) != -1) {}
+      if (!tail.hasZipEnd()) throw new EOFException("Truncated zip, no central directory");
+    }
+
+    private void extractTar(InputStream is) throws IOException {
+      byte[] header = new byte[TAR_BLOCK_SIZE];
+      String longName = null;
+      while (true) {
+        int n = readFully(is, header, 0, TAR_BLOCK_SIZE);
+        if (n == 0) throw new EOFException("Truncated tar, no end of archive");
+        if (n != TAR_BLOCK_SIZE) throw new EOFException("Truncated tar header");
+        // Two zero blocks are the end of archive
+        if (isZeroBlock(header)) {
+          if (readFully(is, header, 0, TAR_BLOCK_SIZE) != TAR_BLOCK_SIZE || !isZeroBlock(header)) {
+            throw new EOFException("Truncated tar, no end of archive");
+          }
+          return;
+        }
+
+        long size = parseTarNumber(header, 124, 12);
+        byte type = header[156];
+        String name = longName != null ? longName : tarName(header);
+        longName = null;
+
+        if (type == 'L' || type == 'x') {
+          // GNU long name or pax header for the next entry
+          if (size > 1024 * 1024) throw new IOException("Tar header too large: " + size);
+          byte[] data = new byte[(int) size];
+          if (readFully(is, data, 0, data.length) != data.length) {
+            throw new EOFException("Truncated tar header");
+          }
+          skip(is, padding(size));
+          longName = type == 'L' ? cString(data, 0, data.length) : paxPath(data);
+          continue;
+        }
+
+        File file = resolve(name);
+        if (file != null && type == '5') {
+          mkdirs(file);
+          skip(is, size + padding(size));
+        } else if (file != null && (type == '0' || type == 0 || type == '7')) {
+          if (write(is, file, size) != size) throw new EOFException("Truncated tar entry");
+          skip(is, padding(size));
+        } else {
+          // Links, devices, global pax headers and entries out of the directory
+          skip(is, size + padding(size));
+        }
+      }
+    }
+
+    // Return the file in the directory for the entry name, null for the directory itself
+    @Nullable
+    private File resolve(String name) throws IOException {
+      StringBuilder sb = new StringBuilder();
+      for (String part : name.replace('\\', '/').split("/")) {
+        if (part.isEmpty() || part.equals(".")) continue;
+        if (part.equals("..") || part.indexOf(':') != -1 || part.indexOf('\0') != -1) {
+          throw new IOException("Bad entry name: " + name);
+        }
+        if (sb.length() != 0) sb.append(File.separatorChar);
+        sb.append(part);
+      }
+      if (sb.length() == 0) return null;
+
+      File file = new File(dir, sb.toString());
+      // Symbolic links in the directory may point to elsewhere
+      if (!file.getCanonicalPath().startsWith(dir.getPath() + File.separator)) {
+        throw new IOException("Bad entry name: " + name);
+      }
+      return file;
+    }
+
+    // Copy at most length bytes to the file, return the byte count
+    private long write(InputStream is, File file, long length) throws IOException {
+      File parent = file.getParentFile();
+      if (parent != null) mkdirs(parent);
+
+      OutputStream os = new FileOutputStream(file);
+      try {
+        long written = 0;
+        int n;
+        while (written < length
+            && (n = is.read(buffer, 0, (int) Math.min(buffer.length, length - written))) != -1) {
+          written += n;
+          total += n;
+          if (written > maxEntrySize) {
+            throw new IOException("Entry larger than " + maxEntrySize + ": " + file);
+          }
+          if (total > maxTotalSize) {
+            throw new IOException("Entries larger than " + maxTotalSize);
+          }
+          os.write(buffer, 0, n);
+        }
+        return written;
+      } finally {
+        os.close();
+      }
+    }
+
+    private void skip(InputStream is, long n) throws IOException {
+      while (n > 0) {
+        int read = is.read(buffer, 0, (int) Math.min(buffer.length, n));
+        if (read == -1) throw new EOFException("Truncated tar entry");
+        n -= read;
+      }
+    }
+
+    private static void mkdirs(File dir) throws IOException {
+      if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Can't create " + dir);
+    }
+  }
+
+  /**
+   * Keeps the last bytes read, to find the end of central directory of zip.
+   */
+  private static final class TailInputStream extends FilterInputStream {
+
+    private final byte[] tail = new byte[ZIP_MAX_END_SIZE];
+    private long count;
+
+    TailInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = in.read();
+      if (b != -1) {
+        tail[(int) (count++ % tail.length)] = (byte) b;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(@NonNull byte[] b, int off, int len) throws IOException {
+      int n = in.read(b, off, len);
+      for (int i = 0; i < n; i++) {
+        tail[(int) (count++ % tail.length)] = b[off + i];
+      }
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      // Skipped bytes must be kept too
+      byte[] buffer = new byte[(int) Math.min(n, BUFFER_SIZE)];
+      int read = read(buffer, 0, buffer.length);
+      return Math.max(0, read);
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    private byte at(long position) {
+      return tail[(int) (position % tail.length)];
+    }
+
+    // Return true if the end of central directory signature is in the tail
+    boolean hasZipEnd() {
+      long start = Math.max(0, count - tail.length);
+      for (long p = count - 22; p >= start; p--) {
+        if (at(p) == 'P' && at(p + 1) == 'K' && at(p + 2) == 5 && at(p + 3) == 6) return true;
+      }
+      return false;
+    }
+  }
+
+  // Return the byte count, less than len only at the end of the stream
+  private static int readFully(InputStream is, byte[] b, int off, int len) throws IOException {
+    int read = 0;
+    while (read < len) {
+      int n = is.read(b, off + read, len - read);
+      if (n == -1) break;
+      read += n;
+    }
+    return read;
+  }
+
+  private static long padding(long size) {
+    return (TAR_BLOCK_SIZE - size % TAR_BLOCK_SIZE) % TAR_BLOCK_SIZE;
+  }
+
+  private static boolean isZeroBlock(byte[] block) {
+    for (byte b : block) {
+      if (b != 0) return false;
+    }
+    return true;
+  }
+
+  private static String cString(byte[] b, int off, int len) {
+    int end = off;
+    while (end < off + len && b[end] != 0) end++;
+    return new String(b, off, end - off, UTF_8);
+  }
+
+  // Name with the ustar prefix
+  private static String tarName(byte[] header) {
+    String name = cString(header, 0, 100);
+    if (header[257] == 'u' && header[258] == 's' && header[259] == 't'
+        && header[260] == 'a' && header[261] == 'r') {
+      String prefix = cString(header, 345, 155);
+      if (!prefix.isEmpty()) {
+        name = prefix + "/" + name;
+      }
+    }
+    return name;
+  }
+
+  // Octal, or base-256 for large values
+  private static long parseTarNumber(byte[] header, int off, int len) throws IOException {
+    long value = 0;
+    if ((header[off] & 0x80) != 0) {
+      for (int i = off + 1; i < off + len; i++) {
+        value = (value << 8) | (header[i] & 0xff);
+      }
+    } else {
+      for (int i = off; i < off + len; i++) {
+        byte b = header[i];
+        if (b == 0 || b == ' ') {
+          if (value != 0) break;
+          continue;
+        }
+        if (b < '0' || b > '7') throw new IOException("Bad tar number");
+        value = (value << 3) + (b - '0');
+      }
+    }
+    if (value < 0) throw new IOException("Bad tar number");
+    return value;
+  }
+
+  // Records are "<length> <key>=<value>\n"
+  @Nullable
+  private static String paxPath(byte[] data) {
+    int off = 0;
+    while (off < data.length) {
+      int space = off;
+      while (space < data.length && data[space] != ' ') space++;
+      int length;
+      try {
+        length = Integer.parseInt(new String(data, off, space - off, UTF_8));
+      } catch (NumberFormatException e) {
+        return null;
+      }
+      if (length <= 0 || off + length > data.length) return null;
+      String record = new String(data, space + 1, off + length - space - 2, UTF_8);
+      if (record.startsWith("path=")) {
+        return record.substring(5);
+      }
+      off += length;
+    }
+    return null;
+  }
+}
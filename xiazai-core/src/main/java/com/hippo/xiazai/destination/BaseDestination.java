@@ -54,6 +54,18 @@ public abstract class BaseDestination implements XiaZaiDestination {
     }
   }
 
+  /**
+   * Get the validator of the entity from respond headers, which can be put in
+   * {@code If-Range} header to resume downloading.
+   * Strong ETag is preferred, then Last-Modified. Weak ETag can't be used.
+   */
+  @Nullable
+  public static String getValidator(Headers headers) {
+    String etag = headers.get("ETag");
+    if (etag != null && !etag.startsWith("W/")) return etag;
+    return headers.get("Last-Modified");
+  }
+
   /**
    * Return true if the code is acceptable.
    */
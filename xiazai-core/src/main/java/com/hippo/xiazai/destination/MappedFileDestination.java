@@ -0,0 +1,198 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.xiazai.destination;
+
+/*
+ * Created by Hippo on 2/24/2017.
+ */
+
+import android.support.annotation.NonNull;
+import com.hippo.xiazai.XiaZaiSegmentDestination;
+import com.hippo.xiazai.exception.BadCodeException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import okhttp3.Headers;
+import okhttp3.HttpUrl;
+
+/**
+ * A file destination which sets the file to its final size first,
+ * then writes to {@code MappedByteBuffer} windows of the file.
+ * <p>
+ * The length comes from {@code Content-Length}, or from the entity length
+ * in segmented downloading. If it's unknown, it writes to the file as a stream.
+ * <p>
+ * Windows are mapped one by one. Each stream only holds its current window,
+ * a full window is dropped before the next one is mapped. The system writes
+ * dropped windows back to the file by itself. With {@code sync}, each window is
+ * forced to the storage before it's dropped and on {@code flush()}, it's safer
+ * if the device loses power, but much slower. It's off as default.
+ * <p>
+ * Java can't unmap a buffer explicitly, dropped windows stay mapped until they
+ * are garbage collected. Pick a smaller {@code windowSize} if many segments
+ * run at the same time on a device with small address space.
+ */
+public class MappedFileDestination implements XiaZaiSegmentDestination {
+
+  // The default size of a mapped window
+  public static final int DEFAULT_WINDOW_SIZE = 8 * 1024 * 1024;
+
+  public File file;
+  public int windowSize;
+  public boolean sync;
+
+  // The length set in prepare()
+  private volatile long length = -1;
+
+  public MappedFileDestination(File file) {
+    this(file, DEFAULT_WINDOW_SIZE);
+  }
+
+  public MappedFileDestination(File file, int windowSize) {
+    this(file, windowSize, false);
+  }
+
+  public MappedFileDestination(File file, int windowSize, boolean sync) {
+    if (windowSize <= 0) throw new IllegalArgumentException("windowSize <= 0");
+    this.file = file;
+    this.windowSize = windowSize;
+    this.sync = sync;
+  }
+
+  private static long getContentLength(Headers headers) {
+    String contentLength = headers.get("Content-Length");
+    if (contentLength == null) return -1;
+    try {
+      return Long.parseLong(contentLength.trim());
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  @NonNull
+  @Override
+  public OutputStream open(HttpUrl url, int code, Headers headers) throws IOException {
+    if (code < 200 || code >= 300) throw new BadCodeException(code);
+    long contentLength = getContentLength(headers);
+    if (contentLength <= 0) {
+      return new FileOutputStream(file);
+    }
+    prepare(url, code, headers, contentLength);
+    return open(0);
+  }
+
+  @Override
+  public void prepare(HttpUrl url, int code, Headers headers, long length) throws IOException {
+    if (code < 200 || code >= 300) throw new BadCodeException(code);
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.setLength(length);
+    } finally {
+      raf.close();
+    }
+    this.length = length;
+  }
+
+  @NonNull
+  @Override
+  public OutputStream open(long offset) throws IOException {
+    long length = this.length;
+    if (length < 0) throw new IOException("Not prepared");
+    if (offset < 0 || offset > length) throw new IOException("Bad offset: " + offset);
+    return new MappedOutputStream(
+        new RandomAccessFile(file, "rw"), offset, length, windowSize, sync);
+  }
+
+  private static class MappedOutputStream extends OutputStream {
+
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final long end;
+    private final int windowSize;
+    private final boolean sync;
+
+    private long position;
+    private MappedByteBuffer window;
+
+    public MappedOutputStream(RandomAccessFile raf, long position, long end, int windowSize,
+        boolean sync) {
+      this.raf = raf;
+      this.channel = raf.getChannel();
+      this.position = position;
+      this.end = end;
+      this.windowSize = windowSize;
+      this.sync = sync;
+    }
+
+    // Make sure the current window has remaining space
+    private MappedByteBuffer window() throws IOException {
+      if (window == null || !window.hasRemaining()) {
+        if (window != null) {
+          if (sync) {
+            window.force();
+          }
+          window = null;
+        }
+        long size = Math.min(windowSize, end - position);
+        if (size <= 0) {
+          throw new IOException("Write beyond the end of file: " + end);
+        }
+        window = channel.map(FileChannel.MapMode.READ_WRITE, position, size);
+      }
+      return window;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      window().put((byte) b);
+      position++;
+    }
+
+    @Override
+    public void write(@NonNull byte[] b, int off, int len) throws IOException {
+      while (len > 0) {
+        MappedByteBuffer window = window();
+        int n = Math.min(len, window.remaining());
+        window.put(b, off, n);
+        position += n;
+        off += n;
+        len -= n;
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      if (sync && window != null) {
+        window.force();
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        flush();
+      } finally {
+        window = null;
+        raf.close();
+      }
+    }
+  }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2016 Hippo Seven
+ * Copyright 2017 Hippo Seven
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -17,34 +17,31 @@
 package com.hippo.xiazai.destination;
 
 /*
- * Created by Hippo on 12/31/2016.
+ * Created by Hippo on 2/14/2017.
  */
 
 import android.support.annotation.NonNull;
-import com.hippo.xiazai.XiaZaiDestination;
-import com.hippo.xiazai.exception.BadCodeException;
+import com.hippo.xiazai.XiaZaiSinkDestination;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 import okhttp3.Headers;
 import okhttp3.HttpUrl;
+import okio.Okio;
+import okio.Sink;
 
-public class FileDestination implements XiaZaiDestination {
-
-  public File file;
+/**
+ * A {@link FileDestination} which writes the segments of the response body
+ * to the file directly, without copying them to a {@code byte[]} first.
+ */
+public class OkioFileDestination extends FileDestination implements XiaZaiSinkDestination {
 
-  public FileDestination(File file) {
-    this.file = file;
+  public OkioFileDestination(File file) {
+    super(file);
   }
 
   @NonNull
   @Override
-  public OutputStream open(HttpUrl url, int code, Headers headers) throws IOException {
-    if (code >= 200 && code < 300) {
-      return new FileOutputStream(file);
-    } else {
-      throw new BadCodeException(code);
-    }
+  public Sink openSink(HttpUrl url, int code, Headers headers) throws IOException {
+    return Okio.sink(open(url, code, headers));
   }
 }
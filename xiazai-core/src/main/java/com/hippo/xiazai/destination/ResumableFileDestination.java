@@ -0,0 +1,128 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.xiazai.destination;
+
+/*
+ * Created by Hippo on 2/12/2017.
+ */
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import com.hippo.xiazai.XiaZaiResumeDestination;
+import com.hippo.xiazai.exception.BadCodeException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import okhttp3.Headers;
+import okhttp3.HttpUrl;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.Okio;
+
+/**
+ * A {@link FileDestination} which continues from the partial file downloaded last time.
+ * <p>
+ * The validator of the file is stored in a small file beside it,
+ * {@code <filename>.validator} as default.
+ * It's deleted if the server provides no validator.
+ * Files downloaded in segments can't be resumed, because they may have holes.
+ */
+public class ResumableFileDestination extends FileDestination implements XiaZaiResumeDestination {
+
+  public File validatorFile;
+
+  public ResumableFileDestination(File file) {
+    this(file, new File(file.getPath() + ".validator"));
+  }
+
+  public ResumableFileDestination(File file, File validatorFile) {
+    super(file);
+    this.validatorFile = validatorFile;
+  }
+
+  @Override
+  public long getResumeOffset() {
+    return file.length();
+  }
+
+  @Nullable
+  @Override
+  public String getResumeValidator() throws IOException {
+    if (!validatorFile.isFile()) return null;
+    BufferedSource source = Okio.buffer(Okio.source(validatorFile));
+    try {
+      String validator = source.readUtf8().trim();
+      return validator.isEmpty() ? null : validator;
+    } finally {
+      source.close();
+    }
+  }
+
+  @NonNull
+  @Override
+  public OutputStream open(HttpUrl url, int code, Headers headers) throws IOException {
+    if (code >= 200 && code < 300) {
+      String validator = BaseDestination.getValidator(headers);
+      if (validator != null) {
+        writeValidator(validator);
+      } else {
+        deleteValidator();
+      }
+    }
+    return super.open(url, code, headers);
+  }
+
+  @NonNull
+  @Override
+  public OutputStream openResume(HttpUrl url, Headers headers, long offset) throws IOException {
+    if (file.length() != offset) {
+      throw new IOException("File length is " + file.length() + ", but offset is " + offset);
+    }
+    return new FileOutputStream(file, true);
+  }
+
+  @NonNull
+  @Override
+  public InputStream openStored() throws IOException {
+    return new FileInputStream(file);
+  }
+
+  @Override
+  public void prepare(HttpUrl url, int code, Headers headers, long length) throws IOException {
+    if (code < 200 || code >= 300) throw new BadCodeException(code);
+    deleteValidator();
+    super.prepare(url, code, headers, length);
+  }
+
+  private void writeValidator(String validator) throws IOException {
+    BufferedSink sink = Okio.buffer(Okio.sink(validatorFile));
+    try {
+      sink.writeUtf8(validator);
+    } finally {
+      sink.close();
+    }
+  }
+
+  private void deleteValidator() throws IOException {
+    if (validatorFile.exists() && !validatorFile.delete()) {
+      throw new IOException("Can't delete " + validatorFile);
+    }
+  }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.xiazai.destination;
+
+/*
+ * Created by Hippo on 2/14/2017.
+ */
+
+import android.support.annotation.NonNull;
+import com.hippo.xiazai.XiaZaiSinkDestination;
+import com.hippo.xiazai.exception.BadCodeException;
+import java.io.IOException;
+import java.io.OutputStream;
+import okhttp3.Headers;
+import okhttp3.HttpUrl;
+import okio.BufferedSink;
+import okio.ForwardingSink;
+import okio.Okio;
+import okio.Sink;
+
+/**
+ * A {@link XiaZaiSinkDestination} which writes to an opened {@code BufferedSink}.
+ * <p>
+ * The sink is flushed but NOT closed after downloading, the caller owns it.
+ */
+public class SinkDestination implements XiaZaiSinkDestination {
+
+  public BufferedSink sink;
+
+  public SinkDestination(BufferedSink sink) {
+    this.sink = sink;
+  }
+
+  @NonNull
+  @Override
+  public Sink openSink(HttpUrl url, int code, Headers headers) throws IOException {
+    if (code >= 200 && code < 300) {
+      return new ForwardingSink(sink) {
+        @Override
+        public void close() throws IOException {
+          sink.flush();
+        }
+      };
+    } else {
+      throw new BadCodeException(code);
+    }
+  }
+
+  @NonNull
+  @Override
+  public OutputStream open(HttpUrl url, int code, Headers headers) throws IOException {
+    return Okio.buffer(openSink(url, code, headers)).outputStream();
+  }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.xiazai.exception;
+
+/*
+ * Created by Hippo on 2/26/2017.
+ */
+
+import java.io.IOException;
+
+/**
+ * Thrown if the checksum of downloaded data doesn't meet the expected one.
+ */
+public class ChecksumException extends IOException {
+
+  private String algorithm;
+  private String expected;
+  private String actual;
+
+  public ChecksumException(String algorithm, String expected, String actual) {
+    super(algorithm + " is expected to be " + expected + ", but it's " + actual);
+    this.algorithm = algorithm;
+    this.expected = expected;
+    this.actual = actual;
+  }
+
+  public String algorithm() {
+    return algorithm;
+  }
+
+  /**
+   * Return the expected checksum in hex.
+   */
+  public String expected() {
+    return expected;
+  }
+
+  /**
+   * Return the actual checksum in hex.
+   */
+  public String actual() {
+    return actual;
+  }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hippo.xiazai.exception;
+
+/*
+ * Created by Hippo on 3/5/2017.
+ */
+
+import java.io.IOException;
+
+/**
+ * Thrown if a line of the manifest can't be parsed.
+ * The line is skipped, the following lines can still be read.
+ */
+public class ManifestException extends IOException {
+
+  private int line;
+
+  public ManifestException(int line, String message) {
+    super("Bad manifest line " + line + ": " + message);
+    this.line = line;
+  }
+
+  /**
+   * Return the line number, starting from 1.
+   */
+  public int line() {
+    return line;
+  }
+}
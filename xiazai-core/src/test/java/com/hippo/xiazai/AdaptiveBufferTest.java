@@ -0,0 +1,209 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.xiazai;
+
+/*
+ * Created by Hippo on 3/15/2017.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import okio.Buffer;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AdaptiveBufferTest {
+
+  private static final int MIN = 4 * 1024;
+  private static final int MAX = 64 * 1024;
+
+  private final byte[] data = new byte[1024 * 1024];
+
+  @Before
+  public void setUp() {
+    new Random(1).nextBytes(data);
+  }
+
+  /**
+   * Endless data, each read returns at most {@code step} bytes after {@code delay} milliseconds.
+   */
+  private static class SlowStream extends InputStream {
+
+    volatile int step = Integer.MAX_VALUE;
+    volatile long delay;
+    // Fail after it, -1 for never
+    volatile long failAt = -1;
+    private long position;
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (failAt >= 0 && position >= failAt) throw new IOException("failAt");
+      if (delay > 0) {
+        try {
+          Thread.sleep(delay);
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+      }
+      int n = Math.min(len, step);
+      if (failAt >= 0) {
+        n = (int) Math.min(n, failAt - position);
+      }
+      position += n;
+      return n;
+    }
+  }
+
+  @Test
+  public void grow() throws Exception {
+    AdaptiveBuffer buffer = new AdaptiveBuffer(null, MIN, MAX);
+    InputStream is = new ByteArrayInputStream(data);
+    // Doubles while filling quickly, up to the max
+    int[] expected = {MIN, 2 * MIN, 4 * MIN, 8 * MIN, MAX, MAX};
+    int offset = 0;
+    for (int size : expected) {
+      int n = buffer.fill(is, Long.MAX_VALUE);
+      assertEquals(size, n);
+      assertArrayEquals(Arrays.copyOfRange(data, offset, offset + n),
+          Arrays.copyOf(buffer.array(), n));
+      offset += n;
+    }
+  }
+
+  @Test
+  public void limit() throws Exception {
+    AdaptiveBuffer buffer = new AdaptiveBuffer(null, MIN, MAX);
+    InputStream is = new ByteArrayInputStream(data);
+    assertEquals(100, buffer.fill(is, 100));
+    // A fill capped by the limit isn't a full chunk, the size doesn't grow
+    assertEquals(100, buffer.fill(is, 100));
+    assertEquals(MIN, buffer.fill(is, Long.MAX_VALUE));
+    assertEquals(2 * MIN, buffer.fill(is, Long.MAX_VALUE));
+  }
+
+  @Test
+  public void shrinkAndShortFill() throws Exception {
+    AdaptiveBuffer buffer = new AdaptiveBuffer(null, MIN, MAX);
+    SlowStream is = new SlowStream();
+    while (buffer.fill(is, Long.MAX_VALUE) < MAX) {
+      // Grow to the max
+    }
+
+    // A slow link returns what it has after the slow threshold
+    is.step = 100;
+    is.delay = 10;
+    int n = buffer.fill(is, Long.MAX_VALUE);
+    assertTrue(n < MAX);
+    assertTrue(n >= 200);
+    assertTrue(buffer.waitNanos() >= 10 * 1000 * 1000);
+
+    // Halved, back to full chunks on a fast link
+    is.step = Integer.MAX_VALUE;
+    is.delay = 0;
+    assertEquals(MAX / 2, buffer.fill(is, Long.MAX_VALUE));
+  }
+
+  @Test
+  public void shrinkToMin() throws Exception {
+    AdaptiveBuffer buffer = new AdaptiveBuffer(null, MIN, MAX);
+    SlowStream is = new SlowStream();
+    while (buffer.fill(is, Long.MAX_VALUE) < MAX) {
+      // Grow to the max
+    }
+    is.step = 1000;
+    is.delay = 25;
+    // Not below the min
+    for (int i = 0; i < 6; i++) {
+      buffer.fill(is, Long.MAX_VALUE);
+    }
+    is.step = Integer.MAX_VALUE;
+    is.delay = 0;
+    assertEquals(MIN, buffer.fill(is, Long.MAX_VALUE));
+  }
+
+  @Test
+  public void end() throws Exception {
+    AdaptiveBuffer buffer = new AdaptiveBuffer(null, MIN, MAX);
+    InputStream is = new ByteArrayInputStream(data, 0, 1000);
+    assertEquals(1000, buffer.fill(is, Long.MAX_VALUE));
+    assertEquals(-1, buffer.fill(is, Long.MAX_VALUE));
+  }
+
+  @Test
+  public void deferError() throws Exception {
+    AdaptiveBuffer buffer = new AdaptiveBuffer(null, MIN, MAX);
+    SlowStream is = new SlowStream();
+    is.step = 1000;
+    is.failAt = 1500;
+    assertEquals(1000, buffer.fill(is, 1000));
+    // The bytes before the failure are returned first
+    assertEquals(500, buffer.fill(is, Long.MAX_VALUE));
+    try {
+      buffer.fill(is, Long.MAX_VALUE);
+      fail();
+    } catch (IOException e) {
+      assertEquals("failAt", e.getMessage());
+    }
+  }
+
+  @Test
+  public void fillOkio() throws Exception {
+    AdaptiveBuffer buffer = new AdaptiveBuffer(null, MIN, MAX);
+    Buffer source = new Buffer().write(data, 0, 100 * 1024);
+    Buffer sink = new Buffer();
+    assertEquals(MIN, buffer.fill(source, sink, Long.MAX_VALUE));
+    assertEquals(2 * MIN, buffer.fill(source, sink, Long.MAX_VALUE));
+    assertEquals(10, buffer.fill(source, sink, 10));
+    assertArrayEquals(Arrays.copyOf(data, 3 * MIN + 10), sink.readByteArray());
+  }
+
+  @Test
+  public void pool() throws Exception {
+    XiaZaiBufferPool pool = new XiaZaiBufferPool(1024 * 1024);
+    AdaptiveBuffer buffer = new AdaptiveBuffer(pool, MIN, MAX);
+    InputStream is = new ByteArrayInputStream(data);
+    buffer.fill(is, Long.MAX_VALUE);
+    byte[] small = buffer.array();
+    assertEquals(MIN, small.length);
+
+    // A bigger buffer replaces the small one, which goes back to the pool
+    buffer.fill(is, Long.MAX_VALUE);
+    assertEquals(2 * MIN, buffer.array().length);
+    assertEquals(MIN, pool.size());
+
+    byte[] big = buffer.array();
+    buffer.release();
+    assertEquals(3 * MIN, pool.size());
+    assertSame(big, pool.obtain(2 * MIN));
+    assertSame(small, pool.obtain(MIN));
+  }
+}
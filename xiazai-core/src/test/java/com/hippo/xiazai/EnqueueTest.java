@@ -0,0 +1,91 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.hippo.xiazai;
+
+/*
+ * Created by Hippo on 3/15/2017.
+ */
+
+import com.hippo.xiazai.destination.FileDestination;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+
+public class EnqueueTest {
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private final MockWebServer server = new MockWebServer();
+  private final XiaZai xiazai = new XiaZai(new OkHttpClient());
+  private Request request;
+
+  @Before
+  public void setUp() throws IOException {
+    server.start();
+    request = new Request.Builder().url(server.url("/file")).build();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    server.shutdown();
+  }
+
+  @Test
+  public void complete() throws Exception {
+    server.enqueue(new MockResponse().setBody("xiazai"));
+    RecordingCallback callback = new RecordingCallback();
+    XiaZaiCall call = xiazai.enqueue(request, new FileDestination(folder.newFile()), null, callback);
+    assertEquals(XiaZai.STATE_COMPLETED, (int) call.get(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void callbackThrows() throws Exception {
+    server.enqueue(new MockResponse().setBody("xiazai"));
+    RecordingCallback callback = new RecordingCallback() {
+      @Override
+      public void onCompleted() {
+        throw new IllegalStateException();
+      }
+    };
+    XiaZaiCall call = xiazai.enqueue(request, new FileDestination(folder.newFile()), null, callback);
+    assertEquals(XiaZai.STATE_ERROR, (int) call.get(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void sharedExecutor() throws Exception {
+    server.enqueue(new MockResponse().setBody("xiazai"));
+    server.enqueue(new MockResponse().setBody("xiazai"));
+    XiaZai other = xiazai.newBuilder().build();
+    XiaZaiCall call1 = xiazai.enqueue(request, new FileDestination(folder.newFile()), null, null);
+    XiaZaiCall call2 = other.enqueue(request, new FileDestination(folder.newFile()), null, null);
+    assertEquals(XiaZai.STATE_COMPLETED, (int) call1.get(10, TimeUnit.SECONDS));
+    assertEquals(XiaZai.STATE_COMPLETED, (int) call2.get(10, TimeUnit.SECONDS));
+    assertEquals(xiazai.executor(), other.executor());
+  }
+}
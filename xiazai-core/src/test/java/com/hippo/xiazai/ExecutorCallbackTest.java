@@ -0,0 +1,217 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.xiazai;
+
+/*
+ * Created by Hippo on 3/15/2017.
+ */
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ExecutorCallbackTest {
+
+  // Runs tasks when asked
+  private static class ManualExecutor implements Executor {
+
+    final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+    boolean reject;
+
+    @Override
+    public void execute(Runnable command) {
+      if (reject) throw new RejectedExecutionException();
+      tasks.add(command);
+    }
+
+    void runAll() {
+      Runnable task;
+      while ((task = tasks.poll()) != null) {
+        task.run();
+      }
+    }
+  }
+
+  // Records all events with their threads
+  private static class EventCallback implements XiaZaiRetryCallback {
+
+    final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+    final List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+
+    private void add(String event) {
+      events.add(event);
+      threads.add(Thread.currentThread());
+    }
+
+    @Override
+    public void onStart() {
+      add("start");
+    }
+
+    @Override
+    public void onProgress(int n, long read, long content) {
+      add("progress " + n + "/" + read + "/" + content);
+    }
+
+    @Override
+    public void onCancelled() {
+      add("cancelled");
+    }
+
+    @Override
+    public void onCompleted() {
+      add("completed");
+    }
+
+    @Override
+    public void onError(Throwable e) {
+      add("error " + e.getMessage());
+    }
+
+    @Override
+    public void onStall(long read, long content) {
+      add("stall " + read + "/" + content);
+    }
+
+    @Override
+    public void onRetry(int retry, long delay, long read, Throwable e) {
+      add("retry " + retry + "/" + delay + "/" + read + "/" + e.getMessage());
+    }
+  }
+
+  @Test
+  public void order() {
+    ManualExecutor executor = new ManualExecutor();
+    EventCallback callback = new EventCallback();
+    ExecutorCallback ec = new ExecutorCallback(callback, executor);
+    ec.onStart();
+    ec.onProgress(10, 10, 100);
+    ec.onStall(10, 100);
+    ec.onRetry(1, 5, 10, new Exception("drop"));
+    ec.onProgress(90, 100, 100);
+    ec.onError(new Exception("bad"));
+    // Nothing in the calling thread, one task for all events
+    assertEquals(0, callback.events.size());
+    assertEquals(1, executor.tasks.size());
+
+    executor.runAll();
+    assertEquals(Arrays.asList("start", "progress 10/10/100", "stall 10/100",
+        "retry 1/5/10/drop", "progress 90/100/100", "error bad"), callback.events);
+  }
+
+  @Test
+  public void mergeProgress() {
+    ManualExecutor executor = new ManualExecutor();
+    EventCallback callback = new EventCallback();
+    ExecutorCallback ec = new ExecutorCallback(callback, executor);
+    ec.onStart();
+    for (int read = 10; read <= 100; read += 10) {
+      ec.onProgress(10, read, 100);
+    }
+    ec.onCompleted();
+    executor.runAll();
+    // Waiting progress events are merged, n still adds up
+    assertEquals(Arrays.asList("start", "progress 100/100/100", "completed"), callback.events);
+
+    // Scheduled again after the queue is drained
+    ec.onProgress(1, 101, 100);
+    assertEquals(1, executor.tasks.size());
+  }
+
+  @Test
+  public void notRetryCallback() {
+    ManualExecutor executor = new ManualExecutor();
+    RecordingCallback callback = new RecordingCallback();
+    ExecutorCallback ec = new ExecutorCallback(callback, executor);
+    ec.onStart();
+    ec.onStall(0, -1);
+    ec.onRetry(1, 0, 0, new Exception());
+    ec.onCancelled();
+    executor.runAll();
+    assertEquals(Arrays.asList("start", "cancelled"), callback.events());
+  }
+
+  @Test
+  public void rejected() throws Exception {
+    ManualExecutor executor = new ManualExecutor();
+    executor.reject = true;
+    EventCallback callback = new EventCallback();
+    ExecutorCallback ec = new ExecutorCallback(callback, executor);
+    ec.onStart();
+    ec.onProgress(10, 10, -1);
+    ec.onCompleted();
+    // Delivered inline, the terminal event isn't lost
+    assertEquals(Arrays.asList("start", "progress 10/10/-1", "completed"), callback.events);
+    for (Thread thread : callback.threads) {
+      assertEquals(Thread.currentThread(), thread);
+    }
+  }
+
+  @Test
+  public void shutDownExecutor() throws Exception {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    EventCallback callback = new EventCallback();
+    ExecutorCallback ec = new ExecutorCallback(callback, executor);
+    ec.onStart();
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    ec.onError(new Exception("late"));
+    assertEquals(Arrays.asList("start", "error late"), callback.events);
+    assertEquals(Thread.currentThread(), callback.threads.get(1));
+  }
+
+  @Test
+  public void callbackThrows() {
+    ManualExecutor executor = new ManualExecutor();
+    final List<String> events = new ArrayList<>();
+    RecordingCallback callback = new RecordingCallback() {
+      @Override
+      public void onStart() {
+        events.add("start");
+        throw new IllegalStateException();
+      }
+
+      @Override
+      public void onCompleted() {
+        events.add("completed");
+      }
+    };
+    ExecutorCallback ec = new ExecutorCallback(callback, executor);
+    ec.onStart();
+    ec.onCompleted();
+    try {
+      executor.runAll();
+      fail();
+    } catch (IllegalStateException e) {
+      // The rest is scheduled again
+    }
+    executor.runAll();
+    assertEquals(Arrays.asList("start", "completed"), events);
+  }
+}
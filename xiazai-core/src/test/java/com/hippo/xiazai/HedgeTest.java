@@ -0,0 +1,128 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.xiazai;
+
+/*
+ * Created by Hippo on 3/15/2017.
+ */
+
+import com.hippo.xiazai.destination.FileDestination;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HedgeTest {
+
+  private static final long DELAY = TimeUnit.MILLISECONDS.toNanos(100);
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private final MockWebServer server = new MockWebServer();
+  private volatile XiaZaiMetrics metrics;
+
+  private final XiaZaiMetricsListener recorder = new XiaZaiMetricsListener() {
+    @Override
+    public void onMetrics(XiaZaiMetrics metrics) {
+      HedgeTest.this.metrics = metrics;
+    }
+  };
+
+  @Before
+  public void setUp() throws IOException {
+    server.start();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    server.shutdown();
+  }
+
+  private int download(XiaZaiHedgePolicy policy) throws IOException {
+    XiaZaiRetryPolicy retryPolicy = new XiaZaiRetryPolicy.Builder()
+        .maxRetries(3)
+        .backoff(10, 10, TimeUnit.MILLISECONDS)
+        .jitter(0)
+        .build();
+    XiaZai xiazai = new XiaZai.Builder(new OkHttpClient())
+        .retryPolicy(retryPolicy)
+        .hedgePolicy(policy)
+        .metricsListener(recorder)
+        .build();
+    Request request = new Request.Builder().url(server.url("/file")).build();
+    return xiazai.xiazai(request, new FileDestination(folder.newFile()), null, null);
+  }
+
+  private static MockResponse slow() {
+    return new MockResponse().setBody("slow").setBodyDelay(1, TimeUnit.SECONDS);
+  }
+
+  private static MockResponse fast() {
+    return new MockResponse().setBody("fast");
+  }
+
+  @Test
+  public void budgetOncePerDownload() throws Exception {
+    XiaZaiHedgePolicy policy = new XiaZaiHedgePolicy.Builder()
+        .delay(DELAY, TimeUnit.NANOSECONDS)
+        .budget(0.5, 1)
+        .build();
+
+    // Spend the saved budget
+    server.enqueue(slow());
+    server.enqueue(fast());
+    assertEquals(XiaZai.STATE_COMPLETED, download(policy));
+    assertEquals(1, metrics.hedges());
+
+    // Retries don't earn the budget, 0.5 isn't enough to hedge
+    server.enqueue(new MockResponse().setResponseCode(503));
+    server.enqueue(slow());
+    assertEquals(XiaZai.STATE_COMPLETED, download(policy));
+    assertEquals(1, metrics.retries());
+    assertEquals(0, metrics.hedges());
+    assertEquals(4, server.getRequestCount());
+  }
+
+  @Test
+  public void recordFirstRequest() throws Exception {
+    XiaZaiHedgePolicy policy = new XiaZaiHedgePolicy.Builder()
+        .delay(DELAY, TimeUnit.NANOSECONDS)
+        .percentile(50, 0, TimeUnit.NANOSECONDS)
+        .budget(1, 100)
+        .build();
+
+    // The hedged requests win, but the first ones have waited the delay
+    for (int i = 0; i < 16; i++) {
+      server.enqueue(slow());
+      server.enqueue(fast());
+      assertEquals(XiaZai.STATE_COMPLETED, download(policy));
+      assertEquals(1, metrics.hedges());
+    }
+    assertTrue(policy.delay() >= DELAY);
+  }
+}
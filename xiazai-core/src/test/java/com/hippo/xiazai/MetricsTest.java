@@ -0,0 +1,109 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.hippo.xiazai;
+
+/*
+ * Created by Hippo on 3/15/2017.
+ */
+
+import com.hippo.xiazai.destination.FileDestination;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okio.Buffer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MetricsTest {
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private final MockWebServer server = new MockWebServer();
+  private volatile XiaZaiMetrics metrics;
+
+  private final XiaZaiMetricsListener recorder = new XiaZaiMetricsListener() {
+    @Override
+    public void onMetrics(XiaZaiMetrics metrics) {
+      MetricsTest.this.metrics = metrics;
+    }
+  };
+
+  @Before
+  public void setUp() throws IOException {
+    server.start();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    server.shutdown();
+  }
+
+  private int download(XiaZaiMetricsListener listener, RecordingCallback callback)
+      throws IOException {
+    XiaZai xiazai = new XiaZai.Builder(new OkHttpClient())
+        .chunkSize(64 * 1024, 64 * 1024)
+        .metricsListener(listener)
+        .build();
+    Request request = new Request.Builder().url(server.url("/file")).build();
+    return xiazai.xiazai(request, new FileDestination(folder.newFile()), null, callback);
+  }
+
+  @Test
+  public void stall() throws Exception {
+    // 1 KB, then nothing for 1.2 seconds, then the rest
+    server.enqueue(new MockResponse().setBody(new Buffer().write(new byte[2048]))
+        .throttleBody(1024, 1200, TimeUnit.MILLISECONDS));
+    assertEquals(XiaZai.STATE_COMPLETED, download(recorder, null));
+    assertEquals(1, metrics.stallCount());
+    assertTrue(metrics.longestStallNanos() > TimeUnit.SECONDS.toNanos(1));
+  }
+
+  @Test
+  public void slowChunkIsNotStall() throws Exception {
+    // A 64 KB chunk takes about 1.3 seconds, but bytes keep coming
+    server.enqueue(new MockResponse().setBody(new Buffer().write(new byte[64 * 1024]))
+        .throttleBody(1024, 20, TimeUnit.MILLISECONDS));
+    assertEquals(XiaZai.STATE_COMPLETED, download(recorder, null));
+    assertEquals(0, metrics.stallCount());
+  }
+
+  @Test
+  public void listenerThrows() throws Exception {
+    server.enqueue(new MockResponse().setBody("xiazai"));
+    RecordingCallback callback = new RecordingCallback();
+    int state = download(new XiaZaiMetricsListener() {
+      @Override
+      public void onMetrics(XiaZaiMetrics metrics) {
+        throw new IllegalStateException();
+      }
+    }, callback);
+    assertEquals(XiaZai.STATE_COMPLETED, state);
+    assertEquals(Arrays.asList("start", "completed"), callback.events());
+  }
+}
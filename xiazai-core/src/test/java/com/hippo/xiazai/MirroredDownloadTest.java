@@ -0,0 +1,130 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.hippo.xiazai;
+
+/*
+ * Created by Hippo on 3/15/2017.
+ */
+
+import com.hippo.xiazai.destination.FileDestination;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static com.hippo.xiazai.TestUtils.read;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MirroredDownloadTest {
+
+  private static final int SIZE = (int) (4 * SegmentedDownload.MIN_SEGMENT_SIZE);
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private final MockWebServer server1 = new MockWebServer();
+  private final MockWebServer server2 = new MockWebServer();
+  private final RangeDispatcher dispatcher1 = new RangeDispatcher(SIZE);
+  private final RangeDispatcher dispatcher2 = new RangeDispatcher(SIZE);
+  private final XiaZai xiazai = new XiaZai(new OkHttpClient());
+  private List<Request> mirrors;
+  private File file;
+
+  @Before
+  public void setUp() throws IOException {
+    server1.setDispatcher(dispatcher1);
+    server2.setDispatcher(dispatcher2);
+    server1.start();
+    server2.start();
+    mirrors = Arrays.asList(
+        new Request.Builder().url(server1.url("/file")).build(),
+        new Request.Builder().url(server2.url("/file")).build());
+    file = folder.newFile();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    server1.shutdown();
+    server2.shutdown();
+  }
+
+  // Bytes served by the dispatcher
+  private static long served(RangeDispatcher dispatcher) {
+    long bytes = 0;
+    synchronized (dispatcher.requests) {
+      for (int i = 0; i < dispatcher.requests.size(); i++) {
+        String range = dispatcher.requests.get(i).getHeader("Range");
+        if (range == null) return SIZE;
+        String[] parts = range.substring("bytes=".length()).split("-", -1);
+        long end = parts[1].isEmpty() ? SIZE - 1 : Long.parseLong(parts[1]);
+        bytes += end - Long.parseLong(parts[0]) + 1;
+      }
+    }
+    return bytes;
+  }
+
+  @Test
+  public void connectionPerMirror() throws Exception {
+    RecordingCallback callback = new RecordingCallback();
+    int state = xiazai.xiazai(mirrors, new FileDestination(file), null, callback);
+
+    assertEquals(XiaZai.STATE_COMPLETED, state);
+    assertEquals(Arrays.asList("start", "completed"), callback.events());
+    assertEquals(SIZE, callback.read);
+    assertArrayEquals(dispatcher1.data, read(file));
+    // Both mirrors are used without setting segments
+    assertTrue(dispatcher1.requestCount() > 0);
+    assertTrue(dispatcher2.requestCount() > 0);
+  }
+
+  @Test
+  public void dropDifferentEntity() throws Exception {
+    dispatcher2.etag = "\"other\"";
+    dispatcher2.data[0]++;
+    int state = xiazai.xiazai(mirrors, new FileDestination(file), 4, null, null);
+
+    assertEquals(XiaZai.STATE_COMPLETED, state);
+    assertArrayEquals(dispatcher1.data, read(file));
+    // Dropped at the first response, only connections started before it asked it
+    assertTrue(dispatcher2.requestCount() < 4);
+  }
+
+  @Test
+  public void takeOver() throws Exception {
+    // About 100 KB/s
+    dispatcher2.throttle = 1024;
+    long start = System.nanoTime();
+    int state = xiazai.xiazai(mirrors, new FileDestination(file), 2, null, null);
+
+    assertEquals(XiaZai.STATE_COMPLETED, state);
+    assertArrayEquals(dispatcher1.data, read(file));
+    // The slow mirror alone would take 20 seconds
+    assertTrue(System.nanoTime() - start < 10L * 1000 * 1000 * 1000);
+    assertTrue(served(dispatcher1) > SIZE / 2);
+  }
+}
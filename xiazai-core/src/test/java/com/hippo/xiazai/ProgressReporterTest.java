@@ -0,0 +1,137 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.xiazai;
+
+/*
+ * Created by Hippo on 3/15/2017.
+ */
+
+import com.hippo.xiazai.destination.FileDestination;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+
+public class ProgressReporterTest {
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  // Records each progress as "n/read/content"
+  private static class ProgressCallback extends RecordingCallback {
+
+    final List<String> progresses = new ArrayList<>();
+
+    @Override
+    public void onProgress(int n, long read, long content) {
+      super.onProgress(n, read, content);
+      progresses.add(n + "/" + read + "/" + content);
+    }
+  }
+
+  @Test
+  public void everyChunk() {
+    ProgressCallback callback = new ProgressCallback();
+    ProgressReporter reporter = new ProgressReporter(callback, 0, 0);
+    reporter.onProgress(10, 10, 100);
+    reporter.onProgress(20, 30, 100);
+    reporter.flush();
+    assertEquals(Arrays.asList("10/10/100", "20/30/100"), callback.progresses);
+  }
+
+  @Test
+  public void step() {
+    ProgressCallback callback = new ProgressCallback();
+    ProgressReporter reporter = new ProgressReporter(callback, 0, 50);
+    for (int read = 30; read <= 210; read += 30) {
+      reporter.onProgress(30, read, 210);
+    }
+    assertEquals(Arrays.asList("60/60/210", "60/120/210", "60/180/210"), callback.progresses);
+
+    // The rest comes at the end
+    reporter.flush();
+    assertEquals("30/210/210", callback.progresses.get(3));
+    reporter.flush();
+    assertEquals(4, callback.progresses.size());
+  }
+
+  @Test
+  public void interval() {
+    ProgressCallback callback = new ProgressCallback();
+    ProgressReporter reporter = new ProgressReporter(callback, TimeUnit.HOURS.toNanos(1), 0);
+    // The first one goes at once, the others wait for the interval
+    for (int read = 10; read <= 50; read += 10) {
+      reporter.onProgress(10, read, -1);
+    }
+    assertEquals(Arrays.asList("10/10/-1"), callback.progresses);
+    reporter.flush();
+    assertEquals(Arrays.asList("10/10/-1", "40/50/-1"), callback.progresses);
+  }
+
+  @Test
+  public void intOverflow() {
+    ProgressCallback callback = new ProgressCallback();
+    ProgressReporter reporter = new ProgressReporter(callback, 0, Long.MAX_VALUE);
+    long chunk = Integer.MAX_VALUE / 2 + 1;
+    reporter.onProgress(chunk, chunk, -1);
+    reporter.onProgress(chunk, 2 * chunk, -1);
+    reporter.flush();
+    // n of onProgress() is an int, the pending bytes are split
+    assertEquals(Arrays.asList(chunk + "/" + chunk + "/-1", chunk + "/" + 2 * chunk + "/-1"),
+        callback.progresses);
+  }
+
+  @Test
+  public void noCallback() {
+    ProgressReporter reporter = new ProgressReporter(null, 0, 0);
+    reporter.onProgress(10, 10, 10);
+    reporter.flush();
+  }
+
+  @Test
+  public void finalProgress() throws Exception {
+    MockWebServer server = new MockWebServer();
+    RangeDispatcher dispatcher = new RangeDispatcher(300 * 1024);
+    server.setDispatcher(dispatcher);
+    server.start();
+    try {
+      // Neither condition is met before the end
+      XiaZai xiazai = new XiaZai.Builder(new OkHttpClient())
+          .progressInterval(1, TimeUnit.HOURS)
+          .progressStep(1024 * 1024)
+          .build();
+      Request request = new Request.Builder().url(server.url("/file")).build();
+      ProgressCallback callback = new ProgressCallback();
+      assertEquals(XiaZai.STATE_COMPLETED,
+          xiazai.xiazai(request, new FileDestination(folder.newFile()), null, callback));
+      assertEquals(300 * 1024, callback.read);
+      assertEquals(300 * 1024, callback.content);
+      assertEquals(Arrays.asList("start", "completed"), callback.events());
+      assertEquals(2, callback.progresses.size());
+    } finally {
+      server.shutdown();
+    }
+  }
+}
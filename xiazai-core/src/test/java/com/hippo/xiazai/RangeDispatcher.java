@@ -0,0 +1,137 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.hippo.xiazai;
+
+/*
+ * Created by Hippo on 3/15/2017.
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+import okio.Buffer;
+
+/**
+ * Serves random data, supports {@code Range} and {@code If-Range}.
+ */
+class RangeDispatcher extends Dispatcher {
+
+  final byte[] data;
+  volatile boolean ranges = true;
+  // Null for no validator
+  volatile String etag = "\"xiazai\"";
+  // The Vary header, null for none
+  volatile String vary;
+  // Bytes per 10 ms, 0 for no throttling
+  volatile int throttle;
+  // Disconnect after this number of body bytes in the next response, -1 for never
+  volatile int dropAfter = -1;
+  // Apply dropAfter to the request of this index instead of the next one
+  volatile int dropRequest = -1;
+  // Respond 503 to the request of this index, -1 for never
+  volatile int unavailableRequest = -1;
+  // Delay the body of the request of this index for 3 seconds, -1 for never
+  volatile int stallRequest = -1;
+  // Responses wait for it if it's not null
+  volatile CountDownLatch gate;
+  final List<RecordedRequest> requests =
+      Collections.synchronizedList(new ArrayList<RecordedRequest>());
+
+  RangeDispatcher(int size) {
+    data = new byte[size];
+    new Random(size).nextBytes(data);
+  }
+
+  int requestCount() {
+    return requests.size();
+  }
+
+  @Override
+  public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+    int index;
+    synchronized (requests) {
+      index = requests.size();
+      requests.add(request);
+    }
+    CountDownLatch gate = this.gate;
+    if (gate != null) {
+      gate.await(10, TimeUnit.SECONDS);
+    }
+    MockResponse response = new MockResponse();
+    String etag = this.etag;
+    if (etag != null) {
+      response.setHeader("ETag", etag);
+    }
+    String vary = this.vary;
+    if (vary != null) {
+      response.setHeader("Vary", vary);
+    }
+    if (index == unavailableRequest) {
+      return response.setResponseCode(503);
+    }
+    if (etag != null && etag.equals(request.getHeader("If-None-Match"))) {
+      return response.setResponseCode(304);
+    }
+    if (ranges) {
+      response.setHeader("Accept-Ranges", "bytes");
+    }
+
+    int start = 0;
+    int end = data.length - 1;
+    String range = request.getHeader("Range");
+    String ifRange = request.getHeader("If-Range");
+    if (ranges && range != null && (ifRange == null || ifRange.equals(etag))) {
+      String[] parts = range.substring("bytes=".length()).split("-", -1);
+      start = Integer.parseInt(parts[0]);
+      if (parts.length > 1 && !parts[1].isEmpty()) {
+        end = Math.min(end, Integer.parseInt(parts[1]));
+      }
+      if (start >= data.length) {
+        return response.setResponseCode(416)
+            .setHeader("Content-Range", "bytes */" + data.length);
+      }
+      response.setResponseCode(206)
+          .setHeader("Content-Range", "bytes " + start + "-" + end + "/" + data.length);
+    }
+
+    int length = end - start + 1;
+    int drop = dropAfter;
+    if (drop >= 0 && (dropRequest == -1 || dropRequest == index)) {
+      dropAfter = -1;
+      response.setBody(new Buffer().write(data, start, Math.min(drop, length)))
+          .setHeader("Content-Length", length)
+          .setSocketPolicy(SocketPolicy.DISCONNECT_AT_END);
+    } else {
+      response.setBody(new Buffer().write(data, start, length));
+    }
+    if (throttle > 0) {
+      response.throttleBody(throttle, 10, TimeUnit.MILLISECONDS);
+    }
+    if (index == stallRequest) {
+      response.setBodyDelay(3, TimeUnit.SECONDS);
+    }
+    return response;
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.hippo.xiazai;
+
+/*
+ * Created by Hippo on 3/15/2017.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records events except progress, and the last progress.
+ */
+class RecordingCallback implements XiaZaiCallback {
+
+  final CountDownLatch started = new CountDownLatch(1);
+  final CountDownLatch finished = new CountDownLatch(1);
+  // Guarded by this
+  private final List<String> events = new ArrayList<>();
+  volatile long read;
+  volatile long content = -2;
+  volatile Throwable error;
+
+  synchronized List<String> events() {
+    return new ArrayList<>(events);
+  }
+
+  boolean awaitStart() throws InterruptedException {
+    return started.await(10, TimeUnit.SECONDS);
+  }
+
+  boolean awaitFinish() throws InterruptedException {
+    return finished.await(10, TimeUnit.SECONDS);
+  }
+
+  // Wait for some data
+  boolean awaitProgress() throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (read == 0) {
+      if (System.nanoTime() > deadline) return false;
+      Thread.sleep(10);
+    }
+    return true;
+  }
+
+  private synchronized void add(String event) {
+    events.add(event);
+  }
+
+  @Override
+  public void onStart() {
+    add("start");
+    started.countDown();
+  }
+
+  @Override
+  public void onProgress(int n, long read, long content) {
+    this.read = read;
+    this.content = content;
+  }
+
+  @Override
+  public void onCancelled() {
+    add("cancelled");
+    finished.countDown();
+  }
+
+  @Override
+  public void onCompleted() {
+    add("completed");
+    finished.countDown();
+  }
+
+  @Override
+  public void onError(Throwable e) {
+    error = e;
+    add("error");
+    finished.countDown();
+  }
+}
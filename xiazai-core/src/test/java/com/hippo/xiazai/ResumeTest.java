@@ -0,0 +1,130 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.hippo.xiazai;
+
+/*
+ * Created by Hippo on 3/15/2017.
+ */
+
+import com.hippo.xiazai.destination.ResumableFileDestination;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static com.hippo.xiazai.TestUtils.read;
+import static com.hippo.xiazai.TestUtils.write;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ResumeTest {
+
+  private static final int SIZE = 300 * 1024;
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private final MockWebServer server = new MockWebServer();
+  private final RangeDispatcher dispatcher = new RangeDispatcher(SIZE);
+  private final XiaZai xiazai = new XiaZai(new OkHttpClient());
+  private Request request;
+  private File file;
+
+  @Before
+  public void setUp() throws IOException {
+    server.setDispatcher(dispatcher);
+    server.start();
+    request = new Request.Builder().url(server.url("/file")).build();
+    file = folder.newFile();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    server.shutdown();
+  }
+
+  private int resume(RecordingCallback callback) {
+    return xiazai.xiazai(request, new ResumableFileDestination(file), null, callback);
+  }
+
+  private RecordedRequest lastRequest() {
+    return dispatcher.requests.get(dispatcher.requestCount() - 1);
+  }
+
+  @Test
+  public void resumeAfterBrokenTransfer() throws Exception {
+    dispatcher.dropAfter = 100 * 1024;
+    assertEquals(XiaZai.STATE_ERROR, resume(null));
+    assertEquals(100 * 1024, file.length());
+
+    RecordingCallback callback = new RecordingCallback();
+    assertEquals(XiaZai.STATE_COMPLETED, resume(callback));
+    assertArrayEquals(dispatcher.data, read(file));
+    assertEquals("bytes=102400-", lastRequest().getHeader("Range"));
+    assertEquals(dispatcher.etag, lastRequest().getHeader("If-Range"));
+    // Progress counts the stored bytes too
+    assertEquals(SIZE, callback.read);
+    assertEquals(SIZE, callback.content);
+  }
+
+  @Test
+  public void resumeCompleteFile() throws Exception {
+    assertEquals(XiaZai.STATE_COMPLETED, resume(null));
+
+    // 416, the file is already complete
+    RecordingCallback callback = new RecordingCallback();
+    assertEquals(XiaZai.STATE_COMPLETED, resume(callback));
+    assertEquals(Arrays.asList("start", "completed"), callback.events());
+    assertEquals("bytes=" + SIZE + "-", lastRequest().getHeader("Range"));
+    assertArrayEquals(dispatcher.data, read(file));
+  }
+
+  @Test
+  public void entityChanged() throws Exception {
+    dispatcher.dropAfter = 1000;
+    assertEquals(XiaZai.STATE_ERROR, resume(null));
+    // Make the partial file mismatch, If-Range must make the server send all of it
+    write(file, new byte[1000], 1000);
+    dispatcher.etag = "\"changed\"";
+
+    assertEquals(XiaZai.STATE_COMPLETED, resume(null));
+    assertArrayEquals(dispatcher.data, read(file));
+    assertEquals("bytes=1000-", lastRequest().getHeader("Range"));
+  }
+
+  @Test
+  public void noValidator() throws Exception {
+    dispatcher.etag = null;
+    dispatcher.dropAfter = 1000;
+    assertEquals(XiaZai.STATE_ERROR, resume(null));
+
+    // Can't tell whether the entity is the same, download all of it
+    assertEquals(XiaZai.STATE_COMPLETED, resume(null));
+    assertArrayEquals(dispatcher.data, read(file));
+    assertNull(lastRequest().getHeader("Range"));
+  }
+}
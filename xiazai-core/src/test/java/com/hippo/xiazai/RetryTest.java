@@ -0,0 +1,205 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.hippo.xiazai;
+
+/*
+ * Created by Hippo on 3/15/2017.
+ */
+
+import com.hippo.xiazai.destination.FileDestination;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static com.hippo.xiazai.TestUtils.read;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RetryTest {
+
+  private static final long SEGMENT = SegmentedDownload.MIN_SEGMENT_SIZE;
+  private static final int SIZE = (int) (3 * SEGMENT);
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private final MockWebServer server = new MockWebServer();
+  private final RangeDispatcher dispatcher = new RangeDispatcher(SIZE);
+  private final OkHttpClient client = new OkHttpClient();
+  private XiaZai xiazai;
+  private Request request;
+  private File file;
+
+  @Before
+  public void setUp() throws IOException {
+    server.setDispatcher(dispatcher);
+    server.start();
+    xiazai = xiazai(TimeUnit.MILLISECONDS.toNanos(10));
+    request = new Request.Builder().url(server.url("/file")).build();
+    file = folder.newFile();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    server.shutdown();
+  }
+
+  private XiaZai xiazai(long backoff) {
+    XiaZaiRetryPolicy policy = new XiaZaiRetryPolicy.Builder()
+        .maxRetries(3)
+        .backoff(backoff, backoff, TimeUnit.NANOSECONDS)
+        .jitter(0)
+        .stallTimeout(500, TimeUnit.MILLISECONDS)
+        .build();
+    return new XiaZai.Builder(client).retryPolicy(policy).build();
+  }
+
+  private List<String> ranges() {
+    List<String> ranges = new ArrayList<>();
+    synchronized (dispatcher.requests) {
+      for (int i = 0; i < dispatcher.requests.size(); i++) {
+        ranges.add(dispatcher.requests.get(i).getHeader("Range"));
+      }
+    }
+    return ranges;
+  }
+
+  @Test
+  public void continueBrokenTransfer() throws Exception {
+    // Not a multiple of any chunk size, bytes before the failure must be kept
+    dispatcher.dropAfter = 100001;
+    RetryCallback callback = new RetryCallback();
+    int state = xiazai.xiazai(request, new FileDestination(file), null, callback);
+
+    assertEquals(XiaZai.STATE_COMPLETED, state);
+    assertArrayEquals(dispatcher.data, read(file));
+    assertEquals(2, dispatcher.requestCount());
+    assertEquals("bytes=100001-", ranges().get(1));
+    assertEquals(dispatcher.etag, dispatcher.requests.get(1).getHeader("If-Range"));
+    assertEquals(1, callback.retries);
+    assertEquals(100001, callback.retryRead);
+  }
+
+  @Test
+  public void entityChanged() throws Exception {
+    dispatcher.dropAfter = 1000;
+    RetryCallback callback = new RetryCallback() {
+      @Override
+      public void onRetry(int retry, long delay, long read, Throwable e) {
+        super.onRetry(retry, delay, read, e);
+        dispatcher.etag = "\"changed\"";
+      }
+    };
+    int state = xiazai.xiazai(request, new FileDestination(file), null, callback);
+
+    // If-Range doesn't match, the server sends the new entity
+    assertEquals(XiaZai.STATE_ERROR, state);
+    assertEquals(2, dispatcher.requestCount());
+    assertTrue(callback.error.getMessage().contains("entity is changed"));
+  }
+
+  @Test
+  public void retrySegment() throws Exception {
+    dispatcher.dropAfter = 100001;
+    dispatcher.dropRequest = 1;
+    RetryCallback callback = new RetryCallback();
+    int state = xiazai.xiazai(request, new FileDestination(file), 3, null, callback);
+
+    assertEquals(XiaZai.STATE_COMPLETED, state);
+    assertArrayEquals(dispatcher.data, read(file));
+    assertEquals(4, dispatcher.requestCount());
+    assertEquals(1, callback.retries);
+    String range = ranges().get(1);
+    long start = Long.parseLong(range.substring("bytes=".length(), range.indexOf('-')));
+    assertTrue(ranges().contains("bytes=" + (start + 100001) + "-" + (start + SEGMENT - 1)));
+  }
+
+  @Test
+  public void retrySegmentOutOfDispatcher() throws Exception {
+    client.dispatcher().setMaxRequestsPerHost(1);
+    // The 503 segment waits a while before retrying
+    xiazai = xiazai(TimeUnit.MILLISECONDS.toNanos(500));
+    dispatcher.unavailableRequest = 1;
+    RetryCallback callback = new RetryCallback();
+    int state = xiazai.xiazai(request, new FileDestination(file), 3, null, callback);
+
+    assertEquals(XiaZai.STATE_COMPLETED, state);
+    assertArrayEquals(dispatcher.data, read(file));
+    assertEquals(1, callback.retries);
+    // The other segment gets the dispatcher slot in the meantime
+    List<String> ranges = ranges();
+    assertEquals(4, ranges.size());
+    assertEquals(ranges.get(1), ranges.get(3));
+  }
+
+  @Test
+  public void stallBeforeFirstByte() throws Exception {
+    dispatcher.stallRequest = 0;
+    RetryCallback callback = new RetryCallback();
+    int state = xiazai.xiazai(request, new FileDestination(file), null, callback);
+
+    assertEquals(XiaZai.STATE_COMPLETED, state);
+    assertArrayEquals(dispatcher.data, read(file));
+    assertEquals(2, dispatcher.requestCount());
+    assertEquals("bytes=0-", ranges().get(1));
+    assertEquals(1, callback.stalls);
+    assertEquals(1, callback.retries);
+  }
+
+  @Test
+  public void segmentStallBeforeFirstByte() throws Exception {
+    dispatcher.stallRequest = 0;
+    RetryCallback callback = new RetryCallback();
+    int state = xiazai.xiazai(request, new FileDestination(file), 3, null, callback);
+
+    assertEquals(XiaZai.STATE_COMPLETED, state);
+    assertArrayEquals(dispatcher.data, read(file));
+    assertEquals(4, dispatcher.requestCount());
+    assertEquals(1, callback.stalls);
+    assertEquals(1, callback.retries);
+  }
+
+  private static class RetryCallback extends RecordingCallback implements XiaZaiRetryCallback {
+
+    volatile int retries;
+    volatile long retryRead;
+    volatile int stalls;
+
+    @Override
+    public void onStall(long read, long content) {
+      stalls++;
+    }
+
+    @Override
+    public void onRetry(int retry, long delay, long read, Throwable e) {
+      retries = retry;
+      retryRead = read;
+    }
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.hippo.xiazai;
+
+/*
+ * Created by Hippo on 3/15/2017.
+ */
+
+import com.hippo.xiazai.destination.FileDestination;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static com.hippo.xiazai.TestUtils.read;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class SegmentedDownloadTest {
+
+  private static final int SIZE = (int) (4 * SegmentedDownload.MIN_SEGMENT_SIZE) + 17;
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private final MockWebServer server = new MockWebServer();
+  private final RangeDispatcher dispatcher = new RangeDispatcher(SIZE);
+  private final XiaZai xiazai = new XiaZai(new OkHttpClient());
+  private Request request;
+
+  @Before
+  public void setUp() throws IOException {
+    server.setDispatcher(dispatcher);
+    server.start();
+    request = new Request.Builder().url(server.url("/file")).build();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    server.shutdown();
+  }
+
+  private List<String> ranges() {
+    List<String> ranges = new ArrayList<>();
+    for (RecordedRequest request : dispatcher.requests) {
+      ranges.add(request.getHeader("Range"));
+    }
+    return ranges;
+  }
+
+  @Test
+  public void segments() throws Exception {
+    File file = folder.newFile();
+    RecordingCallback callback = new RecordingCallback();
+    int state = xiazai.xiazai(request, new FileDestination(file), 4, null, callback);
+
+    assertEquals(XiaZai.STATE_COMPLETED, state);
+    assertEquals(Arrays.asList("start", "completed"), callback.events());
+    assertEquals(SIZE, callback.read);
+    assertEquals(SIZE, callback.content);
+    assertArrayEquals(dispatcher.data, read(file));
+    // The first connection asks for the whole entity, then it's split into 4 ranges
+    assertEquals(4, dispatcher.requestCount());
+    assertEquals("bytes=0-", ranges().get(0));
+  }
+
+  @Test
+  public void noRanges() throws Exception {
+    dispatcher.ranges = false;
+    File file = folder.newFile();
+    int state = xiazai.xiazai(request, new FileDestination(file), 4, null, null);
+
+    assertEquals(XiaZai.STATE_COMPLETED, state);
+    assertArrayEquals(dispatcher.data, read(file));
+    assertEquals(1, dispatcher.requestCount());
+  }
+
+  @Test
+  public void oneSegment() throws Exception {
+    File file = folder.newFile();
+    int state = xiazai.xiazai(request, new FileDestination(file), 1, null, null);
+
+    assertEquals(XiaZai.STATE_COMPLETED, state);
+    assertArrayEquals(dispatcher.data, read(file));
+    assertEquals(1, dispatcher.requestCount());
+    assertNull(ranges().get(0));
+  }
+
+  @Test
+  public void cancel() throws Exception {
+    dispatcher.throttle = 1024;
+    final XiaZaiController controller = new XiaZaiController();
+    final RecordingCallback callback = new RecordingCallback();
+    new Thread() {
+      @Override
+      public void run() {
+        try {
+          if (callback.awaitProgress()) {
+            controller.cancel();
+          }
+        } catch (InterruptedException e) {
+          // Ignore
+        }
+      }
+    }.start();
+    int state = xiazai.xiazai(request, new FileDestination(folder.newFile()), 4, controller,
+        callback);
+
+    assertEquals(XiaZai.STATE_CANCELLED, state);
+    assertEquals(Arrays.asList("start", "cancelled"), callback.events());
+  }
+}
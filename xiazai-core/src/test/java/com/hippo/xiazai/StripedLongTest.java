@@ -0,0 +1,74 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.xiazai;
+
+/*
+ * Created by Hippo on 3/15/2017.
+ */
+
+import java.util.concurrent.CountDownLatch;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class StripedLongTest {
+
+  @Test
+  public void add() {
+    StripedLong value = new StripedLong();
+    assertEquals(0, value.sum());
+    value.add(5);
+    value.add(-2);
+    assertEquals(3, value.sum());
+  }
+
+  @Test
+  public void concurrentAdd() throws Exception {
+    final StripedLong value = new StripedLong();
+    final int threads = 16;
+    final int count = 100000;
+    final CountDownLatch start = new CountDownLatch(1);
+    Thread[] workers = new Thread[threads];
+    for (int i = 0; i < threads; i++) {
+      final long x = i + 1;
+      workers[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          for (int j = 0; j < count; j++) {
+            value.add(x);
+            if (j % 2 == 0) {
+              value.add(-1);
+            }
+          }
+        }
+      };
+      workers[i].start();
+    }
+    start.countDown();
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    // (1 + 2 + ... + threads) * count, minus count / 2 for each thread
+    long expected = (long) threads * (threads + 1) / 2 * count - (long) threads * count / 2;
+    assertEquals(expected, value.sum());
+  }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.hippo.xiazai;
+
+/*
+ * Created by Hippo on 3/15/2017.
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+final class TestUtils {
+  private TestUtils() {}
+
+  static byte[] read(File file) throws IOException {
+    byte[] bytes = new byte[(int) file.length()];
+    InputStream is = new FileInputStream(file);
+    try {
+      int offset = 0;
+      while (offset < bytes.length) {
+        int n = is.read(bytes, offset, bytes.length - offset);
+        if (n < 0) break;
+        offset += n;
+      }
+    } finally {
+      is.close();
+    }
+    return bytes;
+  }
+
+  // Write the first length bytes of data to the file
+  static void write(File file, byte[] data, int length) throws IOException {
+    OutputStream os = new FileOutputStream(file);
+    try {
+      os.write(data, 0, length);
+    } finally {
+      os.close();
+    }
+  }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.hippo.xiazai;
+
+/*
+ * Created by Hippo on 3/15/2017.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class WriteBehindTest {
+
+  /**
+   * A storage which stalls until the gate opens.
+   */
+  private static class StallingStream extends OutputStream {
+
+    final CountDownLatch gate = new CountDownLatch(1);
+    final CountDownLatch writing = new CountDownLatch(1);
+    final ByteArrayOutputStream data = new ByteArrayOutputStream();
+    volatile boolean closed;
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      writing.countDown();
+      try {
+        gate.await();
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      }
+      synchronized (data) {
+        data.write(b, off, len);
+      }
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+
+    byte[] toByteArray() {
+      synchronized (data) {
+        return data.toByteArray();
+      }
+    }
+  }
+
+  // Run the action in a new thread, return the latch counted down after it
+  private static CountDownLatch async(final Action action) {
+    final CountDownLatch done = new CountDownLatch(1);
+    new Thread() {
+      @Override
+      public void run() {
+        try {
+          action.run();
+        } catch (IOException e) {
+          // Checked by the test
+        }
+        done.countDown();
+      }
+    }.start();
+    return done;
+  }
+
+  private interface Action {
+    void run() throws IOException;
+  }
+
+  private static byte[] bytes(int length, int value) {
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) {
+      bytes[i] = (byte) value;
+    }
+    return bytes;
+  }
+
+  @Test
+  public void budget() throws Exception {
+    XiaZaiWriteBehind writeBehind = new XiaZaiWriteBehind.Builder()
+        .budget(1024)
+        .maxPending(1024)
+        .build();
+    StallingStream storage1 = new StallingStream();
+    StallingStream storage2 = new StallingStream();
+    final OutputStream os1 = writeBehind.wrap(storage1, null, null);
+    final OutputStream os2 = writeBehind.wrap(storage2, null, null);
+
+    os1.write(bytes(512, 1));
+    os2.write(bytes(512, 2));
+    assertEquals(1024, writeBehind.used());
+
+    // The budget is used up by both downloads, the next write waits
+    CountDownLatch written = async(new Action() {
+      @Override
+      public void run() throws IOException {
+        os1.write(bytes(512, 3));
+      }
+    });
+    assertFalse(written.await(300, TimeUnit.MILLISECONDS));
+    assertTrue(writeBehind.used() <= writeBehind.budget());
+
+    storage1.gate.countDown();
+    storage2.gate.countDown();
+    assertTrue(written.await(10, TimeUnit.SECONDS));
+    os1.close();
+    os2.close();
+    assertEquals(0, writeBehind.used());
+    assertEquals(1024, storage1.toByteArray().length);
+    assertArrayEquals(bytes(512, 2), storage2.toByteArray());
+  }
+
+  @Test
+  public void maxPending() throws Exception {
+    XiaZaiWriteBehind writeBehind = new XiaZaiWriteBehind.Builder()
+        .budget(4096)
+        .maxPending(1024)
+        .build();
+    StallingStream storage = new StallingStream();
+    final OutputStream os = writeBehind.wrap(storage, null, null);
+
+    os.write(bytes(1024, 1));
+    CountDownLatch written = async(new Action() {
+      @Override
+      public void run() throws IOException {
+        os.write(bytes(1, 2));
+      }
+    });
+    assertFalse(written.await(300, TimeUnit.MILLISECONDS));
+
+    storage.gate.countDown();
+    assertTrue(written.await(10, TimeUnit.SECONDS));
+    os.close();
+    assertEquals(1025, storage.toByteArray().length);
+    assertTrue(storage.closed);
+  }
+
+  @Test
+  public void cancelWaitsForWriter() throws Exception {
+    XiaZaiWriteBehind writeBehind = new XiaZaiWriteBehind.Builder().build();
+    StallingStream storage = new StallingStream();
+    XiaZaiController controller = new XiaZaiController();
+    final OutputStream os = writeBehind.wrap(storage, controller, null);
+
+    os.write(bytes(100, 1));
+    os.write(bytes(100, 2));
+    assertTrue(storage.writing.await(10, TimeUnit.SECONDS));
+    controller.cancel();
+
+    // Closing waits for the chunk being written
+    CountDownLatch closed = async(new Action() {
+      @Override
+      public void run() throws IOException {
+        os.close();
+      }
+    });
+    assertFalse(closed.await(300, TimeUnit.MILLISECONDS));
+    assertFalse(storage.closed);
+
+    storage.gate.countDown();
+    assertTrue(closed.await(10, TimeUnit.SECONDS));
+    assertTrue(storage.closed);
+    // The queued chunk is dropped
+    assertArrayEquals(bytes(100, 1), storage.toByteArray());
+    assertEquals(0, writeBehind.used());
+  }
+
+  @Test
+  public void cancelTimeout() throws Exception {
+    XiaZaiWriteBehind writeBehind = new XiaZaiWriteBehind.Builder()
+        .closeTimeout(200, TimeUnit.MILLISECONDS)
+        .build();
+    StallingStream storage = new StallingStream();
+    XiaZaiController controller = new XiaZaiController();
+    OutputStream os = writeBehind.wrap(storage, controller, null);
+
+    os.write(bytes(100, 1));
+    assertTrue(storage.writing.await(10, TimeUnit.SECONDS));
+    controller.cancel();
+    try {
+      os.close();
+      fail();
+    } catch (IOException e) {
+      // The writer is stalled
+    }
+    assertFalse(storage.closed);
+
+    // The writer closes the stream when it returns
+    storage.gate.countDown();
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (!storage.closed && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    assertTrue(storage.closed);
+  }
+}
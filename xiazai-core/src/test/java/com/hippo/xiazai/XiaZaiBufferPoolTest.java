@@ -0,0 +1,105 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.xiazai;
+
+/*
+ * Created by Hippo on 3/15/2017.
+ */
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class XiaZaiBufferPoolTest {
+
+  @Test
+  public void roundUp() {
+    XiaZaiBufferPool pool = new XiaZaiBufferPool(0);
+    assertEquals(1, pool.obtain(1).length);
+    assertEquals(4, pool.obtain(3).length);
+    assertEquals(4096, pool.obtain(4096).length);
+    assertEquals(8192, pool.obtain(4097).length);
+  }
+
+  @Test
+  public void badSize() {
+    XiaZaiBufferPool pool = new XiaZaiBufferPool(0);
+    for (int size : new int[] {0, -1, (1 << 30) + 1}) {
+      try {
+        pool.obtain(size);
+        fail();
+      } catch (IllegalArgumentException e) {
+        // Ignore
+      }
+    }
+  }
+
+  @Test
+  public void reuse() {
+    XiaZaiBufferPool pool = new XiaZaiBufferPool(64 * 1024);
+    byte[] buffer = pool.obtain(5000);
+    pool.recycle(buffer);
+    assertEquals(8192, pool.size());
+
+    // Only a buffer of the same rounded size is reused
+    assertNotSame(buffer, pool.obtain(4096));
+    assertSame(buffer, pool.obtain(8000));
+    assertEquals(0, pool.size());
+    assertNotSame(buffer, pool.obtain(8000));
+  }
+
+  @Test
+  public void limit() {
+    XiaZaiBufferPool pool = new XiaZaiBufferPool(16 * 1024);
+    byte[] a = new byte[8192];
+    byte[] b = new byte[8192];
+    byte[] c = new byte[4096];
+    pool.recycle(a);
+    pool.recycle(b);
+    // Full, dropped
+    pool.recycle(c);
+    assertEquals(16 * 1024, pool.size());
+    assertNotSame(c, pool.obtain(4096));
+
+    pool.obtain(8192);
+    pool.recycle(c);
+    assertEquals(12 * 1024, pool.size());
+    assertSame(c, pool.obtain(4096));
+  }
+
+  @Test
+  public void ignoreOddSize() {
+    XiaZaiBufferPool pool = new XiaZaiBufferPool(64 * 1024);
+    pool.recycle(new byte[5000]);
+    pool.recycle(new byte[0]);
+    assertEquals(0, pool.size());
+  }
+
+  @Test
+  public void clear() {
+    XiaZaiBufferPool pool = new XiaZaiBufferPool(64 * 1024);
+    byte[] buffer = new byte[1024];
+    pool.recycle(buffer);
+    pool.recycle(new byte[2048]);
+    pool.clear();
+    assertEquals(0, pool.size());
+    assertNotSame(buffer, pool.obtain(1024));
+  }
+}
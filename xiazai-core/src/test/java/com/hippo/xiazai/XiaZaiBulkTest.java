@@ -0,0 +1,272 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.xiazai;
+
+/*
+ * Created by Hippo on 3/15/2017.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+import okio.ByteString;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class XiaZaiBulkTest {
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private final MockWebServer server = new MockWebServer();
+  private final Map<String, String> bodies =
+      Collections.synchronizedMap(new HashMap<String, String>());
+  private volatile CountDownLatch gate;
+  private final CountDownLatch requested = new CountDownLatch(1);
+  private final XiaZai xiazai = new XiaZai(new OkHttpClient());
+  private File dir;
+
+  private final Dispatcher dispatcher = new Dispatcher() {
+    @Override
+    public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+      requested.countDown();
+      CountDownLatch gate = XiaZaiBulkTest.this.gate;
+      if (gate != null) {
+        gate.await(10, TimeUnit.SECONDS);
+      }
+      String body = bodies.get(request.getPath());
+      return body != null ? new MockResponse().setBody(body)
+          : new MockResponse().setResponseCode(404);
+    }
+  };
+
+  @Before
+  public void setUp() throws IOException {
+    server.setDispatcher(dispatcher);
+    server.start();
+    dir = folder.newFolder("out");
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    CountDownLatch gate = this.gate;
+    if (gate != null) {
+      gate.countDown();
+    }
+    server.shutdown();
+  }
+
+  private String line(String name, String path, String... extra) {
+    StringBuilder sb = new StringBuilder()
+        .append(server.url("/" + name)).append('\t').append(path);
+    for (String field : extra) {
+      sb.append('\t').append(field);
+    }
+    return sb.append('\n').toString();
+  }
+
+  private XiaZaiBulk.Builder bulk() {
+    return new XiaZaiBulk.Builder(xiazai).directory(dir).parallelism(2);
+  }
+
+  // Return results in the report by line
+  private static Map<Integer, String[]> results(Buffer report) throws IOException {
+    Map<Integer, String[]> results = new HashMap<>();
+    assertTrue(report.readUtf8LineStrict().startsWith("#"));
+    for (String text; (text = report.readUtf8Line()) != null; ) {
+      String[] fields = text.split("\t", -1);
+      assertEquals(7, fields.length);
+      results.put(Integer.parseInt(fields[1]), fields);
+    }
+    return results;
+  }
+
+  // Return files left in the directory
+  private static List<String> list(File dir, String prefix, List<String> names) {
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        if (file.isDirectory()) {
+          list(file, prefix + file.getName() + "/", names);
+        } else {
+          names.add(prefix + file.getName());
+        }
+      }
+    }
+    return names;
+  }
+
+  private List<String> list() {
+    List<String> names = list(dir, "", new ArrayList<String>());
+    Collections.sort(names);
+    return names;
+  }
+
+  @Test
+  public void run() throws Exception {
+    bodies.put("/a", "aaa");
+    bodies.put("/b", "bbbb");
+    XiaZaiManifest manifest = new XiaZaiManifest(new Buffer().writeUtf8(""
+        + line("a", "a.txt")
+        + "bad line\n"
+        + line("b", "sub/b.txt", "4")
+        + line("missing", "missing.txt")
+        + line("a", "../escape.txt")
+        + line("a", "sub/../../escape.txt")
+        + line("a", "a.txt.xiazai")));
+    Buffer report = new Buffer();
+
+    XiaZaiBulk.Summary summary = bulk().build().run(manifest, report, null);
+    assertEquals(2, summary.completed());
+    assertEquals(5, summary.failed());
+    assertEquals(0, summary.skipped());
+    assertEquals(0, summary.cancelled());
+    assertEquals(7, summary.bytes());
+
+    Map<Integer, String[]> results = results(report);
+    assertEquals(7, results.size());
+    assertEquals(XiaZaiBulk.RESULT_COMPLETED, results.get(1)[0]);
+    assertEquals("3", results.get(1)[4]);
+    assertEquals(XiaZaiBulk.RESULT_ERROR, results.get(2)[0]);
+    assertEquals(XiaZaiBulk.RESULT_COMPLETED, results.get(3)[0]);
+    for (int line = 4; line <= 7; line++) {
+      assertEquals(XiaZaiBulk.RESULT_ERROR, results.get(line)[0]);
+      assertFalse(results.get(line)[6].isEmpty());
+    }
+
+    // No temp files, nothing outside the directory
+    assertEquals(Arrays.asList("a.txt", "sub/b.txt"), list());
+    assertFalse(new File(folder.getRoot(), "escape.txt").exists());
+    assertArrayEquals("aaa".getBytes("UTF-8"), TestUtils.read(new File(dir, "a.txt")));
+    // Bad paths don't send requests
+    assertEquals(3, server.getRequestCount());
+  }
+
+  @Test
+  public void cleanUpOnError() throws Exception {
+    bodies.put("/a", "aaa");
+    File existing = new File(dir, "size.txt");
+    TestUtils.write(existing, "old".getBytes("UTF-8"), 3);
+    XiaZaiManifest manifest = new XiaZaiManifest(new Buffer().writeUtf8(""
+        + line("a", "size.txt", "4")
+        + line("a", "md5.txt", "-", "md5:" + ByteString.encodeUtf8("bbb").md5().hex())
+        + line("a", "sha256.txt", "-", "sha256:" + ByteString.encodeUtf8("aaa").sha256().hex())));
+    Buffer report = new Buffer();
+
+    XiaZaiBulk.Summary summary = bulk().build().run(manifest, report, null);
+    assertEquals(1, summary.completed());
+    assertEquals(2, summary.failed());
+    Map<Integer, String[]> results = results(report);
+    assertTrue(results.get(1)[6].contains("ContentLengthException"));
+    assertTrue(results.get(2)[6].contains("ChecksumException"));
+    assertEquals(XiaZaiBulk.RESULT_COMPLETED, results.get(3)[0]);
+
+    // The failed download doesn't replace the old file, its temp file is removed
+    assertEquals(Arrays.asList("sha256.txt", "size.txt"), list());
+    assertArrayEquals("old".getBytes("UTF-8"), TestUtils.read(existing));
+  }
+
+  @Test
+  public void skipExisting() throws Exception {
+    bodies.put("/a", "aaa");
+    TestUtils.write(new File(dir, "same.txt"), "aaa".getBytes("UTF-8"), 3);
+    TestUtils.write(new File(dir, "size.txt"), "aa".getBytes("UTF-8"), 2);
+    TestUtils.write(new File(dir, "checksum.txt"), "aab".getBytes("UTF-8"), 3);
+    TestUtils.write(new File(dir, "any.txt"), "any".getBytes("UTF-8"), 3);
+    String md5 = "md5:" + ByteString.encodeUtf8("aaa").md5().hex();
+    String text = ""
+        + line("a", "same.txt", "3", md5)
+        + line("a", "size.txt", "3")
+        + line("a", "checksum.txt", "-", md5)
+        + line("a", "any.txt")
+        + line("a", "new.txt", "3", md5);
+
+    XiaZaiBulk.Summary summary = bulk().skipExisting(true).build()
+        .run(new XiaZaiManifest(new Buffer().writeUtf8(text)), new Buffer(), null);
+    assertEquals(2, summary.skipped());
+    assertEquals(3, summary.completed());
+    assertEquals(3, server.getRequestCount());
+    assertArrayEquals("aaa".getBytes("UTF-8"), TestUtils.read(new File(dir, "size.txt")));
+    assertArrayEquals("aaa".getBytes("UTF-8"), TestUtils.read(new File(dir, "checksum.txt")));
+    assertArrayEquals("any".getBytes("UTF-8"), TestUtils.read(new File(dir, "any.txt")));
+
+    // Off as default
+    summary = bulk().build()
+        .run(new XiaZaiManifest(new Buffer().writeUtf8(text)), new Buffer(), null);
+    assertEquals(0, summary.skipped());
+    assertEquals(5, summary.completed());
+  }
+
+  @Test
+  public void cancel() throws Exception {
+    bodies.put("/a", "aaa");
+    gate = new CountDownLatch(1);
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 10; i++) {
+      text.append(line("a", i + ".txt"));
+    }
+    final XiaZaiManifest manifest = new XiaZaiManifest(new Buffer().writeUtf8(text.toString()));
+    final Buffer report = new Buffer();
+    final XiaZaiController controller = new XiaZaiController();
+    final XiaZaiBulk bulk = bulk().parallelism(1).build();
+    final XiaZaiBulk.Summary[] summary = new XiaZaiBulk.Summary[1];
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        try {
+          summary[0] = bulk.run(manifest, report, controller);
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    thread.start();
+
+    assertTrue(requested.await(10, TimeUnit.SECONDS));
+    controller.cancel();
+    thread.join(10000);
+    assertFalse(thread.isAlive());
+
+    // The running one is cancelled, the rest aren't started
+    assertEquals(0, summary[0].completed());
+    assertTrue(summary[0].cancelled() >= 1);
+    assertEquals(summary[0].cancelled(), results(report).size());
+    assertEquals(1, server.getRequestCount());
+    assertEquals(Collections.<String>emptyList(), list());
+  }
+}
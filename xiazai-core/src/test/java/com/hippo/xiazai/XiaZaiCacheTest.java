@@ -0,0 +1,185 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.hippo.xiazai;
+
+/*
+ * Created by Hippo on 3/15/2017.
+ */
+
+import com.hippo.xiazai.destination.FileDestination;
+import java.io.File;
+import java.io.IOException;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static com.hippo.xiazai.TestUtils.read;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class XiaZaiCacheTest {
+
+  private static final int SIZE = 64 * 1024;
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private final MockWebServer server = new MockWebServer();
+  private final RangeDispatcher dispatcher = new RangeDispatcher(SIZE);
+  private File dir;
+
+  @Before
+  public void setUp() throws IOException {
+    server.setDispatcher(dispatcher);
+    server.start();
+    dir = folder.newFolder();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    server.shutdown();
+  }
+
+  private XiaZai xiazai(XiaZaiCache cache) {
+    return new XiaZai.Builder(new OkHttpClient()).cache(cache).build();
+  }
+
+  private Request.Builder request(String path) {
+    return new Request.Builder().url(server.url(path));
+  }
+
+  // Download to a new file, check the data
+  private void download(XiaZai xiazai, Request request) throws IOException {
+    File file = folder.newFile();
+    assertEquals(XiaZai.STATE_COMPLETED,
+        xiazai.xiazai(request, new FileDestination(file), null, null));
+    assertArrayEquals(dispatcher.data, read(file));
+  }
+
+  private RecordedRequest lastRequest() {
+    return dispatcher.requests.get(dispatcher.requestCount() - 1);
+  }
+
+  @Test
+  public void revalidate() throws Exception {
+    XiaZaiCache cache = new XiaZaiCache(dir, 10 * SIZE);
+    XiaZai xiazai = xiazai(cache);
+    download(xiazai, request("/a").build());
+    assertEquals(1, cache.entryCount());
+    assertEquals(SIZE, cache.size());
+    assertNull(lastRequest().getHeader("If-None-Match"));
+
+    // 304, copied from the cache
+    download(xiazai, request("/a").build());
+    assertEquals(dispatcher.etag, lastRequest().getHeader("If-None-Match"));
+
+    // The entry survives a restart
+    download(xiazai(new XiaZaiCache(dir, 10 * SIZE)), request("/a").build());
+    assertEquals(dispatcher.etag, lastRequest().getHeader("If-None-Match"));
+    assertEquals(3, dispatcher.requestCount());
+  }
+
+  @Test
+  public void changed() throws Exception {
+    XiaZaiCache cache = new XiaZaiCache(dir, 10 * SIZE);
+    XiaZai xiazai = xiazai(cache);
+    download(xiazai, request("/a").build());
+    dispatcher.etag = "\"changed\"";
+    // 200, stored again
+    download(xiazai, request("/a").build());
+    download(xiazai, request("/a").build());
+    assertEquals("\"changed\"", lastRequest().getHeader("If-None-Match"));
+    assertEquals(1, cache.entryCount());
+    assertEquals(SIZE, cache.size());
+  }
+
+  @Test
+  public void evict() throws Exception {
+    XiaZaiCache cache = new XiaZaiCache(dir, SIZE + SIZE / 2);
+    XiaZai xiazai = xiazai(cache);
+    download(xiazai, request("/a").build());
+    // The same data from another url is stored once
+    download(xiazai, request("/b").build());
+    assertEquals(2, cache.entryCount());
+    assertEquals(SIZE, cache.size());
+
+    dispatcher.data[0]++;
+    dispatcher.etag = "\"other\"";
+    // New data, the least recently used url goes
+    download(xiazai, request("/c").build());
+    assertEquals(1, cache.entryCount());
+    assertEquals(SIZE, cache.size());
+    download(xiazai, request("/a").build());
+    assertNull(lastRequest().getHeader("If-None-Match"));
+
+    cache.evictAll();
+    assertEquals(0, cache.entryCount());
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void vary() throws Exception {
+    dispatcher.vary = "Accept";
+    XiaZaiCache cache = new XiaZaiCache(dir, 10 * SIZE);
+    XiaZai xiazai = xiazai(cache);
+    download(xiazai, request("/a").header("Accept", "text/plain").build());
+    download(xiazai, request("/a").header("Accept", "text/plain").build());
+    assertEquals(dispatcher.etag, lastRequest().getHeader("If-None-Match"));
+
+    // Another variant, not revalidated
+    download(xiazai, request("/a").header("Accept", "text/html").build());
+    assertNull(lastRequest().getHeader("If-None-Match"));
+    download(xiazai, request("/a").build());
+    assertNull(lastRequest().getHeader("If-None-Match"));
+
+    // Vary headers survive a restart
+    xiazai = xiazai(new XiaZaiCache(dir, 10 * SIZE));
+    download(xiazai, request("/a").build());
+    assertEquals(dispatcher.etag, lastRequest().getHeader("If-None-Match"));
+    download(xiazai, request("/a").header("Accept", "text/plain").build());
+    assertNull(lastRequest().getHeader("If-None-Match"));
+  }
+
+  @Test
+  public void varyAll() throws Exception {
+    dispatcher.vary = "*";
+    XiaZaiCache cache = new XiaZaiCache(dir, 10 * SIZE);
+    download(xiazai(cache), request("/a").build());
+    assertEquals(0, cache.entryCount());
+  }
+
+  @Test
+  public void authorization() throws Exception {
+    XiaZaiCache cache = new XiaZaiCache(dir, 10 * SIZE);
+    XiaZai xiazai = xiazai(cache);
+    download(xiazai, request("/a").header("Authorization", "Basic YTpi").build());
+    assertEquals(0, cache.entryCount());
+
+    // Stored data isn't used for private requests
+    download(xiazai, request("/a").build());
+    download(xiazai, request("/a").header("Authorization", "Basic YTpi").build());
+    assertNull(lastRequest().getHeader("If-None-Match"));
+  }
+}
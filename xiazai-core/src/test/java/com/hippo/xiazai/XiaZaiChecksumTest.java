@@ -0,0 +1,223 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.xiazai;
+
+/*
+ * Created by Hippo on 3/15/2017.
+ */
+
+import com.hippo.xiazai.destination.FileDestination;
+import com.hippo.xiazai.destination.ResumableFileDestination;
+import com.hippo.xiazai.exception.ChecksumException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okio.Buffer;
+import okio.ByteString;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static com.hippo.xiazai.TestUtils.read;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class XiaZaiChecksumTest {
+
+  private static final int SIZE = 300 * 1024;
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private final MockWebServer server = new MockWebServer();
+  private final RangeDispatcher dispatcher = new RangeDispatcher(SIZE);
+  private final XiaZai xiazai = new XiaZai(new OkHttpClient());
+  private final ByteString data = ByteString.of(dispatcher.data);
+  private Request request;
+  private File file;
+
+  @Before
+  public void setUp() throws IOException {
+    server.start();
+    request = new Request.Builder().url(server.url("/file")).build();
+    file = folder.newFile();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    server.shutdown();
+  }
+
+  private int download(XiaZaiChecksum checksum, RecordingCallback callback) {
+    return xiazai.xiazai(request, new FileDestination(file), checksum, null, callback);
+  }
+
+  private int resume(XiaZaiChecksum checksum, RecordingCallback callback) {
+    return xiazai.xiazai(request, new ResumableFileDestination(file), checksum, null, callback);
+  }
+
+  private static ChecksumException assertMismatch(int state, RecordingCallback callback,
+      String algorithm) {
+    assertEquals(XiaZai.STATE_ERROR, state);
+    assertTrue(callback.error instanceof ChecksumException);
+    ChecksumException e = (ChecksumException) callback.error;
+    assertEquals(algorithm, e.algorithm());
+    return e;
+  }
+
+  private MockResponse body() {
+    return new MockResponse().setBody(new Buffer().write(dispatcher.data));
+  }
+
+  private static long crc32(byte[] data) {
+    CRC32 crc32 = new CRC32();
+    crc32.update(data);
+    return crc32.getValue();
+  }
+
+  @Test
+  public void match() throws Exception {
+    server.setDispatcher(dispatcher);
+    XiaZaiChecksum[] checksums = {
+        XiaZaiChecksum.md5(data.md5().hex()),
+        XiaZaiChecksum.sha1(data.sha1().hex()),
+        XiaZaiChecksum.sha256(data.sha256().hex().toUpperCase()),
+        XiaZaiChecksum.crc32(crc32(dispatcher.data)),
+    };
+    for (XiaZaiChecksum checksum : checksums) {
+      RecordingCallback callback = new RecordingCallback();
+      assertEquals(checksum.algorithm(), XiaZai.STATE_COMPLETED, download(checksum, callback));
+      assertArrayEquals(dispatcher.data, read(file));
+    }
+  }
+
+  @Test
+  public void mismatch() throws Exception {
+    server.setDispatcher(dispatcher);
+    String expected = data.sha256().hex().replace('0', '1').replace('a', '0');
+    RecordingCallback callback = new RecordingCallback();
+    ChecksumException e = assertMismatch(
+        download(XiaZaiChecksum.sha256(expected), callback), callback, XiaZaiChecksum.SHA_256);
+    assertEquals(expected, e.expected());
+    assertEquals(data.sha256().hex(), e.actual());
+
+    callback = new RecordingCallback();
+    assertMismatch(download(XiaZaiChecksum.crc32(crc32(dispatcher.data) + 1), callback),
+        callback, XiaZaiChecksum.CRC32);
+  }
+
+  @Test
+  public void fromDigest() throws Exception {
+    server.enqueue(body().setHeader("Digest", "SHA-256=" + data.sha256().base64()));
+    assertEquals(XiaZai.STATE_COMPLETED, download(XiaZaiChecksum.fromHeaders(), null));
+
+    // SHA-256 goes first
+    server.enqueue(body().setHeader("Digest",
+        "MD5=" + data.md5().base64() + ", SHA-256=" + data.md5().base64()));
+    RecordingCallback callback = new RecordingCallback();
+    assertMismatch(download(XiaZaiChecksum.fromHeaders(), callback), callback,
+        XiaZaiChecksum.SHA_256);
+
+    server.enqueue(body().setHeader("Digest", "sha=" + data.md5().base64()));
+    callback = new RecordingCallback();
+    assertMismatch(download(XiaZaiChecksum.fromHeaders(), callback), callback,
+        XiaZaiChecksum.SHA_1);
+  }
+
+  @Test
+  public void fromContentMd5() throws Exception {
+    server.enqueue(body().setHeader("Content-MD5", data.md5().base64()));
+    assertEquals(XiaZai.STATE_COMPLETED, download(XiaZaiChecksum.fromHeaders(), null));
+
+    server.enqueue(body().setHeader("Content-MD5", data.sha1().base64()));
+    RecordingCallback callback = new RecordingCallback();
+    assertMismatch(download(XiaZaiChecksum.fromHeaders(), callback), callback,
+        XiaZaiChecksum.MD5);
+
+    // Nothing to verify
+    server.enqueue(body());
+    assertEquals(XiaZai.STATE_COMPLETED, download(XiaZaiChecksum.fromHeaders(), null));
+
+    // Content-MD5 of a 206 is of the range, not the file
+    server.enqueue(body().setResponseCode(206)
+        .setHeader("Content-Range", "bytes 0-" + (SIZE - 1) + "/" + SIZE)
+        .setHeader("Content-MD5", data.sha1().base64()));
+    assertEquals(XiaZai.STATE_COMPLETED, download(XiaZaiChecksum.fromHeaders(), null));
+  }
+
+  @Test
+  public void resumeHashesStored() throws Exception {
+    server.setDispatcher(dispatcher);
+    XiaZaiChecksum checksum = XiaZaiChecksum.sha256(data.sha256().hex());
+    dispatcher.dropAfter = 100 * 1024;
+    assertEquals(XiaZai.STATE_ERROR, resume(checksum, null));
+    assertEquals(100 * 1024, file.length());
+
+    assertEquals(XiaZai.STATE_COMPLETED, resume(checksum, null));
+    assertEquals("bytes=102400-", dispatcher.requests.get(1).getHeader("Range"));
+    assertArrayEquals(dispatcher.data, read(file));
+  }
+
+  @Test
+  public void resumeCorruptStored() throws Exception {
+    server.setDispatcher(dispatcher);
+    XiaZaiChecksum checksum = XiaZaiChecksum.md5(data.md5().hex());
+    dispatcher.dropAfter = 100 * 1024;
+    assertEquals(XiaZai.STATE_ERROR, resume(checksum, null));
+    corrupt(file, 1000);
+
+    // Only the rest is downloaded, the bad byte is found in the stored data
+    RecordingCallback callback = new RecordingCallback();
+    assertMismatch(resume(checksum, callback), callback, XiaZaiChecksum.MD5);
+    assertEquals("bytes=102400-", dispatcher.requests.get(1).getHeader("Range"));
+  }
+
+  @Test
+  public void resumeCompleteFile() throws Exception {
+    server.setDispatcher(dispatcher);
+    XiaZaiChecksum checksum = XiaZaiChecksum.crc32(crc32(dispatcher.data));
+    assertEquals(XiaZai.STATE_COMPLETED, resume(checksum, null));
+
+    // 416, the whole file is stored, it's verified without downloading
+    assertEquals(XiaZai.STATE_COMPLETED, resume(checksum, null));
+    assertEquals("bytes=" + SIZE + "-", dispatcher.requests.get(1).getHeader("Range"));
+    corrupt(file, SIZE - 1);
+    RecordingCallback callback = new RecordingCallback();
+    assertMismatch(resume(checksum, callback), callback, XiaZaiChecksum.CRC32);
+  }
+
+  // Flip a byte of the file
+  private static void corrupt(File file, long position) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.seek(position);
+      int b = raf.read();
+      raf.seek(position);
+      raf.write(~b);
+    } finally {
+      raf.close();
+    }
+  }
+}
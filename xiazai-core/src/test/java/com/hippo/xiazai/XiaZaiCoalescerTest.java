@@ -0,0 +1,195 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.hippo.xiazai;
+
+/*
+ * Created by Hippo on 3/15/2017.
+ */
+
+import com.hippo.xiazai.destination.FileDestination;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static com.hippo.xiazai.TestUtils.read;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class XiaZaiCoalescerTest {
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private final MockWebServer server = new MockWebServer();
+  private final RangeDispatcher dispatcher = new RangeDispatcher(256 * 1024);
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private XiaZaiCoalescer coalescer;
+  private Request request;
+
+  @Before
+  public void setUp() throws IOException {
+    server.setDispatcher(dispatcher);
+    server.start();
+    coalescer = new XiaZaiCoalescer(new XiaZai(new OkHttpClient()));
+    request = new Request.Builder().url(server.url("/file")).build();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    executor.shutdownNow();
+    server.shutdown();
+  }
+
+  private Future<Integer> start(final File file, final XiaZaiController controller,
+      final XiaZaiCallback callback) {
+    return executor.submit(new Callable<Integer>() {
+      @Override
+      public Integer call() {
+        return coalescer.xiazai(request, new FileDestination(file), controller, callback);
+      }
+    });
+  }
+
+  @Test
+  public void fanOut() throws Exception {
+    dispatcher.gate = new CountDownLatch(1);
+    List<File> files = new ArrayList<>();
+    List<RecordingCallback> callbacks = new ArrayList<>();
+    List<Future<Integer>> results = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      File file = folder.newFile();
+      RecordingCallback callback = new RecordingCallback();
+      files.add(file);
+      callbacks.add(callback);
+      results.add(start(file, null, callback));
+    }
+    // onStart() is delivered after joining
+    for (RecordingCallback callback : callbacks) {
+      assertTrue(callback.awaitStart());
+    }
+    assertEquals(1, coalescer.pendingCount());
+    dispatcher.gate.countDown();
+
+    for (int i = 0; i < 3; i++) {
+      assertEquals(XiaZai.STATE_COMPLETED, (int) results.get(i).get(10, TimeUnit.SECONDS));
+      assertEquals(Arrays.asList("start", "completed"), callbacks.get(i).events());
+      assertEquals(dispatcher.data.length, callbacks.get(i).read);
+      assertArrayEquals(dispatcher.data, read(files.get(i)));
+    }
+    assertEquals(1, dispatcher.requestCount());
+    assertEquals(0, coalescer.pendingCount());
+  }
+
+  @Test
+  public void cancelOneMember() throws Exception {
+    dispatcher.gate = new CountDownLatch(1);
+    dispatcher.throttle = 4 * 1024;
+    XiaZaiController controller = new XiaZaiController();
+    RecordingCallback cancelled = new RecordingCallback();
+    RecordingCallback kept = new RecordingCallback();
+    File keptFile = folder.newFile();
+    Future<Integer> cancelledResult = start(folder.newFile(), controller, cancelled);
+    Future<Integer> keptResult = start(keptFile, null, kept);
+    assertTrue(cancelled.awaitStart());
+    assertTrue(kept.awaitStart());
+    dispatcher.gate.countDown();
+
+    assertTrue(cancelled.awaitProgress());
+    controller.cancel();
+    assertEquals(XiaZai.STATE_CANCELLED, (int) cancelledResult.get(10, TimeUnit.SECONDS));
+    assertEquals(Arrays.asList("start", "cancelled"), cancelled.events());
+
+    assertEquals(XiaZai.STATE_COMPLETED, (int) keptResult.get(30, TimeUnit.SECONDS));
+    assertEquals(Arrays.asList("start", "completed"), kept.events());
+    assertArrayEquals(dispatcher.data, read(keptFile));
+    assertEquals(1, dispatcher.requestCount());
+  }
+
+  @Test
+  public void cancelLastMember() throws Exception {
+    dispatcher.throttle = 1024;
+    XiaZaiController controller = new XiaZaiController();
+    RecordingCallback callback = new RecordingCallback();
+    Future<Integer> result = start(folder.newFile(), controller, callback);
+    assertTrue(callback.awaitProgress());
+
+    controller.cancel();
+    assertEquals(XiaZai.STATE_CANCELLED, (int) result.get(10, TimeUnit.SECONDS));
+    assertEquals(0, coalescer.pendingCount());
+
+    // The transfer is gone, the next request starts a new one
+    RecordingCallback next = new RecordingCallback();
+    dispatcher.throttle = 0;
+    File file = folder.newFile();
+    assertEquals(XiaZai.STATE_COMPLETED, (int) start(file, null, next).get(10, TimeUnit.SECONDS));
+    assertArrayEquals(dispatcher.data, read(file));
+    assertEquals(2, dispatcher.requestCount());
+  }
+
+  @Test
+  public void joinAfterResponse() throws Exception {
+    dispatcher.throttle = 4 * 1024;
+    RecordingCallback first = new RecordingCallback();
+    Future<Integer> firstResult = start(folder.newFile(), null, first);
+    // The data is coming, it's too late to join
+    assertTrue(first.awaitProgress());
+    assertEquals(0, coalescer.pendingCount());
+
+    dispatcher.throttle = 0;
+    File file = folder.newFile();
+    assertEquals(XiaZai.STATE_COMPLETED, (int) start(file, null, null).get(10, TimeUnit.SECONDS));
+    assertArrayEquals(dispatcher.data, read(file));
+    assertEquals(XiaZai.STATE_COMPLETED, (int) firstResult.get(30, TimeUnit.SECONDS));
+    assertEquals(2, dispatcher.requestCount());
+  }
+
+  @Test
+  public void rejected() throws Exception {
+    ExecutorService rejecting = Executors.newSingleThreadExecutor();
+    rejecting.shutdown();
+    coalescer = new XiaZaiCoalescer(new XiaZai(new OkHttpClient()), rejecting);
+
+    // The dead transfer isn't joined by the next request
+    for (int i = 0; i < 2; i++) {
+      RecordingCallback callback = new RecordingCallback();
+      Future<Integer> result = start(folder.newFile(), null, callback);
+      assertEquals(XiaZai.STATE_ERROR, (int) result.get(10, TimeUnit.SECONDS));
+      assertTrue(callback.error instanceof RejectedExecutionException);
+      assertEquals(0, coalescer.pendingCount());
+    }
+    assertEquals(0, dispatcher.requestCount());
+  }
+}
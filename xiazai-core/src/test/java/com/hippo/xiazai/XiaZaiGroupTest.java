@@ -0,0 +1,187 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.xiazai;
+
+/*
+ * Created by Hippo on 3/15/2017.
+ */
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class XiaZaiGroupTest {
+
+  private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  private final XiaZaiGroup.Clock clock = new XiaZaiGroup.Clock() {
+    @Override
+    public long nanoTime() {
+      return now;
+    }
+  };
+  private long now = 1000 * SECOND;
+
+  private XiaZaiGroup group() {
+    return new XiaZaiGroup.Builder("test").smoothing(1, TimeUnit.SECONDS).clock(clock).build();
+  }
+
+  @Test
+  public void content() {
+    XiaZaiGroup group = group();
+    assertEquals(0, group.content());
+
+    XiaZaiCallback a = group.join(null);
+    a.onStart();
+    assertEquals(-1, group.content());
+    a.onProgress(10, 10, 100);
+    assertEquals(100, group.content());
+
+    XiaZaiCallback b = group.join(null);
+    b.onStart();
+    b.onProgress(20, 20, -1);
+    assertEquals(-1, group.content());
+    assertEquals(30, group.read());
+
+    // The final size of a completed download with unknown length is added
+    b.onProgress(30, 50, -1);
+    b.onCompleted();
+    assertEquals(150, group.content());
+    assertEquals(60, group.read());
+    assertEquals(1, group.activeCount());
+    assertEquals(1, group.completedCount());
+  }
+
+  @Test
+  public void resume() {
+    XiaZaiGroup group = group();
+    XiaZaiCallback a = group.join(null);
+    a.onStart();
+    // Continue from 40 stored bytes
+    a.onProgress(10, 50, 100);
+    assertEquals(50, group.read());
+    a.onProgress(50, 100, 100);
+    a.onCompleted();
+    assertEquals(100, group.read());
+    assertEquals(100, group.content());
+  }
+
+  @Test
+  public void leave() {
+    XiaZaiGroup group = group();
+    XiaZaiCallback a = group.join(null);
+    XiaZaiCallback b = group.join(null);
+    XiaZaiCallback c = group.join(null);
+    a.onStart();
+    b.onStart();
+    c.onStart();
+    a.onProgress(10, 10, 100);
+    b.onProgress(20, 20, 200);
+    c.onProgress(30, 30, -1);
+    assertEquals(60, group.read());
+    assertEquals(-1, group.content());
+
+    b.onError(new Exception());
+    assertEquals(40, group.read());
+    assertEquals(-1, group.content());
+
+    c.onCancelled();
+    assertEquals(10, group.read());
+    assertEquals(100, group.content());
+    assertEquals(1, group.activeCount());
+    assertEquals(2, group.failedCount());
+
+    // Not started, nothing to take away
+    XiaZaiCallback d = group.join(null);
+    d.onError(new Exception());
+    assertEquals(10, group.read());
+    assertEquals(100, group.content());
+    assertEquals(1, group.activeCount());
+  }
+
+  @Test
+  public void speed() {
+    XiaZaiGroup group = group();
+    XiaZaiCallback a = group.join(null);
+    assertEquals(0, group.speed());
+    a.onStart();
+    a.onProgress(1000, 1000, 10000);
+
+    // Too soon to sample
+    now += SECOND / 20;
+    assertEquals(0, group.speed());
+
+    // The first sample is taken as it is
+    now += SECOND * 9 / 20;
+    assertEquals(2000, group.speed());
+    assertEquals(4500, group.eta(TimeUnit.MILLISECONDS));
+
+    // Nothing for a time constant, exp(-1) is left
+    now += SECOND;
+    assertEquals((long) (2000 * Math.exp(-1)), group.speed());
+  }
+
+  @Test
+  public void speedWeightedByTime() {
+    XiaZaiGroup group1 = group();
+    XiaZaiGroup group2 = group();
+    XiaZaiCallback a1 = group1.join(null);
+    XiaZaiCallback a2 = group2.join(null);
+    a1.onStart();
+    a2.onStart();
+    a1.onProgress(1000, 1000, -1);
+    a2.onProgress(1000, 1000, -1);
+    now += SECOND;
+    assertEquals(1000, group1.speed());
+    assertEquals(1000, group2.speed());
+    assertEquals(-1, group1.eta(TimeUnit.SECONDS));
+
+    // Read ten times as often, the same speed
+    for (int i = 0; i < 10; i++) {
+      a1.onProgress(300, 1000 + 300 * (i + 1), -1);
+      a2.onProgress(300, 1000 + 300 * (i + 1), -1);
+      now += SECOND / 5;
+      group1.speed();
+    }
+    long expected = (long) (1500 - 500 * Math.exp(-2));
+    assertEquals(expected, group1.speed(), 2);
+    assertEquals(expected, group2.speed(), 2);
+  }
+
+  @Test
+  public void idle() {
+    XiaZaiGroup group = group();
+    XiaZaiCallback a = group.join(null);
+    a.onStart();
+    a.onProgress(1000, 1000, 1000);
+    now += SECOND;
+    assertEquals(1000, group.speed());
+    a.onCompleted();
+    assertEquals(0, group.speed());
+    assertEquals(0, group.eta(TimeUnit.SECONDS));
+
+    // Idle time isn't counted, and the old speed is dropped
+    now += 100 * SECOND;
+    XiaZaiCallback b = group.join(null);
+    b.onStart();
+    b.onProgress(500, 500, 1000);
+    now += SECOND;
+    assertEquals(500, group.speed());
+    assertEquals(1, group.eta(TimeUnit.SECONDS));
+  }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.hippo.xiazai;
+
+/*
+ * Created by Hippo on 3/15/2017.
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static com.hippo.xiazai.TestUtils.read;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class XiaZaiJournalTest {
+
+  private static final int SIZE = 256 * 1024;
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private final MockWebServer server = new MockWebServer();
+  private final RangeDispatcher dispatcher = new RangeDispatcher(SIZE);
+  private final XiaZai xiazai = new XiaZai(new OkHttpClient());
+  private File journalFile;
+  private File file;
+
+  @Before
+  public void setUp() throws IOException {
+    server.setDispatcher(dispatcher);
+    server.start();
+    journalFile = new File(folder.getRoot(), "journal");
+    file = new File(folder.getRoot(), "file");
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    server.shutdown();
+  }
+
+  private XiaZaiJournal journal() throws IOException {
+    return new XiaZaiJournal(journalFile, 8 * 1024, 1, TimeUnit.HOURS);
+  }
+
+  private Request request() {
+    return new Request.Builder().url(server.url("/file")).header("User-Agent", "XiaZai").build();
+  }
+
+  private int download(XiaZaiJournal.Entry entry) {
+    return xiazai.xiazai(entry.request(), entry.destination(), null, entry.callback(null));
+  }
+
+  private RecordedRequest lastRequest() {
+    return dispatcher.requests.get(dispatcher.requestCount() - 1);
+  }
+
+  @Test
+  public void replay() throws Exception {
+    XiaZaiJournal journal = journal();
+    journal.add(request(), file);
+    dispatcher.dropAfter = 100 * 1024;
+    assertEquals(XiaZai.STATE_ERROR, download(journal.entries().get(0)));
+    journal.close();
+
+    // Restart
+    journal = journal();
+    assertEquals(1, journal.entries().size());
+    XiaZaiJournal.Entry entry = journal.entries().get(0);
+    assertEquals(server.url("/file").toString(), entry.url());
+    assertEquals(file, entry.file());
+    assertEquals("XiaZai", entry.request().header("User-Agent"));
+    assertEquals(dispatcher.etag, entry.validator());
+    assertEquals(100 * 1024, entry.offset());
+
+    assertEquals(XiaZai.STATE_COMPLETED, download(entry));
+    assertEquals("bytes=102400-", lastRequest().getHeader("Range"));
+    assertArrayEquals(dispatcher.data, read(file));
+    assertEquals(0, journal.entries().size());
+    journal.close();
+
+    assertEquals(0, journal().entries().size());
+  }
+
+  @Test
+  public void resumeFromCheckpoint() throws Exception {
+    XiaZaiJournal journal = journal();
+    journal.add(request(), file);
+    dispatcher.dropAfter = 100 * 1024;
+    assertEquals(XiaZai.STATE_ERROR, download(journal.entries().get(0)));
+    journal.close();
+
+    // Bytes written after the last checkpoint, they might be garbage after a crash
+    OutputStream os = new FileOutputStream(file, true);
+    try {
+      os.write(new byte[1000]);
+    } finally {
+      os.close();
+    }
+
+    journal = journal();
+    assertEquals(XiaZai.STATE_COMPLETED, download(journal.entries().get(0)));
+    assertEquals("bytes=102400-", lastRequest().getHeader("Range"));
+    assertArrayEquals(dispatcher.data, read(file));
+  }
+
+  @Test
+  public void noCheckpoint() throws Exception {
+    XiaZaiJournal journal = journal();
+    journal.add(request(), file);
+    // Written but never checkpointed
+    TestUtils.write(file, dispatcher.data, 1000);
+
+    assertEquals(XiaZai.STATE_COMPLETED, download(journal.entries().get(0)));
+    assertNull(lastRequest().getHeader("Range"));
+    assertArrayEquals(dispatcher.data, read(file));
+  }
+
+  @Test
+  public void brokenRecord() throws Exception {
+    XiaZaiJournal journal = journal();
+    journal.add(request(), file);
+    journal.close();
+    // The process is killed while writing
+    OutputStream os = new FileOutputStream(journalFile, true);
+    try {
+      os.write("OFF 0 12".getBytes("UTF-8"));
+    } finally {
+      os.close();
+    }
+
+    journal = journal();
+    assertEquals(1, journal.entries().size());
+    assertEquals(0, journal.entries().get(0).offset());
+    journal.add(request(), new File(folder.getRoot(), "other"));
+    journal.close();
+    assertEquals(2, journal().entries().size());
+  }
+
+  @Test
+  public void compact() throws Exception {
+    XiaZaiJournal journal = journal();
+    journal.add(request(), file);
+    for (int i = 0; i < 2000; i++) {
+      journal.remove(journal.add(request(), new File(folder.getRoot(), "file" + i)));
+    }
+    long length = journalFile.length();
+    journal.close();
+    // Rewritten with the only entry left
+    assertTrue(length < 1024);
+
+    journal = journal();
+    assertEquals(1, journal.entries().size());
+    assertEquals(file, journal.entries().get(0).file());
+  }
+}
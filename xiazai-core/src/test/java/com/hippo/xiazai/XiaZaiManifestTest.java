@@ -0,0 +1,140 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.xiazai;
+
+/*
+ * Created by Hippo on 3/15/2017.
+ */
+
+import com.hippo.xiazai.exception.ManifestException;
+import java.io.IOException;
+import okio.Buffer;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class XiaZaiManifestTest {
+
+  private static XiaZaiManifest manifest(String text) {
+    return new XiaZaiManifest(new Buffer().writeUtf8(text));
+  }
+
+  // Return the line of the bad entry
+  private static int bad(XiaZaiManifest manifest) throws IOException {
+    try {
+      manifest.next();
+      fail();
+      return -1;
+    } catch (ManifestException e) {
+      return e.line();
+    }
+  }
+
+  @Test
+  public void fields() throws Exception {
+    XiaZaiManifest manifest = manifest(""
+        + "# comment\n"
+        + "\n"
+        + "http://example.com/a\ta\n"
+        + "   \n"
+        + "http://example.com/b\tdir/b\t1024\n"
+        + "http://example.com/c\tc\t-\n"
+        + "http://example.com/d\td\t\t\n");
+
+    XiaZaiManifest.Entry entry = manifest.next();
+    assertEquals(3, entry.line());
+    assertEquals("http://example.com/a", entry.url().toString());
+    assertEquals("a", entry.path());
+    assertEquals(-1, entry.size());
+    assertNull(entry.checksum());
+
+    entry = manifest.next();
+    assertEquals(5, entry.line());
+    assertEquals("dir/b", entry.path());
+    assertEquals(1024, entry.size());
+
+    entry = manifest.next();
+    assertEquals(6, entry.line());
+    assertEquals(-1, entry.size());
+
+    entry = manifest.next();
+    assertEquals(7, entry.line());
+    assertEquals(-1, entry.size());
+    assertNull(entry.checksum());
+
+    assertNull(manifest.next());
+    assertNull(manifest.next());
+  }
+
+  @Test
+  public void checksums() throws Exception {
+    XiaZaiManifest manifest = manifest(""
+        + "http://example.com/a\ta\t-\tmd5:900150983CD24FB0D6963F7D28E17F72\n"
+        + "http://example.com/a\ta\t-\tsha1:a9993e364706816aba3e25717850c26c9cd0d89d\n"
+        + "http://example.com/a\ta\t-\tSHA-1:a9993e364706816aba3e25717850c26c9cd0d89d\n"
+        + "http://example.com/a\ta\t-\tsha256:"
+        + "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad\n"
+        + "http://example.com/a\ta\t-\tsha-256:"
+        + "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad\n"
+        + "http://example.com/a\ta\t3\tcrc32:352441c2\n");
+
+    assertChecksum(XiaZaiChecksum.MD5, "900150983cd24fb0d6963f7d28e17f72", manifest.next());
+    assertChecksum(XiaZaiChecksum.SHA_1, "a9993e364706816aba3e25717850c26c9cd0d89d",
+        manifest.next());
+    assertChecksum(XiaZaiChecksum.SHA_1, "a9993e364706816aba3e25717850c26c9cd0d89d",
+        manifest.next());
+    assertChecksum(XiaZaiChecksum.SHA_256,
+        "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", manifest.next());
+    assertChecksum(XiaZaiChecksum.SHA_256,
+        "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", manifest.next());
+    XiaZaiManifest.Entry entry = manifest.next();
+    assertEquals(3, entry.size());
+    assertChecksum(XiaZaiChecksum.CRC32, "352441c2", entry);
+    assertNull(manifest.next());
+  }
+
+  private static void assertChecksum(String algorithm, String hex, XiaZaiManifest.Entry entry) {
+    assertEquals(algorithm, entry.checksum().algorithm());
+    assertEquals(hex, entry.checksum().hex());
+  }
+
+  @Test
+  public void badLines() throws Exception {
+    XiaZaiManifest manifest = manifest(""
+        + "http://example.com/a\n"
+        + "http://example.com/a\ta\t1\tmd5:00\textra\n"
+        + "example.com/a\ta\n"
+        + "http://example.com/a\t\n"
+        + "http://example.com/a\ta\t-1\n"
+        + "http://example.com/a\ta\tlarge\n"
+        + "http://example.com/a\ta\t-\tsha512:00\n"
+        + "http://example.com/a\ta\t-\tmd5\n"
+        + "http://example.com/a\ta\t-\tmd5:xyz\n"
+        + "http://example.com/good\tgood\n");
+
+    // Each bad line is skipped, the following lines are still read
+    for (int line = 1; line <= 9; line++) {
+      assertEquals(line, bad(manifest));
+    }
+    XiaZaiManifest.Entry entry = manifest.next();
+    assertEquals(10, entry.line());
+    assertEquals("good", entry.path());
+    assertNull(manifest.next());
+  }
+}
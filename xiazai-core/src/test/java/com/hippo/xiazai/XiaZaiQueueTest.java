@@ -0,0 +1,196 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.xiazai;
+
+/*
+ * Created by Hippo on 3/15/2017.
+ */
+
+import com.hippo.xiazai.destination.FileDestination;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class XiaZaiQueueTest {
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private final MockWebServer server = new MockWebServer();
+  private final RangeDispatcher dispatcher = new RangeDispatcher(1024);
+  private final XiaZai xiazai = new XiaZai(new OkHttpClient());
+  private final List<String> starts = Collections.synchronizedList(new ArrayList<String>());
+
+  @Before
+  public void setUp() throws IOException {
+    dispatcher.gate = new CountDownLatch(1);
+    server.setDispatcher(dispatcher);
+    server.start();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    dispatcher.gate.countDown();
+    server.shutdown();
+  }
+
+  private Request request(String host) {
+    HttpUrl url = server.url("/file").newBuilder().host(host).build();
+    return new Request.Builder().url(url).build();
+  }
+
+  private RecordingCallback enqueue(XiaZaiQueue queue, String host, int priority,
+      final String name, XiaZaiController controller) throws IOException {
+    RecordingCallback callback = new RecordingCallback() {
+      @Override
+      public void onStart() {
+        starts.add(name);
+        super.onStart();
+      }
+    };
+    queue.enqueue(request(host), new FileDestination(folder.newFile()), priority, controller,
+        callback);
+    return callback;
+  }
+
+  private RecordingCallback enqueue(XiaZaiQueue queue, int priority, String name)
+      throws IOException {
+    return enqueue(queue, "localhost", priority, name, null);
+  }
+
+  @Test
+  public void priorityOrder() throws Exception {
+    XiaZaiQueue queue = new XiaZaiQueue.Builder(xiazai).maxRunning(1).build();
+    RecordingCallback blocker = enqueue(queue, XiaZaiQueue.PRIORITY_LOW, "blocker");
+    assertTrue(blocker.awaitStart());
+
+    // Same priority starts in enqueue order
+    List<RecordingCallback> callbacks = Arrays.asList(
+        enqueue(queue, XiaZaiQueue.PRIORITY_LOW, "low"),
+        enqueue(queue, XiaZaiQueue.PRIORITY_NORMAL, "normal1"),
+        enqueue(queue, XiaZaiQueue.PRIORITY_HIGH, "high"),
+        enqueue(queue, XiaZaiQueue.PRIORITY_NORMAL, "normal2"));
+    assertEquals(4, queue.queuedCount());
+
+    dispatcher.gate.countDown();
+    for (RecordingCallback callback : callbacks) {
+      assertTrue(callback.awaitFinish());
+      assertEquals(Arrays.asList("start", "completed"), callback.events());
+    }
+    assertEquals(Arrays.asList("blocker", "high", "normal1", "normal2", "low"), starts);
+    assertEquals(0, queue.queuedCount());
+  }
+
+  @Test
+  public void perHostLimit() throws Exception {
+    XiaZaiQueue queue = new XiaZaiQueue.Builder(xiazai)
+        .maxRunning(4)
+        .maxRunningPerHost(1)
+        .build();
+    RecordingCallback a1 = enqueue(queue, "localhost", XiaZaiQueue.PRIORITY_NORMAL, "a1", null);
+    RecordingCallback a2 = enqueue(queue, "localhost", XiaZaiQueue.PRIORITY_HIGH, "a2", null);
+    // The waiting task of a full host doesn't hold back other hosts
+    RecordingCallback b1 = enqueue(queue, "127.0.0.1", XiaZaiQueue.PRIORITY_LOW, "b1", null);
+    assertTrue(a1.awaitStart());
+    assertTrue(b1.awaitStart());
+    assertEquals(2, queue.runningCount());
+    assertEquals(1, queue.queuedCount());
+    assertEquals(Arrays.asList("a1", "b1"), starts);
+
+    dispatcher.gate.countDown();
+    assertTrue(a1.awaitFinish());
+    assertTrue(a2.awaitFinish());
+    assertTrue(b1.awaitFinish());
+    assertEquals(Arrays.asList("start", "completed"), a2.events());
+  }
+
+  @Test
+  public void rejected() throws Exception {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    executor.shutdown();
+    XiaZaiQueue queue = new XiaZaiQueue.Builder(xiazai).executor(executor).build();
+    RecordingCallback callback = new RecordingCallback();
+    XiaZaiQueue.Task task = queue.enqueue(request("localhost"),
+        new FileDestination(folder.newFile()), null, callback);
+
+    assertTrue(callback.awaitFinish());
+    assertEquals(Collections.singletonList("error"), callback.events());
+    assertTrue(callback.error instanceof RejectedExecutionException);
+    assertTrue(task.isFinished());
+    assertEquals(XiaZai.STATE_ERROR, task.state());
+    assertEquals(0, queue.runningCount());
+    assertEquals(0, queue.queuedCount());
+  }
+
+  @Test
+  public void cancelWaiting() throws Exception {
+    XiaZaiQueue queue = new XiaZaiQueue.Builder(xiazai).maxRunning(1).build();
+    RecordingCallback blocker = enqueue(queue, XiaZaiQueue.PRIORITY_NORMAL, "blocker");
+    assertTrue(blocker.awaitStart());
+    XiaZaiController controller = new XiaZaiController();
+    RecordingCallback waiting = enqueue(queue, "localhost", XiaZaiQueue.PRIORITY_NORMAL,
+        "waiting", controller);
+    RecordingCallback next = enqueue(queue, XiaZaiQueue.PRIORITY_NORMAL, "next");
+    assertEquals(2, queue.queuedCount());
+
+    // Finishes while the blocker still holds the only slot
+    controller.cancel();
+    assertTrue(waiting.awaitFinish());
+    assertTrue(waiting.events().contains("cancelled"));
+    assertEquals(1, queue.queuedCount());
+    assertEquals(1, queue.runningCount());
+
+    dispatcher.gate.countDown();
+    assertTrue(blocker.awaitFinish());
+    assertTrue(next.awaitFinish());
+    assertEquals(Arrays.asList("start", "completed"), next.events());
+    assertEquals(2, dispatcher.requestCount());
+  }
+
+  @Test
+  public void cancelBeforeEnqueue() throws Exception {
+    XiaZaiQueue queue = new XiaZaiQueue.Builder(xiazai).maxRunning(1).build();
+    RecordingCallback blocker = enqueue(queue, XiaZaiQueue.PRIORITY_NORMAL, "blocker");
+    assertTrue(blocker.awaitStart());
+    XiaZaiController controller = new XiaZaiController();
+    controller.cancel();
+    RecordingCallback callback = enqueue(queue, "localhost", XiaZaiQueue.PRIORITY_NORMAL,
+        "cancelled", controller);
+
+    assertTrue(callback.awaitFinish());
+    assertTrue(callback.events().contains("cancelled"));
+    assertEquals(0, queue.queuedCount());
+  }
+}
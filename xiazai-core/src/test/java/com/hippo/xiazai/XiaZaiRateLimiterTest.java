@@ -0,0 +1,153 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.xiazai;
+
+/*
+ * Created by Hippo on 3/15/2017.
+ */
+
+import com.hippo.xiazai.destination.FileDestination;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class XiaZaiRateLimiterTest {
+
+  private static final int RATE = 512 * 1024;
+  private static final int SIZE = 1024 * 1024;
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private final MockWebServer server = new MockWebServer();
+  private final RangeDispatcher dispatcher = new RangeDispatcher(SIZE);
+
+  @Before
+  public void setUp() throws IOException {
+    server.setDispatcher(dispatcher);
+    server.start();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    server.shutdown();
+  }
+
+  @Test
+  public void maxChunk() {
+    XiaZaiRateLimiter limiter = new XiaZaiRateLimiter(0);
+    assertEquals(Long.MAX_VALUE, limiter.maxChunk());
+    limiter.setRate(RATE);
+    assertEquals(RATE / 4, limiter.maxChunk());
+  }
+
+  // Return the time taken in nanoseconds
+  private long download(XiaZai xiazai, int segments) throws IOException {
+    File file = folder.newFile();
+    Request request = new Request.Builder().url(server.url("/file")).build();
+    long start = System.nanoTime();
+    int state = segments > 1
+        ? xiazai.xiazai(request, new FileDestination(file), segments, null, null)
+        : xiazai.xiazai(request, new FileDestination(file), null, null);
+    long time = System.nanoTime() - start;
+    assertEquals(XiaZai.STATE_COMPLETED, state);
+    assertArrayEquals(dispatcher.data, TestUtils.read(file));
+    return time;
+  }
+
+  private XiaZai xiazai(XiaZaiRateLimiter limiter) {
+    // Chunks could grow far beyond the bucket
+    return new XiaZai.Builder(new OkHttpClient())
+        .chunkSize(4 * 1024, 4 * 1024 * 1024)
+        .rateLimiter(limiter)
+        .build();
+  }
+
+  private static void assertRate(long nanos, long bytes, long rate) {
+    // A burst of a quarter second at most, from the bucket and from the last chunk
+    long min = TimeUnit.SECONDS.toNanos(bytes - rate / 2) / rate;
+    long max = TimeUnit.SECONDS.toNanos(bytes) / rate + TimeUnit.SECONDS.toNanos(1);
+    assertTrue("Too fast: " + nanos, nanos >= min);
+    assertTrue("Too slow: " + nanos, nanos <= max);
+  }
+
+  @Test
+  public void rate() throws Exception {
+    XiaZaiRateLimiter limiter = new XiaZaiRateLimiter(RATE);
+    assertRate(download(xiazai(limiter), 1), SIZE, RATE);
+  }
+
+  @Test
+  public void rateSegmented() throws Exception {
+    XiaZaiRateLimiter limiter = new XiaZaiRateLimiter(RATE);
+    assertRate(download(xiazai(limiter), 4), SIZE, RATE);
+  }
+
+  @Test
+  public void weightedSplit() throws Exception {
+    final XiaZaiRateLimiter limiter = new XiaZaiRateLimiter(RATE);
+    final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+    final AtomicLong light = new AtomicLong();
+    final AtomicLong heavy = new AtomicLong();
+    Thread[] threads = {
+        taker(limiter, 1, light, deadline),
+        taker(limiter, 3, heavy, deadline),
+    };
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    double ratio = (double) heavy.get() / light.get();
+    assertTrue("Ratio: " + ratio, ratio > 2.5 && ratio < 3.5);
+    assertRate(TimeUnit.SECONDS.toNanos(2), light.get() + heavy.get(), RATE);
+  }
+
+  // Take tokens for chunks until the deadline
+  private static Thread taker(final XiaZaiRateLimiter limiter, final int weight,
+      final AtomicLong taken, final long deadline) {
+    return new Thread() {
+      @Override
+      public void run() {
+        XiaZaiRateLimiter.Share share = new XiaZaiRateLimiter.Share();
+        try {
+          while (System.nanoTime() < deadline) {
+            limiter.acquire(share, weight, 4096, null);
+            taken.addAndGet(4096);
+          }
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+  }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.xiazai;
+
+/*
+ * Created by Hippo on 3/15/2017.
+ */
+
+import com.hippo.xiazai.destination.FileDestination;
+import com.hippo.xiazai.destination.OkioFileDestination;
+import com.hippo.xiazai.destination.SinkDestination;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import okhttp3.Headers;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.mockwebserver.MockWebServer;
+import okio.Buffer;
+import okio.ByteString;
+import okio.ForwardingSink;
+import okio.Sink;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static com.hippo.xiazai.TestUtils.read;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class XiaZaiSinkDestinationTest {
+
+  private static final int SIZE = 500 * 1024;
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private final MockWebServer server = new MockWebServer();
+  private final RangeDispatcher dispatcher = new RangeDispatcher(SIZE);
+  private XiaZai xiazai;
+  private Request request;
+
+  @Before
+  public void setUp() throws IOException {
+    server.setDispatcher(dispatcher);
+    server.start();
+    XiaZaiRetryPolicy policy = new XiaZaiRetryPolicy.Builder()
+        .maxRetries(3)
+        .backoff(10, 10, TimeUnit.MILLISECONDS)
+        .jitter(0)
+        .build();
+    xiazai = new XiaZai.Builder(new OkHttpClient())
+        .chunkSize(4 * 1024, 256 * 1024)
+        .retryPolicy(policy)
+        .build();
+    request = new Request.Builder().url(server.url("/file")).build();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    server.shutdown();
+  }
+
+  @Test
+  public void sameBytesAsStream() throws Exception {
+    File stream = folder.newFile();
+    File sink = folder.newFile();
+    dispatcher.throttle = 16 * 1024;
+    assertEquals(XiaZai.STATE_COMPLETED,
+        xiazai.xiazai(request, new FileDestination(stream), null, null));
+    RecordingCallback callback = new RecordingCallback();
+    assertEquals(XiaZai.STATE_COMPLETED,
+        xiazai.xiazai(request, new OkioFileDestination(sink), null, callback));
+    assertArrayEquals(dispatcher.data, read(stream));
+    assertArrayEquals(dispatcher.data, read(sink));
+    assertEquals(SIZE, callback.read);
+    assertEquals(SIZE, callback.content);
+  }
+
+  @Test
+  public void checksum() throws Exception {
+    File file = folder.newFile();
+    XiaZaiChecksum checksum = XiaZaiChecksum.sha256(ByteString.of(dispatcher.data).sha256().hex());
+    assertEquals(XiaZai.STATE_COMPLETED,
+        xiazai.xiazai(request, new OkioFileDestination(file), checksum, null, null));
+    assertArrayEquals(dispatcher.data, read(file));
+
+    checksum = XiaZaiChecksum.sha256(ByteString.of(new byte[32]).hex());
+    assertEquals(XiaZai.STATE_ERROR,
+        xiazai.xiazai(request, new OkioFileDestination(file), checksum, null, null));
+  }
+
+  @Test
+  public void resumeAfterDrop() throws Exception {
+    // The sink keeps the bytes before the drop, the rest comes from a range request
+    dispatcher.dropAfter = 100 * 1024 + 1;
+    File file = folder.newFile();
+    assertEquals(XiaZai.STATE_COMPLETED,
+        xiazai.xiazai(request, new OkioFileDestination(file), null, null));
+    assertArrayEquals(dispatcher.data, read(file));
+    assertEquals(2, dispatcher.requestCount());
+    assertEquals("bytes=102401-", dispatcher.requests.get(1).getHeader("Range"));
+  }
+
+  @Test
+  public void openedSink() throws Exception {
+    Buffer buffer = new Buffer();
+    assertEquals(XiaZai.STATE_COMPLETED,
+        xiazai.xiazai(request, new SinkDestination(buffer), null, null));
+    assertArrayEquals(dispatcher.data, buffer.readByteArray());
+    // Not closed, the caller still owns it
+    buffer.writeUtf8("xiazai");
+    assertEquals("xiazai", buffer.readUtf8());
+  }
+
+  @Test
+  public void sinkWritesMatchChunks() throws Exception {
+    final Buffer buffer = new Buffer();
+    final long[] writes = new long[2];
+    XiaZaiSinkDestination dest = new SinkDestination(buffer) {
+      @Override
+      public Sink openSink(HttpUrl url, int code, Headers headers) throws IOException {
+        final Sink sink = super.openSink(url, code, headers);
+        return new ForwardingSink(sink) {
+          @Override
+          public void write(Buffer source, long byteCount) throws IOException {
+            writes[0]++;
+            writes[1] += byteCount;
+            super.write(source, byteCount);
+          }
+        };
+      }
+    };
+    RecordingCallback callback = new RecordingCallback();
+    assertEquals(XiaZai.STATE_COMPLETED, xiazai.xiazai(request, dest, null, callback));
+    assertArrayEquals(dispatcher.data, buffer.readByteArray());
+    // Chunks, not a write for each segment
+    assertEquals(SIZE, writes[1]);
+    assertTrue(writes[0] <= SIZE / (4 * 1024));
+  }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.hippo.xiazai.destination;
+
+/*
+ * Created by Hippo on 3/15/2017.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import okhttp3.Headers;
+import okhttp3.HttpUrl;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ArchiveDestinationTest {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final HttpUrl URL = HttpUrl.parse("http://example.com/archive");
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private File dir;
+
+  @Before
+  public void setUp() throws IOException {
+    dir = folder.newFolder("out");
+  }
+
+  private static byte[] bytes(String string) {
+    return string.getBytes(UTF_8);
+  }
+
+  private static byte[] read(File file) throws IOException {
+    InputStream is = new FileInputStream(file);
+    try {
+      ByteArrayOutputStream os = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int n;
+      while ((n = is.read(buffer)) != -1) {
+        os.write(buffer, 0, n);
+      }
+      return os.toByteArray();
+    } finally {
+      is.close();
+    }
+  }
+
+  // Write the archive to the destination in small writes, like a download
+  private static void extract(ArchiveDestination dest, byte[] archive) throws IOException {
+    OutputStream os = dest.open(URL, 200, Headers.of());
+    try {
+      for (int off = 0; off < archive.length; off += 1000) {
+        os.write(archive, off, Math.min(1000, archive.length - off));
+      }
+    } finally {
+      os.close();
+    }
+  }
+
+  private static void assertFails(ArchiveDestination dest, byte[] archive) {
+    try {
+      extract(dest, archive);
+      fail();
+    } catch (IOException e) {
+      // Expected
+    }
+  }
+
+  private static class Tar {
+
+    private final ByteArrayOutputStream os = new ByteArrayOutputStream();
+
+    Tar entry(String name, char type, byte[] data) {
+      byte[] header = new byte[512];
+      byte[] nameBytes = bytes(name);
+      System.arraycopy(nameBytes, 0, header, 0, nameBytes.length);
+      octal(header, 100, 8, 0644);
+      octal(header, 124, 12, data.length);
+      header[156] = (byte) type;
+      System.arraycopy(bytes("ustar\u000000"), 0, header, 257, 8);
+      os.write(header, 0, header.length);
+      os.write(data, 0, data.length);
+      os.write(new byte[(512 - data.length % 512) % 512], 0, (512 - data.length % 512) % 512);
+      return this;
+    }
+
+    Tar file(String name, String content) {
+      return entry(name, '0', bytes(content));
+    }
+
+    private static void octal(byte[] header, int off, int len, long value) {
+      String s = Long.toOctalString(value);
+      while (s.length() < len - 1) s = "0" + s;
+      System.arraycopy(bytes(s), 0, header, off, len - 1);
+    }
+
+    // Without the end blocks
+    byte[] body() {
+      return os.toByteArray();
+    }
+
+    byte[] build() {
+      byte[] body = body();
+      return Arrays.copyOf(body, body.length + 1024);
+    }
+  }
+
+  private static byte[] zip(String... namesAndContents) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ZipOutputStream zos = new ZipOutputStream(out);
+    for (int i = 0; i < namesAndContents.length; i += 2) {
+      zos.putNextEntry(new ZipEntry(namesAndContents[i]));
+      zos.write(bytes(namesAndContents[i + 1]));
+      zos.closeEntry();
+    }
+    zos.close();
+    return out.toByteArray();
+  }
+
+  private static byte[] gzip(byte[] data) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    GZIPOutputStream gos = new GZIPOutputStream(out);
+    gos.write(data);
+    gos.close();
+    return out.toByteArray();
+  }
+
+  @Test
+  public void tar() throws Exception {
+    byte[] large = new byte[100000];
+    Arrays.fill(large, (byte) 7);
+    extract(new ArchiveDestination(dir), new Tar()
+        .entry("a/", '5', new byte[0])
+        .file("a/b.txt", "xiazai")
+        .entry("c.bin", '0', large)
+        .build());
+    assertTrue(new File(dir, "a").isDirectory());
+    assertArrayEquals(bytes("xiazai"), read(new File(dir, "a/b.txt")));
+    assertArrayEquals(large, read(new File(dir, "c.bin")));
+  }
+
+  @Test
+  public void gzipTar() throws Exception {
+    extract(new ArchiveDestination(dir), gzip(new Tar().file("a.txt", "xiazai").build()));
+    assertArrayEquals(bytes("xiazai"), read(new File(dir, "a.txt")));
+  }
+
+  @Test
+  public void zipArchive() throws Exception {
+    extract(new ArchiveDestination(dir), zip("a.txt", "xiazai", "b/c.txt", "hippo"));
+    assertArrayEquals(bytes("xiazai"), read(new File(dir, "a.txt")));
+    assertArrayEquals(bytes("hippo"), read(new File(dir, "b/c.txt")));
+  }
+
+  @Test
+  public void dotDot() throws Exception {
+    assertFails(new ArchiveDestination(dir), new Tar().file("../evil.txt", "evil").build());
+    assertFails(new ArchiveDestination(dir), new Tar().file("a/../../evil.txt", "evil").build());
+    assertFails(new ArchiveDestination(dir), zip("../evil.txt", "evil"));
+    assertFalse(new File(dir.getParentFile(), "evil.txt").exists());
+  }
+
+  @Test
+  public void absoluteName() throws Exception {
+    extract(new ArchiveDestination(dir), new Tar().file("/abs/a.txt", "xiazai").build());
+    // Stays in the directory
+    assertArrayEquals(bytes("xiazai"), read(new File(dir, "abs/a.txt")));
+  }
+
+  @Test
+  public void symlinkEscape() throws Exception {
+    File outside = folder.newFolder("outside");
+    Files.createSymbolicLink(new File(dir, "link").toPath(), outside.toPath());
+    assertFails(new ArchiveDestination(dir), new Tar().file("link/evil.txt", "evil").build());
+    assertFalse(new File(outside, "evil.txt").exists());
+  }
+
+  @Test
+  public void skipLinksAndDevices() throws Exception {
+    extract(new ArchiveDestination(dir), new Tar()
+        .entry("hard", '1', new byte[0])
+        .entry("soft", '2', new byte[0])
+        .entry("char", '3', new byte[0])
+        .entry("block", '4', new byte[0])
+        .entry("fifo", '6', new byte[0])
+        .file("a.txt", "xiazai")
+        .build());
+    assertEquals(Arrays.asList("a.txt"), Arrays.asList(dir.list()));
+  }
+
+  @Test
+  public void maxEntrySize() throws Exception {
+    assertFails(new ArchiveDestination(dir, 5, Long.MAX_VALUE),
+        new Tar().file("a.txt", "xiazai").build());
+    extract(new ArchiveDestination(dir, 6, Long.MAX_VALUE),
+        new Tar().file("a.txt", "xiazai").build());
+  }
+
+  @Test
+  public void maxTotalSize() throws Exception {
+    assertFails(new ArchiveDestination(dir, Long.MAX_VALUE, 10),
+        zip("a.txt", "xiazai", "b.txt", "hippo"));
+    extract(new ArchiveDestination(folder.newFolder(), Long.MAX_VALUE, 11),
+        zip("a.txt", "xiazai", "b.txt", "hippo"));
+  }
+
+  @Test
+  public void truncatedTarEntry() throws Exception {
+    byte[] tar = new Tar().entry("a.bin", '0', new byte[2000]).build();
+    assertFails(new ArchiveDestination(dir), Arrays.copyOf(tar, 1000));
+  }
+
+  @Test
+  public void tarWithoutEnd() throws Exception {
+    Tar tar = new Tar().file("a.txt", "xiazai");
+    // Ends at a header boundary
+    assertFails(new ArchiveDestination(dir), tar.body());
+    // Only one zero block
+    assertFails(new ArchiveDestination(dir), Arrays.copyOf(tar.body(), tar.body().length + 512));
+  }
+
+  @Test
+  public void truncatedGzip() throws Exception {
+    byte[] gzip = gzip(new Tar().file("a.txt", "xiazai").build());
+    assertFails(new ArchiveDestination(dir), Arrays.copyOf(gzip, gzip.length / 2));
+  }
+
+  @Test
+  public void zipWithoutCentralDirectory() throws Exception {
+    byte[] zip = zip("a.txt", "xiazai", "b.txt", "hippo");
+    // Cut at the start of the central directory
+    int cd = 0;
+    for (int i = zip.length - 4; i >= 0; i--) {
+      if (zip[i] == 'P' && zip[i + 1] == 'K' && zip[i + 2] == 1 && zip[i + 3] == 2) {
+        cd = i;
+      }
+    }
+    assertTrue(cd > 0);
+    assertFails(new ArchiveDestination(dir), Arrays.copyOf(zip, cd));
+  }
+
+  @Test
+  public void emptyZip() throws Exception {
+    extract(new ArchiveDestination(dir), zip());
+    assertEquals(0, dir.list().length);
+  }
+}
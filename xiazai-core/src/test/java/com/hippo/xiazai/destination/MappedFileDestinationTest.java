@@ -0,0 +1,184 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.xiazai.destination;
+
+/*
+ * Created by Hippo on 3/15/2017.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import okhttp3.Headers;
+import okhttp3.HttpUrl;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MappedFileDestinationTest {
+
+  private static final HttpUrl URL = HttpUrl.parse("http://example.com/file");
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private final byte[] data = new byte[1000];
+  private File file;
+
+  @Before
+  public void setUp() throws IOException {
+    new Random(1000).nextBytes(data);
+    file = folder.newFile();
+  }
+
+  private static Headers length(long length) {
+    return Headers.of("Content-Length", Long.toString(length));
+  }
+
+  // Write in uneven chunks, so writes cross windows in the middle
+  private static void write(OutputStream os, byte[] data, int from, int to) throws IOException {
+    int chunk = 1;
+    for (int i = from; i < to; i += chunk, chunk = chunk % 37 + 3) {
+      os.write(data, i, Math.min(chunk, to - i));
+    }
+  }
+
+  @Test
+  public void preallocate() throws Exception {
+    MappedFileDestination dest = new MappedFileDestination(file, 64);
+    OutputStream os = dest.open(URL, 200, length(data.length));
+    assertEquals(data.length, file.length());
+    os.write(data, 0, 10);
+    os.close();
+    assertEquals(data.length, file.length());
+    assertArrayEquals(Arrays.copyOf(data, 10),
+        Arrays.copyOf(Files.readAllBytes(file.toPath()), 10));
+  }
+
+  @Test
+  public void crossWindows() throws Exception {
+    MappedFileDestination dest = new MappedFileDestination(file, 7);
+    OutputStream os = dest.open(URL, 200, length(data.length));
+    write(os, data, 0, 500);
+    // Single bytes too
+    for (int i = 500; i < 520; i++) {
+      os.write(data[i]);
+    }
+    write(os, data, 520, data.length);
+    os.close();
+    assertArrayEquals(data, Files.readAllBytes(file.toPath()));
+  }
+
+  @Test
+  public void sync() throws Exception {
+    MappedFileDestination dest = new MappedFileDestination(file, 7, true);
+    OutputStream os = dest.open(URL, 200, length(data.length));
+    write(os, data, 0, data.length);
+    os.flush();
+    os.close();
+    assertArrayEquals(data, Files.readAllBytes(file.toPath()));
+  }
+
+  @Test
+  public void segments() throws Exception {
+    MappedFileDestination dest = new MappedFileDestination(file, 64);
+    dest.prepare(URL, 206, Headers.of(), data.length);
+    assertEquals(data.length, file.length());
+    OutputStream os1 = dest.open(0);
+    OutputStream os2 = dest.open(333);
+    OutputStream os3 = dest.open(700);
+    write(os3, data, 700, data.length);
+    write(os1, data, 0, 333);
+    write(os2, data, 333, 700);
+    os1.close();
+    os2.close();
+    os3.close();
+    assertArrayEquals(data, Files.readAllBytes(file.toPath()));
+  }
+
+  @Test
+  public void writeBeyondEnd() throws Exception {
+    MappedFileDestination dest = new MappedFileDestination(file, 64);
+    OutputStream os = dest.open(URL, 200, length(100));
+    os.write(data, 0, 100);
+    try {
+      os.write(0);
+      fail();
+    } catch (IOException e) {
+      // Ignore
+    } finally {
+      os.close();
+    }
+    assertEquals(100, file.length());
+  }
+
+  @Test
+  public void badOffset() throws Exception {
+    MappedFileDestination dest = new MappedFileDestination(file, 64);
+    try {
+      dest.open(0);
+      fail();
+    } catch (IOException e) {
+      // Not prepared
+    }
+    dest.prepare(URL, 206, Headers.of(), 100);
+    try {
+      dest.open(101);
+      fail();
+    } catch (IOException e) {
+      // Ignore
+    }
+  }
+
+  @Test
+  public void unknownLength() throws Exception {
+    MappedFileDestination dest = new MappedFileDestination(file, 64);
+    OutputStream os = dest.open(URL, 200, Headers.of());
+    write(os, data, 0, data.length);
+    os.close();
+    assertArrayEquals(data, Files.readAllBytes(file.toPath()));
+  }
+
+  @Test
+  public void close() throws Exception {
+    MappedFileDestination dest = new MappedFileDestination(file, 64);
+    OutputStream os = dest.open(URL, 200, length(data.length));
+    os.write(data, 0, 64);
+    os.close();
+    // The window is dropped and the file is closed, no more mapping
+    try {
+      os.write(data, 64, 1);
+      fail();
+    } catch (IOException e) {
+      // Ignore
+    }
+    // The file could be replaced after close
+    File other = folder.newFile();
+    Files.write(other.toPath(), data);
+    assertTrue(other.renameTo(file));
+    assertArrayEquals(data, Files.readAllBytes(file.toPath()));
+  }
+}
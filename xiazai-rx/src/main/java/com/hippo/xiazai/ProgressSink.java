@@ -0,0 +1,34 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.xiazai;
+
+/*
+ * Created by Hippo on 3/11/2017.
+ */
+
+/**
+ * A subscriber which takes progress without {@link XiaZaiProgress}.
+ * {@link XiaZaiOnSubscribe} passes progress to it directly instead of
+ * allocating a {@code XiaZaiProgress} for each chunk.
+ */
+interface ProgressSink {
+
+  /**
+   * Called in the download thread, one at a time.
+   */
+  void onProgress(long read, long content);
+}
@@ -21,6 +21,8 @@ package com.hippo.xiazai;
  */
 
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import rx.Observable;
 import rx.Scheduler;
 import rx.Subscriber;
@@ -28,11 +30,18 @@ import rx.exceptions.Exceptions;
 import rx.functions.Action0;
 import rx.internal.operators.OperatorBufferWithTime;
 import rx.observers.SerializedSubscriber;
+import rx.subscriptions.Subscriptions;
 
 /**
  * This operation emits a sequential {@link XiaZaiProgress} every specified interval of time.
  * It keeps emitting {@code XiaZaiProgress(0, 0, -1)} before actually starting downloading.
  * <p>
+ * Progress is stored in volatile fields without locking, {@code XiaZaiProgress}
+ * is only allocated while emitting.
+ * <p>
+ * With a {@link XiaZaiTicker}, it doesn't have its own timer. It emits on the ticks
+ * of the ticker, and only if the progress changed.
+ * <p>
  * Inspired by {@link OperatorBufferWithTime}.
  */
 public class XiaZaiIntervalOperator implements
@@ -41,18 +50,43 @@ public class XiaZaiIntervalOperator implements
   final long interval;
   final TimeUnit unit;
   final Scheduler scheduler;
+  final XiaZaiTicker ticker;
 
   public XiaZaiIntervalOperator(long interval, TimeUnit unit, Scheduler scheduler) {
     this.interval = interval;
     this.unit = unit;
     this.scheduler = scheduler;
+    this.ticker = null;
+  }
+
+  /**
+   * Emit on the ticks of the ticker instead of its own timer.
+   */
+  public XiaZaiIntervalOperator(XiaZaiTicker ticker) {
+    this.interval = 0;
+    this.unit = null;
+    this.scheduler = null;
+    this.ticker = ticker;
   }
 
   @Override
   public Subscriber<? super XiaZaiProgress> call(Subscriber<? super XiaZaiProgress> child) {
-    final Scheduler.Worker inner = scheduler.createWorker();
     SerializedSubscriber<XiaZaiProgress> serialized = new SerializedSubscriber<>(child);
 
+    if (ticker != null) {
+      final ExactSubscriber parent = new ExactSubscriber(serialized, null);
+      parent.add(Subscriptions.create(new Action0() {
+        @Override
+        public void call() {
+          ticker.remove(parent);
+        }
+      }));
+      child.add(parent);
+      ticker.add(parent);
+      return parent;
+    }
+
+    final Scheduler.Worker inner = scheduler.createWorker();
     ExactSubscriber parent = new ExactSubscriber(serialized, inner);
     parent.add(inner);
     child.add(parent);
@@ -60,18 +94,19 @@ public class XiaZaiIntervalOperator implements
     return parent;
   }
 
-  final class ExactSubscriber extends Subscriber<XiaZaiProgress> {
+  final class ExactSubscriber extends Subscriber<XiaZaiProgress> implements ProgressSink {
 
     final Subscriber<? super XiaZaiProgress> child;
+    // Null if it's on the ticks of a ticker
     final Scheduler.Worker inner;
-    // Guarded by this
-    long lastRead = 0;
-    // Guarded by this
-    long read = 0;
-    // Guarded by this
-    long content = -1;
-    // Guarded by this
-    boolean done;
+    // The read of the last emitted progress
+    final AtomicLong lastRead = new AtomicLong();
+    // Only written by the download thread, content first
+    volatile long read = 0;
+    volatile long content = -1;
+    final AtomicBoolean done = new AtomicBoolean();
+    // Only accessed in the ticker thread
+    boolean emitted;
 
     public ExactSubscriber(Subscriber<XiaZaiProgress> child, Scheduler.Worker inner) {
       this.child = child;
@@ -80,19 +115,18 @@ public class XiaZaiIntervalOperator implements
 
     @Override
     public void onNext(XiaZaiProgress progress) {
-      synchronized (this) {
-        if (done) return;
-        read = progress.read();
-        content = progress.content();
-      }
+      onProgress(progress.read(), progress.content());
+    }
+
+    @Override
+    public void onProgress(long read, long content) {
+      this.content = content;
+      this.read = read;
     }
 
     @Override
     public void onError(Throwable e) {
-      synchronized (this) {
-        if (done) return;
-        done = true;
-      }
+      if (!done.compareAndSet(false, true)) return;
       child.onError(e);
       unsubscribe();
     }
@@ -100,18 +134,17 @@ public class XiaZaiIntervalOperator implements
     @Override
     public void onCompleted() {
       try {
-        inner.unsubscribe();
-        long n, read, content;
-        synchronized (this) {
-          if (done) return;
-          done = true;
-          n = this.read - this.lastRead;
-          read = this.read;
-          content = this.content;
-          this.lastRead = read;
+        if (inner != null) {
+          inner.unsubscribe();
+        } else {
+          ticker.remove(this);
         }
+        if (!done.compareAndSet(false, true)) return;
+        // Nothing goes to an unsubscribed child
+        if (isUnsubscribed()) return;
+        XiaZaiProgress progress = take();
         // Only emit a item if progress report isn't done
-        if (n != 0) child.onNext(new XiaZaiProgress(n, read, content));
+        if (progress.n() != 0) child.onNext(progress);
       } catch (Throwable t) {
         Exceptions.throwOrReport(t, child);
         return;
@@ -129,16 +162,28 @@ public class XiaZaiIntervalOperator implements
       }, 0, interval, unit);
     }
 
-    private void emit() {
-      long n, read, content;
-      synchronized (this) {
-        if (done) return;
-        n = this.read - this.lastRead;
+    // Take the progress since the last emitted one.
+    // read never goes back, n is never negative even if emit() and onCompleted() race.
+    private XiaZaiProgress take() {
+      long last, read;
+      do {
+        last = lastRead.get();
         read = this.read;
-        content = this.content;
-        this.lastRead = read;
-      }
-      XiaZaiProgress progress = new XiaZaiProgress(n, read, content);
+      } while (!lastRead.compareAndSet(last, read));
+      // content is written before read, it's not older than read
+      return new XiaZaiProgress(read - last, read, content);
+    }
+
+    // Called on a tick of the ticker, emit if the progress changed
+    void onTick() {
+      if (emitted && read == lastRead.get()) return;
+      emitted = true;
+      emit();
+    }
+
+    private void emit() {
+      if (done.get() || isUnsubscribed()) return;
+      XiaZaiProgress progress = take();
       try {
         child.onNext(progress);
       } catch (Throwable t) {
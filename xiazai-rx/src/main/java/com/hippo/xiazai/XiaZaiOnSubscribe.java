@@ -28,32 +28,35 @@ import rx.Subscription;
 
 final class XiaZaiOnSubscribe implements Observable.OnSubscribe<XiaZaiProgress> {
 
-  private XiaZai xiazai;
   private XiaZaiTask task;
 
-  public XiaZaiOnSubscribe(XiaZai xiazai, XiaZaiTask task) {
-    this.xiazai = xiazai;
+  public XiaZaiOnSubscribe(XiaZaiTask task) {
     this.task = task;
   }
 
   @Override
   public void call(final Subscriber<? super XiaZaiProgress> subscriber) {
     subscriber.add(new XiaZaiTaskSubscription());
-    xiazai.xiazai(task.request(), task.destination(),
-        task.controller(), new InnerXiaZaiCallback(subscriber));
+    task.download(new InnerXiaZaiCallback(subscriber));
   }
 
   private class InnerXiaZaiCallback implements XiaZaiCallback {
 
     private Subscriber<? super XiaZaiProgress> subscriber;
+    // Not null if the subscriber takes progress without XiaZaiProgress
+    private ProgressSink sink;
 
     public InnerXiaZaiCallback(Subscriber<? super XiaZaiProgress> subscriber) {
       this.subscriber = subscriber;
+      if (subscriber instanceof ProgressSink) {
+        this.sink = (ProgressSink) subscriber;
+      }
     }
 
     @Override
     public void onStart() {
-      if (!subscriber.isUnsubscribed()) {
+      // The sink already has XiaZaiProgress(0, 0, -1)
+      if (sink == null && !subscriber.isUnsubscribed()) {
         // Emit a dump XiaZaiProgress to represent XiaZaiCallback.onStart().
         // n and read will never be 0, so it is unique.
         subscriber.onNext(new XiaZaiProgress(0, 0, -1));
@@ -62,7 +65,10 @@ final class XiaZaiOnSubscribe implements Observable.OnSubscribe<XiaZaiProgress>
 
     @Override
     public void onProgress(int n, long read, long content) {
-      if (!subscriber.isUnsubscribed()) {
+      if (subscriber.isUnsubscribed()) return;
+      if (sink != null) {
+        sink.onProgress(read, content);
+      } else {
         subscriber.onNext(new XiaZaiProgress(n, read, content));
       }
     }
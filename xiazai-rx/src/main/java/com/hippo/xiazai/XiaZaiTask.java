@@ -20,69 +20,26 @@ package com.hippo.xiazai;
  * Created by Hippo on 1/1/2017.
  */
 
-import com.hippo.xiazai.destination.FileDestination;
-import java.io.File;
 import java.util.concurrent.TimeUnit;
-import okhttp3.HttpUrl;
-import okhttp3.Request;
 import rx.Observable;
 import rx.Scheduler;
 import rx.schedulers.Schedulers;
 
-public final class XiaZaiTask {
-
-  private boolean occupied;
-
-  private XiaZai xiazai;
-
-  private Request request;
-  private XiaZaiDestination dest;
+public final class XiaZaiTask extends AbstractXiaZaiTask {
 
   private boolean enableInterval;
   private long interval;
   private TimeUnit unit;
   private Scheduler scheduler;
-
-  private XiaZaiController controller;
+  private XiaZaiTicker ticker;
 
   private XiaZaiTask(Builder builder) {
-    this.xiazai = builder.xiazai;
-    this.request = builder.request;
-    this.dest = builder.dest;
+    super(builder);
     this.enableInterval = builder.enableInterval;
     this.interval = builder.interval;
     this.unit = builder.unit;
     this.scheduler = builder.scheduler;
-    controller = new XiaZaiController();
-  }
-
-  // Occupy this XiaZaiTask
-  // Throw IllegalStateException if occupy it twice
-  synchronized void occupy() throws IllegalStateException {
-    if (!occupied) {
-      occupied = true;
-    } else {
-      throw new IllegalStateException("The XiaZaiTask is already occupied.");
-    }
-  }
-
-  Request request() {
-    return request;
-  }
-
-  XiaZaiDestination destination() {
-    return dest;
-  }
-
-  XiaZaiController controller() {
-    return controller;
-  }
-
-  /**
-   * Cancel this task.
-   */
-  public void cancel() {
-    controller.cancel();
+    this.ticker = builder.ticker;
   }
 
   /**
@@ -98,49 +55,25 @@ public final class XiaZaiTask {
    */
   public Observable<XiaZaiProgress> xiazai() throws IllegalStateException {
     occupy();
-    Observable<XiaZaiProgress> observable = Observable.create(new XiaZaiOnSubscribe(xiazai, this));
+    Observable<XiaZaiProgress> observable = Observable.create(new XiaZaiOnSubscribe(this));
     if (enableInterval) {
       observable = observable.lift(new XiaZaiIntervalOperator(interval, unit, scheduler));
+    } else if (ticker != null) {
+      observable = observable.lift(new XiaZaiIntervalOperator(ticker));
     }
     return observable;
   }
 
-  public static class Builder {
-
-    private XiaZai xiazai;
-
-    private Request request;
-    private XiaZaiDestination dest;
+  public static class Builder extends AbstractXiaZaiTask.Builder<Builder> {
 
     private boolean enableInterval;
     private long interval;
     private TimeUnit unit;
     private Scheduler scheduler;
+    private XiaZaiTicker ticker;
 
     public Builder(XiaZai xiazai) {
-      this.xiazai = xiazai;
-    }
-
-    public Builder url(String url) {
-      return request(new Request.Builder().get().url(url).build());
-    }
-
-    public Builder url(HttpUrl url) {
-      return request(new Request.Builder().get().url(url).build());
-    }
-
-    public Builder request(Request request) {
-      this.request = request;
-      return this;
-    }
-
-    public Builder file(File file) {
-      return destination(new FileDestination(file));
-    }
-
-    public Builder destination(XiaZaiDestination dest) {
-      this.dest = dest;
-      return this;
+      super(xiazai);
     }
 
     /**
@@ -166,13 +99,24 @@ public final class XiaZaiTask {
       return this;
     }
 
+    /**
+     * Emit {@link XiaZaiProgress} on the ticks of the ticker, only if it changed.
+     * Emit {@code XiaZaiProgress(0, 0, -1)} on the first tick before actually
+     * starting downloading. Don't set it with {@link #interval(long, TimeUnit)}.
+     */
+    public Builder ticker(XiaZaiTicker ticker) {
+      this.ticker = ticker;
+      return this;
+    }
+
     public XiaZaiTask build() throws IllegalStateException {
-      if (request == null || dest == null) {
-        throw new IllegalStateException("request == null || dest == null");
-      }
+      check();
       if (enableInterval && scheduler == null) {
         throw new IllegalStateException("enableInterval && scheduler == null");
       }
+      if (enableInterval && ticker != null) {
+        throw new IllegalStateException("enableInterval && ticker != null");
+      }
       return new XiaZaiTask(this);
     }
   }
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.xiazai;
+
+/*
+ * Created by Hippo on 3/12/2017.
+ */
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import rx.Scheduler;
+import rx.functions.Action0;
+import rx.schedulers.Schedulers;
+
+/**
+ * A periodic tick shared by many {@link XiaZaiTask}s.
+ * <p>
+ * Each task built with {@link XiaZaiTask.Builder#interval(long, TimeUnit)} has its own timer.
+ * Tasks built with {@link XiaZaiTask.Builder#ticker(XiaZaiTicker)} share the timer
+ * of the ticker instead. On each tick, only tasks whose progress changed since
+ * their last emitted {@link XiaZaiProgress} emit, all in the tick.
+ * So with {@code AndroidSchedulers.mainThread()}, all updates of a tick arrive
+ * in one message, one frame.
+ * <p>
+ * The timer only runs while some tasks are subscribed.
+ * <p>
+ * Thread-safe.
+ */
+public final class XiaZaiTicker {
+
+  private final long interval;
+  private final Scheduler scheduler;
+  private final boolean align;
+
+  private final Set<XiaZaiIntervalOperator.ExactSubscriber> subscribers =
+      Collections.newSetFromMap(
+          new ConcurrentHashMap<XiaZaiIntervalOperator.ExactSubscriber, Boolean>());
+
+  // Guarded by this
+  private Scheduler.Worker worker;
+
+  private XiaZaiTicker(Builder builder) {
+    this.interval = builder.interval;
+    this.scheduler = builder.scheduler;
+    this.align = builder.align;
+  }
+
+  synchronized void add(XiaZaiIntervalOperator.ExactSubscriber subscriber) {
+    subscribers.add(subscriber);
+    if (worker != null) return;
+
+    long delay = 0;
+    if (align) {
+      // Tick at multiples of the interval since the epoch
+      long now = TimeUnit.MILLISECONDS.toNanos(scheduler.now());
+      delay = interval - now % interval;
+    }
+    worker = scheduler.createWorker();
+    worker.schedulePeriodically(new Action0() {
+      @Override
+      public void call() {
+        tick();
+      }
+    }, delay, interval, TimeUnit.NANOSECONDS);
+  }
+
+  synchronized void remove(XiaZaiIntervalOperator.ExactSubscriber subscriber) {
+    if (subscribers.remove(subscriber) && subscribers.isEmpty() && worker != null) {
+      worker.unsubscribe();
+      worker = null;
+    }
+  }
+
+  private void tick() {
+    for (XiaZaiIntervalOperator.ExactSubscriber subscriber : subscribers) {
+      subscriber.onTick();
+    }
+  }
+
+  /**
+   * Return the number of subscribed tasks.
+   */
+  public int size() {
+    return subscribers.size();
+  }
+
+  public static class Builder {
+
+    private long interval;
+    private Scheduler scheduler = Schedulers.computation();
+    private boolean align;
+
+    public Builder(long interval, TimeUnit unit) {
+      this.interval = unit.toNanos(interval);
+    }
+
+    /**
+     * Tick in the scheduler. {@link Schedulers#computation()} as default.
+     */
+    public Builder scheduler(Scheduler scheduler) {
+      this.scheduler = scheduler;
+      return this;
+    }
+
+    /**
+     * Tick at multiples of the interval since the epoch, by {@link Scheduler#now()},
+     * so that tickers with the same interval tick together. False as default.
+     */
+    public Builder align(boolean align) {
+      this.align = align;
+      return this;
+    }
+
+    public XiaZaiTicker build() throws IllegalStateException {
+      if (interval <= 0) {
+        throw new IllegalStateException("interval <= 0");
+      }
+      if (scheduler == null) {
+        throw new IllegalStateException("scheduler == null");
+      }
+      return new XiaZaiTicker(this);
+    }
+  }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.hippo.xiazai;
+
+/*
+ * Created by Hippo on 3/15/2017.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import rx.Observable;
+import rx.Subscriber;
+import rx.schedulers.Schedulers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class XiaZaiIntervalOperatorTest {
+
+  private static final int ROUNDS = 200;
+  private static final long CONTENT = 100000;
+
+  // Emits progress as fast as possible in a new thread, then completes or fails
+  private static Observable<XiaZaiProgress> download(final Throwable error) {
+    return Observable.create(new Observable.OnSubscribe<XiaZaiProgress>() {
+      @Override
+      public void call(final Subscriber<? super XiaZaiProgress> subscriber) {
+        new Thread() {
+          @Override
+          public void run() {
+            subscriber.onNext(new XiaZaiProgress(0, 0, -1));
+            for (long read = 10; read <= CONTENT; read += 10) {
+              subscriber.onNext(new XiaZaiProgress(10, read, CONTENT));
+            }
+            if (error != null) {
+              subscriber.onError(error);
+            } else {
+              subscriber.onCompleted();
+            }
+          }
+        }.start();
+      }
+    });
+  }
+
+  private static XiaZaiIntervalOperator exact() {
+    return new XiaZaiIntervalOperator(100, TimeUnit.MICROSECONDS, Schedulers.computation());
+  }
+
+  @Test
+  public void completeRacesTimer() throws Exception {
+    for (int i = 0; i < ROUNDS; i++) {
+      Recorder recorder = new Recorder();
+      download(null).lift(exact()).subscribe(recorder);
+      recorder.assertCompleted();
+    }
+  }
+
+  @Test
+  public void completeRacesTicker() throws Exception {
+    XiaZaiTicker ticker = new XiaZaiTicker.Builder(100, TimeUnit.MICROSECONDS).build();
+    for (int i = 0; i < ROUNDS; i++) {
+      Recorder recorder = new Recorder();
+      download(null).lift(new XiaZaiIntervalOperator(ticker)).subscribe(recorder);
+      recorder.assertCompleted();
+      assertEquals(0, ticker.size());
+    }
+  }
+
+  @Test
+  public void errorRacesTimer() throws Exception {
+    Throwable error = new IllegalStateException();
+    for (int i = 0; i < ROUNDS; i++) {
+      Recorder recorder = new Recorder();
+      download(error).lift(exact()).subscribe(recorder);
+      recorder.assertTerminated();
+      assertEquals(error, recorder.error);
+    }
+  }
+
+  @Test
+  public void unsubscribeRacesTimer() throws Exception {
+    for (int i = 0; i < ROUNDS; i++) {
+      final Recorder recorder = new Recorder();
+      download(null).lift(exact()).subscribe(recorder);
+      recorder.unsubscribe();
+      // Nothing is emitted after unsubscribing, except one in flight
+      int count = recorder.count();
+      Thread.sleep(1);
+      assertTrue(recorder.count() - count <= 1);
+    }
+  }
+
+  private static class Recorder extends Subscriber<XiaZaiProgress> {
+
+    private final CountDownLatch terminated = new CountDownLatch(1);
+    // Guarded by this
+    private final List<XiaZaiProgress> progresses = new ArrayList<>();
+    // Guarded by this
+    private int terminals;
+    // Guarded by this
+    private int afterTerminal;
+    private volatile Throwable error;
+
+    @Override
+    public synchronized void onNext(XiaZaiProgress progress) {
+      if (terminals > 0) afterTerminal++;
+      progresses.add(progress);
+    }
+
+    @Override
+    public void onError(Throwable e) {
+      error = e;
+      terminate();
+    }
+
+    @Override
+    public void onCompleted() {
+      terminate();
+    }
+
+    private synchronized void terminate() {
+      terminals++;
+      terminated.countDown();
+    }
+
+    synchronized int count() {
+      return progresses.size();
+    }
+
+    void assertTerminated() throws InterruptedException {
+      assertTrue(terminated.await(10, TimeUnit.SECONDS));
+      // Another terminal event would come soon if there is
+      Thread.sleep(1);
+      synchronized (this) {
+        assertEquals(1, terminals);
+        assertEquals(0, afterTerminal);
+        long sum = 0;
+        long last = 0;
+        for (XiaZaiProgress progress : progresses) {
+          assertTrue(progress.n() >= 0);
+          assertTrue(progress.read() >= last);
+          sum += progress.n();
+          last = progress.read();
+        }
+        // Each byte is counted once
+        assertEquals(last, sum);
+      }
+    }
+
+    void assertCompleted() throws InterruptedException {
+      assertTerminated();
+      assertNull(error);
+      synchronized (this) {
+        XiaZaiProgress last = progresses.get(progresses.size() - 1);
+        assertEquals(CONTENT, last.read());
+        assertEquals(CONTENT, last.content());
+      }
+    }
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.xiazai.rx2;
+
+/*
+ * Created by Hippo on 3/10/2017.
+ */
+
+import com.hippo.xiazai.XiaZaiCallback;
+import com.hippo.xiazai.XiaZaiProgress;
+import com.hippo.xiazai.exception.CancelledException;
+import io.reactivex.FlowableEmitter;
+import io.reactivex.FlowableOnSubscribe;
+import io.reactivex.functions.Cancellable;
+
+final class XiaZaiOnSubscribe implements FlowableOnSubscribe<XiaZaiProgress> {
+
+  private XiaZaiTask task;
+
+  public XiaZaiOnSubscribe(XiaZaiTask task) {
+    this.task = task;
+  }
+
+  @Override
+  public void subscribe(FlowableEmitter<XiaZaiProgress> emitter) {
+    emitter.setCancellable(new Cancellable() {
+      @Override
+      public void cancel() {
+        task.cancel();
+      }
+    });
+    task.start(new InnerXiaZaiCallback(emitter));
+  }
+
+  private static class InnerXiaZaiCallback implements XiaZaiCallback {
+
+    private FlowableEmitter<XiaZaiProgress> emitter;
+
+    public InnerXiaZaiCallback(FlowableEmitter<XiaZaiProgress> emitter) {
+      this.emitter = emitter;
+    }
+
+    @Override
+    public void onStart() {
+      if (!emitter.isCancelled()) {
+        // Emit a dump XiaZaiProgress to represent XiaZaiCallback.onStart().
+        // n and read will never be 0, so it is unique.
+        emitter.onNext(new XiaZaiProgress(0, 0, -1));
+      }
+    }
+
+    @Override
+    public void onProgress(int n, long read, long content) {
+      if (!emitter.isCancelled()) {
+        emitter.onNext(new XiaZaiProgress(n, read, content));
+      }
+    }
+
+    // Errors after cancelling are dropped,
+    // or they go to RxJavaPlugins.onError() and crash the app.
+
+    @Override
+    public void onCancelled() {
+      if (!emitter.isCancelled()) {
+        emitter.onError(new CancelledException());
+      }
+    }
+
+    @Override
+    public void onCompleted() {
+      if (!emitter.isCancelled()) {
+        emitter.onComplete();
+      }
+    }
+
+    @Override
+    public void onError(Throwable e) {
+      if (!emitter.isCancelled()) {
+        emitter.onError(e);
+      }
+    }
+  }
+}
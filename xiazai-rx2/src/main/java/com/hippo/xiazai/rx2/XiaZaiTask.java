@@ -0,0 +1,121 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.xiazai.rx2;
+
+/*
+ * Created by Hippo on 3/10/2017.
+ */
+
+import com.hippo.xiazai.AbstractXiaZaiTask;
+import com.hippo.xiazai.XiaZai;
+import com.hippo.xiazai.XiaZaiCallback;
+import com.hippo.xiazai.XiaZaiProgress;
+import io.reactivex.BackpressureStrategy;
+import io.reactivex.Flowable;
+import io.reactivex.Scheduler;
+import io.reactivex.schedulers.Schedulers;
+import java.util.concurrent.TimeUnit;
+
+public final class XiaZaiTask extends AbstractXiaZaiTask {
+
+  private boolean enableInterval;
+  private long interval;
+  private TimeUnit unit;
+  private Scheduler scheduler;
+
+  private XiaZaiTask(Builder builder) {
+    super(builder);
+    this.enableInterval = builder.enableInterval;
+    this.interval = builder.interval;
+    this.unit = builder.unit;
+    this.scheduler = builder.scheduler;
+  }
+
+  // For XiaZaiOnSubscribe, download() is protected in another package
+  void start(XiaZaiCallback callback) {
+    download(callback);
+  }
+
+  /**
+   * Return a {@code Flowable<XiaZaiProgress>}, subscribe it to download.
+   * {@link com.hippo.xiazai.exception.CancelledException} in
+   * {@link org.reactivestreams.Subscriber#onError(Throwable)} represents
+   * {@link XiaZaiCallback#onCancelled()}. Cancelling the subscription cancels this task.
+   * <p>
+   * The download never waits for downstream. If downstream is slow,
+   * only the latest {@link XiaZaiProgress} is kept, the others are dropped,
+   * so {@link XiaZaiProgress#read()} is always right but {@link XiaZaiProgress#n()}
+   * doesn't add up to it.
+   * <p>
+   * You may call {@link Flowable#subscribeOn(Scheduler)} and
+   * {@link Flowable#observeOn(Scheduler)}.
+   * <p>
+   * Note: Do <b>NOT</b> call it twice or throw IllegalStateException.
+   */
+  public Flowable<XiaZaiProgress> xiazai() throws IllegalStateException {
+    occupy();
+    Flowable<XiaZaiProgress> flowable = Flowable.create(
+        new XiaZaiOnSubscribe(this), BackpressureStrategy.LATEST);
+    if (enableInterval) {
+      flowable = flowable.sample(interval, unit, scheduler, true);
+    }
+    return flowable;
+  }
+
+  public static class Builder extends AbstractXiaZaiTask.Builder<Builder> {
+
+    private boolean enableInterval;
+    private long interval;
+    private TimeUnit unit;
+    private Scheduler scheduler;
+
+    public Builder(XiaZai xiazai) {
+      super(xiazai);
+    }
+
+    /**
+     * Emit the latest {@link XiaZaiProgress} at most once in the interval.
+     * The last one is always emitted before completing.
+     * Use {@link Schedulers#computation()} as default.
+     *
+     * @see #interval(long, TimeUnit, Scheduler)
+     */
+    public Builder interval(long interval, TimeUnit unit) {
+      return interval(interval, unit, Schedulers.computation());
+    }
+
+    /**
+     * Emit the latest {@link XiaZaiProgress} at most once in the interval.
+     * The last one is always emitted before completing.
+     */
+    public Builder interval(long interval, TimeUnit unit, Scheduler scheduler) {
+      this.enableInterval = true;
+      this.interval = interval;
+      this.unit = unit;
+      this.scheduler = scheduler;
+      return this;
+    }
+
+    public XiaZaiTask build() throws IllegalStateException {
+      check();
+      if (enableInterval && scheduler == null) {
+        throw new IllegalStateException("enableInterval && scheduler == null");
+      }
+      return new XiaZaiTask(this);
+    }
+  }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.xiazai.rx2;
+
+/*
+ * Created by Hippo on 3/15/2017.
+ */
+
+import com.hippo.xiazai.XiaZai;
+import com.hippo.xiazai.XiaZaiGroup;
+import com.hippo.xiazai.XiaZaiProgress;
+import io.reactivex.functions.Consumer;
+import io.reactivex.plugins.RxJavaPlugins;
+import io.reactivex.schedulers.Schedulers;
+import io.reactivex.subscribers.TestSubscriber;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okio.Buffer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class XiaZaiTaskTest {
+
+  private static final int SIZE = 256 * 1024;
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private final MockWebServer server = new MockWebServer();
+  private final XiaZai xiazai = new XiaZai(new OkHttpClient());
+  private final byte[] data = new byte[SIZE];
+  private volatile Throwable undeliverable;
+
+  @Before
+  public void setUp() throws IOException {
+    new Random(SIZE).nextBytes(data);
+    server.start();
+    RxJavaPlugins.setErrorHandler(new Consumer<Throwable>() {
+      @Override
+      public void accept(Throwable e) {
+        undeliverable = e;
+      }
+    });
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    RxJavaPlugins.reset();
+    server.shutdown();
+  }
+
+  private MockResponse body() {
+    return new MockResponse().setBody(new Buffer().write(data));
+  }
+
+  private XiaZaiTask.Builder task(File file) {
+    return new XiaZaiTask.Builder(xiazai).url(server.url("/file")).file(file);
+  }
+
+  @Test
+  public void slowSubscriber() throws Exception {
+    server.enqueue(body().throttleBody(8 * 1024, 1, TimeUnit.MILLISECONDS));
+    File file = folder.newFile();
+    TestSubscriber<XiaZaiProgress> subscriber = new TestSubscriber<>(0);
+
+    // Downloads in this thread, all progress comes while nothing is requested
+    task(file).build().xiazai().subscribe(subscriber);
+    subscriber.assertNoErrors();
+    subscriber.assertNoValues();
+    assertEquals(SIZE, file.length());
+
+    // Only the latest one is kept
+    subscriber.request(1);
+    subscriber.assertValueCount(1);
+    assertEquals(SIZE, subscriber.values().get(0).read());
+    subscriber.assertComplete();
+    assertNull(undeliverable);
+  }
+
+  @Test
+  public void cancel() throws Exception {
+    server.enqueue(body().throttleBody(1024, 10, TimeUnit.MILLISECONDS));
+    File file = folder.newFile();
+    XiaZaiGroup group = new XiaZaiGroup("cancel");
+    TestSubscriber<XiaZaiProgress> subscriber = task(file).group(group).build().xiazai()
+        .subscribeOn(Schedulers.io())
+        .test();
+
+    // Wait for some data
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (group.read() == 0) {
+      assertTrue(System.nanoTime() < deadline);
+      Thread.sleep(10);
+    }
+    subscriber.cancel();
+
+    // The download stops without waiting for the rest
+    while (group.activeCount() > 0) {
+      assertTrue(System.nanoTime() < deadline);
+      Thread.sleep(10);
+    }
+    assertEquals(1, group.failedCount());
+    assertTrue(file.length() < SIZE);
+    subscriber.assertNotTerminated();
+    assertNull(undeliverable);
+  }
+
+  @Test
+  public void intervalEmitsLast() throws Exception {
+    server.enqueue(body().throttleBody(16 * 1024, 10, TimeUnit.MILLISECONDS));
+    File file = folder.newFile();
+    TestSubscriber<XiaZaiProgress> subscriber = task(file)
+        .interval(1, TimeUnit.SECONDS)
+        .build()
+        .xiazai()
+        .subscribeOn(Schedulers.io())
+        .test();
+
+    assertTrue(subscriber.awaitTerminalEvent(10, TimeUnit.SECONDS));
+    subscriber.assertNoErrors();
+    subscriber.assertComplete();
+    List<XiaZaiProgress> values = subscriber.values();
+    // The download takes less than the interval, but the last progress isn't dropped
+    assertTrue(values.size() <= 2);
+    XiaZaiProgress last = values.get(values.size() - 1);
+    assertEquals(SIZE, last.read());
+    assertEquals(SIZE, last.content());
+  }
+}